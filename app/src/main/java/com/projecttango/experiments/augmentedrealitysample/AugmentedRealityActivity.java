@@ -32,16 +32,37 @@ import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
 import com.google.atap.tangoservice.TangoCameraIntrinsics;
 import com.google.atap.tangoservice.TangoConfig;
 import com.google.atap.tangoservice.TangoCoordinateFramePair;
-import com.google.atap.tangoservice.TangoErrorException;
 import com.google.atap.tangoservice.TangoEvent;
-import com.google.atap.tangoservice.TangoInvalidException;
 import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
+import com.projecttango.pointcloud.DepthFrame;
+import com.projecttango.pointcloud.DepthFramePipeline;
+import com.projecttango.pointcloud.DepthFramePool;
+import com.projecttango.pointcloud.DeviationAnalyzer;
+import com.projecttango.pointcloud.DeviationStats;
+import com.projecttango.pointcloud.FloorPlanExtractor;
+import com.projecttango.pointcloud.Instrumentation;
+import com.projecttango.pointcloud.InstrumentationFileReporter;
+import com.projecttango.pointcloud.ObjLoader;
+import com.projecttango.pointcloud.PlaneTracker;
+import com.projecttango.pointcloud.PointCloudProcessor;
+import com.projecttango.pointcloud.PointCloudStats;
+import com.projecttango.pointcloud.PoseHistory;
+import com.projecttango.pointcloud.PosePredictor;
+import com.projecttango.pointcloud.SessionReader;
+import com.projecttango.pointcloud.SessionRecorder;
+import com.projecttango.pointcloud.SessionReplayer;
+import com.projecttango.pointcloud.TriangleBvh;
+import com.projecttango.pointcloud.TriangleMesh;
 import com.projecttango.rajawali.ar.TangoRajawaliView;
 import com.projecttango.tangosupport.TangoSupport;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * An example showing how to build a very simple augmented reality application in Java.
@@ -68,6 +89,97 @@ import java.util.ArrayList;
  */
 public class AugmentedRealityActivity extends Activity implements View.OnTouchListener {
     private static final int SECS_TO_MILLISECS = 1000;
+    // About five seconds of device poses at the pose callback rate.
+    private static final int POSE_HISTORY_CAPACITY = 512;
+    // Depth frames that can wait in front of each depth pipeline stage before the oldest one is
+    // dropped.
+    private static final int DEPTH_PIPELINE_QUEUE_CAPACITY = 2;
+    // Depth frames kept outside of the depth pipeline: the one plane fitting works on, up to
+    // three held by the renderer's triple buffer and the ones waiting to be recorded.
+    private static final int RECORDER_QUEUED_FRAMES = 4;
+    private static final int DEPTH_FRAMES_KEPT = 4 + RECORDER_QUEUED_FRAMES;
+    // Pose and depth samples that can wait for the session recorder's writer thread.
+    private static final int RECORDER_QUEUE_CAPACITY = 256;
+    /**
+     * Boolean intent extra that makes the activity record every session (from connecting to the
+     * Tango service until pausing) to a file in the app's external files directory, e.g.:
+     * <code>adb shell am start -n &lt;package&gt;/.AugmentedRealityActivity --ez record_session
+     * true</code>
+     */
+    public static final String EXTRA_RECORD_SESSION = "record_session";
+    /**
+     * String intent extra with the path of a recorded session file to replay in real time
+     * instead of the poses and point clouds of the Tango service. The camera image stays live.
+     */
+    public static final String EXTRA_REPLAY_SESSION = "replay_session";
+    /**
+     * String intent extra that enables the latency instrumentation of the depth to display path
+     * and reports it periodically, either to logcat ("logcat") or appended to a file in the app's
+     * external files directory ("file"), e.g.:
+     * <code>adb shell am start -n &lt;package&gt;/.AugmentedRealityActivity --es instrumentation
+     * logcat</code>
+     */
+    public static final String EXTRA_INSTRUMENTATION = "instrumentation";
+    private static final String INSTRUMENTATION_TO_FILE = "file";
+    private static final long INSTRUMENTATION_REPORT_PERIOD_MILLIS = 5000;
+    /**
+     * String intent extra with the path of a design model (Wavefront OBJ, in meters, in the
+     * OpenGL world frame of the session) to compare the point clouds with. The deviation summary
+     * is logged periodically.
+     */
+    public static final String EXTRA_DESIGN_MODEL = "design_model";
+    // Points further than this from the design model in meters are treated as clutter.
+    private static final float DESIGN_MATCH_DISTANCE = 0.1f;
+    // Deviation from the design model in meters within which the construction conforms.
+    private static final float DESIGN_TOLERANCE = 0.02f;
+    private static final int DEVIATION_LOG_INTERVAL = 30;
+    /**
+     * Boolean intent extra that makes the activity extract the floor plan of the room being
+     * scanned from the walls found in the point clouds. The outline is logged periodically.
+     */
+    public static final String EXTRA_FLOOR_PLAN = "floor_plan";
+    private static final int MAX_FLOOR_PLAN_WALLS = 64;
+    private static final int FLOOR_PLAN_LOG_INTERVAL = 30;
+    /**
+     * String intent extra selecting how the device pose is predicted to the time a frame is
+     * displayed: "none" renders with the latest pose, "constant_velocity" (the default)
+     * extrapolates it with the recent velocity, e.g.:
+     * <code>adb shell am start -n &lt;package&gt;/.AugmentedRealityActivity --es pose_prediction
+     * none</code>
+     */
+    public static final String EXTRA_POSE_PREDICTION = "pose_prediction";
+    private static final String POSE_PREDICTION_NONE = "none";
+    private static final String POSE_PREDICTION_CONSTANT_VELOCITY = "constant_velocity";
+    /**
+     * Boolean intent extra that shows the latest point cloud instead of the mesh fused from all
+     * of them, e.g.:
+     * <code>adb shell am start -n &lt;package&gt;/.AugmentedRealityActivity --ez show_point_cloud
+     * true</code>
+     */
+    public static final String EXTRA_SHOW_POINT_CLOUD = "show_point_cloud";
+    /**
+     * Boolean intent extra that, along with {@link #EXTRA_SHOW_POINT_CLOUD}, draws the point
+     * cloud with a level of detail selected for the current view instead of every point.
+     */
+    public static final String EXTRA_POINT_CLOUD_LOD = "point_cloud_lod";
+    /**
+     * Float intent extra with the size in pixels of the point cloud points one meter away from
+     * the depth camera, e.g.:
+     * <code>adb shell am start -n &lt;package&gt;/.AugmentedRealityActivity --ez show_point_cloud
+     * true --ef point_size 10</code>
+     */
+    public static final String EXTRA_POINT_SIZE = "point_size";
+    /**
+     * Boolean intent extra that makes the activity track the planes found in the point clouds
+     * over the session, so that tapped objects snap onto the stable planes they are placed on.
+     * Segmenting every point cloud into planes is the most expensive stage of the depth pipeline,
+     * so it is off unless requested.
+     */
+    public static final String EXTRA_PLANE_TRACKING = "plane_tracking";
+    // Planes tracked over the session, and the cells of their spatial index.
+    private static final int MAX_TRACKED_PLANES = 256;
+    private static final int MAX_PLANE_INDEX_CELLS = 1 << 17;
+    private static final float PLANE_INDEX_CELL_SIZE = 0.1f;
 
     private static final String TAG = "AugmentedRealityActiv";
     private TangoRajawaliView mGLView;
@@ -76,20 +188,45 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     private Tango mTango;
     private boolean mIsConnected;
     private boolean mIsPermissionGranted;
-    private float mCurrentTimeStamp;
+    private double mCurrentTimeStamp;
     private TangoPoseData mPose;
     private float mDeltaTime;
-    private float mPosePreviousTimeStamp;
+    private double mPosePreviousTimeStamp;
     private int mPreviousPoseStatus;
     private int mCount;
     private float mPointCloudFrameDelta;
-    private float mXyIjPreviousTimeStamp;
+    private double mXyIjPreviousTimeStamp;
     private float mAverageDepth;
     private int mPointCount;
     private TangoUx mTangoUx;
     private Object mUiPoseLock = new Object();
     private Object mUiDepthLock = new Object();
+    // Guards installing the design model's analyzer against onDestroy releasing it.
+    private final Object mDesignModelLock = new Object();
+    private boolean mDestroyed;
+    private final PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+    private final TangoCoordinateFramePair mDevicePoseFramePair = new TangoCoordinateFramePair(
+            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+            TangoPoseData.COORDINATE_FRAME_DEVICE);
+    private DepthFramePipeline mDepthPipeline;
+    // Set on the UI thread, read from the Tango callback threads.
+    private volatile SessionRecorder mSessionRecorder;
+    private volatile SessionReplayer mSessionReplayer;
+    private InstrumentationFileReporter mInstrumentationFileReporter;
+    private final PointCloudManager.PlaneFitListener mPlaneFitListener =
+            new PointCloudManager.PlaneFitListener() {
+                @Override
+                public void onPlaneFitted(TangoSupport.IntersectionPointPlaneModelPair planeModel,
+                                          TangoPoseData devicePoseAtClickTime) {
+                    mRenderer.updateObjectPose(planeModel.intersectionPoint,
+                            planeModel.planeModel, devicePoseAtClickTime);
+                }
 
+                @Override
+                public void onPlaneFitFailed(Throwable error) {
+                    Log.e(TAG, "Exception measuring nomral", error);
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -98,10 +235,38 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         // Set-up point cloud plane fitting library helper class
         mPointCloudManager = new PointCloudManager(mTango.getCameraIntrinsics(
                 TangoCameraIntrinsics.TANGO_CAMERA_COLOR));
-        mRenderer = new AugmentedRealityRenderer(this, mPointCloudManager);
+        mRenderer = new AugmentedRealityRenderer(this, mPointCloudManager, mPoseHistory);
+        String posePrediction = getIntent().getStringExtra(EXTRA_POSE_PREDICTION);
+        if (POSE_PREDICTION_NONE.equals(posePrediction)) {
+            mRenderer.setPosePredictionMode(PosePredictor.MODE_NONE);
+        } else if (posePrediction == null
+                || POSE_PREDICTION_CONSTANT_VELOCITY.equals(posePrediction)) {
+            mRenderer.setPosePredictionMode(PosePredictor.MODE_CONSTANT_VELOCITY);
+        } else {
+            Log.w(TAG, "Unknown pose prediction mode " + posePrediction);
+        }
+        mRenderer.setShowFusedMesh(!getIntent().getBooleanExtra(EXTRA_SHOW_POINT_CLOUD, false));
+        mRenderer.setPointCloudLodEnabled(
+                getIntent().getBooleanExtra(EXTRA_POINT_CLOUD_LOD, false));
+        mRenderer.setPointCloudPointSize(getIntent().getFloatExtra(EXTRA_POINT_SIZE,
+                PointCloudMaterial.DEFAULT_POINT_SIZE));
         mGLView = new TangoRajawaliView(this);
         mGLView.setSurfaceRenderer(mRenderer);
         mGLView.setOnTouchListener(this);
+        mDepthPipeline = setupDepthPipeline();
+        String designModelPath = getIntent().getStringExtra(EXTRA_DESIGN_MODEL);
+        if (designModelPath != null) {
+            loadDesignModel(designModelPath);
+        }
+        if (getIntent().getBooleanExtra(EXTRA_FLOOR_PLAN, false)) {
+            mPointCloudManager.setFloorPlanExtractor(new FloorPlanExtractor(
+                    PointCloudProcessor.MAX_DEPTH_POINTS, MAX_FLOOR_PLAN_WALLS));
+        }
+        if (getIntent().getBooleanExtra(EXTRA_PLANE_TRACKING, false)) {
+            mPointCloudManager.setPlaneTracker(new PlaneTracker(
+                    PointCloudProcessor.MAX_DEPTH_POINTS, MAX_TRACKED_PLANES,
+                    MAX_PLANE_INDEX_CELLS, PLANE_INDEX_CELL_SIZE));
+        }
 
         mTangoUx = setupTangoUxAndLayout();
         startActivityForResult(
@@ -143,6 +308,14 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
             config.putBoolean(TangoConfig.KEY_BOOLEAN_LEARNINGMODE, true);
             mTango.connect(config);
 
+            String replayPath = getIntent().getStringExtra(EXTRA_REPLAY_SESSION);
+            if (replayPath != null) {
+                startReplay(replayPath);
+            } else if (getIntent().getBooleanExtra(EXTRA_RECORD_SESSION, false)) {
+                startRecording();
+            }
+
+            startInstrumentation();
             setTangoListeners();
 
             // Get extrinsics from device for use in transforms
@@ -167,22 +340,9 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                 if (mTangoUx != null) {
                     mTangoUx.updatePoseStatus(pose.statusCode);
                 }
-                // Make sure to have atomic access to Tango Pose Data so that
-                // render loop doesn't interfere while Pose call back is updating
-                // the data.
-                synchronized (mUiPoseLock) {
-                    mPose = pose;
-                    // Calculate the delta time from previous pose.
-                    mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mPosePreviousTimeStamp = (float) pose.timestamp;
-                    if (mPreviousPoseStatus != pose.statusCode) {
-                        mCount = 0;
-                    }
-                    mCount++;
-                    mPreviousPoseStatus = pose.statusCode;
+                if (mSessionReplayer == null) {
+                    onDevicePose(pose);
                 }
-                mRenderer.updateDevicePose(pose);
             }
 
             @Override
@@ -192,80 +352,9 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                     mTangoUx.updateXyzCount(xyzIj.xyzCount);
                 }
 
-                    /*
-                float[] xx = new float[xyzIj.xyzCount * 3];
-                xyzIj.xyz.get(xx);
-                float maxX = Float.NEGATIVE_INFINITY;
-                float minX = Float.POSITIVE_INFINITY;
-                float maxY = Float.NEGATIVE_INFINITY;
-                float minY = Float.POSITIVE_INFINITY;
-                float maxZ = Float.NEGATIVE_INFINITY;
-                float minZ = Float.POSITIVE_INFINITY;
-
-                for (int i = 0; i < xx.length; i += 3) {
-                    float x = xx[i];
-                    float y = xx[i + 1];
-                    float z = xx[i + 2];
-                    if (x > maxX) {
-                        maxX = x;
-                    }
-                    if (x < minX) {
-                        minX = x;
-                    }
-                    if (y > maxY) {
-                        maxY = y;
-                    }
-                    if (y < minY) {
-                        minY = y;
-                    }
-                    if (z > maxZ) {
-                        maxZ = z;
-                    }
-                    if (z < minZ) {
-                        minZ = z;
-                    }
+                if (mSessionReplayer == null) {
+                    onPointCloud(xyzIj.xyz, xyzIj.xyzCount, xyzIj.timestamp);
                 }
-                Log.e(TAG, String.format("lalala %d: X: %f -> %f Y: %f -> %f Z: %f -> %f", xyzIj.xyzCount, minX, maxX, minY, maxY, minZ, maxZ));
-                    */
-
-                mPointCloudManager.updateCallbackBufferAndSwap(xyzIj.xyz, xyzIj.xyzCount);
-                TangoPoseData pointCloudPose = mTango.getPoseAtTime(mCurrentTimeStamp,
-                        framePairs.get(0));
-//                mRenderer.updatePointCloudPose(pointCloudPose);
-
-                // Make sure to have atomic access to TangoXyzIjData so that
-                // UI loop doesn't interfere while onXYZijAvailable callback is updating
-                // the mPoint cloud data.
-                synchronized (mUiDepthLock) {
-                    mCurrentTimeStamp = (float) xyzIj.timestamp;
-                    mPointCloudFrameDelta = (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mXyIjPreviousTimeStamp = mCurrentTimeStamp;
-                    mAverageDepth = getAveragedDepth(xyzIj.xyz);
-                    try {
-                        mPointCount = xyzIj.xyzCount;
-                    } catch (TangoErrorException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
-                    } catch (TangoInvalidException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
-                    }
-                }
-                // ------
-
-                // Get the device pose at the time the point cloud was acquired
-                TangoCoordinateFramePair framePair = new TangoCoordinateFramePair(
-                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                        TangoPoseData.COORDINATE_FRAME_DEVICE);
-                TangoPoseData cloudPose = mTango.getPoseAtTime(xyzIj.timestamp, framePair);
-
-                // Save the cloud and point data for later use
-                mPointCloudManager.updateXyzIjData(xyzIj, cloudPose);
-
-                mPointCloudManager.updateCallbackBufferAndSwap(xyzIj.xyz, xyzIj.xyzCount);
-                mRenderer.updatePointCloudPose(pointCloudPose);
-
             }
 
             @Override
@@ -323,6 +412,30 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
             mGLView.disconnectCamera();
             mTango.disconnect();
             mIsConnected = false;
+            // Timestamps start over when the service reconnects.
+            mPoseHistory.clear();
+            stopRecording();
+            stopReplay();
+            stopInstrumentation();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDepthPipeline.shutdown();
+        mPointCloudManager.shutdown();
+        // Stops the fusion threads; the fitting stage may still be finishing a frame, which the
+        // released volume drops.
+        mPointCloudManager.getProcessor().getTsdfVolume().release();
+        DeviationAnalyzer deviationAnalyzer;
+        synchronized (mDesignModelLock) {
+            mDestroyed = true;
+            deviationAnalyzer = mPointCloudManager.getDeviationAnalyzer();
+            mPointCloudManager.setDeviationAnalyzer(null);
+        }
+        if (deviationAnalyzer != null) {
+            deviationAnalyzer.release();
         }
     }
 
@@ -342,7 +455,7 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
             float v = motionEvent.getY() / view.getHeight();
 
             try {
-                doFitPlane(u, v);
+                fitPlaneAsync(u, v);
             } catch (Throwable t) {
                 Log.e(TAG, "Exception measuring nomral", t);
             }
@@ -350,40 +463,424 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         return true;
     }
 
+    /**
+     * Handles a device pose received from the Tango service or replayed from a session.
+     * Called on the thread delivering poses.
+     */
+    private void onDevicePose(TangoPoseData pose) {
+        // Make sure to have atomic access to Tango Pose Data so that
+        // render loop doesn't interfere while Pose call back is updating
+        // the data.
+        synchronized (mUiPoseLock) {
+            mPose = pose;
+            // Calculate the delta time from previous pose.
+            mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
+                    * SECS_TO_MILLISECS;
+            mPosePreviousTimeStamp = pose.timestamp;
+            if (mPreviousPoseStatus != pose.statusCode) {
+                mCount = 0;
+            }
+            mCount++;
+            mPreviousPoseStatus = pose.statusCode;
+        }
+        // Keep the valid poses so that poses at depth frame and click times can be
+        // interpolated locally instead of querying the service.
+        if (pose.statusCode == TangoPoseData.POSE_VALID) {
+            mPoseHistory.append(pose.timestamp, pose.translation, pose.rotation);
+        }
+        SessionRecorder recorder = mSessionRecorder;
+        if (recorder != null) {
+            recorder.recordPose(pose.timestamp, pose.statusCode, pose.translation,
+                    pose.rotation);
+        }
+        mRenderer.updateDevicePose(pose);
+    }
+
+    /**
+     * Handles a point cloud received from the Tango service or replayed from a session.
+     * Called on the thread delivering point clouds.
+     */
+    private void onPointCloud(FloatBuffer xyz, int pointCount, double timestamp) {
+        long start = Instrumentation.now();
+        Instrumentation.increment(Instrumentation.COUNTER_CAPTURED_FRAMES);
+        // Only copy the point cloud here and leave the rest of the work to the depth
+        // pipeline stages so the thread delivering point clouds is never held up.
+        DepthFrame frame = mDepthPipeline.acquireFrame();
+        if (frame == null) {
+            return;
+        }
+        long copyStart = Instrumentation.now();
+        frame.copyFrom(xyz, pointCount, timestamp);
+        Instrumentation.record(Instrumentation.STAGE_CAPTURE_COPY, copyStart);
+        frame.captureNanos = start;
+        // Get the device pose at the time the point cloud was acquired
+        TangoPoseData cloudPose = getDevicePoseAtTime(timestamp);
+        frame.setPose(cloudPose.translation, cloudPose.rotation,
+                cloudPose.statusCode == TangoPoseData.POSE_VALID);
+        SessionRecorder recorder = mSessionRecorder;
+        if (recorder != null) {
+            recorder.recordDepthFrame(frame);
+        }
+        mDepthPipeline.submit(frame);
+        Instrumentation.record(Instrumentation.STAGE_CALLBACK, start);
+    }
+
+    /**
+     * Starts replaying a recorded session in real time on a background thread, in place of the
+     * poses and point clouds of the Tango service.
+     */
+    private void startReplay(String path) {
+        final SessionReader reader;
+        try {
+            reader = new SessionReader(new File(path));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open session " + path, e);
+            return;
+        }
+        // Timestamps of the replayed session have nothing to do with the live ones.
+        mPoseHistory.clear();
+        final SessionReplayer replayer = new SessionReplayer(reader,
+                new SessionReplayer.Listener() {
+                    @Override
+                    public void onPoseAvailable(double timestamp, int statusCode,
+                                                double[] translation, double[] rotation) {
+                        TangoPoseData pose = new TangoPoseData();
+                        pose.timestamp = timestamp;
+                        pose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+                        pose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+                        pose.statusCode = statusCode;
+                        System.arraycopy(translation, 0, pose.translation, 0, 3);
+                        System.arraycopy(rotation, 0, pose.rotation, 0, 4);
+                        onDevicePose(pose);
+                    }
+
+                    @Override
+                    public void onPointCloudAvailable(double timestamp, FloatBuffer xyz,
+                                                      int pointCount) {
+                        onPointCloud(xyz, pointCount, timestamp);
+                    }
+
+                    @Override
+                    public void onStep(double timestamp) {
+                    }
+                });
+        mSessionReplayer = replayer;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayer.run();
+                    Log.i(TAG, "Replayed " + replayer.getPointCloudCount() + " point clouds and "
+                            + replayer.getPoseCount() + " poses in "
+                            + replayer.getElapsedNanos() / 1000000 + "ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error replaying session", e);
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing session", e);
+                    }
+                }
+            }
+        }, "SessionReplayer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops replaying, if replaying, and goes back to live data.
+     */
+    private void stopReplay() {
+        SessionReplayer replayer = mSessionReplayer;
+        if (replayer == null) {
+            return;
+        }
+        mSessionReplayer = null;
+        replayer.stop();
+    }
+
+    /**
+     * Starts recording the poses and point clouds received to a new session file.
+     */
+    private void startRecording() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File file = new File(directory, "session-" + System.currentTimeMillis() + ".tdr");
+        try {
+            mSessionRecorder = new SessionRecorder(file, SessionRecorder.DEFAULT_CHUNK_SIZE,
+                    RECORDER_QUEUE_CAPACITY, RECORDER_QUEUED_FRAMES);
+            Log.i(TAG, "Recording session to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start recording to " + file, e);
+        }
+    }
+
+    /**
+     * Stops recording and closes the session file, if recording.
+     */
+    private void stopRecording() {
+        SessionRecorder recorder = mSessionRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mSessionRecorder = null;
+        try {
+            recorder.close();
+            Log.i(TAG, "Recorded " + recorder.getWrittenFrameCount() + " point clouds and "
+                    + recorder.getWrittenPoseCount() + " poses to " + recorder.getFile()
+                    + " (dropped " + recorder.getDroppedFrameCount() + " point clouds and "
+                    + recorder.getDroppedPoseCount() + " poses)");
+        } catch (IOException e) {
+            Log.e(TAG, "Error recording session to " + recorder.getFile(), e);
+        }
+    }
+
+    /**
+     * Enables the latency instrumentation and its periodic reports if requested in the intent.
+     */
+    private void startInstrumentation() {
+        String destination = getIntent().getStringExtra(EXTRA_INSTRUMENTATION);
+        if (destination == null) {
+            return;
+        }
+        Instrumentation.Reporter reporter;
+        if (INSTRUMENTATION_TO_FILE.equals(destination)) {
+            File directory = getExternalFilesDir(null);
+            if (directory == null) {
+                directory = getFilesDir();
+            }
+            File file = new File(directory, "instrumentation-" + System.currentTimeMillis()
+                    + ".txt");
+            try {
+                mInstrumentationFileReporter = new InstrumentationFileReporter(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write instrumentation to " + file, e);
+                return;
+            }
+            reporter = mInstrumentationFileReporter;
+            Log.i(TAG, "Writing instrumentation to " + file);
+        } else {
+            reporter = new Instrumentation.Reporter() {
+                @Override
+                public void report(Instrumentation.Snapshot snapshot) {
+                    Log.i(TAG, snapshot.toString());
+                }
+            };
+        }
+        Instrumentation.setEnabled(true);
+        Instrumentation.startReporting(INSTRUMENTATION_REPORT_PERIOD_MILLIS, reporter);
+    }
+
+    /**
+     * Disables the latency instrumentation and stops reporting it.
+     */
+    private void stopInstrumentation() {
+        Instrumentation.setEnabled(false);
+        Instrumentation.stopReporting();
+        if (mInstrumentationFileReporter != null) {
+            try {
+                mInstrumentationFileReporter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing instrumentation file", e);
+            }
+            mInstrumentationFileReporter = null;
+        }
+    }
+
+    /**
+     * Loads a design model and builds its bounding volume hierarchy on a background thread, then
+     * starts comparing the point clouds with it.
+     */
+    private void loadDesignModel(final String path) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                TriangleMesh mesh;
+                try {
+                    mesh = ObjLoader.load(new File(path));
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not load design model " + path, e);
+                    return;
+                }
+                // Large models take seconds to index; build subtrees on all the cores.
+                ExecutorService executor = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors());
+                TriangleBvh bvh;
+                try {
+                    bvh = new TriangleBvh(mesh, executor);
+                } finally {
+                    executor.shutdown();
+                }
+                DeviationAnalyzer analyzer = new DeviationAnalyzer(bvh,
+                        PointCloudProcessor.MAX_DEPTH_POINTS, DESIGN_MATCH_DISTANCE,
+                        DESIGN_TOLERANCE);
+                synchronized (mDesignModelLock) {
+                    if (!mDestroyed) {
+                        mPointCloudManager.setDeviationAnalyzer(analyzer);
+                        analyzer = null;
+                    }
+                }
+                if (analyzer != null) {
+                    // The activity was destroyed while the model loaded.
+                    analyzer.release();
+                    return;
+                }
+                Log.i(TAG, "Loaded design model " + path + ": " + mesh.getTriangleCount()
+                        + " triangles in " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        }, "DesignModelLoader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates the pipeline processing the point clouds received in onXyzIjAvailable.
+     * Each stage runs on its own thread: statistics shown in the UI, downsampling and handing the
+     * point cloud to the renderer, keeping the cloud for plane fitting and fusing it into the
+     * reconstructed mesh, comparing it with the design model if one is loaded, and finally
+     * segmenting it into planes once for both the floor plan and the tracked planes tapped
+     * objects snap to, if either is enabled.
+     */
+    private DepthFramePipeline setupDepthPipeline() {
+        final int stageCount = 5;
+        int frameCount = stageCount * (DEPTH_PIPELINE_QUEUE_CAPACITY + 1) + 1 + DEPTH_FRAMES_KEPT;
+        DepthFramePipeline pipeline = new DepthFramePipeline(
+                new DepthFramePool(PointCloudProcessor.MAX_DEPTH_POINTS, frameCount),
+                DEPTH_PIPELINE_QUEUE_CAPACITY);
+        pipeline.addStage("statistics", new DepthFramePipeline.Stage() {
+            private final PointCloudStats mStatistics = new PointCloudStats();
+
+            @Override
+            public void process(DepthFrame frame) {
+                long start = Instrumentation.now();
+                mStatistics.compute(frame.xyz, frame.pointCount);
+                Instrumentation.record(Instrumentation.STAGE_STATISTICS, start);
+                // Make sure to have atomic access to the depth statistics so that
+                // UI loop doesn't interfere while they are being updated.
+                synchronized (mUiDepthLock) {
+                    mCurrentTimeStamp = frame.timestamp;
+                    mPointCloudFrameDelta = (float) (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
+                            * SECS_TO_MILLISECS;
+                    mXyIjPreviousTimeStamp = mCurrentTimeStamp;
+                    mPointCount = mStatistics.getPointCount();
+                    mAverageDepth = mStatistics.getMeanDepth();
+                }
+            }
+        });
+        pipeline.addStage("filter", new DepthFramePipeline.Stage() {
+            @Override
+            public void process(DepthFrame frame) {
+                long start = Instrumentation.now();
+                mPointCloudManager.getProcessor().updateCallbackBufferAndSwap(frame);
+                Instrumentation.record(Instrumentation.STAGE_BUFFER_SWAP, start);
+                mRenderer.updatePointCloudPose(PointCloudManager.toDevicePose(frame));
+            }
+        });
+        pipeline.addStage("fitting", new DepthFramePipeline.Stage() {
+            @Override
+            public void process(DepthFrame frame) {
+                // Save the cloud and point data for later use
+                mPointCloudManager.updateXyzIjData(frame);
+                long start = Instrumentation.now();
+                mPointCloudManager.integrateXyzIjData(frame, mRenderer.getPoseCalculator());
+                Instrumentation.record(Instrumentation.STAGE_FUSION, start);
+            }
+        });
+        pipeline.addStage("deviation", new DepthFramePipeline.Stage() {
+            private final DeviationStats mFrameStats = new DeviationStats();
+            private final DeviationStats mTotalStats = new DeviationStats();
+            private int mAnalyzedCount;
+
+            @Override
+            public void process(DepthFrame frame) {
+                long start = Instrumentation.now();
+                if (!mPointCloudManager.analyzeDeviation(frame, mRenderer.getPoseCalculator())) {
+                    return;
+                }
+                Instrumentation.record(Instrumentation.STAGE_DEVIATION, start);
+                if (++mAnalyzedCount % DEVIATION_LOG_INTERVAL == 0) {
+                    DeviationAnalyzer analyzer = mPointCloudManager.getDeviationAnalyzer();
+                    analyzer.getFrameStats(mFrameStats);
+                    analyzer.getTotalStats(mTotalStats);
+                    Log.i(TAG, "Deviation from design, last frame: " + mFrameStats
+                            + "; all frames: " + mTotalStats);
+                }
+            }
+        });
+        // The floor plan and the tracked planes share a single segmentation of every frame.
+        pipeline.addStage("planes", new DepthFramePipeline.Stage() {
+            private final float[] mOutline = new float[MAX_FLOOR_PLAN_WALLS * 4];
+            private int mUpdateCount;
+
+            @Override
+            public void process(DepthFrame frame) {
+                if (!mPointCloudManager.updatePlanes(frame, mRenderer.getPoseCalculator())) {
+                    return;
+                }
+                FloorPlanExtractor extractor = mPointCloudManager.getFloorPlanExtractor();
+                if (extractor != null && ++mUpdateCount % FLOOR_PLAN_LOG_INTERVAL == 0) {
+                    Log.i(TAG, String.format("Floor plan: %d walls, %d vertices, %.1f m2, "
+                            + "floor at %.2f m", extractor.getWallCount(),
+                            extractor.getOutline(mOutline),
+                            extractor.getOutlineArea(), extractor.getFloorHeight()));
+                }
+            }
+        });
+        return pipeline;
+    }
+
     /**
      * Use the TangoSupport library with point cloud data to calculate the plane of
      * the world feature pointed at the location the camera is looking at and update the
      * renderer to show a 3D object in that location.
+     * The plane is fitted on the plane fitting thread of the PointCloudManager; a tap made while
+     * an earlier one is still waiting to be fitted replaces it.
      */
-    private void doFitPlane(float u, float v) {
+    private void fitPlaneAsync(float u, float v) {
         // Get the current device pose
-        TangoCoordinateFramePair framePair = new TangoCoordinateFramePair(
-                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                TangoPoseData.COORDINATE_FRAME_DEVICE);
-        TangoPoseData devicePose = mTango.getPoseAtTime(0.0, framePair);
+        TangoPoseData devicePose = getLatestDevicePose();
 
         // Perform plane fitting with the latest available point cloud data
-        TangoSupport.IntersectionPointPlaneModelPair planeModel =
-                mPointCloudManager.fitPlane(u, v, devicePose, mRenderer.getPoseCalculator());
-        mRenderer.updateObjectPose(planeModel.intersectionPoint, planeModel.planeModel, devicePose);
+        mPointCloudManager.fitPlaneAsync(u, v, devicePose, mRenderer.getPoseCalculator(),
+                mPlaneFitListener);
+    }
+
+    /**
+     * Returns the device pose with respect to start of service at the given time, interpolated
+     * from the poses received in onPoseAvailable. Only queries the Tango service when the time
+     * is outside the window covered by the pose history.
+     */
+    private TangoPoseData getDevicePoseAtTime(double timestamp) {
+        TangoPoseData pose = new TangoPoseData();
+        if (!mPoseHistory.getPoseAtTime(timestamp, pose.translation, pose.rotation)) {
+            return mTango.getPoseAtTime(timestamp, mDevicePoseFramePair);
+        }
+        pose.timestamp = timestamp;
+        pose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        pose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        return pose;
     }
 
     /**
-     * Calculates the average depth from a point cloud buffer
-     *
-     * @param pointCloudBuffer
-     * @return Average depth.
+     * Returns the most recent valid device pose with respect to start of service, querying the
+     * Tango service only if no pose has been received yet.
      */
-    private float getAveragedDepth(FloatBuffer pointCloudBuffer) {
-        mPointCount = pointCloudBuffer.capacity() / 3;
-        float totalZ = 0;
-        float averageZ = 0;
-        for (int i = 0; i < pointCloudBuffer.capacity() - 3; i = i + 3) {
-            totalZ = totalZ + pointCloudBuffer.get(i + 2);
+    private TangoPoseData getLatestDevicePose() {
+        TangoPoseData pose = new TangoPoseData();
+        double timestamp = mPoseHistory.getLatestPose(pose.translation, pose.rotation);
+        if (timestamp < 0) {
+            return mTango.getPoseAtTime(0.0, mDevicePoseFramePair);
         }
-        if (mPointCount != 0)
-            averageZ = totalZ / mPointCount;
-        return averageZ;
+        pose.timestamp = timestamp;
+        pose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        pose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        return pose;
     }
 
     /**
@@ -16,25 +16,37 @@
 package com.projecttango.experiments.augmentedrealitysample;
 
 import android.content.Context;
+import android.util.Log;
 import android.view.MotionEvent;
 
 import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.pointcloud.Instrumentation;
+import com.projecttango.pointcloud.PointCloudData;
+import com.projecttango.pointcloud.PointCloudLod;
+import com.projecttango.pointcloud.PoseHistory;
+import com.projecttango.pointcloud.PosePredictor;
 import com.projecttango.rajawali.Pose;
 import com.projecttango.rajawali.ScenePoseCalcuator;
 import com.projecttango.rajawali.ar.TangoRajawaliRenderer;
 import com.projecttango.rajawali.renderables.FrustumAxes;
-import com.projecttango.rajawali.renderables.primitives.Points;
 
 import org.rajawali3d.Object3D;
+import org.rajawali3d.cameras.Camera;
 import org.rajawali3d.lights.DirectionalLight;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.methods.DiffuseMethod;
 import org.rajawali3d.materials.plugins.FogMaterialPlugin;
 import org.rajawali3d.materials.textures.ATexture;
 import org.rajawali3d.materials.textures.Texture;
+import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.primitives.Cube;
 import org.rajawali3d.primitives.RectangularPrism;
+import org.rajawali3d.scene.ASceneFrameCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 /**
  * Very simple example augmented reality renderer which displays two objects in a fixed position
@@ -44,12 +56,26 @@ import org.rajawali3d.primitives.RectangularPrism;
  * peculiarities:
  * - It extends <code>TangoRajawaliArRenderer</code>
  * - It calls <code>super.initScene()</code> in the initialization
- * - It doesn't do anything with the camera, since that is handled automatically by Tango
+ * - The camera is handled by Tango, only moved to the pose predicted for display time before
+ *   every frame is drawn
  */
 public class AugmentedRealityRenderer extends TangoRajawaliRenderer {
+    private static final String TAG = "AugmentedRealityRend";
 
     private static final float CUBE_SIDE_LENGTH = 0.12f;
     private static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Time from rendering a frame to it reaching the display: about two frames at 60 fps.
+    private static final double DEFAULT_DISPLAY_LATENCY = 0.033;
+    private static final double NANOS_TO_SECS = 1e-9;
+    // Number of predicted frames between logs of the pose prediction error.
+    private static final int PREDICTION_ERROR_LOG_INTERVAL = 300;
+    // Point cloud level of detail: cell size in meters, target spacing between points on screen
+    // in pixels and distance beyond which points are not drawn in meters.
+    private static final float LOD_CELL_SIZE = 0.2f;
+    private static final float LOD_POINT_SPACING = 3;
+    private static final float LOD_MAX_DISTANCE = 8;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
 
     private Pose mPlanePose;
     private Pose mPointCloudPose;
@@ -62,13 +88,39 @@ public class AugmentedRealityRenderer extends TangoRajawaliRenderer {
     private Object3D mObject2;
     private DirectionalLight light;
     private DirectionalLight light2;
-    private Points mPoints;
+    private StreamingPoints mPoints;
+    private FusedMesh mFusedMesh;
+    private volatile boolean mShowFusedMesh = true;
     private PointCloudManager mPointCloudManager;
+    private long mLastPointCloudSequence;
+    private double mLastPointCloudTimestamp;
+    private PointCloudMaterial mPointCloudMaterial;
+    private volatile boolean mPointCloudLodEnabled;
+    private volatile float mPointCloudPointSize = PointCloudMaterial.DEFAULT_POINT_SIZE;
+    private PointCloudLod mPointCloudLod;
+    private FloatBuffer mLodPoints;
+    private final Matrix4 mLodModelMatrix = new Matrix4();
+    private final Matrix4 mLodMvpMatrix = new Matrix4();
+
+    private final PosePredictor mPosePredictor;
+    private final TangoPoseData mPredictedDevicePose = new TangoPoseData();
+    private TangoPoseData mDevicePose;
+    private long mDevicePoseReceivedNanos;
+    private volatile double mDisplayLatency = DEFAULT_DISPLAY_LATENCY;
+    private int mPredictedFrameCount;
 
-    public AugmentedRealityRenderer(Context context, PointCloudManager pointCloudManager) {
+    /**
+     * @param poseHistory History of the valid device poses, used to predict the device pose at
+     *                    display time.
+     */
+    public AugmentedRealityRenderer(Context context, PointCloudManager pointCloudManager,
+                                    PoseHistory poseHistory) {
         super(context);
         mPointCloudManager = pointCloudManager;
-
+        mPosePredictor = new PosePredictor(poseHistory);
+        mPredictedDevicePose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        mPredictedDevicePose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        mPredictedDevicePose.statusCode = TangoPoseData.POSE_VALID;
     }
 
     @Override
@@ -76,12 +128,40 @@ public class AugmentedRealityRenderer extends TangoRajawaliRenderer {
         // Remember to call super.initScene() to allow TangoRajawaliArRenderer to set-up
         super.initScene();
 
-        mPoints = new Points(MAX_NUMBER_OF_POINTS);
+        mPoints = new StreamingPoints(MAX_NUMBER_OF_POINTS);
+        mPointCloudMaterial = new PointCloudMaterial();
+        mPoints.setMaterial(mPointCloudMaterial);
         getCurrentScene().addChild(mPoints);
 
+        // Surface fused from all the point clouds so far, shown instead of the latest raw cloud.
+        mFusedMesh = new FusedMesh(mPointCloudManager.getProcessor().getTsdfMesher());
+        getCurrentScene().addChild(mFusedMesh);
+
         mFrustumAxes = new FrustumAxes(3);
         getCurrentScene().addChild(mFrustumAxes);
 
+        // Move the scene camera to the predicted pose right before the frame is drawn, after
+        // TangoRajawaliRenderer has set it from the latest device pose.
+        getCurrentScene().registerFrameCallback(new ASceneFrameCallback() {
+            @Override
+            public void onPreFrame(long sceneTime, double deltaTime) {
+                applyPredictedCameraPose();
+            }
+
+            @Override
+            public void onPreDraw(long sceneTime, double deltaTime) {
+            }
+
+            @Override
+            public void onPostFrame(long sceneTime, double deltaTime) {
+            }
+
+            @Override
+            public boolean callPreFrame() {
+                return true;
+            }
+        });
+
         // Add a directional light in an arbitrary direction
         light = new DirectionalLight(1, 0.2, -1);
         light.setColor(0, 0, 1);
@@ -154,33 +234,201 @@ public class AugmentedRealityRenderer extends TangoRajawaliRenderer {
 //                mObject2.moveForward(CUBE_SIDE_LENGTH / 2.0f);
             }
         }
-        PointCloudManager.PointCloudData renderPointCloudData
-                = mPointCloudManager.updateAndGetLatestPointCloudRenderBuffer();
-        mPoints.updatePoints(renderPointCloudData.floatBuffer, renderPointCloudData.pointCount);
+        boolean showFusedMesh = mShowFusedMesh;
+        mFusedMesh.setVisible(showFusedMesh);
+        mPoints.setVisible(!showFusedMesh);
+        Instrumentation.increment(Instrumentation.COUNTER_RENDERED_FRAMES);
+        if (showFusedMesh) {
+            long uploadStart = Instrumentation.now();
+            mFusedMesh.updateMesh();
+            Instrumentation.record(Instrumentation.STAGE_MESH_UPLOAD, uploadStart);
+        } else {
+            long consumeStart = Instrumentation.now();
+            PointCloudData renderPointCloudData
+                    = mPointCloudManager.getProcessor().updateAndGetLatestPointCloudRenderBuffer();
+            Instrumentation.record(Instrumentation.STAGE_RENDER_CONSUME, consumeStart);
+            if (mPointCloudLodEnabled) {
+                // What is visible changes with the camera, so select and upload every frame.
+                long uploadStart = Instrumentation.now();
+                uploadPointCloudLod(renderPointCloudData);
+                Instrumentation.record(Instrumentation.STAGE_POINTS_UPLOAD, uploadStart);
+                mLastPointCloudSequence = renderPointCloudData.sequence;
+                mLastPointCloudTimestamp = renderPointCloudData.timestamp;
+            } else if (renderPointCloudData.sequence != mLastPointCloudSequence) {
+                // Only upload the point cloud when a new frame has been published since the last
+                // render.
+                long uploadStart = Instrumentation.now();
+                mPoints.updatePoints(renderPointCloudData.floatBuffer,
+                        renderPointCloudData.pointCount);
+                Instrumentation.record(Instrumentation.STAGE_POINTS_UPLOAD, uploadStart);
+                if (renderPointCloudData.captureNanos != 0) {
+                    Instrumentation.record(Instrumentation.STAGE_END_TO_END,
+                            renderPointCloudData.captureNanos);
+                }
+                mLastPointCloudSequence = renderPointCloudData.sequence;
+                mLastPointCloudTimestamp = renderPointCloudData.timestamp;
+            } else {
+                Instrumentation.increment(Instrumentation.COUNTER_STALE_FRAMES);
+            }
+        }
         if(mCameraPose==null || mPointCloudPose == null){
             return;
         }
         // Update the scene objects with the latest device position and orientation information.
         // Synchronize to avoid concurrent access from the Tango callback thread below.
         synchronized (this) {
-            mFrustumAxes.setPosition(mCameraPose.getPosition());
-            mFrustumAxes.setOrientation(mCameraPose.getOrientation());
-
             mPoints.setPosition(mPointCloudPose.getPosition());
             mPoints.setOrientation(mPointCloudPose.getOrientation());
+            mPointCloudMaterial.setPointSize(mPointCloudPointSize);
+            if (mDevicePose != null && mLastPointCloudTimestamp > 0) {
+                double now = mDevicePose.timestamp
+                        + (System.nanoTime() - mDevicePoseReceivedNanos) * NANOS_TO_SECS;
+                mPointCloudMaterial.setFrameAge((float) (now - mLastPointCloudTimestamp));
+            }
 //            mTouchViewHandler.updateCamera(mCameraPose.getPosition(), mCameraPose.getOrientation());
         }
 
     }
 
+    /**
+     * Uploads only the points of the cloud that are in view, subsampled to an even density on
+     * screen. Uploads the whole cloud while its pose is not known yet.
+     */
+    private void uploadPointCloudLod(PointCloudData pointCloudData) {
+        Pose pointCloudPose;
+        synchronized (this) {
+            pointCloudPose = mPointCloudPose;
+        }
+        if (pointCloudPose == null) {
+            mPoints.updatePoints(pointCloudData.floatBuffer, pointCloudData.pointCount);
+            return;
+        }
+        if (mPointCloudLod == null) {
+            mPointCloudLod = new PointCloudLod(MAX_NUMBER_OF_POINTS, LOD_CELL_SIZE);
+            mPointCloudLod.setPointSpacing(LOD_POINT_SPACING);
+            mPointCloudLod.setMaxDistance(LOD_MAX_DISTANCE);
+            mLodPoints = ByteBuffer
+                    .allocateDirect(MAX_NUMBER_OF_POINTS * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        Camera camera = getCurrentCamera();
+        Matrix4 projection = camera.getProjectionMatrix();
+        mLodModelMatrix.setAll(pointCloudPose.getPosition(), Vector3.ONE,
+                pointCloudPose.getOrientation());
+        mLodMvpMatrix.setAll(projection).multiply(camera.getViewMatrix())
+                .multiply(mLodModelMatrix);
+        float focalLengthPixels =
+                (float) (projection.getDoubleValues()[5] * getViewportHeight() / 2);
+        int count = mPointCloudLod.select(pointCloudData.floatBuffer, pointCloudData.pointCount,
+                mLodMvpMatrix.getDoubleValues(), focalLengthPixels, mLodPoints);
+        mPoints.updatePoints(mLodPoints, count);
+    }
+
+    /**
+     * Sets the size in pixels of the points of the point cloud one meter away from the depth
+     * camera, see {@link PointCloudMaterial#setPointSize}.
+     */
+    public void setPointCloudPointSize(float pixels) {
+        mPointCloudPointSize = pixels;
+    }
+
+    /**
+     * Enables or disables the level of detail selection of the point cloud shown when the fused
+     * mesh is not: only the cells of the cloud in view are drawn, with fewer points for the far
+     * ones.
+     */
+    public void setPointCloudLodEnabled(boolean enabled) {
+        mPointCloudLodEnabled = enabled;
+    }
+
+    /**
+     * Moves the scene camera, and the frustum axes showing the device, to the camera pose
+     * predicted for the time the frame will be displayed, so that anchored objects stay in place
+     * while the device moves. Leaves the camera as TangoRajawaliRenderer set it when prediction is
+     * disabled.
+     */
+    private synchronized void applyPredictedCameraPose() {
+        if (mCameraPose == null) {
+            return;
+        }
+        Pose cameraPose = predictCameraPose();
+        if (mPosePredictor.getMode() != PosePredictor.MODE_NONE) {
+            Camera camera = getCurrentCamera();
+            camera.setRotation(cameraPose.getOrientation());
+            camera.setPosition(cameraPose.getPosition());
+        }
+        mFrustumAxes.setPosition(cameraPose.getPosition());
+        mFrustumAxes.setOrientation(cameraPose.getOrientation());
+    }
+
+    /**
+     * Returns the camera pose extrapolated to the time the frame being rendered will be displayed,
+     * or the latest camera pose if prediction is disabled or not possible yet.
+     */
+    private Pose predictCameraPose() {
+        if (mPosePredictor.getMode() == PosePredictor.MODE_NONE || mDevicePose == null) {
+            return mCameraPose;
+        }
+        double displayTime = mDevicePose.timestamp
+                + (System.nanoTime() - mDevicePoseReceivedNanos) * NANOS_TO_SECS
+                + mDisplayLatency;
+        if (!mPosePredictor.predict(displayTime, mPredictedDevicePose.translation,
+                mPredictedDevicePose.rotation)) {
+            return mCameraPose;
+        }
+        mPredictedDevicePose.timestamp = displayTime;
+        if (++mPredictedFrameCount % PREDICTION_ERROR_LOG_INTERVAL == 0) {
+            Log.i(TAG, String.format("Pose prediction error: translation mean %.1f mm, "
+                    + "max %.1f mm; rotation mean %.2f deg, max %.2f deg",
+                    mPosePredictor.getMeanTranslationError() * 1000,
+                    mPosePredictor.getMaxTranslationError() * 1000,
+                    Math.toDegrees(mPosePredictor.getMeanRotationError()),
+                    Math.toDegrees(mPosePredictor.getMaxRotationError())));
+        }
+        return mScenePoseCalcuator.toOpenGLCameraPose(mPredictedDevicePose);
+    }
+
+    /**
+     * Selects the device pose prediction model used for this scene, one of the
+     * {@code PosePredictor.MODE_} constants.
+     */
+    public void setPosePredictionMode(int mode) {
+        mPosePredictor.setMode(mode);
+    }
+
+    /**
+     * Sets the expected time in seconds between rendering a frame and it being displayed, which is
+     * how far ahead the device pose is predicted.
+     */
+    public void setDisplayLatency(double displayLatency) {
+        mDisplayLatency = displayLatency;
+    }
+
     /**
      * Update the 3D object based on the provided measurement point, normal (in depth frame) and
-     * device pose at the time of measurement.
+     * device pose at the time of measurement. The object is snapped to the tracked plane it lies
+     * on, if any, which is steadier than the plane fitted from a single point cloud.
+     */
+    public void updateObjectPose(double[] point, double[] normal, TangoPoseData devicePose) {
+        Pose planePose;
+        synchronized (this) {
+            planePose = mScenePoseCalcuator.planeFitToOpenGLPose(point, normal, devicePose);
+        }
+        // Snapping reads the tracked planes under the tracker's lock, so it stays out of the
+        // renderer monitor the render thread takes every frame.
+        planePose = mPointCloudManager.snapToTrackedPlane(planePose);
+        synchronized (this) {
+            mPlanePose = planePose;
+            mPlanePoseUpdated = true;
+        }
+    }
+
+    /**
+     * Selects whether the scene shows the surface fused from all point clouds (the default) or
+     * only the latest raw point cloud.
      */
-    public synchronized void updateObjectPose(double[] point, double[] normal,
-                                              TangoPoseData devicePose) {
-        mPlanePose = mScenePoseCalcuator.planeFitToOpenGLPose(point, normal, devicePose);
-        mPlanePoseUpdated = true;
+    public void setShowFusedMesh(boolean showFusedMesh) {
+        mShowFusedMesh = showFusedMesh;
     }
 
     /**
@@ -213,6 +461,10 @@ public class AugmentedRealityRenderer extends TangoRajawaliRenderer {
      */
     public synchronized void updateDevicePose(TangoPoseData tangoPoseData) {
         mCameraPose = mScenePoseCalcuator.toOpenGLCameraPose(tangoPoseData);
+        if (tangoPoseData.statusCode == TangoPoseData.POSE_VALID) {
+            mDevicePose = tangoPoseData;
+            mDevicePoseReceivedNanos = System.nanoTime();
+        }
     }
 
 }
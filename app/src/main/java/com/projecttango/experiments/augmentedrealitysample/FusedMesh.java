@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.experiments.augmentedrealitysample;
+
+import android.opengl.GLES20;
+
+import com.projecttango.pointcloud.TsdfMesher;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.materials.methods.DiffuseMethod;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Renderable for the surface extracted from the fused depth volume by a {@link TsdfMesher}.
+ * <p/>
+ * The vertex and normal buffers are allocated once at the mesher's capacity and drawn with an
+ * identity index buffer; {@link #updateMesh()} only uploads the vertex ranges the mesher
+ * re-meshed since the previous frame.
+ */
+public class FusedMesh extends Object3D implements TsdfMesher.UploadTarget {
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int MESH_COLOR = 0xffb0b0b0;
+
+    private final TsdfMesher mMesher;
+
+    public FusedMesh(TsdfMesher mesher) {
+        super();
+        mMesher = mesher;
+        init();
+        Material material = new Material();
+        material.setColor(MESH_COLOR);
+        material.enableLighting(true);
+        material.setDiffuseMethod(new DiffuseMethod.Lambert());
+        setMaterial(material);
+    }
+
+    private void init() {
+        int maxVertices = mMesher.getMaxVertices();
+        int[] indices = new int[maxVertices];
+        for (int i = 0; i < indices.length; ++i) {
+            indices[i] = i;
+        }
+        mGeometry.setVertices(new float[maxVertices * TsdfMesher.FLOATS_PER_VERTEX]);
+        mGeometry.setNormals(new float[maxVertices * TsdfMesher.FLOATS_PER_VERTEX]);
+        mGeometry.setIndices(indices);
+        mGeometry.setNumIndices(0);
+        mGeometry.createBuffers();
+    }
+
+    /**
+     * Uploads the parts of the mesh that changed since the previous call.
+     * Must be called from the OpenGL thread.
+     */
+    public void updateMesh() {
+        int vertexCount = mMesher.uploadDirtyPages(this);
+        // The mesher was busy: keep drawing the previous mesh and try again next frame.
+        if (vertexCount >= 0) {
+            mGeometry.setNumIndices(vertexCount);
+        }
+    }
+
+    @Override
+    public void uploadVertices(FloatBuffer positions, FloatBuffer normals, int firstVertex,
+                               int vertexCount) {
+        upload(mGeometry.getVertexBufferInfo(), positions, firstVertex, vertexCount);
+        upload(mGeometry.getNormalBufferInfo(), normals, firstVertex, vertexCount);
+    }
+
+    private static void upload(BufferInfo bufferInfo, FloatBuffer data, int firstVertex,
+                               int vertexCount) {
+        int bytesPerVertex = TsdfMesher.FLOATS_PER_VERTEX * BYTES_PER_FLOAT;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferInfo.bufferHandle);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, firstVertex * bytesPerVertex,
+                vertexCount * bytesPerVertex, data);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+}
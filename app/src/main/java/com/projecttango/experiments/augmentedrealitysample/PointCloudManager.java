@@ -18,85 +18,355 @@ package com.projecttango.experiments.augmentedrealitysample;
 import com.google.atap.tangoservice.TangoCameraIntrinsics;
 import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
+import com.projecttango.pointcloud.DepthFrame;
+import com.projecttango.pointcloud.DepthImage;
+import com.projecttango.pointcloud.DepthSnapshot;
+import com.projecttango.pointcloud.DeviationAnalyzer;
+import com.projecttango.pointcloud.FloorPlanExtractor;
+import com.projecttango.pointcloud.Instrumentation;
+import com.projecttango.pointcloud.PlaneSegmenter;
+import com.projecttango.pointcloud.PlaneTracker;
+import com.projecttango.pointcloud.PointCloudProcessor;
+import com.projecttango.rajawali.Pose;
 import com.projecttango.rajawali.ScenePoseCalcuator;
 import com.projecttango.tangosupport.TangoSupport;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This helper class keeps a copy of the point cloud data received in callbacks for use with the
- * plane fitting function.
+ * This helper class adapts the Tango data types to the {@link PointCloudProcessor} and keeps the
+ * point cloud data received in callbacks available for use with the plane fitting function of the
+ * Tango support library.
  * It is implemented to be thread safe so that the caller (the Activity) doesn't need to worry
- * about locking between the Tango callback and UI threads.
+ * about locking between the depth pipeline and UI threads: plane fits work on a snapshot of the
+ * latest depth frame, so neither they nor the depth pipeline wait for each other. Plane fits can
+ * also be run on a dedicated thread with {@link #fitPlaneAsync}, so that the UI thread never
+ * waits for them.
+ * <p/>
+ * Every frame is also projected into an organized {@link DepthImage} through the camera
+ * intrinsics, so that plane fits find the points around a click with window lookups instead of
+ * scanning the whole cloud.
  */
 public class PointCloudManager {
     private static final String TAG = "PointCloudManager";
-    private static final int BYTES_PER_FLOAT = 4;
-    private static final int POINT_TO_XYZ = 3;
+    // Camera pixels per depth image pixel; 1280x720 color intrinsics give a 320x180 image, about
+    // the resolution of the depth sensor.
+    private static final int DEPTH_IMAGE_DOWNSAMPLING = 4;
+    // Depth image pixels searched around a click for a point, and around that point for the
+    // normal.
+    private static final int HIT_RADIUS = 4;
+    private static final int NORMAL_RADIUS = 3;
+    // Points within this distance in meters of the plane estimated at the click are grown into
+    // its region, up to a number of pixels, and the plane is refitted over them.
+    private static final float REGION_DISTANCE = 0.015f;
+    private static final int MAX_REGION_PIXELS = 8192;
+    // Segmentation shared by the floor plan and the plane tracking.
+    private static final int MAX_PLANES_PER_FRAME = 8;
+    private static final int MIN_PLANE_INLIERS = 300;
+    private static final long PLANE_SEGMENTER_SEED = 0x91A9EL;
 
     private final TangoCameraIntrinsics mTangoCameraIntrinsics;
-    private final TangoXyzIjData mXyzIjData;
-    private TangoPoseData mDevicePoseAtCloudTime;
-    private PointCloudData mSharedPointCloudData;
-    private PointCloudData mCallbackPointCloudData;
-    private PointCloudData mRenderPointCloudData;
-    private Object mPointCloudLock;
-    private boolean mSwapSignal;
+    private final PointCloudProcessor mProcessor;
+    private final double[] mDepthTranslation = new double[3];
+    private final double[] mDepthRotation = new double[4];
+    private final double[] mDeviationTranslation = new double[3];
+    private final double[] mDeviationRotation = new double[4];
+    private volatile DeviationAnalyzer mDeviationAnalyzer;
+    private final PlaneSegmenter mPlaneSegmenter;
+    private final double[] mPlanesTranslation = new double[3];
+    private final double[] mPlanesRotation = new double[4];
+    private volatile FloorPlanExtractor mFloorPlanExtractor;
+    private volatile PlaneTracker mPlaneTracker;
+    private final ThreadPoolExecutor mPlaneFitExecutor;
+    // Plane fits read the front image, the depth pipeline projects frames into the back one and
+    // swaps them under the lock, and the scratch of the fits is guarded by the lock too.
+    private final Object mDepthImageLock = new Object();
+    private DepthImage mFrontDepthImage;
+    private DepthImage mBackDepthImage;
+    private double mFrontDepthImageTimestamp = -1;
+    private final int[] mRegionPixels = new int[MAX_REGION_PIXELS];
+    private final float[] mFitPlane = new float[4];
+
+    /**
+     * Receives the outcome of a {@link #fitPlaneAsync} request, on the plane fitting thread.
+     * Requests superseded by newer ones or cancelled get no call.
+     */
+    public interface PlaneFitListener {
+        void onPlaneFitted(TangoSupport.IntersectionPointPlaneModelPair planeModel,
+                           TangoPoseData devicePoseAtClickTime);
+
+        void onPlaneFitFailed(Throwable error);
+    }
 
     public PointCloudManager(TangoCameraIntrinsics intrinsics) {
-        mXyzIjData = new TangoXyzIjData();
         mTangoCameraIntrinsics = intrinsics;
-        mPointCloudLock = new Object();
-        mSwapSignal = false;
-        setupBuffers(60000);
+        mProcessor = new PointCloudProcessor();
+        mFrontDepthImage = new DepthImage(intrinsics.width, intrinsics.height, intrinsics.fx,
+                intrinsics.fy, intrinsics.cx, intrinsics.cy, DEPTH_IMAGE_DOWNSAMPLING);
+        mBackDepthImage = new DepthImage(intrinsics.width, intrinsics.height, intrinsics.fx,
+                intrinsics.fy, intrinsics.cx, intrinsics.cy, DEPTH_IMAGE_DOWNSAMPLING);
+        mPlaneSegmenter = new PlaneSegmenter(PointCloudProcessor.MAX_DEPTH_POINTS,
+                MAX_PLANES_PER_FRAME, PLANE_SEGMENTER_SEED);
+        mPlaneSegmenter.setMinInliers(MIN_PLANE_INLIERS);
+        PlaneFitScheduling scheduling = new PlaneFitScheduling();
+        // A single queued request: a newer one replaces it rather than waiting behind it.
+        mPlaneFitExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(1), scheduling, scheduling);
+    }
+
+    /**
+     * Returns the processor doing the platform independent work on the point clouds.
+     */
+    public PointCloudProcessor getProcessor() {
+        return mProcessor;
+    }
+
+    /**
+     * Update the current cloud data with the provided depth frame. The frame is shared rather
+     * than copied; it is retained until the next call. It is also projected into the depth image
+     * used by plane fits, which only waits for the window lookups of a plane fit in progress, not
+     * for the fit itself. Must only be called from a single thread.
+     *
+     * @param frame The point cloud data and the device pose with respect to start of service at
+     *              the time the point cloud was acquired
+     */
+    public void updateXyzIjData(DepthFrame frame) {
+        long start = Instrumentation.now();
+        // No plane fit reads the back image, so it is filled outside of the lock.
+        DepthImage image = mBackDepthImage;
+        image.project(frame.xyz, frame.pointCount);
+        synchronized (mDepthImageLock) {
+            mBackDepthImage = mFrontDepthImage;
+            mFrontDepthImage = image;
+            mFrontDepthImageTimestamp = frame.timestamp;
+        }
+        mProcessor.updateLatestFrame(frame);
+        Instrumentation.record(Instrumentation.STAGE_UPDATE_XYZIJ, start);
+    }
+
+    /**
+     * Fuse the provided depth frame into the world frame TSDF volume and re-mesh the part of the
+     * surface it modified. Frames without a valid pose are ignored.
+     * Must only be called from a single thread.
+     *
+     * @param frame         The point cloud data and the device pose at the time it was acquired
+     * @param poseCalcuator ScenePoseCalculator helper instance to calculate transforms
+     */
+    public void integrateXyzIjData(DepthFrame frame, ScenePoseCalcuator poseCalcuator) {
+        if (!frame.poseValid) {
+            return;
+        }
+        // Fuse in the OpenGL world frame so the volume lines up with the rendered scene.
+        toOpenGLDepthPose(frame, poseCalcuator, mDepthTranslation, mDepthRotation);
+        mProcessor.integrate(frame, mDepthTranslation, mDepthRotation);
     }
 
     /**
-     * Sets up three buffers namely, Callback, Shared and Render buffers allocated with maximum
-     * number of points a point cloud can have.
-     * @param maxDepthPoints
+     * Sets the analyzer comparing the depth frames with a design model, or null to stop
+     * comparing. The design model must be in the OpenGL world frame, i.e. the frame the scene is
+     * rendered in.
      */
-    private void setupBuffers(int maxDepthPoints){
-        mCallbackPointCloudData = new PointCloudData();
-        mSharedPointCloudData = new PointCloudData();
-        mRenderPointCloudData = new PointCloudData();
-        mCallbackPointCloudData.floatBuffer = ByteBuffer
-                .allocateDirect(maxDepthPoints * BYTES_PER_FLOAT * POINT_TO_XYZ)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mSharedPointCloudData.floatBuffer = ByteBuffer
-                .allocateDirect(maxDepthPoints * BYTES_PER_FLOAT * POINT_TO_XYZ)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mRenderPointCloudData.floatBuffer = ByteBuffer
-                .allocateDirect(maxDepthPoints * BYTES_PER_FLOAT * POINT_TO_XYZ)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    public void setDeviationAnalyzer(DeviationAnalyzer deviationAnalyzer) {
+        mDeviationAnalyzer = deviationAnalyzer;
+    }
+
+    public DeviationAnalyzer getDeviationAnalyzer() {
+        return mDeviationAnalyzer;
+    }
+
+    /**
+     * Compare the provided depth frame with the design model, if one is set. Frames without a
+     * valid pose are ignored. Must only be called from a single thread.
+     *
+     * @return Whether the frame was compared.
+     */
+    public boolean analyzeDeviation(DepthFrame frame, ScenePoseCalcuator poseCalcuator) {
+        DeviationAnalyzer analyzer = mDeviationAnalyzer;
+        if (analyzer == null || !frame.poseValid) {
+            return false;
+        }
+        toOpenGLDepthPose(frame, poseCalcuator, mDeviationTranslation, mDeviationRotation);
+        analyzer.analyze(frame.xyz, frame.pointCount, mDeviationTranslation, mDeviationRotation);
+        return true;
+    }
+
+    /**
+     * Sets the extractor keeping the floor plan up to date with the depth frames, or null to stop
+     * updating it. The floor plan is in the OpenGL world frame.
+     */
+    public void setFloorPlanExtractor(FloorPlanExtractor floorPlanExtractor) {
+        mFloorPlanExtractor = floorPlanExtractor;
+    }
+
+    public FloorPlanExtractor getFloorPlanExtractor() {
+        return mFloorPlanExtractor;
     }
 
     /**
-     * Update the current cloud data with the provided xyzIjData from a Tango callback.
+     * Sets the tracker refining the planes seen in the depth frames over time, or null to stop
+     * tracking them. The planes are in the OpenGL world frame.
+     */
+    public void setPlaneTracker(PlaneTracker planeTracker) {
+        mPlaneTracker = planeTracker;
+    }
+
+    public PlaneTracker getPlaneTracker() {
+        return mPlaneTracker;
+    }
+
+    /**
+     * Segment the provided depth frame into planes once and update the floor plan and the tracked
+     * planes with them, if an extractor or a tracker are set. Frames without a valid pose, or
+     * arriving while neither is set, are not segmented. Must only be called from a single thread.
      *
-     * @param from          The point cloud data
-     * @param xyzIjPose     The device pose with respect to start of service at the time
-     *                      the point cloud was acquired
+     * @return Whether the frame was segmented.
+     */
+    public boolean updatePlanes(DepthFrame frame, ScenePoseCalcuator poseCalcuator) {
+        FloorPlanExtractor extractor = mFloorPlanExtractor;
+        PlaneTracker tracker = mPlaneTracker;
+        if ((extractor == null && tracker == null) || !frame.poseValid) {
+            return false;
+        }
+        long start = Instrumentation.now();
+        mPlaneSegmenter.segment(frame.xyz, frame.pointCount);
+        Instrumentation.record(Instrumentation.STAGE_PLANE_SEGMENTATION, start);
+        toOpenGLDepthPose(frame, poseCalcuator, mPlanesTranslation, mPlanesRotation);
+        if (extractor != null) {
+            start = Instrumentation.now();
+            extractor.update(frame.xyz, mPlaneSegmenter, mPlanesTranslation, mPlanesRotation);
+            Instrumentation.record(Instrumentation.STAGE_FLOOR_PLAN, start);
+        }
+        if (tracker != null) {
+            start = Instrumentation.now();
+            tracker.update(frame.xyz, mPlaneSegmenter, mPlanesTranslation, mPlanesRotation);
+            Instrumentation.record(Instrumentation.STAGE_PLANE_TRACKING, start);
+        }
+        return true;
+    }
+
+    /**
+     * Moves a pose on a plane fitted from a single point cloud, as computed by
+     * {@link ScenePoseCalcuator#planeFitToOpenGLPose}, onto the stable tracked plane it lies on:
+     * the position is projected on the tracked plane and the orientation is rebuilt from its
+     * normal the same way. The pose is returned unchanged if there is no tracker or no such
+     * plane.
      */
-    public synchronized void updateXyzIjData(TangoXyzIjData from, TangoPoseData xyzIjPose) {
-        mDevicePoseAtCloudTime = xyzIjPose;
+    public Pose snapToTrackedPlane(Pose pose) {
+        PlaneTracker tracker = mPlaneTracker;
+        if (tracker == null) {
+            return pose;
+        }
+        Vector3 position = pose.getPosition();
+        Quaternion orientation = pose.getOrientation();
+        // The normal is the z axis of the pose.
+        double qx = orientation.x;
+        double qy = orientation.y;
+        double qz = orientation.z;
+        double qw = orientation.w;
+        float[] snapped = new float[6];
+        if (tracker.snap((float) position.x, (float) position.y, (float) position.z,
+                (float) (2 * (qx * qz + qy * qw)), (float) (2 * (qy * qz - qx * qw)),
+                (float) (1 - 2 * (qx * qx + qy * qy)), snapped) < 0) {
+            return pose;
+        }
+        return new Pose(new Vector3(snapped[0], snapped[1], snapped[2]),
+                planeOrientation(snapped[3], snapped[4], snapped[5]));
+    }
 
-        if (mXyzIjData.xyz == null || mXyzIjData.xyz.capacity() < from.xyzCount * 3) {
-            mXyzIjData.xyz = ByteBuffer.allocateDirect(from.xyzCount * 3 * 4)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    /**
+     * Orientation of an object on a plane: z along the normal, x along up x normal (up being y in
+     * the OpenGL world frame) and y along z x x.
+     */
+    private static Quaternion planeOrientation(double nx, double ny, double nz) {
+        // up x normal, or any horizontal axis if the plane is horizontal.
+        double xx = nz;
+        double xz = -nx;
+        double length = Math.sqrt(xx * xx + xz * xz);
+        if (length < 1e-6) {
+            xx = 1;
+            xz = 0;
+        } else {
+            xx /= length;
+            xz /= length;
+        }
+        double yx = ny * xz;
+        double yy = nz * xx - nx * xz;
+        double yz = -ny * xx;
+        // Rotation matrix with columns x, y, normal to quaternion.
+        double trace = xx + yy + nz;
+        double w;
+        double x;
+        double y;
+        double z;
+        if (trace > 0) {
+            double s = Math.sqrt(trace + 1) * 2;
+            w = s / 4;
+            x = (yz - ny) / s;
+            y = (nx - xz) / s;
+            z = -yx / s;
+        } else if (xx > yy && xx > nz) {
+            double s = Math.sqrt(1 + xx - yy - nz) * 2;
+            w = (yz - ny) / s;
+            x = s / 4;
+            y = yx / s;
+            z = (nx + xz) / s;
+        } else if (yy > nz) {
+            double s = Math.sqrt(1 + yy - xx - nz) * 2;
+            w = (nx - xz) / s;
+            x = yx / s;
+            y = s / 4;
+            z = (ny + yz) / s;
         } else {
-            mXyzIjData.xyz.rewind();
+            double s = Math.sqrt(1 + nz - xx - yy) * 2;
+            w = -yx / s;
+            x = (nx + xz) / s;
+            y = (ny + yz) / s;
+            z = s / 4;
         }
+        return new Quaternion(w, x, y, z);
+    }
 
-        mXyzIjData.xyzCount = from.xyzCount;
-        mXyzIjData.timestamp = from.timestamp;
+    /**
+     * Computes the pose of the depth camera in the OpenGL world frame at the time of a frame.
+     */
+    private static void toOpenGLDepthPose(DepthFrame frame, ScenePoseCalcuator poseCalcuator,
+                                          double[] translation, double[] rotation) {
+        Pose depthPose = poseCalcuator.toOpenGLPointCloudPose(toDevicePose(frame));
+        Vector3 position = depthPose.getPosition();
+        Quaternion orientation = depthPose.getOrientation();
+        translation[0] = position.x;
+        translation[1] = position.y;
+        translation[2] = position.z;
+        rotation[0] = orientation.x;
+        rotation[1] = orientation.y;
+        rotation[2] = orientation.z;
+        rotation[3] = orientation.w;
+    }
 
-        from.xyz.rewind();
-        mXyzIjData.xyz.put(from.xyz);
-        mXyzIjData.xyz.rewind();
-        from.xyz.rewind();
+    /**
+     * Returns the device pose stored in a depth frame as TangoPoseData, with respect to start of
+     * service.
+     */
+    public static TangoPoseData toDevicePose(DepthFrame frame) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.timestamp = frame.timestamp;
+        pose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        pose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        pose.statusCode = frame.poseValid ? TangoPoseData.POSE_VALID : TangoPoseData.POSE_INVALID;
+        System.arraycopy(frame.translation, 0, pose.translation, 0, 3);
+        System.arraycopy(frame.rotation, 0, pose.rotation, 0, 4);
+        return pose;
     }
 
     /**
@@ -108,65 +378,205 @@ public class PointCloudManager {
      * @param devicePoseAtClickTime Device pose at the time this operation is requested
      * @param poseCalcuator         ScenePoseCalculator helper instance to calculate transforms
      * @return                      The point and plane model, in depth sensor frame
+     * @throws IllegalStateException If no point cloud was received yet
      */
-    public synchronized TangoSupport.IntersectionPointPlaneModelPair fitPlane(float u, float v,
+    public TangoSupport.IntersectionPointPlaneModelPair fitPlane(float u, float v,
             TangoPoseData devicePoseAtClickTime, ScenePoseCalcuator poseCalcuator) {
+        DepthSnapshot snapshot = mProcessor.acquireLatestSnapshot();
+        if (snapshot == null) {
+            throw new IllegalStateException("No point cloud received yet");
+        }
+        try {
+            return fitPlane(u, v, devicePoseAtClickTime, poseCalcuator, snapshot.frame);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private TangoSupport.IntersectionPointPlaneModelPair fitPlane(float u, float v,
+            TangoPoseData devicePoseAtClickTime, ScenePoseCalcuator poseCalcuator,
+            DepthFrame frame) {
+        TangoXyzIjData xyzIjData = new TangoXyzIjData();
+        xyzIjData.xyz = frame.xyz;
+        xyzIjData.xyzCount = frame.pointCount;
+        xyzIjData.timestamp = frame.timestamp;
+        TangoPoseData devicePoseAtCloudTime = toDevicePose(frame);
 
         // We need to calculate the transform between the color camera at the time the user clicked
         // and the depth camera at the time the depth cloud was acquired.
         // This operation is currently implemented in the provided ScenePoseCalculator helper
         // class. In the future, the support library will provide a method for this calculation.
+        long start = Instrumentation.now();
         TangoPoseData colorCameraTDepthCameraWithTime
-                = poseCalcuator.calculateColorCameraTDepthWithTime(devicePoseAtClickTime, mDevicePoseAtCloudTime);
+                = poseCalcuator.calculateColorCameraTDepthWithTime(devicePoseAtClickTime, devicePoseAtCloudTime);
 
-        return TangoSupport.fitPlaneModelNearClick(mXyzIjData, mTangoCameraIntrinsics,
-                colorCameraTDepthCameraWithTime, u, v);
+        TangoSupport.IntersectionPointPlaneModelPair planeModel = fitPlaneInDepthImage(u, v,
+                colorCameraTDepthCameraWithTime, frame.timestamp);
+        if (planeModel == null) {
+            // Fall back on the support library, which scans the whole cloud.
+            planeModel = TangoSupport.fitPlaneModelNearClick(xyzIjData, mTangoCameraIntrinsics,
+                    colorCameraTDepthCameraWithTime, u, v);
+        }
+        Instrumentation.record(Instrumentation.STAGE_FIT_PLANE, start);
+        return planeModel;
     }
 
     /**
-     * Updates the callbackbuffer with latest pointcloud and swaps the
-     * @param callbackBuffer
-     * @param pointCount
+     * Fits the plane under a click in the depth image of a frame. The click ray is followed into
+     * the image to the nearest point, the plane is estimated from the window around that point
+     * and refitted over the region of the plane grown from it, then intersected with the ray.
+     *
+     * @param colorCameraTDepthCamera Transform from the depth camera at the time of the frame to
+     *                                the color camera at the time of the click.
+     * @return The point and plane model in depth camera frame, or null if the depth image is of
+     *         another frame or has no plane under the click.
      */
-    public void updateCallbackBufferAndSwap(FloatBuffer callbackBuffer, int pointCount){
-        mSharedPointCloudData.floatBuffer.position(0);
-        mCallbackPointCloudData.floatBuffer.put(callbackBuffer);
-        synchronized (mPointCloudLock){
-            FloatBuffer temp = mSharedPointCloudData.floatBuffer;
-            int tempCount = pointCount;
-            mSharedPointCloudData.floatBuffer = mCallbackPointCloudData .floatBuffer;
-            mSharedPointCloudData.pointCount = mCallbackPointCloudData.pointCount;
-            mCallbackPointCloudData.floatBuffer = temp;
-            mCallbackPointCloudData.pointCount = tempCount;
-            mSwapSignal = true;
+    private TangoSupport.IntersectionPointPlaneModelPair fitPlaneInDepthImage(float u, float v,
+            TangoPoseData colorCameraTDepthCamera, double timestamp) {
+        double[] t = colorCameraTDepthCamera.translation;
+        double[] q = colorCameraTDepthCamera.rotation;
+        double qx = q[0];
+        double qy = q[1];
+        double qz = q[2];
+        double qw = q[3];
+        double r00 = 1 - 2 * (qy * qy + qz * qz);
+        double r01 = 2 * (qx * qy - qz * qw);
+        double r02 = 2 * (qx * qz + qy * qw);
+        double r10 = 2 * (qx * qy + qz * qw);
+        double r11 = 1 - 2 * (qx * qx + qz * qz);
+        double r12 = 2 * (qy * qz - qx * qw);
+        double r20 = 2 * (qx * qz - qy * qw);
+        double r21 = 2 * (qy * qz + qx * qw);
+        double r22 = 1 - 2 * (qx * qx + qy * qy);
+        // Click ray in color camera frame, taken to depth camera frame by the inverse transform.
+        double cx = (u * mTangoCameraIntrinsics.width - mTangoCameraIntrinsics.cx)
+                / mTangoCameraIntrinsics.fx;
+        double cy = (v * mTangoCameraIntrinsics.height - mTangoCameraIntrinsics.cy)
+                / mTangoCameraIntrinsics.fy;
+        double dx = r00 * cx + r10 * cy + r20;
+        double dy = r01 * cx + r11 * cy + r21;
+        double dz = r02 * cx + r12 * cy + r22;
+        double ox = -(r00 * t[0] + r10 * t[1] + r20 * t[2]);
+        double oy = -(r01 * t[0] + r11 * t[1] + r21 * t[2]);
+        double oz = -(r02 * t[0] + r12 * t[1] + r22 * t[2]);
+        if (dz <= 0) {
+            return null;
         }
+
+        float nx;
+        float ny;
+        float nz;
+        float d;
+        synchronized (mDepthImageLock) {
+            DepthImage image = mFrontDepthImage;
+            if (mFrontDepthImageTimestamp != timestamp) {
+                return null;
+            }
+            // The point where the ray leaves the image far away, then where it is at the depth
+            // found there, which accounts for the parallax between the two cameras.
+            int hit = image.pixelAt((float) dx, (float) dy, (float) dz);
+            for (int i = 0; i < 2 && hit >= 0; i++) {
+                hit = image.findNearestPixel(hit, HIT_RADIUS);
+                if (hit >= 0 && i == 0) {
+                    double along = (image.getDepth(hit) - oz) / dz;
+                    hit = image.pixelAt((float) (ox + along * dx), (float) (oy + along * dy),
+                            (float) (oz + along * dz));
+                }
+            }
+            if (hit < 0) {
+                return null;
+            }
+            int count = image.gatherWindow(hit, NORMAL_RADIUS, mRegionPixels);
+            if (!image.fitPlane(mRegionPixels, count, mFitPlane)) {
+                return null;
+            }
+            count = image.growRegion(hit, mFitPlane, REGION_DISTANCE, mRegionPixels);
+            image.fitPlane(mRegionPixels, count, mFitPlane);
+            nx = mFitPlane[0];
+            ny = mFitPlane[1];
+            nz = mFitPlane[2];
+            d = mFitPlane[3];
+        }
+
+        double cosine = nx * dx + ny * dy + nz * dz;
+        if (Math.abs(cosine) < 1e-6) {
+            return null;
+        }
+        double along = -(nx * ox + ny * oy + nz * oz + d) / cosine;
+        TangoSupport.IntersectionPointPlaneModelPair planeModel =
+                new TangoSupport.IntersectionPointPlaneModelPair();
+        planeModel.intersectionPoint = new double[] {
+                ox + along * dx, oy + along * dy, oz + along * dz};
+        planeModel.planeModel = new double[] {nx, ny, nz, d};
+        return planeModel;
+    }
+
+    /**
+     * Runs {@link #fitPlane} on the plane fitting thread and hands the result to the listener.
+     * Requests are coalesced: if a request is still waiting for the previous fit to finish, the
+     * new one cancels and replaces it, so a burst of taps only fits the latest one.
+     *
+     * @param listener Called on the plane fitting thread with the result, or null.
+     * @return Future of the plane fit; cancelling it before it starts skips it.
+     */
+    public Future<TangoSupport.IntersectionPointPlaneModelPair> fitPlaneAsync(
+            final float u, final float v, final TangoPoseData devicePoseAtClickTime,
+            final ScenePoseCalcuator poseCalcuator, final PlaneFitListener listener) {
+        FutureTask<TangoSupport.IntersectionPointPlaneModelPair> task =
+                new FutureTask<TangoSupport.IntersectionPointPlaneModelPair>(
+                        new Callable<TangoSupport.IntersectionPointPlaneModelPair>() {
+                            @Override
+                            public TangoSupport.IntersectionPointPlaneModelPair call() {
+                                return fitPlane(u, v, devicePoseAtClickTime, poseCalcuator);
+                            }
+                        }) {
+                    @Override
+                    protected void done() {
+                        if (listener == null || isCancelled()) {
+                            return;
+                        }
+                        try {
+                            listener.onPlaneFitted(get(), devicePoseAtClickTime);
+                        } catch (ExecutionException e) {
+                            listener.onPlaneFitFailed(e.getCause());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+        mPlaneFitExecutor.execute(task);
+        return task;
     }
 
     /**
-     * Returns a shallow copy of latest Point Cloud Render buffer.If there is a swap signal available
-     * SharedPointCloud buffer is swapped with Render buffer and it is returned.
-     * @return PointClouData which contains a reference to latest PointCloud Floatbuffer and count.
+     * Stops the plane fitting thread, cancelling the pending request if any.
      */
-    public PointCloudData updateAndGetLatestPointCloudRenderBuffer(){
-        synchronized (mPointCloudLock){
-            if(mSwapSignal) {
-                FloatBuffer temp = mRenderPointCloudData.floatBuffer;
-                int tempCount = mRenderPointCloudData.pointCount;
-                mRenderPointCloudData.floatBuffer = mSharedPointCloudData.floatBuffer;
-                mRenderPointCloudData.pointCount = mSharedPointCloudData.pointCount;
-                mSharedPointCloudData.floatBuffer = temp;
-                mSharedPointCloudData.pointCount = tempCount;
-                mSwapSignal = false;
-            }
-        }
-        return mRenderPointCloudData;
+    public void shutdown() {
+        mPlaneFitExecutor.shutdownNow();
     }
 
     /**
-     * A class to hold Depth data in a {@link FloatBuffer} and number of points associated with it.
+     * Names the plane fitting thread and replaces the queued request with the newer one.
      */
-    public class PointCloudData{
-        public FloatBuffer floatBuffer;
-        public int pointCount;
+    private static class PlaneFitScheduling implements RejectedExecutionHandler, ThreadFactory {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PlaneFitter");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                ((Future<?>) runnable).cancel(false);
+                return;
+            }
+            Runnable superseded = executor.getQueue().poll();
+            if (superseded != null) {
+                ((Future<?>) superseded).cancel(false);
+            }
+            executor.execute(runnable);
+        }
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.experiments.augmentedrealitysample;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.materials.shaders.FragmentShader;
+import org.rajawali3d.materials.shaders.VertexShader;
+
+/**
+ * Material drawing point cloud points colored by depth, measurement confidence and age, and
+ * sized by depth, all derived on the GPU from the point positions (see
+ * res/raw/point_cloud_vertex_shader.glsl). The points need no per-vertex attribute other than
+ * their position.
+ */
+public class PointCloudMaterial extends Material {
+    /** Point size in pixels of a point one meter away, unless set otherwise. */
+    static final float DEFAULT_POINT_SIZE = 6;
+
+    private final PointCloudVertexShader mVertexShader;
+
+    public PointCloudMaterial() {
+        this(new PointCloudVertexShader());
+    }
+
+    private PointCloudMaterial(PointCloudVertexShader vertexShader) {
+        super(vertexShader, new FragmentShader(R.raw.point_cloud_fragment_shader));
+        mVertexShader = vertexShader;
+    }
+
+    /**
+     * Sets the time in seconds since the point cloud drawn was acquired. Must be called from the
+     * OpenGL thread.
+     */
+    public void setFrameAge(float seconds) {
+        mVertexShader.mFrameAge = seconds;
+    }
+
+    /**
+     * Sets the size in pixels of the points one meter away from the depth camera; nearer points
+     * are drawn bigger and further ones smaller. Must be called from the OpenGL thread.
+     */
+    public void setPointSize(float pixels) {
+        mVertexShader.mPointSize = pixels;
+    }
+
+    private static class PointCloudVertexShader extends VertexShader {
+        private int mFrameAgeHandle;
+        private int mPointSizeHandle;
+        float mFrameAge;
+        float mPointSize = DEFAULT_POINT_SIZE;
+
+        PointCloudVertexShader() {
+            super(R.raw.point_cloud_vertex_shader);
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            super.setLocations(programHandle);
+            mFrameAgeHandle = GLES20.glGetUniformLocation(programHandle, "uFrameAge");
+            mPointSizeHandle = GLES20.glGetUniformLocation(programHandle, "uPointSize");
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glUniform1f(mFrameAgeHandle, mFrameAge);
+            GLES20.glUniform1f(mPointSizeHandle, mPointSize);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.experiments.augmentedrealitysample;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.materials.Material;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Point cloud renderable streaming its vertices to the GPU.
+ * <p/>
+ * Re-specifying a vertex buffer the previous draw is still reading stalls until that draw is
+ * done. Instead the points are uploaded round-robin to one of {@link #STREAM_BUFFER_COUNT}
+ * vertex buffers, each orphaned before being written so the driver can hand out fresh storage,
+ * and the geometry is pointed at the buffer just written. Only the points in use are uploaded;
+ * callers keep drawing the previous upload when the point cloud hasn't changed.
+ */
+public class StreamingPoints extends Object3D {
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int STREAM_BUFFER_COUNT = 3;
+    private static final int POINT_COLOR = 0xff00ff00;
+
+    private final int mMaxPoints;
+    private final int[] mStreamBuffers = new int[STREAM_BUFFER_COUNT];
+    private int mGeometryBuffer;
+    private int mCurrentBuffer;
+
+    /**
+     * Must be created on the OpenGL thread.
+     *
+     * @param maxPoints Maximum number of points drawn at once.
+     */
+    public StreamingPoints(int maxPoints) {
+        super();
+        mMaxPoints = maxPoints;
+        init();
+        Material material = new Material();
+        material.setColor(POINT_COLOR);
+        setMaterial(material);
+    }
+
+    private void init() {
+        int[] indices = new int[mMaxPoints];
+        for (int i = 0; i < indices.length; ++i) {
+            indices[i] = i;
+        }
+        // The geometry only needs a placeholder vertex array: the points live in the stream
+        // buffers.
+        mGeometry.setVertices(new float[POINT_TO_XYZ]);
+        mGeometry.setIndices(indices);
+        mGeometry.setNumIndices(0);
+        mGeometry.createBuffers();
+        setDrawingMode(GLES20.GL_POINTS);
+        createStreamBuffers();
+    }
+
+    private void createStreamBuffers() {
+        BufferInfo vertexBufferInfo = mGeometry.getVertexBufferInfo();
+        mGeometryBuffer = vertexBufferInfo.bufferHandle;
+        GLES20.glGenBuffers(STREAM_BUFFER_COUNT, mStreamBuffers, 0);
+        for (int buffer : mStreamBuffers) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, getBufferSize(), null,
+                    GLES20.GL_STREAM_DRAW);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mCurrentBuffer = 0;
+        vertexBufferInfo.bufferHandle = mStreamBuffers[mCurrentBuffer];
+        mGeometry.setNumIndices(0);
+    }
+
+    /**
+     * Uploads the first {@code pointCount} packed x, y, z points of {@code points} to be drawn
+     * from now on. The position of {@code points} is untouched, as the buffer may be shared with
+     * other threads. Must be called from the OpenGL thread.
+     */
+    public void updatePoints(FloatBuffer points, int pointCount) {
+        int count = Math.min(Math.min(pointCount, mMaxPoints), points.capacity() / POINT_TO_XYZ);
+        // Read through a view of the buffer so that its position isn't changed.
+        FloatBuffer view = points.duplicate();
+        view.position(0);
+        mCurrentBuffer = (mCurrentBuffer + 1) % STREAM_BUFFER_COUNT;
+        int buffer = mStreamBuffers[mCurrentBuffer];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, getBufferSize(), null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
+                count * POINT_TO_XYZ * BYTES_PER_FLOAT, view);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGeometry.getVertexBufferInfo().bufferHandle = buffer;
+        mGeometry.setNumIndices(count);
+    }
+
+    @Override
+    public void reload() {
+        // The OpenGL context was recreated: the geometry buffers are recreated by the parent
+        // class and the stream buffers are gone with the old context.
+        mGeometry.getVertexBufferInfo().bufferHandle = mGeometryBuffer;
+        super.reload();
+        createStreamBuffers();
+    }
+
+    @Override
+    public void destroy() {
+        GLES20.glDeleteBuffers(STREAM_BUFFER_COUNT, mStreamBuffers, 0);
+        // Let the parent class delete the buffer it created.
+        mGeometry.getVertexBufferInfo().bufferHandle = mGeometryBuffer;
+        super.destroy();
+    }
+
+    private int getBufferSize() {
+        return mMaxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT;
+    }
+}
@@ -0,0 +1,45 @@
+// Colors and sizes the point cloud points from their position in depth camera frame, so the
+// points are uploaded as bare x, y, z (12 bytes per point).
+//  - Hue follows the depth: red close to the camera, blue at the far end of the sensor range.
+//  - Saturation follows the confidence of the depth measurement, estimated from the depth noise
+//    of the sensor growing with the square of the depth.
+//  - Brightness fades with the age of the point cloud.
+//  - Point size shrinks with the depth.
+
+uniform mat4 uMVPMatrix;
+uniform float uFrameAge;
+uniform float uPointSize;
+
+attribute vec4 aPosition;
+
+varying vec4 vColor;
+
+const float NEAR_DEPTH = 0.5;
+const float FAR_DEPTH = 4.0;
+// Depth noise standard deviation at one meter, and the one at which confidence drops to zero.
+const float NOISE_AT_ONE_METER = 0.002;
+const float MAX_NOISE = 0.04;
+// Seconds for a point cloud to fade to its darkest.
+const float FADE_TIME = 1.0;
+const float MIN_BRIGHTNESS = 0.3;
+const float MIN_POINT_SIZE = 1.0;
+const float MAX_POINT_SIZE = 16.0;
+
+void main() {
+    gl_Position = uMVPMatrix * aPosition;
+    float depth = max(aPosition.z, 0.01);
+
+    // Jet color map, reversed so that near is red.
+    float t = 1.0 - clamp((depth - NEAR_DEPTH) / (FAR_DEPTH - NEAR_DEPTH), 0.0, 1.0);
+    vec3 color = clamp(vec3(1.5 - abs(4.0 * t - 3.0),
+                            1.5 - abs(4.0 * t - 2.0),
+                            1.5 - abs(4.0 * t - 1.0)), 0.0, 1.0);
+
+    float confidence = clamp(1.0 - NOISE_AT_ONE_METER * depth * depth / MAX_NOISE, 0.0, 1.0);
+    color = mix(vec3(0.5), color, confidence);
+
+    float brightness = mix(1.0, MIN_BRIGHTNESS, clamp(uFrameAge / FADE_TIME, 0.0, 1.0));
+    vColor = vec4(color * brightness, 1.0);
+
+    gl_PointSize = clamp(uPointSize / depth, MIN_POINT_SIZE, MAX_POINT_SIZE);
+}
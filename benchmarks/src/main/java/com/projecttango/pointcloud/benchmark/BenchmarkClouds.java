@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud.benchmark;
+
+import com.projecttango.pointcloud.DepthFrame;
+import com.projecttango.pointcloud.SessionReader;
+import com.projecttango.pointcloud.SessionRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Point clouds the benchmarks run on.
+ */
+final class BenchmarkClouds {
+    /** Number of points of the point clouds, about what the depth camera produces. */
+    static final int MAX_POINTS = 60000;
+    /** Source name of the synthetic point cloud; any other source is a recorded session file. */
+    static final String SYNTHETIC = "synthetic";
+
+    // Synthetic depth camera: a 300x200 image with a 300 pixel focal length, looking at a wall
+    // 3m away with the floor 1.2m below.
+    private static final int IMAGE_WIDTH = 300;
+    private static final int IMAGE_HEIGHT = 200;
+    private static final double FOCAL_LENGTH = 300;
+    private static final double WALL_DISTANCE = 3.0;
+    private static final double FLOOR_DISTANCE = 1.2;
+    // Depth noise grows with the square of the distance, like the depth camera's.
+    private static final double NOISE_AT_ONE_METER = 0.002;
+    private static final long SEED = 42;
+
+    private BenchmarkClouds() {
+    }
+
+    /**
+     * Loads a point cloud into a new frame with room for {@link #MAX_POINTS} points: the
+     * synthetic one, or the first point cloud of a recorded session.
+     */
+    static DepthFrame load(String source) throws IOException {
+        DepthFrame frame = new DepthFrame(MAX_POINTS);
+        if (SYNTHETIC.equals(source)) {
+            fillSynthetic(frame);
+        } else {
+            loadRecorded(frame, new File(source));
+        }
+        return frame;
+    }
+
+    private static void fillSynthetic(DepthFrame frame) {
+        Random random = new Random(SEED);
+        frame.xyz.clear();
+        int count = 0;
+        for (int v = 0; v < IMAGE_HEIGHT && count < MAX_POINTS; v++) {
+            for (int u = 0; u < IMAGE_WIDTH && count < MAX_POINTS; u++) {
+                // Depth camera frame: x right, y down, z forward.
+                double x = (u - IMAGE_WIDTH / 2 + 0.5) / FOCAL_LENGTH;
+                double y = (v - IMAGE_HEIGHT / 2 + 0.5) / FOCAL_LENGTH;
+                double z = WALL_DISTANCE;
+                if (y > 0) {
+                    z = Math.min(z, FLOOR_DISTANCE / y);
+                }
+                z += random.nextGaussian() * NOISE_AT_ONE_METER * z * z;
+                frame.xyz.put((float) (x * z)).put((float) (y * z)).put((float) z);
+                count++;
+            }
+        }
+        frame.xyz.flip();
+        frame.pointCount = count;
+        frame.poseValid = true;
+        frame.rotation[3] = 1;
+    }
+
+    private static void loadRecorded(DepthFrame frame, File file) throws IOException {
+        SessionReader reader = new SessionReader(file);
+        try {
+            while (reader.next()) {
+                if (reader.getType() == SessionRecorder.RECORD_DEPTH) {
+                    frame.copyFrom(reader.getPoints(), reader.getPointCount(),
+                            reader.getTimestamp());
+                    frame.poseValid = true;
+                    frame.rotation[3] = 1;
+                    return;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException("No point cloud in " + file);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud.benchmark;
+
+import com.projecttango.pointcloud.DepthFrame;
+import com.projecttango.pointcloud.DepthFramePool;
+import com.projecttango.pointcloud.DepthImage;
+import com.projecttango.pointcloud.DepthSnapshot;
+import com.projecttango.pointcloud.PlaneSegmenter;
+import com.projecttango.pointcloud.PointCloudProcessor;
+import com.projecttango.pointcloud.PointCloudStats;
+import com.projecttango.pointcloud.TsdfVolume;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * Benchmarks of the work done on every point cloud, one depth frame at a time.
+ * <p/>
+ * {@code filterAndPublish} and {@code sharedPublish} are the two paths of
+ * {@link PointCloudProcessor#updateCallbackBufferAndSwap}, with and without downsampling,
+ * {@code updateLatestFrame} is what the app does for plane fitting on every point cloud,
+ * {@code acquireLatestSnapshot} is what a plane fit does to read it and {@code capture} is the
+ * copy done when a point cloud arrives. {@code projectDepthImage} organizes the cloud for the
+ * window lookups of plane fits, which {@code fitPlaneInDepthImage} does at the image center.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class PointCloudBenchmark {
+    private static final float VOXEL_SIZE = 0.02f;
+    private static final int MAX_PLANES = 8;
+    private static final long SEED = 0x5EEDL;
+    // Enough frames for the triple buffer slots, the latest frame and the one being published.
+    private static final int POOLED_FRAMES = 5;
+    private static final float TSDF_VOXEL_SIZE = 0.04f;
+    private static final float TSDF_TRUNCATION = 0.12f;
+    private static final int TSDF_MAX_BRICKS = 4096;
+    // Color camera intrinsics of the Tango tablet, downsampled to the depth sensor resolution.
+    private static final int IMAGE_WIDTH = 1280;
+    private static final int IMAGE_HEIGHT = 720;
+    private static final double FOCAL_LENGTH = 1042.0;
+    private static final int DEPTH_IMAGE_DOWNSAMPLING = 4;
+    private static final int NORMAL_RADIUS = 3;
+    private static final float REGION_DISTANCE = 0.015f;
+    private static final int MAX_REGION_PIXELS = 8192;
+
+    /** "synthetic", or the path of a recorded session file whose first point cloud is used. */
+    @Param({BenchmarkClouds.SYNTHETIC})
+    public String cloud;
+
+    private DepthFrame mCloud;
+    private DepthFramePool mPool;
+    private PointCloudProcessor mFilteringProcessor;
+    private PointCloudProcessor mSharingProcessor;
+    private PointCloudStats mStatistics;
+    private PlaneSegmenter mPlaneSegmenter;
+    private TsdfVolume mTsdfVolume;
+    private DepthImage mDepthImage;
+    private DepthImage mProjectedDepthImage;
+    private final int[] mRegionPixels = new int[MAX_REGION_PIXELS];
+    private final float[] mPlane = new float[4];
+
+    @Setup
+    public void setUp() throws IOException {
+        mCloud = BenchmarkClouds.load(cloud);
+        mPool = new DepthFramePool(BenchmarkClouds.MAX_POINTS, POOLED_FRAMES);
+        mFilteringProcessor = new PointCloudProcessor();
+        mFilteringProcessor.setVoxelSize(VOXEL_SIZE);
+        mSharingProcessor = new PointCloudProcessor();
+        mSharingProcessor.setVoxelSize(0);
+        DepthFrame latest = mPool.acquire();
+        mSharingProcessor.updateLatestFrame(latest);
+        latest.release();
+        mStatistics = new PointCloudStats();
+        mPlaneSegmenter = new PlaneSegmenter(BenchmarkClouds.MAX_POINTS, MAX_PLANES, SEED);
+        mTsdfVolume = new TsdfVolume(TSDF_VOXEL_SIZE, TSDF_TRUNCATION, TSDF_MAX_BRICKS,
+                BenchmarkClouds.MAX_POINTS);
+        mDepthImage = newDepthImage();
+        mProjectedDepthImage = newDepthImage();
+        mProjectedDepthImage.project(mCloud.xyz, mCloud.pointCount);
+    }
+
+    private static DepthImage newDepthImage() {
+        return new DepthImage(IMAGE_WIDTH, IMAGE_HEIGHT, FOCAL_LENGTH, FOCAL_LENGTH,
+                IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, DEPTH_IMAGE_DOWNSAMPLING);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTsdfVolume.release();
+        mFilteringProcessor.getTsdfVolume().release();
+        mSharingProcessor.getTsdfVolume().release();
+    }
+
+    @Benchmark
+    public DepthFrame capture() {
+        DepthFrame frame = mPool.acquire();
+        frame.copyFrom(mCloud.xyz, mCloud.pointCount, mCloud.timestamp);
+        frame.release();
+        return frame;
+    }
+
+    @Benchmark
+    public DepthFrame updateLatestFrame() {
+        // A frame coming out of the depth pipeline replaces the one kept for plane fitting.
+        DepthFrame frame = mPool.acquire();
+        mSharingProcessor.updateLatestFrame(frame);
+        frame.release();
+        return frame;
+    }
+
+    @Benchmark
+    public long acquireLatestSnapshot() {
+        DepthSnapshot snapshot = mSharingProcessor.acquireLatestSnapshot();
+        long version = snapshot.version;
+        snapshot.release();
+        return version;
+    }
+
+    @Benchmark
+    public long filterAndPublish() {
+        return mFilteringProcessor.updateCallbackBufferAndSwap(mCloud);
+    }
+
+    @Benchmark
+    public long sharedPublish() {
+        DepthFrame frame = mPool.acquire();
+        long sequence = mSharingProcessor.updateCallbackBufferAndSwap(frame);
+        frame.release();
+        return sequence;
+    }
+
+    @Benchmark
+    public float statistics() {
+        mStatistics.compute(mCloud.xyz, mCloud.pointCount);
+        return mStatistics.getMeanDepth();
+    }
+
+    @Benchmark
+    public int segmentPlanes() {
+        return mPlaneSegmenter.segment(mCloud.xyz, mCloud.pointCount).size();
+    }
+
+    @Benchmark
+    public int projectDepthImage() {
+        mDepthImage.project(mCloud.xyz, mCloud.pointCount);
+        return mDepthImage.getPixelCount();
+    }
+
+    @Benchmark
+    public float fitPlaneInDepthImage() {
+        DepthImage image = mProjectedDepthImage;
+        int hit = image.findNearestPixel(image.pixelAt(0.5f, 0.5f), image.getWidth() / 2);
+        if (hit < 0) {
+            return 0;
+        }
+        int count = image.gatherWindow(hit, NORMAL_RADIUS, mRegionPixels);
+        image.fitPlane(mRegionPixels, count, mPlane);
+        count = image.growRegion(hit, mPlane, REGION_DISTANCE, mRegionPixels);
+        image.fitPlane(mRegionPixels, count, mPlane);
+        return mPlane[3];
+    }
+
+    @Benchmark
+    public int tsdfIntegrate() {
+        mTsdfVolume.integrate(mCloud.xyz, mCloud.pointCount, mCloud.translation, mCloud.rotation);
+        return mTsdfVolume.getBrickCount();
+    }
+}
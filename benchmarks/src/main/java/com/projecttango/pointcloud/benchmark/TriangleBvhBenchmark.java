@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud.benchmark;
+
+import com.projecttango.pointcloud.ObjLoader;
+import com.projecttango.pointcloud.TriangleBvh;
+import com.projecttango.pointcloud.TriangleMesh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Construction of the {@link TriangleBvh} of a design model, and the queries run on it: closest
+ * points for the deviation analysis, rays and frustum culling. Queries start from random points
+ * in the bounds of the model.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class TriangleBvhBenchmark {
+    private static final String SYNTHETIC = "synthetic";
+    // Synthetic model: a 20m x 3m x 20m box room with walls tessellated into square cells.
+    private static final float ROOM_SIZE = 20;
+    private static final float ROOM_HEIGHT = 3;
+    private static final int QUERY_POINTS = 4096;
+    private static final float MAX_DISTANCE = 0.1f;
+    private static final float MAX_RAY_DISTANCE = 100;
+    private static final int MAX_FRUSTUM_TRIANGLES = 1 << 20;
+    private static final long SEED = 42;
+
+    /** "synthetic", or the path of a Wavefront OBJ model. */
+    @Param({SYNTHETIC})
+    public String model;
+
+    /** Approximate triangle count of the synthetic model. */
+    @Param({"1000000"})
+    public int triangles;
+
+    private TriangleMesh mMesh;
+    private TriangleBvh mBvh;
+    private ExecutorService mExecutor;
+    private final float[] mPoints = new float[QUERY_POINTS * 3];
+    private final float[] mDirections = new float[QUERY_POINTS * 3];
+    private final double[] mMvpMatrix = new double[16];
+    private final TriangleBvh.ClosestPointQuery mClosestPointQuery =
+            new TriangleBvh.ClosestPointQuery();
+    private final TriangleBvh.RayQuery mRayQuery = new TriangleBvh.RayQuery();
+    private final TriangleBvh.FrustumQuery mFrustumQuery =
+            new TriangleBvh.FrustumQuery(MAX_FRUSTUM_TRIANGLES);
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mMesh = SYNTHETIC.equals(model) ? room(triangles) : ObjLoader.load(new File(model));
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        mBvh = new TriangleBvh(mMesh, mExecutor);
+
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.NEGATIVE_INFINITY};
+        for (int i = 0; i < mMesh.vertices.length; i++) {
+            min[i % 3] = Math.min(min[i % 3], mMesh.vertices[i]);
+            max[i % 3] = Math.max(max[i % 3], mMesh.vertices[i]);
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < mPoints.length; i++) {
+            mPoints[i] = min[i % 3] + random.nextFloat() * (max[i % 3] - min[i % 3]);
+            mDirections[i] = (float) random.nextGaussian();
+        }
+        // Camera at the center of the model looking down -z with a 60 degree field of view, up
+        // to 10m away.
+        float near = 0.1f;
+        float far = 10;
+        double focal = 1 / Math.tan(Math.toRadians(30));
+        mMvpMatrix[0] = focal;
+        mMvpMatrix[5] = focal;
+        mMvpMatrix[10] = -(far + near) / (far - near);
+        mMvpMatrix[11] = -1;
+        mMvpMatrix[12] = -focal * (min[0] + max[0]) / 2;
+        mMvpMatrix[13] = -focal * (min[1] + max[1]) / 2;
+        mMvpMatrix[14] = (far + near) / (far - near) * (min[2] + max[2]) / 2
+                - 2 * far * near / (far - near);
+        mMvpMatrix[15] = (min[2] + max[2]) / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public int build() {
+        return new TriangleBvh(mMesh).getNodeCount();
+    }
+
+    @Benchmark
+    public int buildParallel() {
+        return new TriangleBvh(mMesh, mExecutor).getNodeCount();
+    }
+
+    @Benchmark
+    public boolean closestPoint() {
+        int i = nextPoint();
+        return mBvh.closestPoint(mPoints[i], mPoints[i + 1], mPoints[i + 2], MAX_DISTANCE,
+                mClosestPointQuery);
+    }
+
+    @Benchmark
+    public boolean raycast() {
+        int i = nextPoint();
+        return mBvh.raycast(mPoints[i], mPoints[i + 1], mPoints[i + 2], mDirections[i],
+                mDirections[i + 1], mDirections[i + 2], MAX_RAY_DISTANCE, mRayQuery);
+    }
+
+    @Benchmark
+    public int frustumTriangles() {
+        return mBvh.frustumTriangles(mMvpMatrix, mFrustumQuery);
+    }
+
+    private int nextPoint() {
+        int i = mNext * 3;
+        mNext = (mNext + 1) % QUERY_POINTS;
+        return i;
+    }
+
+    /**
+     * Floor, ceiling and walls of a box room, tessellated into about {@code triangleCount}
+     * triangles.
+     */
+    private static TriangleMesh room(int triangleCount) {
+        // Six faces of n x n cells of two triangles each; the walls are squashed to the room
+        // height.
+        int n = Math.max(1, (int) Math.sqrt(triangleCount / 12.0));
+        float[] vertices = new float[6 * (n + 1) * (n + 1) * 3];
+        int[] indices = new int[6 * n * n * 6];
+        float[] point = new float[3];
+        int vertex = 0;
+        int index = 0;
+        for (int face = 0; face < 6; face++) {
+            int axis = face / 2;
+            float side = face % 2;
+            int first = vertex;
+            for (int i = 0; i <= n; i++) {
+                for (int j = 0; j <= n; j++) {
+                    point[axis] = side;
+                    point[(axis + 1) % 3] = (float) i / n;
+                    point[(axis + 2) % 3] = (float) j / n;
+                    vertices[vertex * 3] = point[0] * ROOM_SIZE;
+                    vertices[vertex * 3 + 1] = point[1] * ROOM_HEIGHT;
+                    vertices[vertex * 3 + 2] = point[2] * ROOM_SIZE;
+                    vertex++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    int corner = first + i * (n + 1) + j;
+                    indices[index++] = corner;
+                    indices[index++] = corner + n + 1;
+                    indices[index++] = corner + 1;
+                    indices[index++] = corner + 1;
+                    indices[index++] = corner + n + 1;
+                    indices[index++] = corner + n + 2;
+                }
+            }
+        }
+        return new TriangleMesh(vertices, indices);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud.benchmark;
+
+import com.projecttango.pointcloud.DepthFrame;
+import com.projecttango.pointcloud.DepthFramePool;
+import com.projecttango.pointcloud.PointCloudData;
+import com.projecttango.pointcloud.PointCloudProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * Hand-off of point clouds from the depth pipeline to the OpenGL thread under contention: one
+ * thread keeps publishing pooled frames with
+ * {@link PointCloudProcessor#updateCallbackBufferAndSwap} while another keeps acquiring the latest
+ * one with {@link PointCloudProcessor#updateAndGetLatestPointCloudRenderBuffer}.
+ * <p/>
+ * Downsampling is disabled so that the hand-off itself is measured.
+ */
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class TripleBufferContentionBenchmark {
+    // Enough frames for the triple buffer slots plus the one being published.
+    private static final int POOLED_FRAMES = 4;
+
+    /** "synthetic", or the path of a recorded session file whose first point cloud is used. */
+    @Param({BenchmarkClouds.SYNTHETIC})
+    public String cloud;
+
+    private DepthFrame mCloud;
+    private DepthFramePool mPool;
+    private PointCloudProcessor mProcessor;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCloud = BenchmarkClouds.load(cloud);
+        mPool = new DepthFramePool(BenchmarkClouds.MAX_POINTS, POOLED_FRAMES);
+        mProcessor = new PointCloudProcessor();
+        mProcessor.setVoxelSize(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mProcessor.getTsdfVolume().release();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long publish() {
+        DepthFrame frame = mPool.acquire();
+        frame.copyFrom(mCloud.xyz, mCloud.pointCount, mCloud.timestamp);
+        long sequence = mProcessor.updateCallbackBufferAndSwap(frame);
+        frame.release();
+        return sequence;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long acquireLatest() {
+        PointCloudData data = mProcessor.updateAndGetLatestPointCloudRenderBuffer();
+        return data.sequence;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A depth frame: the points of a point cloud, its timestamp and the device pose at that time.
+ * The point buffer is a direct buffer allocated once with a fixed capacity, so frames are meant to
+ * be reused rather than allocated per point cloud.
+ * <p/>
+ * Frames handed out by a {@link DepthFramePool} are reference counted so that several consumers
+ * (renderer, plane fitting, recording...) can share one frame without copying it. Every consumer
+ * keeping a frame calls {@link #retain()} and later {@link #release()}; the frame goes back to its
+ * pool when the last reference is released. A shared frame must not be modified.
+ */
+public class DepthFrame {
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+
+    /** Packed x, y, z points in depth camera frame; valid up to {@link #pointCount}. */
+    public final FloatBuffer xyz;
+    public int pointCount;
+    public double timestamp;
+    /** Device position with respect to start of service at {@link #timestamp}. */
+    public final double[] translation = new double[3];
+    /** Device orientation with respect to start of service, as a quaternion {x, y, z, w}. */
+    public final double[] rotation = new double[4];
+    /** Whether {@link #translation} and {@link #rotation} hold a valid pose. */
+    public boolean poseValid;
+    /**
+     * Time the frame was captured, System.nanoTime() base, or 0 if it wasn't taken because
+     * {@link Instrumentation} was disabled.
+     */
+    public long captureNanos;
+
+    private final DepthFramePool mPool;
+    private final AtomicInteger mReferenceCount = new AtomicInteger();
+
+    public DepthFrame(int maxPoints) {
+        this(maxPoints, null);
+    }
+
+    DepthFrame(int maxPoints, DepthFramePool pool) {
+        mPool = pool;
+        xyz = ByteBuffer.allocateDirect(maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /** Maximum number of points the frame can hold. */
+    public int getCapacity() {
+        return xyz.capacity() / POINT_TO_XYZ;
+    }
+
+    /**
+     * Copies a point cloud into the frame, truncating it to the frame capacity. The position and
+     * limit of {@code source} are left as they were found.
+     */
+    public void copyFrom(FloatBuffer source, int count, double timestamp) {
+        count = Math.min(Math.min(count, getCapacity()), source.capacity() / POINT_TO_XYZ);
+        int sourcePosition = source.position();
+        int sourceLimit = source.limit();
+        source.limit(count * POINT_TO_XYZ).position(0);
+        xyz.clear();
+        xyz.put(source);
+        xyz.flip();
+        source.limit(sourceLimit).position(sourcePosition);
+        pointCount = count;
+        this.timestamp = timestamp;
+        poseValid = false;
+    }
+
+    /**
+     * Sets the device pose at the time of the frame.
+     */
+    public void setPose(double[] translation, double[] rotation, boolean valid) {
+        System.arraycopy(translation, 0, this.translation, 0, 3);
+        System.arraycopy(rotation, 0, this.rotation, 0, 4);
+        poseValid = valid;
+    }
+
+    /**
+     * Adds a reference to the frame.
+     *
+     * @return This frame.
+     * @throws IllegalStateException if the frame was already released, leaving it released.
+     */
+    public DepthFrame retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Retaining a released depth frame");
+        }
+        return this;
+    }
+
+    /**
+     * Adds a reference to the frame unless it was already released, for readers that may race
+     * with the last release.
+     *
+     * @return Whether a reference was added.
+     */
+    public boolean tryRetain() {
+        int count;
+        do {
+            count = mReferenceCount.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!mReferenceCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Drops a reference to the frame, returning it to its pool if it was the last one.
+     */
+    public void release() {
+        int count = mReferenceCount.decrementAndGet();
+        if (count < 0) {
+            throw new IllegalStateException("Depth frame released more times than retained");
+        }
+        if (count == 0 && mPool != null) {
+            mPool.recycle(this);
+        }
+    }
+
+    /** Number of references currently held on the frame. */
+    public int getReferenceCount() {
+        return mReferenceCount.get();
+    }
+
+    /**
+     * Makes the frame owned by a single reference. Called by the pool when handing it out.
+     */
+    void reset() {
+        mReferenceCount.set(1);
+        pointCount = 0;
+        poseValid = false;
+        captureNanos = 0;
+    }
+}
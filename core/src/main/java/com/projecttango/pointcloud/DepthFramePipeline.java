@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, staged pipeline for depth frames.
+ * <p/>
+ * The capture side (the Tango callback thread) only takes a free frame from a
+ * {@link DepthFramePool}, copies the point cloud into it and submits it. Frames then go through
+ * the stages in the order they were added, each stage running on its own single thread executor,
+ * and the pipeline releases its reference after the last one. Stages that keep a frame beyond
+ * {@link Stage#process(DepthFrame)} retain it.
+ * <p/>
+ * Every stage has a bounded queue. When a stage falls behind, the oldest frame waiting in its
+ * queue is dropped (and released) to make room for the new one, so a slow stage never backs up
+ * the capture thread or the stages before it. If every frame of the pool is in use the capture
+ * side drops the incoming point cloud instead.
+ * <p/>
+ * Queue depth, processed and dropped frame counts are kept per stage.
+ */
+public class DepthFramePipeline {
+    /**
+     * Work done by a stage on each frame. Called on the stage's own thread; the frame must not be
+     * used after returning unless the stage retained it.
+     */
+    public interface Stage {
+        void process(DepthFrame frame);
+    }
+
+    private final DepthFramePool mPool;
+    private final int mQueueCapacity;
+    private final List<StageExecutor> mStages = new ArrayList<StageExecutor>();
+    private volatile boolean mStarted;
+    private volatile long mCaptureDropped;
+
+    /**
+     * @param pool          Pool the captured frames are taken from. It should hold at least
+     *                      {@link #getFramesInFlight()} frames plus the ones kept by stages.
+     * @param queueCapacity Number of frames that can wait in front of each stage.
+     */
+    public DepthFramePipeline(DepthFramePool pool, int queueCapacity) {
+        mPool = pool;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Appends a stage to the pipeline. All stages must be added before the first frame is
+     * acquired.
+     */
+    public synchronized void addStage(String name, Stage stage) {
+        if (mStarted) {
+            throw new IllegalStateException("Stages must be added before starting the pipeline");
+        }
+        mStages.add(new StageExecutor(name, stage, mStages.size()));
+    }
+
+    /**
+     * Maximum number of frames the pipeline itself can hold at once: every queue full, every
+     * stage busy and one frame being captured.
+     */
+    public int getFramesInFlight() {
+        return mStages.size() * (mQueueCapacity + 1) + 1;
+    }
+
+    /**
+     * Takes a free frame from the pool, or returns null (and counts a dropped capture) if all of
+     * them are in use. Must be called from the capture thread.
+     */
+    public DepthFrame acquireFrame() {
+        mStarted = true;
+        DepthFrame frame = mPool.acquire();
+        if (frame == null) {
+            mCaptureDropped++;
+            Instrumentation.increment(Instrumentation.COUNTER_DROPPED_FRAMES);
+        }
+        return frame;
+    }
+
+    /**
+     * Hands a frame obtained from {@link #acquireFrame()} to the first stage, along with the
+     * reference held by the caller.
+     */
+    public void submit(DepthFrame frame) {
+        forward(frame, 0);
+    }
+
+    /**
+     * Stops all the stages. Frames still queued are discarded.
+     */
+    public void shutdown() {
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).mExecutor.shutdownNow();
+        }
+    }
+
+    public int getStageCount() {
+        return mStages.size();
+    }
+
+    public String getStageName(int stage) {
+        return mStages.get(stage).mName;
+    }
+
+    /** Number of frames currently waiting in front of a stage. */
+    public int getQueueDepth(int stage) {
+        return mStages.get(stage).mExecutor.getQueue().size();
+    }
+
+    /** Largest number of frames seen waiting in front of a stage. */
+    public int getMaxQueueDepth(int stage) {
+        return mStages.get(stage).mMaxQueueDepth;
+    }
+
+    /** Number of frames a stage has finished processing. */
+    public long getProcessedCount(int stage) {
+        return mStages.get(stage).mProcessed;
+    }
+
+    /** Number of frames dropped from the queue of a stage because it was full. */
+    public long getDroppedCount(int stage) {
+        return mStages.get(stage).mDropped;
+    }
+
+    /** Number of point clouds dropped at capture because no free frame was available. */
+    public long getCaptureDroppedCount() {
+        return mCaptureDropped;
+    }
+
+    private void forward(DepthFrame frame, int stage) {
+        if (stage >= mStages.size()) {
+            recycle(frame);
+            return;
+        }
+        StageExecutor executor = mStages.get(stage);
+        executor.mExecutor.execute(new FrameTask(executor, frame));
+        int depth = executor.mExecutor.getQueue().size();
+        if (depth > executor.mMaxQueueDepth) {
+            executor.mMaxQueueDepth = depth;
+        }
+    }
+
+    private void recycle(DepthFrame frame) {
+        frame.release();
+    }
+
+    private class FrameTask implements Runnable {
+        final StageExecutor mStageExecutor;
+        final DepthFrame mFrame;
+
+        FrameTask(StageExecutor stageExecutor, DepthFrame frame) {
+            mStageExecutor = stageExecutor;
+            mFrame = frame;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStageExecutor.mStage.process(mFrame);
+            } finally {
+                mStageExecutor.mProcessed++;
+                forward(mFrame, mStageExecutor.mIndex + 1);
+            }
+        }
+    }
+
+    private class StageExecutor implements RejectedExecutionHandler, ThreadFactory {
+        final String mName;
+        final Stage mStage;
+        final int mIndex;
+        final ThreadPoolExecutor mExecutor;
+        // Each counter is only written by one thread: the stage thread for mProcessed, the
+        // thread feeding the stage for the others.
+        volatile long mProcessed;
+        volatile long mDropped;
+        volatile int mMaxQueueDepth;
+
+        StageExecutor(String name, Stage stage, int index) {
+            mName = name;
+            mStage = stage;
+            mIndex = index;
+            mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(mQueueCapacity), this, this);
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DepthPipeline-" + mName);
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        /**
+         * Drop-oldest policy: makes room for the new frame by discarding the oldest queued one.
+         */
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                recycle(((FrameTask) runnable).mFrame);
+                return;
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                mDropped++;
+                Instrumentation.increment(Instrumentation.COUNTER_DROPPED_FRAMES);
+                recycle(((FrameTask) oldest).mFrame);
+            }
+            executor.execute(runnable);
+        }
+    }
+}
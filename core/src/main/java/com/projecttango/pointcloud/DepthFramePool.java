@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of {@link DepthFrame}s.
+ * <p/>
+ * All the frames and their direct buffers are allocated up front, so that receiving point clouds
+ * never allocates native memory. A frame is handed out with a single reference by
+ * {@link #acquire()} and comes back to the pool on its own when its last reference is released.
+ */
+public class DepthFramePool {
+    private final ArrayBlockingQueue<DepthFrame> mFreeFrames;
+    private final int mFrameCount;
+    private final int mMaxPoints;
+    private volatile long mExhaustedCount;
+
+    /**
+     * @param maxPoints  Maximum number of points per frame.
+     * @param frameCount Number of frames in the pool.
+     */
+    public DepthFramePool(int maxPoints, int frameCount) {
+        mMaxPoints = maxPoints;
+        mFrameCount = frameCount;
+        mFreeFrames = new ArrayBlockingQueue<DepthFrame>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeFrames.add(new DepthFrame(maxPoints, this));
+        }
+    }
+
+    /**
+     * Takes a free frame, holding a single reference, or returns null if every frame is in use.
+     * Never blocks.
+     */
+    public DepthFrame acquire() {
+        DepthFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            mExhaustedCount++;
+            return null;
+        }
+        frame.reset();
+        return frame;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    /** Number of frames currently free. */
+    public int getFreeCount() {
+        return mFreeFrames.size();
+    }
+
+    /** Number of times {@link #acquire()} found no free frame. */
+    public long getExhaustedCount() {
+        return mExhaustedCount;
+    }
+
+    void recycle(DepthFrame frame) {
+        mFreeFrames.offer(frame);
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Organized view of a point cloud: the points projected into an image through pinhole camera
+ * intrinsics, keeping the nearest point of every pixel (a z-buffer) along with its index in the
+ * cloud.
+ * <p/>
+ * Neighbourhood queries then look at a window of pixels around a location rather than scanning
+ * the whole cloud: finding the point under a screen location, gathering the points around it to
+ * estimate a normal, or growing the region of a plane pixel by pixel. The image can be
+ * downsampled relative to the camera resolution to roughly match the density of the points.
+ * <p/>
+ * Pixels are addressed by their index {@code row * width + column}. Clearing the image between
+ * clouds only bumps a generation number, so {@link #project(FloatBuffer, int)} costs a pass over
+ * the points whatever the image size, and nothing is allocated after construction.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public class DepthImage {
+    private static final int POINT_TO_XYZ = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final float mFx;
+    private final float mFy;
+    private final float mCx;
+    private final float mCy;
+    private final int[] mPointIndices;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mDepths;
+    // A pixel holds a point of the current cloud if its stamp is the current generation.
+    private final int[] mStamps;
+    private int mGeneration;
+    // Pixels already visited by the current region growing.
+    private final int[] mVisited;
+    private int mRegionGeneration;
+    private final int[] mQueue;
+    private int mPixelCount;
+    private final double[] mMoments = new double[9];
+    private final float[] mNormal = new float[3];
+
+    /**
+     * @param width        Width of the camera image in pixels.
+     * @param height       Height of the camera image in pixels.
+     * @param fx           Focal length along x in pixels.
+     * @param fy           Focal length along y in pixels.
+     * @param cx           Principal point x in pixels.
+     * @param cy           Principal point y in pixels.
+     * @param downsampling Camera pixels per image pixel along each axis.
+     */
+    public DepthImage(int width, int height, double fx, double fy, double cx, double cy,
+                      int downsampling) {
+        if (width <= 0 || height <= 0 || downsampling <= 0) {
+            throw new IllegalArgumentException("Invalid depth image: " + width + "x" + height
+                    + " downsampled by " + downsampling);
+        }
+        mWidth = (width + downsampling - 1) / downsampling;
+        mHeight = (height + downsampling - 1) / downsampling;
+        mFx = (float) (fx / downsampling);
+        mFy = (float) (fy / downsampling);
+        mCx = (float) (cx / downsampling);
+        mCy = (float) (cy / downsampling);
+        int pixels = mWidth * mHeight;
+        mPointIndices = new int[pixels];
+        mX = new float[pixels];
+        mY = new float[pixels];
+        mDepths = new float[pixels];
+        mStamps = new int[pixels];
+        mVisited = new int[pixels];
+        mQueue = new int[pixels];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Number of pixels holding a point, i.e. points left after the z-buffer test.
+     */
+    public int getPixelCount() {
+        return mPixelCount;
+    }
+
+    /**
+     * Replaces the image with the projection of the first {@code pointCount} points of
+     * {@code xyz}, in the camera frame of the intrinsics. Points behind the camera or outside the
+     * image are left out. The position of the buffer is untouched.
+     */
+    public void project(FloatBuffer xyz, int pointCount) {
+        if (++mGeneration == Integer.MAX_VALUE) {
+            Arrays.fill(mStamps, 0);
+            mGeneration = 1;
+        }
+        int generation = mGeneration;
+        int count = Math.min(pointCount, xyz.limit() / POINT_TO_XYZ);
+        int pixelCount = 0;
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            float x = xyz.get(j);
+            float y = xyz.get(j + 1);
+            float z = xyz.get(j + 2);
+            int pixel = pixelAt(x, y, z);
+            if (pixel < 0) {
+                continue;
+            }
+            if (mStamps[pixel] != generation) {
+                mStamps[pixel] = generation;
+                pixelCount++;
+            } else if (z >= mDepths[pixel]) {
+                continue;
+            }
+            mPointIndices[pixel] = i;
+            mX[pixel] = x;
+            mY[pixel] = y;
+            mDepths[pixel] = z;
+        }
+        mPixelCount = pixelCount;
+    }
+
+    /**
+     * Returns the pixel a point in camera frame projects to, or -1 if it is behind the camera or
+     * outside the image.
+     */
+    public int pixelAt(float x, float y, float z) {
+        if (!(z > 0)) {
+            return -1;
+        }
+        float column = mFx * x / z + mCx;
+        float row = mFy * y / z + mCy;
+        if (!(column >= 0 && column < mWidth && row >= 0 && row < mHeight)) {
+            return -1;
+        }
+        return (int) row * mWidth + (int) column;
+    }
+
+    /**
+     * Returns the pixel at normalized image coordinates, {@code (0, 0)} being the top left corner
+     * and {@code (1, 1)} the bottom right one, or -1 if outside the image.
+     */
+    public int pixelAt(float u, float v) {
+        if (!(u >= 0 && u < 1 && v >= 0 && v < 1)) {
+            return -1;
+        }
+        return (int) (v * mHeight) * mWidth + (int) (u * mWidth);
+    }
+
+    public boolean hasPoint(int pixel) {
+        return mStamps[pixel] == mGeneration;
+    }
+
+    /**
+     * Index in the projected cloud of the point of a pixel, or -1 if the pixel is empty.
+     */
+    public int getPointIndex(int pixel) {
+        return hasPoint(pixel) ? mPointIndices[pixel] : -1;
+    }
+
+    /**
+     * Depth of the point of a pixel, or 0 if the pixel is empty.
+     */
+    public float getDepth(int pixel) {
+        return hasPoint(pixel) ? mDepths[pixel] : 0;
+    }
+
+    /**
+     * Copies the x, y, z of the point of a pixel into {@code point}.
+     *
+     * @return Whether the pixel holds a point.
+     */
+    public boolean getPoint(int pixel, float[] point) {
+        if (!hasPoint(pixel)) {
+            return false;
+        }
+        point[0] = mX[pixel];
+        point[1] = mY[pixel];
+        point[2] = mDepths[pixel];
+        return true;
+    }
+
+    /**
+     * Finds the pixel holding a point closest to a pixel, looking at most {@code radius} pixels
+     * away along each axis.
+     *
+     * @return The pixel, or -1 if the window is empty.
+     */
+    public int findNearestPixel(int pixel, int radius) {
+        if (hasPoint(pixel)) {
+            return pixel;
+        }
+        int row = pixel / mWidth;
+        int column = pixel % mWidth;
+        int nearest = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int r = Math.max(0, row - radius); r <= Math.min(mHeight - 1, row + radius); r++) {
+            int dr = r - row;
+            for (int c = Math.max(0, column - radius);
+                 c <= Math.min(mWidth - 1, column + radius); c++) {
+                int candidate = r * mWidth + c;
+                int distance = dr * dr + (c - column) * (c - column);
+                if (distance < nearestDistance && hasPoint(candidate)) {
+                    nearest = candidate;
+                    nearestDistance = distance;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Collects the pixels holding a point at most {@code radius} pixels away from a pixel along
+     * each axis.
+     *
+     * @param pixels Receives the pixels; those that don't fit are left out.
+     * @return The number of pixels written.
+     */
+    public int gatherWindow(int pixel, int radius, int[] pixels) {
+        int row = pixel / mWidth;
+        int column = pixel % mWidth;
+        int count = 0;
+        for (int r = Math.max(0, row - radius); r <= Math.min(mHeight - 1, row + radius); r++) {
+            for (int c = Math.max(0, column - radius);
+                 c <= Math.min(mWidth - 1, column + radius) && count < pixels.length; c++) {
+                int candidate = r * mWidth + c;
+                if (hasPoint(candidate)) {
+                    pixels[count++] = candidate;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Grows the region of a plane from a seed pixel, breadth first over the four neighbours of
+     * every pixel, through the pixels whose point lies within {@code maxDistance} of the plane.
+     *
+     * @param plane  Plane {@code nx * x + ny * y + nz * z + d = 0} with a unit normal.
+     * @param pixels Receives the pixels of the region, the seed first. Growing stops once it is
+     *               full.
+     * @return The number of pixels written, 0 if the seed pixel doesn't lie on the plane.
+     */
+    public int growRegion(int seed, float[] plane, float maxDistance, int[] pixels) {
+        if (++mRegionGeneration == Integer.MAX_VALUE) {
+            Arrays.fill(mVisited, 0);
+            mRegionGeneration = 1;
+        }
+        int visit = mRegionGeneration;
+        if (!onPlane(seed, plane, maxDistance) || pixels.length == 0) {
+            return 0;
+        }
+        int[] queue = mQueue;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = seed;
+        mVisited[seed] = visit;
+        int count = 0;
+        while (head < tail && count < pixels.length) {
+            int pixel = queue[head++];
+            pixels[count++] = pixel;
+            int column = pixel % mWidth;
+            // Left, right, up and down, when inside the image.
+            for (int n = 0; n < 4; n++) {
+                int neighbour;
+                if (n == 0) {
+                    neighbour = column > 0 ? pixel - 1 : -1;
+                } else if (n == 1) {
+                    neighbour = column < mWidth - 1 ? pixel + 1 : -1;
+                } else if (n == 2) {
+                    neighbour = pixel - mWidth;
+                } else {
+                    neighbour = pixel < (mHeight - 1) * mWidth ? pixel + mWidth : -1;
+                }
+                if (neighbour >= 0 && mVisited[neighbour] != visit) {
+                    mVisited[neighbour] = visit;
+                    if (onPlane(neighbour, plane, maxDistance)) {
+                        queue[tail++] = neighbour;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fits a plane by least squares through the points of a set of pixels, with its normal
+     * facing the camera.
+     *
+     * @param plane Receives {nx, ny, nz, d} of the plane {@code nx * x + ny * y + nz * z + d = 0}
+     *              with a unit normal; untouched if fewer than three points are given.
+     * @return Whether the plane was fitted.
+     */
+    public boolean fitPlane(int[] pixels, int count, float[] plane) {
+        if (count < 3) {
+            return false;
+        }
+        // Moments around the first point to keep the sums well conditioned.
+        int first = pixels[0];
+        float ox = mX[first];
+        float oy = mY[first];
+        float oz = mDepths[first];
+        double[] m = mMoments;
+        Arrays.fill(m, 0);
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            double x = mX[pixel] - ox;
+            double y = mY[pixel] - oy;
+            double z = mDepths[pixel] - oz;
+            m[0] += x;
+            m[1] += y;
+            m[2] += z;
+            m[3] += x * x;
+            m[4] += x * y;
+            m[5] += x * z;
+            m[6] += y * y;
+            m[7] += y * z;
+            m[8] += z * z;
+        }
+        double mx = m[0] / count;
+        double my = m[1] / count;
+        double mz = m[2] / count;
+        float cx = (float) (ox + mx);
+        float cy = (float) (oy + my);
+        float cz = (float) (oz + mz);
+        // The camera is at the origin, so -centroid points towards it.
+        PlaneMath.fitNormal(m[3] - count * mx * mx, m[4] - count * mx * my,
+                m[5] - count * mx * mz, m[6] - count * my * my, m[7] - count * my * mz,
+                m[8] - count * mz * mz, -cx, -cy, -cz, mNormal);
+        plane[0] = mNormal[0];
+        plane[1] = mNormal[1];
+        plane[2] = mNormal[2];
+        plane[3] = -(mNormal[0] * cx + mNormal[1] * cy + mNormal[2] * cz);
+        return true;
+    }
+
+    private boolean onPlane(int pixel, float[] plane, float maxDistance) {
+        return hasPoint(pixel) && Math.abs(plane[0] * mX[pixel] + plane[1] * mY[pixel]
+                + plane[2] * mDepths[pixel] + plane[3]) <= maxDistance;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Immutable, versioned view of a depth frame published by a {@link DepthSnapshotReference}.
+ * <p/>
+ * A snapshot obtained from {@link DepthSnapshotReference#acquire()} holds a reference on its
+ * frame, so the frame stays consistent for as long as the reader needs it, whatever the writer
+ * publishes meanwhile. Readers must call {@link #release()} once done and must not modify the
+ * frame.
+ */
+public final class DepthSnapshot {
+    /** The frame; shared, so read only. */
+    public final DepthFrame frame;
+    /** Version of the snapshot, increasing by one for every frame published. */
+    public final long version;
+
+    DepthSnapshot(DepthFrame frame, long version) {
+        this.frame = frame;
+        this.version = version;
+    }
+
+    /**
+     * Drops the reference the snapshot holds on its frame.
+     */
+    public void release() {
+        frame.release();
+    }
+}
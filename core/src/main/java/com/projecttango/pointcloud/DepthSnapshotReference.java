@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the latest depth frame to any number of readers without locking.
+ * <p/>
+ * Each published frame is wrapped in a new immutable {@link DepthSnapshot} and swapped in
+ * through an atomic reference; the reference on the frame it replaces is then dropped. A reader
+ * retains the frame of the current snapshot and checks that the snapshot is still current
+ * afterwards: if it is, the writer had not dropped its reference yet, so the frame was not
+ * recycled under the reader's feet. Otherwise the reader lets go and tries again with the newer
+ * snapshot. Neither side ever waits for the other.
+ */
+public class DepthSnapshotReference {
+    private final AtomicReference<DepthSnapshot> mLatest = new AtomicReference<DepthSnapshot>();
+    private final AtomicLong mVersion = new AtomicLong();
+
+    /**
+     * Makes a frame the latest one, sharing it rather than copying it. The frame is retained
+     * until it is replaced and must not be modified meanwhile.
+     *
+     * @return The version assigned to the frame.
+     */
+    public long publish(DepthFrame frame) {
+        DepthSnapshot snapshot = new DepthSnapshot(frame.retain(), mVersion.incrementAndGet());
+        DepthSnapshot previous = mLatest.getAndSet(snapshot);
+        if (previous != null) {
+            previous.release();
+        }
+        return snapshot.version;
+    }
+
+    /**
+     * Returns the latest snapshot holding a reference on its frame, or null if nothing was
+     * published yet. The caller must {@link DepthSnapshot#release()} it. Never blocks.
+     */
+    public DepthSnapshot acquire() {
+        while (true) {
+            DepthSnapshot snapshot = mLatest.get();
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.frame.tryRetain()) {
+                if (mLatest.get() == snapshot) {
+                    return snapshot;
+                }
+                snapshot.release();
+            }
+        }
+    }
+
+    /**
+     * Version of the latest snapshot, 0 if nothing was published yet.
+     */
+    public long getVersion() {
+        DepthSnapshot snapshot = mLatest.get();
+        return snapshot == null ? 0 : snapshot.version;
+    }
+
+    /**
+     * Drops the latest frame; readers holding it keep it until they release it.
+     */
+    public void clear() {
+        DepthSnapshot previous = mLatest.getAndSet(null);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+}
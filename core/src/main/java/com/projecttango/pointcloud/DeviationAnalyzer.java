@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compares depth frames with a design model: each point, moved to the model frame by the pose
+ * of its frame, gets its signed distance to the closest point of the model surface, positive in
+ * front of the surface (on the side its triangle normals point to).
+ * <p/>
+ * Points further than the matching distance from the model are left out as clutter (people,
+ * tools, parts not in the model). The per point deviations of the last frame are kept in an
+ * array and summarized, along with the running summary of all the frames analyzed.
+ * <p/>
+ * The points of a frame are split between worker threads, each with its own query state and
+ * partial summary, so no locking happens while analyzing. {@link #analyze} must be called from
+ * one thread at a time; the summaries can be read from any thread.
+ */
+public class DeviationAnalyzer {
+    private static final int POINT_TO_XYZ = 3;
+    // Split the points in more tasks than threads to balance uneven query costs.
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MIN_POINTS_PER_TASK = 1024;
+
+    private final TriangleBvh mDesign;
+    private final int mMaxPoints;
+    private final float mMaxDistance;
+    private final float mTolerance;
+    private final float[] mPointX;
+    private final float[] mPointY;
+    private final float[] mPointZ;
+    private final float[] mDeviations;
+    private int mPointCount;
+
+    private final DeviationStats mFrameStats = new DeviationStats();
+    private final DeviationStats mTotalStats = new DeviationStats();
+    private final Object mStatsLock = new Object();
+
+    private final int mThreadCount;
+    private final ExecutorService mExecutor;
+    private final List<PointScorer> mTasks;
+
+    /**
+     * @param design      The design model, in the frame the poses passed to {@link #analyze}
+     *                    are expressed in.
+     * @param maxPoints   Maximum number of points per analyzed frame.
+     * @param maxDistance Distance in meters beyond which points are not matched to the model.
+     * @param tolerance   Absolute deviation in meters within which a point conforms.
+     */
+    public DeviationAnalyzer(TriangleBvh design, int maxPoints, float maxDistance,
+                             float tolerance) {
+        mDesign = design;
+        mMaxPoints = maxPoints;
+        mMaxDistance = maxDistance;
+        mTolerance = tolerance;
+        mPointX = new float[maxPoints];
+        mPointY = new float[maxPoints];
+        mPointZ = new float[maxPoints];
+        mDeviations = new float[maxPoints];
+
+        mThreadCount = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DeviationAnalysis");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTasks = new ArrayList<PointScorer>(mThreadCount * TASKS_PER_THREAD);
+    }
+
+    /**
+     * Computes the deviation of every point of a depth frame from the design model.
+     *
+     * @param xyz         Packed x, y, z points in depth camera frame. Its position is untouched.
+     * @param pointCount  Number of points in {@code xyz}.
+     * @param translation Position of the depth camera in the design model frame.
+     * @param rotation    Orientation of the depth camera in the design model frame as a
+     *                    quaternion in {x, y, z, w} order.
+     * @return The number of points analyzed.
+     */
+    public int analyze(FloatBuffer xyz, int pointCount, double[] translation,
+                       double[] rotation) {
+        int count = Math.min(Math.min(pointCount, mMaxPoints), xyz.limit() / POINT_TO_XYZ);
+        transformPoints(xyz, count, translation, rotation);
+
+        int taskCount = mThreadCount == 1 ? 1 : Math.max(1,
+                Math.min(mThreadCount * TASKS_PER_THREAD, count / MIN_POINTS_PER_TASK));
+        while (mTasks.size() < taskCount) {
+            mTasks.add(new PointScorer());
+        }
+        int perTask = (count + taskCount - 1) / taskCount;
+        for (int t = 0; t < taskCount; t++) {
+            PointScorer task = mTasks.get(t);
+            task.mStart = Math.min(t * perTask, count);
+            task.mEnd = Math.min(task.mStart + perTask, count);
+        }
+        if (taskCount == 1) {
+            mTasks.get(0).call();
+        } else {
+            try {
+                List<Future<Void>> results = mExecutor.invokeAll(mTasks.subList(0, taskCount));
+                for (int t = 0; t < results.size(); t++) {
+                    results.get(t).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Deviation analysis failed", e.getCause());
+            }
+        }
+
+        mPointCount = count;
+        synchronized (mStatsLock) {
+            mFrameStats.reset();
+            for (int t = 0; t < taskCount; t++) {
+                mFrameStats.merge(mTasks.get(t).mStats);
+            }
+            mTotalStats.merge(mFrameStats);
+        }
+        return count;
+    }
+
+    /**
+     * Signed deviations in meters of the points of the last analyzed frame, in point order, NaN
+     * for the points not matched to the model. Valid up to {@link #getPointCount()} and until the
+     * next {@link #analyze} call, on the analyzing thread.
+     */
+    public float[] getDeviations() {
+        return mDeviations;
+    }
+
+    /** Number of points of the last analyzed frame. */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /** Copies the summary of the last analyzed frame. */
+    public void getFrameStats(DeviationStats out) {
+        synchronized (mStatsLock) {
+            out.set(mFrameStats);
+        }
+    }
+
+    /** Copies the running summary of all the frames analyzed since the last reset. */
+    public void getTotalStats(DeviationStats out) {
+        synchronized (mStatsLock) {
+            out.set(mTotalStats);
+        }
+    }
+
+    public void resetTotalStats() {
+        synchronized (mStatsLock) {
+            mTotalStats.reset();
+        }
+    }
+
+    public float getTolerance() {
+        return mTolerance;
+    }
+
+    /**
+     * Stops the worker threads. The analyzer can't be used afterwards.
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    private void transformPoints(FloatBuffer xyz, int count, double[] translation,
+                                 double[] rotation) {
+        double qx = rotation[0];
+        double qy = rotation[1];
+        double qz = rotation[2];
+        double qw = rotation[3];
+        float r00 = (float) (1 - 2 * (qy * qy + qz * qz));
+        float r01 = (float) (2 * (qx * qy - qz * qw));
+        float r02 = (float) (2 * (qx * qz + qy * qw));
+        float r10 = (float) (2 * (qx * qy + qz * qw));
+        float r11 = (float) (1 - 2 * (qx * qx + qz * qz));
+        float r12 = (float) (2 * (qy * qz - qx * qw));
+        float r20 = (float) (2 * (qx * qz - qy * qw));
+        float r21 = (float) (2 * (qy * qz + qx * qw));
+        float r22 = (float) (1 - 2 * (qx * qx + qy * qy));
+        float tx = (float) translation[0];
+        float ty = (float) translation[1];
+        float tz = (float) translation[2];
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            float x = xyz.get(j);
+            float y = xyz.get(j + 1);
+            float z = xyz.get(j + 2);
+            mPointX[i] = r00 * x + r01 * y + r02 * z + tx;
+            mPointY[i] = r10 * x + r11 * y + r12 * z + ty;
+            mPointZ[i] = r20 * x + r21 * y + r22 * z + tz;
+        }
+    }
+
+    private class PointScorer implements Callable<Void> {
+        final TriangleBvh.ClosestPointQuery mQuery = new TriangleBvh.ClosestPointQuery();
+        final DeviationStats mStats = new DeviationStats();
+        int mStart;
+        int mEnd;
+
+        @Override
+        public Void call() {
+            mStats.reset();
+            TriangleBvh.ClosestPointQuery query = mQuery;
+            for (int i = mStart; i < mEnd; i++) {
+                float x = mPointX[i];
+                float y = mPointY[i];
+                float z = mPointZ[i];
+                if (!mDesign.closestPoint(x, y, z, mMaxDistance, query)) {
+                    mDeviations[i] = Float.NaN;
+                    mStats.addUnmatched();
+                    continue;
+                }
+                float distance = (float) Math.sqrt(query.distanceSquared);
+                float side = (x - query.x) * query.normalX + (y - query.y) * query.normalY
+                        + (z - query.z) * query.normalZ;
+                float deviation = side < 0 ? -distance : distance;
+                mDeviations[i] = deviation;
+                mStats.add(deviation, distance <= mTolerance);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Summary of the deviations of measured points from a design surface, as computed by
+ * {@link DeviationAnalyzer}. Deviations are signed distances in meters, positive in front of the
+ * design surface. Instances can be merged, so partial results of parallel workers or of
+ * successive frames add up.
+ */
+public class DeviationStats {
+    private long mCount;
+    private long mUnmatchedCount;
+    private long mWithinToleranceCount;
+    private double mSum;
+    private double mSumSquares;
+    private float mMin = Float.POSITIVE_INFINITY;
+    private float mMax = Float.NEGATIVE_INFINITY;
+
+    public void reset() {
+        mCount = 0;
+        mUnmatchedCount = 0;
+        mWithinToleranceCount = 0;
+        mSum = 0;
+        mSumSquares = 0;
+        mMin = Float.POSITIVE_INFINITY;
+        mMax = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Adds the deviation of a point matched to the design surface.
+     */
+    public void add(float deviation, boolean withinTolerance) {
+        mCount++;
+        if (withinTolerance) {
+            mWithinToleranceCount++;
+        }
+        mSum += deviation;
+        mSumSquares += deviation * deviation;
+        mMin = Math.min(mMin, deviation);
+        mMax = Math.max(mMax, deviation);
+    }
+
+    /**
+     * Counts a point too far from the design surface to belong to it.
+     */
+    public void addUnmatched() {
+        mUnmatchedCount++;
+    }
+
+    public void merge(DeviationStats other) {
+        mCount += other.mCount;
+        mUnmatchedCount += other.mUnmatchedCount;
+        mWithinToleranceCount += other.mWithinToleranceCount;
+        mSum += other.mSum;
+        mSumSquares += other.mSumSquares;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public void set(DeviationStats other) {
+        reset();
+        merge(other);
+    }
+
+    /** Number of points matched to the design surface. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Number of points with no design surface within the matching distance. */
+    public long getUnmatchedCount() {
+        return mUnmatchedCount;
+    }
+
+    public long getWithinToleranceCount() {
+        return mWithinToleranceCount;
+    }
+
+    /** Fraction of the matched points within tolerance, 0 if there are none. */
+    public float getWithinToleranceFraction() {
+        return mCount == 0 ? 0 : (float) mWithinToleranceCount / mCount;
+    }
+
+    /** Mean signed deviation in meters, 0 if there are no matched points. */
+    public float getMean() {
+        return mCount == 0 ? 0 : (float) (mSum / mCount);
+    }
+
+    /** Root mean square deviation in meters, 0 if there are no matched points. */
+    public float getRms() {
+        return mCount == 0 ? 0 : (float) Math.sqrt(mSumSquares / mCount);
+    }
+
+    /** Most negative deviation, +infinity if there are no matched points. */
+    public float getMin() {
+        return mMin;
+    }
+
+    /** Most positive deviation, -infinity if there are no matched points. */
+    public float getMax() {
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return "matched " + mCount + ", unmatched " + mUnmatchedCount
+                + ", mean " + getMean() + " m, rms " + getRms() + " m, range [" + mMin + ", "
+                + mMax + "] m, within tolerance " + getWithinToleranceFraction();
+    }
+}
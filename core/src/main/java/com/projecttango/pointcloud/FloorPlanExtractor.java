@@ -0,0 +1,687 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Incremental floor plan extraction: keeps the outline of a room up to date from the depth
+ * frames scanned in it.
+ * <p/>
+ * The planes a {@link PlaneSegmenter} found in every frame are taken to the world frame (y up,
+ * as the OpenGL world frame of the app); those with too few inliers are ignored. Vertical planes
+ * become wall segments: their intersection with the floor, i.e. a line in the horizontal x, z
+ * plane with the extent of their inliers along it. Segments are merged into the walls seen in
+ * earlier frames when they face the same way, lie on the same line and overlap or nearly touch;
+ * walls that grow into each other are merged too. Upward facing horizontal planes well below the
+ * camera are floor candidates, clustered by height; the floor is the lowest well supported
+ * cluster.
+ * <p/>
+ * The outline is rebuilt whenever a wall changes: the walls tall and long enough are ordered
+ * around the mean camera position, consecutive walls are joined at the intersection of their
+ * lines when it is close to both, and directly otherwise.
+ * <p/>
+ * A frame costs a pass over its points, plus work proportional to the number of walls, however
+ * many frames came before; the segmentation is the caller's, so that it can be shared.
+ * {@link #update} must only be called from a single thread; the results can be read from any
+ * thread.
+ */
+public class FloorPlanExtractor {
+    private static final int POINT_TO_XYZ = 3;
+    // Planes of a frame beyond this many are ignored.
+    private static final int MAX_PLANES_PER_FRAME = 8;
+    private static final int MIN_PLANE_INLIERS = 400;
+    // Planes within 10 degrees of vertical are walls, within 10 degrees of horizontal floors.
+    private static final float MAX_WALL_NORMAL_Y = 0.17f;
+    private static final float MIN_FLOOR_NORMAL_Y = 0.985f;
+    // Floors must be this far below the camera, so that tables aren't taken for floors.
+    private static final float MIN_FLOOR_DEPTH = 0.5f;
+    private static final float FLOOR_MERGE_DISTANCE = 0.05f;
+    // Floor clusters with less than this fraction of the support of the best one are ignored.
+    private static final float MIN_FLOOR_SUPPORT = 0.25f;
+    private static final int MAX_FLOOR_CLUSTERS = 8;
+    // Segments are merged into walls facing the same way within 10 degrees, and less than this
+    // far from their line.
+    private static final float MIN_MERGE_COSINE = 0.985f;
+    private static final float MAX_MERGE_DISTANCE = 0.1f;
+    // Largest gap along a wall between the segments merged into it.
+    private static final float MAX_MERGE_GAP = 0.5f;
+    // Walls shorter or lower than this are left out of the outline (furniture, clutter).
+    private static final float MIN_WALL_LENGTH = 0.3f;
+    private static final float MIN_WALL_HEIGHT = 0.5f;
+    // Consecutive walls are joined at the intersection of their lines if it is within this
+    // distance of both, and their lines are at least 30 degrees apart.
+    private static final float MAX_CORNER_REACH = 1.0f;
+    private static final float MIN_CORNER_SINE = 0.5f;
+    // Once the walls are full, the support of a wall counts half after it was not seen for this
+    // many frames, a third after twice as many and so on, for picking the one a new segment
+    // replaces.
+    private static final int WALL_AGING_FRAMES = 300;
+
+    private final int mMaxPoints;
+    private final int mMaxWalls;
+
+    // Planes of the current frame in world frame, indexed like the segmenter planes.
+    private final int[] mPlaneKinds = new int[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneNormalX = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneNormalZ = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneCenterX = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneCenterY = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneCenterZ = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneMinT = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneMaxT = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneMinY = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mPlaneMaxY = new float[MAX_PLANES_PER_FRAME];
+    private static final int KIND_OTHER = 0;
+    private static final int KIND_WALL = 1;
+    private static final int KIND_FLOOR = 2;
+
+    // Walls: support (inlier count), sums of the inlier positions and normals weighted by
+    // support, end points on the wall line, vertical extent and the frame it was last seen in.
+    private int mWallCount;
+    private final double[] mWallWeight;
+    private final double[] mWallSumX;
+    private final double[] mWallSumZ;
+    private final double[] mWallFacingX;
+    private final double[] mWallFacingZ;
+    private final float[] mWallStartX;
+    private final float[] mWallStartZ;
+    private final float[] mWallEndX;
+    private final float[] mWallEndZ;
+    private final float[] mWallMinY;
+    private final float[] mWallMaxY;
+    private final long[] mWallLastSeen;
+    // Scratch for ordering the walls of the outline.
+    private final int[] mOrder;
+    private final float[] mAngles;
+    private final float[] mWork;
+
+    private final double[] mFloorSum = new double[MAX_FLOOR_CLUSTERS];
+    private final double[] mFloorWeight = new double[MAX_FLOOR_CLUSTERS];
+    private int mFloorClusterCount;
+    private double mCameraSumX;
+    private double mCameraSumZ;
+    private long mFrameCount;
+    private boolean mWallsChanged;
+
+    private final Object mOutlineLock = new Object();
+    private final float[] mOutline;
+    private int mOutlineVertexCount;
+    private float mFloorHeight = Float.NaN;
+    private int mOutlineWallCount;
+    private float mOutlineArea;
+    private long mVersion;
+
+    /**
+     * @param maxPoints Maximum number of points of a depth frame.
+     * @param maxWalls  Maximum number of walls kept. Once that many are kept, a segment that
+     *                  doesn't match one of them replaces the weakest wall, its support
+     *                  discounted by the time since it was last seen, if it has more support.
+     */
+    public FloorPlanExtractor(int maxPoints, int maxWalls) {
+        mMaxPoints = maxPoints;
+        mMaxWalls = maxWalls;
+        mWallWeight = new double[maxWalls];
+        mWallSumX = new double[maxWalls];
+        mWallSumZ = new double[maxWalls];
+        mWallFacingX = new double[maxWalls];
+        mWallFacingZ = new double[maxWalls];
+        mWallStartX = new float[maxWalls];
+        mWallStartZ = new float[maxWalls];
+        mWallEndX = new float[maxWalls];
+        mWallEndZ = new float[maxWalls];
+        mWallMinY = new float[maxWalls];
+        mWallMaxY = new float[maxWalls];
+        mWallLastSeen = new long[maxWalls];
+        mOrder = new int[maxWalls];
+        mAngles = new float[maxWalls];
+        // Two vertices of two coordinates per wall.
+        mWork = new float[maxWalls * 4];
+        mOutline = new float[maxWalls * 4];
+    }
+
+    /**
+     * Adds a segmented depth frame to the floor plan.
+     *
+     * @param xyz         Packed x, y, z points in depth camera frame. Its position is untouched.
+     * @param segmenter   Segmenter whose last {@link PlaneSegmenter#segment} call was given
+     *                    {@code xyz}. Only its planes and labels are read.
+     * @param translation Position of the depth camera in the world frame, y up.
+     * @param rotation    Orientation {x, y, z, w} of the depth camera in the world frame.
+     * @return Whether the outline changed.
+     */
+    public boolean update(FloatBuffer xyz, PlaneSegmenter segmenter, double[] translation,
+                          double[] rotation) {
+        int count = Math.min(Math.min(segmenter.getPointCount(), mMaxPoints),
+                xyz.limit() / POINT_TO_XYZ);
+        double qx = rotation[0];
+        double qy = rotation[1];
+        double qz = rotation[2];
+        double qw = rotation[3];
+        float r00 = (float) (1 - 2 * (qy * qy + qz * qz));
+        float r01 = (float) (2 * (qx * qy - qz * qw));
+        float r02 = (float) (2 * (qx * qz + qy * qw));
+        float r10 = (float) (2 * (qx * qy + qz * qw));
+        float r11 = (float) (1 - 2 * (qx * qx + qz * qz));
+        float r12 = (float) (2 * (qy * qz - qx * qw));
+        float r20 = (float) (2 * (qx * qz - qy * qw));
+        float r21 = (float) (2 * (qy * qz + qx * qw));
+        float r22 = (float) (1 - 2 * (qx * qx + qy * qy));
+        float tx = (float) translation[0];
+        float ty = (float) translation[1];
+        float tz = (float) translation[2];
+        mCameraSumX += tx;
+        mCameraSumZ += tz;
+        mFrameCount++;
+
+        List<PlaneSegmenter.Plane> planes = segmenter.getPlanes();
+        int planeCount = Math.min(planes.size(), MAX_PLANES_PER_FRAME);
+        boolean hasWalls = false;
+        for (int p = 0; p < planeCount; p++) {
+            PlaneSegmenter.Plane plane = planes.get(p);
+            mPlaneKinds[p] = KIND_OTHER;
+            if (plane.inlierCount < MIN_PLANE_INLIERS) {
+                continue;
+            }
+            // Orient the normal towards the camera, at the origin of the depth frame.
+            float sign = plane.d < 0 ? -1 : 1;
+            float nx = sign * (r00 * plane.nx + r01 * plane.ny + r02 * plane.nz);
+            float ny = sign * (r10 * plane.nx + r11 * plane.ny + r12 * plane.nz);
+            float nz = sign * (r20 * plane.nx + r21 * plane.ny + r22 * plane.nz);
+            float cx = r00 * plane.centroidX + r01 * plane.centroidY + r02 * plane.centroidZ + tx;
+            float cy = r10 * plane.centroidX + r11 * plane.centroidY + r12 * plane.centroidZ + ty;
+            float cz = r20 * plane.centroidX + r21 * plane.centroidY + r22 * plane.centroidZ + tz;
+            if (Math.abs(ny) <= MAX_WALL_NORMAL_Y) {
+                float length = (float) Math.sqrt(nx * nx + nz * nz);
+                mPlaneKinds[p] = KIND_WALL;
+                mPlaneNormalX[p] = nx / length;
+                mPlaneNormalZ[p] = nz / length;
+                mPlaneCenterX[p] = cx;
+                mPlaneCenterZ[p] = cz;
+                mPlaneMinT[p] = Float.POSITIVE_INFINITY;
+                mPlaneMaxT[p] = Float.NEGATIVE_INFINITY;
+                mPlaneMinY[p] = Float.POSITIVE_INFINITY;
+                mPlaneMaxY[p] = Float.NEGATIVE_INFINITY;
+                hasWalls = true;
+            } else if (ny >= MIN_FLOOR_NORMAL_Y && cy <= ty - MIN_FLOOR_DEPTH) {
+                addFloorCandidate(cy, plane.inlierCount);
+            }
+        }
+
+        if (hasWalls) {
+            // Extent of the inliers of every wall, along it and vertically.
+            for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+                int p = segmenter.getLabel(i);
+                if (p < 0 || p >= planeCount || mPlaneKinds[p] != KIND_WALL) {
+                    continue;
+                }
+                float x = xyz.get(j);
+                float y = xyz.get(j + 1);
+                float z = xyz.get(j + 2);
+                float wx = r00 * x + r01 * y + r02 * z + tx;
+                float wy = r10 * x + r11 * y + r12 * z + ty;
+                float wz = r20 * x + r21 * y + r22 * z + tz;
+                // Along the wall: the normal turned by 90 degrees.
+                float t = (wx - mPlaneCenterX[p]) * -mPlaneNormalZ[p]
+                        + (wz - mPlaneCenterZ[p]) * mPlaneNormalX[p];
+                mPlaneMinT[p] = Math.min(mPlaneMinT[p], t);
+                mPlaneMaxT[p] = Math.max(mPlaneMaxT[p], t);
+                mPlaneMinY[p] = Math.min(mPlaneMinY[p], wy);
+                mPlaneMaxY[p] = Math.max(mPlaneMaxY[p], wy);
+            }
+            for (int p = 0; p < planeCount; p++) {
+                if (mPlaneKinds[p] == KIND_WALL) {
+                    addSegment(p, planes.get(p).inlierCount);
+                }
+            }
+        }
+
+        boolean changed = mWallsChanged;
+        if (mWallsChanged) {
+            mWallsChanged = false;
+            buildOutline();
+        } else {
+            synchronized (mOutlineLock) {
+                mFloorHeight = floorHeight();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Copies the outline of the room into {@code xz} as x, z pairs in the world frame, in
+     * counterclockwise order seen from above, the last vertex connecting back to the first.
+     *
+     * @return The number of vertices, which may exceed the vertices that fit in {@code xz}.
+     */
+    public int getOutline(float[] xz) {
+        synchronized (mOutlineLock) {
+            System.arraycopy(mOutline, 0, xz, 0, Math.min(xz.length, mOutlineVertexCount * 2));
+            return mOutlineVertexCount;
+        }
+    }
+
+    /** Maximum number of vertices of the outline. */
+    public int getMaxOutlineVertices() {
+        return mMaxWalls * 2;
+    }
+
+    /**
+     * Height of the floor in the world frame, the plane the outline lies in, or NaN if no floor
+     * was seen yet.
+     */
+    public float getFloorHeight() {
+        synchronized (mOutlineLock) {
+            return mFloorHeight;
+        }
+    }
+
+    /** Area enclosed by the outline in square meters. */
+    public float getOutlineArea() {
+        synchronized (mOutlineLock) {
+            return mOutlineArea;
+        }
+    }
+
+    /** Number of walls in the outline. */
+    public int getWallCount() {
+        synchronized (mOutlineLock) {
+            return mOutlineWallCount;
+        }
+    }
+
+    /** Incremented every time the outline changes. */
+    public long getVersion() {
+        synchronized (mOutlineLock) {
+            return mVersion;
+        }
+    }
+
+    /**
+     * Forgets all the walls and floors. Must be called from the thread calling {@link #update}.
+     */
+    public void reset() {
+        mWallCount = 0;
+        mFloorClusterCount = 0;
+        mCameraSumX = 0;
+        mCameraSumZ = 0;
+        mFrameCount = 0;
+        mWallsChanged = false;
+        synchronized (mOutlineLock) {
+            mOutlineVertexCount = 0;
+            mOutlineWallCount = 0;
+            mOutlineArea = 0;
+            mFloorHeight = Float.NaN;
+            mVersion++;
+        }
+    }
+
+    private void addFloorCandidate(float height, int support) {
+        int best = -1;
+        float bestDistance = FLOOR_MERGE_DISTANCE;
+        for (int c = 0; c < mFloorClusterCount; c++) {
+            float distance = Math.abs((float) (mFloorSum[c] / mFloorWeight[c]) - height);
+            if (distance <= bestDistance) {
+                best = c;
+                bestDistance = distance;
+            }
+        }
+        if (best < 0) {
+            if (mFloorClusterCount < MAX_FLOOR_CLUSTERS) {
+                best = mFloorClusterCount++;
+            } else {
+                // Replace the least supported cluster.
+                best = 0;
+                for (int c = 1; c < mFloorClusterCount; c++) {
+                    if (mFloorWeight[c] < mFloorWeight[best]) {
+                        best = c;
+                    }
+                }
+                if (mFloorWeight[best] >= support) {
+                    return;
+                }
+            }
+            mFloorSum[best] = 0;
+            mFloorWeight[best] = 0;
+        }
+        mFloorSum[best] += (double) height * support;
+        mFloorWeight[best] += support;
+    }
+
+    private float floorHeight() {
+        double maxWeight = 0;
+        for (int c = 0; c < mFloorClusterCount; c++) {
+            maxWeight = Math.max(maxWeight, mFloorWeight[c]);
+        }
+        float height = Float.NaN;
+        for (int c = 0; c < mFloorClusterCount; c++) {
+            if (mFloorWeight[c] >= MIN_FLOOR_SUPPORT * maxWeight) {
+                float clusterHeight = (float) (mFloorSum[c] / mFloorWeight[c]);
+                if (!(clusterHeight >= height)) {
+                    height = clusterHeight;
+                }
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Merges the wall segment of plane {@code p} of the current frame into the wall it continues,
+     * or starts a new wall with it.
+     */
+    private void addSegment(int p, int support) {
+        float nx = mPlaneNormalX[p];
+        float nz = mPlaneNormalZ[p];
+        float startX = mPlaneCenterX[p] - nz * mPlaneMinT[p];
+        float startZ = mPlaneCenterZ[p] + nx * mPlaneMinT[p];
+        float endX = mPlaneCenterX[p] - nz * mPlaneMaxT[p];
+        float endZ = mPlaneCenterZ[p] + nx * mPlaneMaxT[p];
+        int wall = findWall(-1, nx, nz, mPlaneCenterX[p], mPlaneCenterZ[p], startX, startZ, endX,
+                endZ);
+        if (wall < 0) {
+            if (mWallCount == mMaxWalls) {
+                int evicted = findEvictedWall(support);
+                if (evicted < 0) {
+                    return;
+                }
+                removeWall(evicted);
+            }
+            wall = mWallCount++;
+            mWallWeight[wall] = 0;
+            mWallSumX[wall] = 0;
+            mWallSumZ[wall] = 0;
+            mWallFacingX[wall] = 0;
+            mWallFacingZ[wall] = 0;
+            mWallStartX[wall] = startX;
+            mWallStartZ[wall] = startZ;
+            mWallEndX[wall] = endX;
+            mWallEndZ[wall] = endZ;
+            mWallMinY[wall] = Float.POSITIVE_INFINITY;
+            mWallMaxY[wall] = Float.NEGATIVE_INFINITY;
+        }
+        mWallWeight[wall] += support;
+        mWallSumX[wall] += (double) mPlaneCenterX[p] * support;
+        mWallSumZ[wall] += (double) mPlaneCenterZ[p] * support;
+        mWallFacingX[wall] += (double) nx * support;
+        mWallFacingZ[wall] += (double) nz * support;
+        mWallMinY[wall] = Math.min(mWallMinY[wall], mPlaneMinY[p]);
+        mWallMaxY[wall] = Math.max(mWallMaxY[wall], mPlaneMaxY[p]);
+        mWallLastSeen[wall] = mFrameCount;
+        fitEnds(wall, startX, startZ, endX, endZ);
+        mWallsChanged = true;
+
+        // The wall may now reach other walls on the same line.
+        int other;
+        while ((other = findWall(wall, (float) mWallFacingX[wall], (float) mWallFacingZ[wall],
+                (float) (mWallSumX[wall] / mWallWeight[wall]),
+                (float) (mWallSumZ[wall] / mWallWeight[wall]), mWallStartX[wall],
+                mWallStartZ[wall], mWallEndX[wall], mWallEndZ[wall])) >= 0) {
+            wall = mergeWalls(wall, other);
+        }
+    }
+
+    /**
+     * Finds the wall, other than {@code exclude}, a segment continues: facing the same way, close
+     * to its line and overlapping or nearly touching it. The closest to the line is chosen.
+     *
+     * @return The wall, or -1 if there is none.
+     */
+    private int findWall(int exclude, float facingX, float facingZ, float centerX, float centerZ,
+                         float startX, float startZ, float endX, float endZ) {
+        float facingLength = (float) Math.sqrt(facingX * facingX + facingZ * facingZ);
+        float nx = facingX / facingLength;
+        float nz = facingZ / facingLength;
+        int best = -1;
+        float bestDistance = MAX_MERGE_DISTANCE;
+        for (int w = 0; w < mWallCount; w++) {
+            if (w == exclude) {
+                continue;
+            }
+            double wallFacingLength = Math.sqrt(mWallFacingX[w] * mWallFacingX[w]
+                    + mWallFacingZ[w] * mWallFacingZ[w]);
+            float wallNx = (float) (mWallFacingX[w] / wallFacingLength);
+            float wallNz = (float) (mWallFacingZ[w] / wallFacingLength);
+            if (nx * wallNx + nz * wallNz < MIN_MERGE_COSINE) {
+                continue;
+            }
+            float wallX = (float) (mWallSumX[w] / mWallWeight[w]);
+            float wallZ = (float) (mWallSumZ[w] / mWallWeight[w]);
+            float distance = Math.abs((centerX - wallX) * wallNx + (centerZ - wallZ) * wallNz);
+            if (distance > bestDistance) {
+                continue;
+            }
+            // Extents along the wall line.
+            float a = (startX - wallX) * -wallNz + (startZ - wallZ) * wallNx;
+            float b = (endX - wallX) * -wallNz + (endZ - wallZ) * wallNx;
+            float c = (mWallStartX[w] - wallX) * -wallNz + (mWallStartZ[w] - wallZ) * wallNx;
+            float d = (mWallEndX[w] - wallX) * -wallNz + (mWallEndZ[w] - wallZ) * wallNx;
+            float gap = Math.max(Math.min(c, d) - Math.max(a, b),
+                    Math.min(a, b) - Math.max(c, d));
+            if (gap <= MAX_MERGE_GAP) {
+                best = w;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the wall a new segment replaces when the walls are full: the one with the least
+     * support discounted by its age, among those not seen in the current frame.
+     *
+     * @return The wall, or -1 if none has less discounted support than {@code support}.
+     */
+    private int findEvictedWall(int support) {
+        int weakest = -1;
+        double weakestSupport = support;
+        for (int w = 0; w < mWallCount; w++) {
+            long unseenFrames = mFrameCount - mWallLastSeen[w];
+            if (unseenFrames == 0) {
+                continue;
+            }
+            double discounted = mWallWeight[w] / (1 + unseenFrames / WALL_AGING_FRAMES);
+            if (discounted < weakestSupport) {
+                weakest = w;
+                weakestSupport = discounted;
+            }
+        }
+        return weakest;
+    }
+
+    /**
+     * Merges two walls into the first one and removes the second one.
+     *
+     * @return The index of the merged wall, which moves if it was the last one.
+     */
+    private int mergeWalls(int wall, int other) {
+        mWallWeight[wall] += mWallWeight[other];
+        mWallSumX[wall] += mWallSumX[other];
+        mWallSumZ[wall] += mWallSumZ[other];
+        mWallFacingX[wall] += mWallFacingX[other];
+        mWallFacingZ[wall] += mWallFacingZ[other];
+        mWallMinY[wall] = Math.min(mWallMinY[wall], mWallMinY[other]);
+        mWallMaxY[wall] = Math.max(mWallMaxY[wall], mWallMaxY[other]);
+        mWallLastSeen[wall] = Math.max(mWallLastSeen[wall], mWallLastSeen[other]);
+        fitEnds(wall, mWallStartX[other], mWallStartZ[other], mWallEndX[other],
+                mWallEndZ[other]);
+        int last = mWallCount - 1;
+        removeWall(other);
+        return wall == last ? other : wall;
+    }
+
+    /**
+     * Removes a wall by moving the last one into its place.
+     */
+    private void removeWall(int wall) {
+        int last = --mWallCount;
+        if (wall != last) {
+            mWallWeight[wall] = mWallWeight[last];
+            mWallSumX[wall] = mWallSumX[last];
+            mWallSumZ[wall] = mWallSumZ[last];
+            mWallFacingX[wall] = mWallFacingX[last];
+            mWallFacingZ[wall] = mWallFacingZ[last];
+            mWallStartX[wall] = mWallStartX[last];
+            mWallStartZ[wall] = mWallStartZ[last];
+            mWallEndX[wall] = mWallEndX[last];
+            mWallEndZ[wall] = mWallEndZ[last];
+            mWallMinY[wall] = mWallMinY[last];
+            mWallMaxY[wall] = mWallMaxY[last];
+            mWallLastSeen[wall] = mWallLastSeen[last];
+        }
+    }
+
+    /**
+     * Sets the end points of a wall to the extremes, along its updated line, of its current end
+     * points and of the given ones.
+     */
+    private void fitEnds(int wall, float startX, float startZ, float endX, float endZ) {
+        double facingLength = Math.sqrt(mWallFacingX[wall] * mWallFacingX[wall]
+                + mWallFacingZ[wall] * mWallFacingZ[wall]);
+        float nx = (float) (mWallFacingX[wall] / facingLength);
+        float nz = (float) (mWallFacingZ[wall] / facingLength);
+        float x = (float) (mWallSumX[wall] / mWallWeight[wall]);
+        float z = (float) (mWallSumZ[wall] / mWallWeight[wall]);
+        float a = (mWallStartX[wall] - x) * -nz + (mWallStartZ[wall] - z) * nx;
+        float b = (mWallEndX[wall] - x) * -nz + (mWallEndZ[wall] - z) * nx;
+        float c = (startX - x) * -nz + (startZ - z) * nx;
+        float d = (endX - x) * -nz + (endZ - z) * nx;
+        float min = Math.min(Math.min(a, b), Math.min(c, d));
+        float max = Math.max(Math.max(a, b), Math.max(c, d));
+        mWallStartX[wall] = x - nz * min;
+        mWallStartZ[wall] = z + nx * min;
+        mWallEndX[wall] = x - nz * max;
+        mWallEndZ[wall] = z + nx * max;
+    }
+
+    /**
+     * Orders the walls tall and long enough around the mean camera position and joins them into
+     * the outline, then publishes it.
+     */
+    private void buildOutline() {
+        float centerX = (float) (mCameraSumX / mFrameCount);
+        float centerZ = (float) (mCameraSumZ / mFrameCount);
+        int wallCount = 0;
+        for (int w = 0; w < mWallCount; w++) {
+            float dx = mWallEndX[w] - mWallStartX[w];
+            float dz = mWallEndZ[w] - mWallStartZ[w];
+            if (mWallMaxY[w] - mWallMinY[w] < MIN_WALL_HEIGHT
+                    || dx * dx + dz * dz < MIN_WALL_LENGTH * MIN_WALL_LENGTH) {
+                continue;
+            }
+            // Counterclockwise seen from above, y up: from +x towards -z.
+            float angle = (float) Math.atan2(-((mWallStartZ[w] + mWallEndZ[w]) / 2 - centerZ),
+                    (mWallStartX[w] + mWallEndX[w]) / 2 - centerX);
+            // Insertion sort; there are few walls.
+            int i = wallCount++;
+            while (i > 0 && mAngles[i - 1] > angle) {
+                mAngles[i] = mAngles[i - 1];
+                mOrder[i] = mOrder[i - 1];
+                i--;
+            }
+            mAngles[i] = angle;
+            mOrder[i] = w;
+        }
+
+        // Every wall contributes its two ends, in counterclockwise order, each replaced by the
+        // corner with the neighbouring wall where there is one.
+        float[] work = mWork;
+        for (int i = 0; i < wallCount; i++) {
+            int w = mOrder[i];
+            float ax = mWallStartX[w] - centerX;
+            float az = mWallStartZ[w] - centerZ;
+            float bx = mWallEndX[w] - centerX;
+            float bz = mWallEndZ[w] - centerZ;
+            boolean forward = az * bx - ax * bz >= 0;
+            work[i * 4] = forward ? mWallStartX[w] : mWallEndX[w];
+            work[i * 4 + 1] = forward ? mWallStartZ[w] : mWallEndZ[w];
+            work[i * 4 + 2] = forward ? mWallEndX[w] : mWallStartX[w];
+            work[i * 4 + 3] = forward ? mWallEndZ[w] : mWallStartZ[w];
+        }
+        if (wallCount > 1) {
+            for (int i = 0; i < wallCount; i++) {
+                joinCorner(work, i, (i + 1) % wallCount);
+            }
+        }
+
+        synchronized (mOutlineLock) {
+            int vertexCount = 0;
+            for (int i = 0; i < wallCount * 2; i++) {
+                float x = work[i * 2];
+                float z = work[i * 2 + 1];
+                // Joined corners appear twice in a row.
+                if (vertexCount > 0 && mOutline[vertexCount * 2 - 2] == x
+                        && mOutline[vertexCount * 2 - 1] == z) {
+                    continue;
+                }
+                mOutline[vertexCount * 2] = x;
+                mOutline[vertexCount * 2 + 1] = z;
+                vertexCount++;
+            }
+            if (vertexCount > 1 && mOutline[0] == mOutline[vertexCount * 2 - 2]
+                    && mOutline[1] == mOutline[vertexCount * 2 - 1]) {
+                vertexCount--;
+            }
+            // Shoelace formula, in the counterclockwise x, -z plane.
+            float area = 0;
+            for (int i = 0; i < vertexCount; i++) {
+                int j = (i + 1) % vertexCount;
+                area += mOutline[j * 2] * mOutline[i * 2 + 1]
+                        - mOutline[i * 2] * mOutline[j * 2 + 1];
+            }
+            mOutlineVertexCount = vertexCount;
+            mOutlineWallCount = wallCount;
+            mOutlineArea = Math.abs(area) / 2;
+            mFloorHeight = floorHeight();
+            mVersion++;
+        }
+    }
+
+    /**
+     * Moves the end of wall {@code i} and the start of wall {@code j} of the outline being built
+     * to the intersection of their lines, if it is close to both and the walls aren't nearly
+     * parallel.
+     */
+    private static void joinCorner(float[] work, int i, int j) {
+        float px = work[i * 4];
+        float pz = work[i * 4 + 1];
+        float rx = work[i * 4 + 2] - px;
+        float rz = work[i * 4 + 3] - pz;
+        float qx = work[j * 4];
+        float qz = work[j * 4 + 1];
+        float sx = work[j * 4 + 2] - qx;
+        float sz = work[j * 4 + 3] - qz;
+        float cross = rx * sz - rz * sx;
+        float lengths = (float) Math.sqrt((rx * rx + rz * rz) * (sx * sx + sz * sz));
+        if (!(Math.abs(cross) >= MIN_CORNER_SINE * lengths)) {
+            return;
+        }
+        float t = ((qx - px) * sz - (qz - pz) * sx) / cross;
+        float cornerX = px + rx * t;
+        float cornerZ = pz + rz * t;
+        float endX = work[i * 4 + 2];
+        float endZ = work[i * 4 + 3];
+        float reach = MAX_CORNER_REACH * MAX_CORNER_REACH;
+        if ((cornerX - endX) * (cornerX - endX) + (cornerZ - endZ) * (cornerZ - endZ) > reach
+                || (cornerX - qx) * (cornerX - qx) + (cornerZ - qz) * (cornerZ - qz) > reach) {
+            return;
+        }
+        work[i * 4 + 2] = cornerX;
+        work[i * 4 + 3] = cornerZ;
+        work[j * 4] = cornerX;
+        work[j * 4 + 1] = cornerZ;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * View frustum given by the six clipping planes of a model view projection matrix, for culling
+ * axis aligned boxes.
+ */
+final class Frustum {
+    /** Mask of all the planes, for {@link #classify}. */
+    static final int ALL_PLANES = 0x3F;
+    /** Returned by {@link #classify} for boxes entirely outside the frustum. */
+    static final int OUTSIDE = -1;
+    private static final int PLANE_COUNT = 6;
+
+    // Planes a, b, c, d with the normals pointing inside.
+    private final double[] mPlanes = new double[PLANE_COUNT * 4];
+
+    /**
+     * Extracts the six clipping planes from a column major model view projection matrix (Gribb
+     * and Hartmann): left, right, bottom, top, near and far.
+     */
+    void set(double[] m) {
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            int row = plane / 2;
+            double sign = (plane & 1) == 0 ? 1 : -1;
+            for (int column = 0; column < 4; column++) {
+                mPlanes[plane * 4 + column] = m[column * 4 + 3] + sign * m[column * 4 + row];
+            }
+        }
+    }
+
+    /**
+     * Tests a box against the planes of {@code planeMask}, bit i standing for plane i.
+     *
+     * @return {@link #OUTSIDE} if the box is entirely outside one of the planes, otherwise the
+     *         mask of the planes the box straddles: 0 means it is entirely inside them all, and
+     *         its contents don't need testing against them again.
+     */
+    int classify(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+                 int planeMask) {
+        int straddled = 0;
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            if ((planeMask & (1 << plane)) == 0) {
+                continue;
+            }
+            int i = plane * 4;
+            double a = mPlanes[i];
+            double b = mPlanes[i + 1];
+            double c = mPlanes[i + 2];
+            double d = mPlanes[i + 3];
+            // Corner of the box furthest along the plane normal.
+            if (a * (a > 0 ? maxX : minX) + b * (b > 0 ? maxY : minY)
+                    + c * (c > 0 ? maxZ : minZ) + d < 0) {
+                return OUTSIDE;
+            }
+            // Corner of the box furthest against the plane normal.
+            if (a * (a > 0 ? minX : maxX) + b * (b > 0 ? minY : maxY)
+                    + c * (c > 0 ? minZ : maxZ) + d < 0) {
+                straddled |= 1 << plane;
+            }
+        }
+        return straddled;
+    }
+}
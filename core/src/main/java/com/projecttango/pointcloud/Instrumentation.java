@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low overhead latency instrumentation of the depth to display path, keyed by stage.
+ * <p/>
+ * Timing a stage takes a start time from {@link #now()} and hands it back to
+ * {@link #record(int, long)} once the stage is done. While instrumentation is disabled now()
+ * returns 0 without reading the clock and record() ignores it, so the only cost left in the hot
+ * paths is a volatile read. While enabled each stage costs two clock reads and a few atomic
+ * increments, with no locking or allocation.
+ * <p/>
+ * The recorded values are read with {@link #snapshot(Snapshot, boolean)}, or periodically handed
+ * to a {@link Reporter} on a background thread.
+ */
+public final class Instrumentation {
+    /** Whole depth callback, from entry until the frame is submitted to the pipeline. */
+    public static final int STAGE_CALLBACK = 0;
+    /** Copy of the callback point buffer into a pooled frame. */
+    public static final int STAGE_CAPTURE_COPY = 1;
+    /** Update of the latest frame kept for plane fitting. */
+    public static final int STAGE_UPDATE_XYZIJ = 2;
+    /** Filtering and publishing of the frame to the render buffer. */
+    public static final int STAGE_BUFFER_SWAP = 3;
+    /** Statistics over the frame. */
+    public static final int STAGE_STATISTICS = 4;
+    /** Fusion of the frame into the TSDF volume and re-meshing. */
+    public static final int STAGE_FUSION = 5;
+    /** Comparison of the frame with the design model. */
+    public static final int STAGE_DEVIATION = 6;
+    /** Segmentation of the frame into planes, shared by the floor plan and the plane tracking. */
+    public static final int STAGE_PLANE_SEGMENTATION = 7;
+    /** Floor plan update with the frame. */
+    public static final int STAGE_FLOOR_PLAN = 8;
+    /** Update of the tracked planes with the frame. */
+    public static final int STAGE_PLANE_TRACKING = 9;
+    /** Render thread pickup of the latest published point cloud. */
+    public static final int STAGE_RENDER_CONSUME = 10;
+    /** Upload of the point cloud to the GPU. */
+    public static final int STAGE_POINTS_UPLOAD = 11;
+    /** Upload of the fused mesh to the GPU. */
+    public static final int STAGE_MESH_UPLOAD = 12;
+    /** Plane fitting after a tap. */
+    public static final int STAGE_FIT_PLANE = 13;
+    /** From the depth callback until the point cloud has been uploaded for display. */
+    public static final int STAGE_END_TO_END = 14;
+    public static final int STAGE_COUNT = 15;
+
+    /** Depth frames received from the service or a replay. */
+    public static final int COUNTER_CAPTURED_FRAMES = 0;
+    /** Depth frames dropped because no pooled frame was free or a stage queue was full. */
+    public static final int COUNTER_DROPPED_FRAMES = 1;
+    /** Rendered frames that showed the same point cloud as the previous one. */
+    public static final int COUNTER_STALE_FRAMES = 2;
+    /** Rendered frames. */
+    public static final int COUNTER_RENDERED_FRAMES = 3;
+    public static final int COUNTER_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "callback", "captureCopy", "updateXyzIj", "bufferSwap", "statistics", "fusion",
+            "deviation", "planeSegmentation", "floorPlan", "planeTracking", "renderConsume",
+            "pointsUpload", "meshUpload", "fitPlane", "endToEnd"
+    };
+    private static final String[] COUNTER_NAMES = {
+            "captured", "dropped", "stale", "rendered"
+    };
+
+    private static final LatencyHistogram[] sHistograms = new LatencyHistogram[STAGE_COUNT];
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_COUNT);
+    private static volatile boolean sEnabled;
+    private static long sIntervalStartNanos;
+    private static Thread sReporterThread;
+
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Receives snapshots periodically from the reporting thread.
+     */
+    public interface Reporter {
+        void report(Snapshot snapshot);
+    }
+
+    /**
+     * Summary of the recorded values of every stage, plus the counters. Instances are meant to
+     * be reused so that taking a snapshot doesn't allocate.
+     */
+    public static class Snapshot {
+        /** Time the snapshot was taken, System.nanoTime() base. */
+        public long timestampNanos;
+        /** Nanoseconds since the previous reset, or since instrumentation was enabled. */
+        public long intervalNanos;
+        public final long[] count = new long[STAGE_COUNT];
+        public final double[] mean = new double[STAGE_COUNT];
+        public final long[] p50 = new long[STAGE_COUNT];
+        public final long[] p90 = new long[STAGE_COUNT];
+        public final long[] p99 = new long[STAGE_COUNT];
+        public final long[] max = new long[STAGE_COUNT];
+        public final long[] counters = new long[COUNTER_COUNT];
+
+        /**
+         * Appends one line per stage that recorded values, times in milliseconds, then the
+         * counters.
+         */
+        public void format(StringBuilder out) {
+            out.append("interval ").append(intervalNanos / 1000000).append(" ms");
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                out.append(", ").append(COUNTER_NAMES[i]).append(' ').append(counters[i]);
+            }
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (count[i] == 0) {
+                    continue;
+                }
+                out.append('\n').append(STAGE_NAMES[i]).append(": n=").append(count[i]);
+                appendMillis(out.append(" mean="), (long) mean[i]);
+                appendMillis(out.append(" p50="), p50[i]);
+                appendMillis(out.append(" p90="), p90[i]);
+                appendMillis(out.append(" p99="), p99[i]);
+                appendMillis(out.append(" max="), max[i]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            format(builder);
+            return builder.toString();
+        }
+
+        private static void appendMillis(StringBuilder out, long nanos) {
+            // Three decimals without going through String.format.
+            long micros = nanos / 1000;
+            out.append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) {
+                out.append('0');
+            }
+            if (fraction < 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Enables or disables recording. Values recorded so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !sEnabled) {
+            synchronized (Instrumentation.class) {
+                sIntervalStartNanos = System.nanoTime();
+            }
+        }
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns the start time of a stage to pass to {@link #record(int, long)}, or 0 when
+     * instrumentation is disabled.
+     */
+    public static long now() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time elapsed since the given start time for a stage. Does nothing if the start
+     * time is 0, i.e. if instrumentation was disabled when the stage started.
+     */
+    public static void record(int stage, long startNanos) {
+        if (startNanos != 0) {
+            sHistograms[stage].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a latency measured by the caller for a stage, if instrumentation is enabled.
+     */
+    public static void recordValue(int stage, long nanos) {
+        if (sEnabled) {
+            sHistograms[stage].record(nanos);
+        }
+    }
+
+    /**
+     * Increments a counter, if instrumentation is enabled.
+     */
+    public static void increment(int counter) {
+        if (sEnabled) {
+            sCounters.incrementAndGet(counter);
+        }
+    }
+
+    /**
+     * Returns the histogram of a stage for direct inspection.
+     */
+    public static LatencyHistogram getHistogram(int stage) {
+        return sHistograms[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public static String getCounterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    /**
+     * Copies a summary of every stage and the counters into the provided snapshot.
+     *
+     * @param out   Snapshot to fill in.
+     * @param reset Whether to clear the recorded values afterwards so that the next snapshot
+     *              only covers the values recorded from now on.
+     */
+    public static synchronized void snapshot(Snapshot out, boolean reset) {
+        long now = System.nanoTime();
+        out.timestampNanos = now;
+        out.intervalNanos = sIntervalStartNanos == 0 ? 0 : now - sIntervalStartNanos;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = sHistograms[i];
+            out.count[i] = histogram.getCount();
+            out.mean[i] = histogram.getMean();
+            out.p50[i] = histogram.getValueAtPercentile(50);
+            out.p90[i] = histogram.getValueAtPercentile(90);
+            out.p99[i] = histogram.getValueAtPercentile(99);
+            out.max[i] = histogram.getMax();
+            if (reset) {
+                histogram.reset();
+            }
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            out.counters[i] = reset ? sCounters.getAndSet(i, 0) : sCounters.get(i);
+        }
+        if (reset) {
+            sIntervalStartNanos = now;
+        }
+    }
+
+    /**
+     * Starts handing a snapshot of the values recorded in each period to the reporter, on a
+     * daemon thread. Values are reset after every report. Replaces any reporting already
+     * running.
+     */
+    public static synchronized void startReporting(final long periodMillis,
+                                                   final Reporter reporter) {
+        stopReporting();
+        sReporterThread = new Thread("InstrumentationReporter") {
+            @Override
+            public void run() {
+                Snapshot snapshot = new Snapshot();
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(periodMillis);
+                        if (sEnabled) {
+                            snapshot(snapshot, true);
+                            reporter.report(snapshot);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        };
+        sReporterThread.setDaemon(true);
+        sReporterThread.start();
+    }
+
+    /**
+     * Stops the periodic reporting, if running.
+     */
+    public static synchronized void stopReporting() {
+        if (sReporterThread != null) {
+            sReporterThread.interrupt();
+            sReporterThread = null;
+        }
+    }
+}
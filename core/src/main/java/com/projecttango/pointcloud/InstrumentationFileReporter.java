@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Appends instrumentation snapshots to a text file, one block per report. Errors are counted
+ * rather than thrown since they happen on the reporting thread.
+ */
+public class InstrumentationFileReporter implements Instrumentation.Reporter {
+    private final Writer mWriter;
+    private final StringBuilder mBuilder = new StringBuilder();
+    private int mErrorCount;
+
+    public InstrumentationFileReporter(File file) throws IOException {
+        mWriter = new FileWriter(file, true);
+    }
+
+    @Override
+    public synchronized void report(Instrumentation.Snapshot snapshot) {
+        mBuilder.setLength(0);
+        mBuilder.append("t=").append(snapshot.timestampNanos).append(' ');
+        snapshot.format(mBuilder);
+        mBuilder.append("\n\n");
+        try {
+            mWriter.append(mBuilder);
+            mWriter.flush();
+        } catch (IOException e) {
+            mErrorCount++;
+        }
+    }
+
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative precision, in the style of
+ * HdrHistogram.
+ * <p/>
+ * Values are counted in log-linear buckets: every power of two range is split into
+ * {@link #SUB_BUCKET_COUNT} equal buckets, so any value is known to within about 3%. The buckets
+ * are allocated once and recording is a few arithmetic operations plus an atomic increment, so it
+ * can be done from any number of threads without locking or allocating.
+ * <p/>
+ * Values above {@link #MAX_VALUE} are counted as MAX_VALUE.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Highest power of two tracked: 2^40 ns is about 18 minutes.
+    private static final int MAX_EXPONENT = 40;
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT =
+            SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a latency in nanoseconds. Negative values are counted as zero.
+     */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : (nanos > MAX_VALUE ? MAX_VALUE : nanos);
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotal.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Clears all the recorded values. Values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /** Mean of the recorded values in nanoseconds, 0 if there are none. */
+    public double getMean() {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : (double) mTotal.get() / count;
+    }
+
+    /** Largest recorded value in nanoseconds. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall, to the
+     * precision of the buckets, or 0 if there are none.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketMiddle(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketMiddle(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long low = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+        return low + ((1L << shift) >> 1);
+    }
+}
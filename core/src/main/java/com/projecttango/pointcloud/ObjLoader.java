@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Loads the geometry of a Wavefront OBJ file, as exported by most BIM and CAD tools, into a
+ * {@link TriangleMesh}.
+ * <p/>
+ * Only vertex positions ({@code v}) and faces ({@code f}) are read; polygons are split into
+ * triangle fans. Texture coordinates, normals, groups and materials are ignored. Face indices
+ * may be negative (relative to the last vertex) and may carry {@code /vt/vn} suffixes.
+ */
+public final class ObjLoader {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private ObjLoader() {
+    }
+
+    public static TriangleMesh load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+        try {
+            return load(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads an OBJ model. The reader is not closed.
+     *
+     * @throws IOException If the model can't be read or is malformed.
+     */
+    public static TriangleMesh load(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        float[] vertices = new float[INITIAL_CAPACITY * 3];
+        int vertexFloats = 0;
+        int[] indices = new int[INITIAL_CAPACITY * 3];
+        int indexCount = 0;
+        int[] face = new int[16];
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length == 0) {
+                continue;
+            }
+            try {
+                if ("v".equals(tokens[0])) {
+                    if (tokens.length < 4) {
+                        throw new IOException("Vertex with fewer than 3 coordinates");
+                    }
+                    if (vertexFloats + 3 > vertices.length) {
+                        vertices = Arrays.copyOf(vertices, vertices.length * 2);
+                    }
+                    vertices[vertexFloats++] = Float.parseFloat(tokens[1]);
+                    vertices[vertexFloats++] = Float.parseFloat(tokens[2]);
+                    vertices[vertexFloats++] = Float.parseFloat(tokens[3]);
+                } else if ("f".equals(tokens[0])) {
+                    int cornerCount = tokens.length - 1;
+                    if (cornerCount < 3) {
+                        throw new IOException("Face with fewer than 3 vertices");
+                    }
+                    if (cornerCount > face.length) {
+                        face = new int[cornerCount];
+                    }
+                    for (int i = 0; i < cornerCount; i++) {
+                        face[i] = parseVertexIndex(tokens[i + 1], vertexFloats / 3);
+                    }
+                    int triangleCount = cornerCount - 2;
+                    while (indexCount + triangleCount * 3 > indices.length) {
+                        indices = Arrays.copyOf(indices, indices.length * 2);
+                    }
+                    for (int i = 1; i <= triangleCount; i++) {
+                        indices[indexCount++] = face[0];
+                        indices[indexCount++] = face[i];
+                        indices[indexCount++] = face[i + 1];
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed OBJ line " + lineNumber + ": " + line);
+            } catch (IOException e) {
+                throw new IOException(e.getMessage() + " at OBJ line " + lineNumber);
+            }
+        }
+        return new TriangleMesh(Arrays.copyOf(vertices, vertexFloats),
+                Arrays.copyOf(indices, indexCount));
+    }
+
+    /**
+     * Parses the position index of a face corner ("v", "v/vt", "v//vn" or "v/vt/vn") into a
+     * zero based index.
+     */
+    private static int parseVertexIndex(String corner, int vertexCount) throws IOException {
+        int slash = corner.indexOf('/');
+        int index = Integer.parseInt(slash < 0 ? corner : corner.substring(0, slash));
+        int resolved = index < 0 ? vertexCount + index : index - 1;
+        if (index == 0 || resolved < 0 || resolved >= vertexCount) {
+            throw new IOException("Face refers to missing vertex " + index);
+        }
+        return resolved;
+    }
+}
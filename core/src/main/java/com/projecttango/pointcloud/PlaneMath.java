@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Small plane fitting helpers shared by the point cloud processing classes.
+ */
+public final class PlaneMath {
+    private PlaneMath() {
+    }
+
+    /**
+     * Computes the normal of the least squares plane through a set of points given their
+     * (unnormalized) covariance around the centroid, i.e. the eigenvector of the smallest
+     * eigenvalue of the covariance matrix.
+     * <p/>
+     * The normal is oriented to agree with {@code (hintX, hintY, hintZ)}. If the points are
+     * degenerate (collinear or a single point) the hint is returned unchanged.
+     *
+     * @param normal Output array; the unit normal is written to its first three elements.
+     */
+    public static void fitNormal(double xx, double xy, double xz, double yy, double yz, double zz,
+                                 float hintX, float hintY, float hintZ, float[] normal) {
+        // The determinant of the 2x2 minor that leaves out the axis best aligned with the normal
+        // is the largest one; solving with that minor is the best conditioned choice.
+        double detX = yy * zz - yz * yz;
+        double detY = xx * zz - xz * xz;
+        double detZ = xx * yy - xy * xy;
+        double nx;
+        double ny;
+        double nz;
+        if (detX >= detY && detX >= detZ) {
+            nx = detX;
+            ny = xz * yz - xy * zz;
+            nz = xy * yz - xz * yy;
+        } else if (detY >= detZ) {
+            nx = xz * yz - xy * zz;
+            ny = detY;
+            nz = xy * xz - yz * xx;
+        } else {
+            nx = xy * yz - xz * yy;
+            ny = xy * xz - yz * xx;
+            nz = detZ;
+        }
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (!(length > 0)) {
+            normal[0] = hintX;
+            normal[1] = hintY;
+            normal[2] = hintZ;
+            return;
+        }
+        if (nx * hintX + ny * hintY + nz * hintZ < 0) {
+            length = -length;
+        }
+        normal[0] = (float) (nx / length);
+        normal[1] = (float) (ny / length);
+        normal[2] = (float) (nz / length);
+    }
+}
@@ -0,0 +1,737 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pure Java multi-plane segmentation of a point cloud.
+ * <p/>
+ * Planes are extracted one at a time with preemptive RANSAC: a batch of hypotheses is scored on
+ * blocks of randomly ordered points and the worse half is dropped after every block, so most
+ * hypotheses never see more than a small fraction of the cloud. Batches are repeated until the
+ * usual RANSAC bound for the current best inlier ratio is reached. The winning plane is refined
+ * by least squares over its inliers and its inlier set is grown again with the refined model.
+ * Only the largest spatially connected part of that inlier set becomes the plane: inliers are
+ * binned into cubic cells and cells touching each other are joined, so two disjoint surfaces that
+ * happen to be coplanar, such as two tables of the same height, are reported as separate planes.
+ * The other parts stay in the cloud and are found by later searches. The plane is fitted again to
+ * its connected inliers before those points are removed and the next plane is searched for.
+ * <p/>
+ * All working memory is allocated up front, so {@link #segment(FloatBuffer, int)} does not
+ * allocate. Random sampling uses an internal generator seeded in the constructor, which makes the
+ * output fully deterministic for a given seed and input.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public class PlaneSegmenter {
+    private static final int POINT_TO_XYZ = 3;
+    private static final int HYPOTHESES_PER_BATCH = 64;
+    private static final int PREEMPTION_BLOCK_SIZE = 100;
+    private static final int MAX_SAMPLE_ATTEMPTS = 32;
+    private static final int REFINE_ITERATIONS = 2;
+    private static final float MIN_NORMAL_LENGTH = 1e-6f;
+    // Cell coordinates are packed into a long with this many bits each.
+    private static final int CELL_COORDINATE_BITS = 21;
+    private static final long CELL_COORDINATE_MASK = (1L << CELL_COORDINATE_BITS) - 1;
+
+    /**
+     * A plane found by the segmenter, in the same frame as the input points.
+     * The plane is {@code nx * x + ny * y + nz * z + d = 0} with a unit normal.
+     */
+    public static class Plane {
+        public float nx;
+        public float ny;
+        public float nz;
+        public float d;
+        public float centroidX;
+        public float centroidY;
+        public float centroidZ;
+        public int inlierCount;
+
+        /**
+         * Signed distance from the given point to the plane.
+         */
+        public float distance(float x, float y, float z) {
+            return nx * x + ny * y + nz * z + d;
+        }
+
+        /**
+         * Writes the plane as {a, b, c, d} in the layout used by the Tango support library.
+         */
+        public void toPlaneModel(double[] planeModel) {
+            planeModel[0] = nx;
+            planeModel[1] = ny;
+            planeModel[2] = nz;
+            planeModel[3] = d;
+        }
+    }
+
+    private final int mMaxPoints;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    // Plane index assigned to every point, or -1.
+    private final int[] mLabels;
+    // Indices of the points not yet assigned to a plane, shuffled before every plane search.
+    private final int[] mRemaining;
+    private int mRemainingCount;
+    private int mPointCount;
+
+    // Hypotheses of the current batch.
+    private final float[] mHypothesisA = new float[HYPOTHESES_PER_BATCH];
+    private final float[] mHypothesisB = new float[HYPOTHESES_PER_BATCH];
+    private final float[] mHypothesisC = new float[HYPOTHESES_PER_BATCH];
+    private final float[] mHypothesisD = new float[HYPOTHESES_PER_BATCH];
+    private final int[] mHypothesisScore = new int[HYPOTHESES_PER_BATCH];
+    private final int[] mActive = new int[HYPOTHESES_PER_BATCH];
+
+    // Best and refined model of the current plane search.
+    private final float[] mModel = new float[4];
+    private final float[] mRefined = new float[4];
+    private final float[] mCentroid = new float[3];
+
+    // Inliers of the current plane, those of its largest connected part first, and the cell each
+    // of them falls in.
+    private final int[] mInliers;
+    private final int[] mInlierCells;
+    // Open addressing table from packed cell coordinates to cell index + 1, or 0 if empty.
+    private final int[] mCellTable;
+    private final long[] mCellKeys;
+    private final int[] mCellSlots;
+    // Union-find forest over the cells and the number of inliers per cell, then per component.
+    private final int[] mCellParents;
+    private final int[] mCellSizes;
+    private int mCellCount;
+
+    private final Plane[] mPlanePool;
+    private final List<Plane> mPlanes;
+    private final List<Plane> mPlanesView;
+
+    private float mDistanceThreshold = 0.02f;
+    private float mConnectivityDistance = 0.1f;
+    private int mMinInliers = 500;
+    private int mMaxHypotheses = 512;
+    private double mConfidence = 0.99;
+    private long mSeed;
+    private long mRandomState;
+
+    /**
+     * @param maxPoints Maximum number of points a point cloud passed to {@link #segment} can have.
+     * @param maxPlanes Maximum number of planes returned per call.
+     * @param seed      Seed for the random sampling; the same seed always gives the same planes.
+     */
+    public PlaneSegmenter(int maxPoints, int maxPlanes, long seed) {
+        mMaxPoints = maxPoints;
+        mX = new float[maxPoints];
+        mY = new float[maxPoints];
+        mZ = new float[maxPoints];
+        mLabels = new int[maxPoints];
+        mRemaining = new int[maxPoints];
+        mInliers = new int[maxPoints];
+        mInlierCells = new int[maxPoints];
+        int tableSize = Integer.highestOneBit(Math.max(maxPoints, 1)) * 4;
+        mCellTable = new int[tableSize];
+        mCellKeys = new long[maxPoints];
+        mCellSlots = new int[maxPoints];
+        mCellParents = new int[maxPoints];
+        mCellSizes = new int[maxPoints];
+        mPlanePool = new Plane[maxPlanes];
+        for (int i = 0; i < maxPlanes; i++) {
+            mPlanePool[i] = new Plane();
+        }
+        mPlanes = new ArrayList<Plane>(maxPlanes);
+        mPlanesView = Collections.unmodifiableList(mPlanes);
+        mSeed = seed;
+    }
+
+    /**
+     * Maximum distance in meters from a point to a plane for it to count as an inlier.
+     */
+    public void setDistanceThreshold(float distanceThreshold) {
+        mDistanceThreshold = distanceThreshold;
+    }
+
+    /**
+     * Size in meters of the cells inliers are binned into to split a plane into connected parts.
+     * Inliers in neighbouring cells are connected, so gaps narrower than this never split a plane.
+     * Zero or less turns the check off and reports all inliers of a plane as one.
+     */
+    public void setConnectivityDistance(float connectivityDistance) {
+        mConnectivityDistance = connectivityDistance;
+    }
+
+    /**
+     * Minimum number of inliers for a plane to be reported. Segmentation stops at the first plane
+     * below this size.
+     */
+    public void setMinInliers(int minInliers) {
+        mMinInliers = minInliers;
+    }
+
+    /**
+     * Upper bound on the number of hypotheses generated per plane, regardless of confidence.
+     */
+    public void setMaxHypotheses(int maxHypotheses) {
+        mMaxHypotheses = maxHypotheses;
+    }
+
+    /**
+     * Probability of having drawn at least one all-inlier sample at which the search for a plane
+     * terminates early.
+     */
+    public void setConfidence(double confidence) {
+        mConfidence = confidence;
+    }
+
+    /**
+     * Changes the seed the random generator is reset to at the start of every {@link #segment}
+     * call.
+     */
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Finds the dominant planes of the given point cloud, largest first.
+     *
+     * @param xyz        Packed x, y, z point coordinates. Its position is left untouched.
+     * @param pointCount Number of points in {@code xyz}.
+     * @return The planes found. The list and its elements are owned by the segmenter and are only
+     *         valid until the next call.
+     */
+    public List<Plane> segment(FloatBuffer xyz, int pointCount) {
+        mPointCount = Math.min(Math.min(pointCount, mMaxPoints), xyz.limit() / POINT_TO_XYZ);
+        for (int i = 0, j = 0; i < mPointCount; i++, j += POINT_TO_XYZ) {
+            mX[i] = xyz.get(j);
+            mY[i] = xyz.get(j + 1);
+            mZ[i] = xyz.get(j + 2);
+            mLabels[i] = -1;
+            mRemaining[i] = i;
+        }
+        mRemainingCount = mPointCount;
+        mRandomState = mSeed ^ 0x9E3779B97F4A7C15L;
+        if (mRandomState == 0) {
+            mRandomState = 1;
+        }
+
+        mPlanes.clear();
+        while (mPlanes.size() < mPlanePool.length && mRemainingCount >= mMinInliers
+                && mRemainingCount >= 3) {
+            if (!findPlane()) {
+                break;
+            }
+            int inliers = refine();
+            if (inliers >= mMinInliers) {
+                inliers = keepLargestComponent(inliers);
+            }
+            if (inliers < mMinInliers) {
+                break;
+            }
+            Plane plane = mPlanePool[mPlanes.size()];
+            plane.nx = mRefined[0];
+            plane.ny = mRefined[1];
+            plane.nz = mRefined[2];
+            plane.d = mRefined[3];
+            plane.centroidX = mCentroid[0];
+            plane.centroidY = mCentroid[1];
+            plane.centroidZ = mCentroid[2];
+            plane.inlierCount = inliers;
+            removeInliers(inliers, mPlanes.size());
+            mPlanes.add(plane);
+        }
+        return mPlanesView;
+    }
+
+    /**
+     * Index of the plane the given point was assigned to by the last {@link #segment} call, or -1
+     * if it wasn't assigned to any.
+     */
+    public int getLabel(int pointIndex) {
+        return mLabels[pointIndex];
+    }
+
+    /**
+     * The planes found by the last {@link #segment} call, largest first. Same list as the one it
+     * returned.
+     */
+    public List<Plane> getPlanes() {
+        return mPlanesView;
+    }
+
+    /**
+     * Number of points the last {@link #segment} call labelled.
+     */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * Runs batches of preemptive RANSAC over the remaining points and leaves the best plane in
+     * {@link #mModel}.
+     *
+     * @return false if no non-degenerate hypothesis could be sampled.
+     */
+    private boolean findPlane() {
+        shuffleRemaining();
+        int bestInliers = -1;
+        int generated = 0;
+        int required = mMaxHypotheses;
+        while (generated < required) {
+            int batch = sampleHypotheses();
+            if (batch == 0) {
+                break;
+            }
+            generated += HYPOTHESES_PER_BATCH;
+            int winner = preemptiveScore(batch);
+            int inliers = countInliers(mHypothesisA[winner], mHypothesisB[winner],
+                    mHypothesisC[winner], mHypothesisD[winner]);
+            if (inliers > bestInliers) {
+                bestInliers = inliers;
+                mModel[0] = mHypothesisA[winner];
+                mModel[1] = mHypothesisB[winner];
+                mModel[2] = mHypothesisC[winner];
+                mModel[3] = mHypothesisD[winner];
+                required = Math.min(mMaxHypotheses,
+                        requiredHypotheses((double) inliers / mRemainingCount));
+            }
+        }
+        return bestInliers >= 0;
+    }
+
+    /**
+     * Fills the hypothesis arrays with planes through random triples of remaining points.
+     *
+     * @return Number of hypotheses generated.
+     */
+    private int sampleHypotheses() {
+        int count = 0;
+        for (int h = 0; h < HYPOTHESES_PER_BATCH; h++) {
+            for (int attempt = 0; attempt < MAX_SAMPLE_ATTEMPTS; attempt++) {
+                int i0 = mRemaining[nextInt(mRemainingCount)];
+                int i1 = mRemaining[nextInt(mRemainingCount)];
+                int i2 = mRemaining[nextInt(mRemainingCount)];
+                float ux = mX[i1] - mX[i0];
+                float uy = mY[i1] - mY[i0];
+                float uz = mZ[i1] - mZ[i0];
+                float vx = mX[i2] - mX[i0];
+                float vy = mY[i2] - mY[i0];
+                float vz = mZ[i2] - mZ[i0];
+                float nx = uy * vz - uz * vy;
+                float ny = uz * vx - ux * vz;
+                float nz = ux * vy - uy * vx;
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (length < MIN_NORMAL_LENGTH) {
+                    continue;
+                }
+                nx /= length;
+                ny /= length;
+                nz /= length;
+                mHypothesisA[count] = nx;
+                mHypothesisB[count] = ny;
+                mHypothesisC[count] = nz;
+                mHypothesisD[count] = -(nx * mX[i0] + ny * mY[i0] + nz * mZ[i0]);
+                count++;
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scores the hypotheses block by block over the shuffled remaining points, keeping the better
+     * half after every block until a single one is left or all points have been scored.
+     *
+     * @return Index of the winning hypothesis.
+     */
+    private int preemptiveScore(int hypothesisCount) {
+        for (int h = 0; h < hypothesisCount; h++) {
+            mActive[h] = h;
+            mHypothesisScore[h] = 0;
+        }
+        int active = hypothesisCount;
+        int start = 0;
+        while (active > 1 && start < mRemainingCount) {
+            int end = Math.min(start + PREEMPTION_BLOCK_SIZE, mRemainingCount);
+            for (int k = 0; k < active; k++) {
+                int h = mActive[k];
+                float a = mHypothesisA[h];
+                float b = mHypothesisB[h];
+                float c = mHypothesisC[h];
+                float d = mHypothesisD[h];
+                int score = 0;
+                for (int r = start; r < end; r++) {
+                    int i = mRemaining[r];
+                    float distance = a * mX[i] + b * mY[i] + c * mZ[i] + d;
+                    if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                        score++;
+                    }
+                }
+                mHypothesisScore[h] += score;
+            }
+            sortActiveByScore(active);
+            active = Math.max(1, active / 2);
+            start = end;
+        }
+        if (active > 1) {
+            sortActiveByScore(active);
+        }
+        return mActive[0];
+    }
+
+    private void sortActiveByScore(int active) {
+        // Insertion sort: the batch is small and already mostly ordered after the first block.
+        for (int k = 1; k < active; k++) {
+            int h = mActive[k];
+            int score = mHypothesisScore[h];
+            int j = k - 1;
+            while (j >= 0 && mHypothesisScore[mActive[j]] < score) {
+                mActive[j + 1] = mActive[j];
+                j--;
+            }
+            mActive[j + 1] = h;
+        }
+    }
+
+    private int countInliers(float a, float b, float c, float d) {
+        int count = 0;
+        for (int r = 0; r < mRemainingCount; r++) {
+            int i = mRemaining[r];
+            float distance = a * mX[i] + b * mY[i] + c * mZ[i] + d;
+            if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int requiredHypotheses(double inlierRatio) {
+        double allInlierSample = inlierRatio * inlierRatio * inlierRatio;
+        if (allInlierSample >= 1.0) {
+            return 0;
+        }
+        if (allInlierSample <= 0.0) {
+            return Integer.MAX_VALUE;
+        }
+        double required = Math.log(1.0 - mConfidence) / Math.log(1.0 - allInlierSample);
+        return required >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.ceil(required);
+    }
+
+    /**
+     * Least squares refinement of {@link #mModel}: fits a plane to the current inliers, then
+     * re-collects the inliers with the refined plane. Leaves the result in {@link #mRefined} and
+     * {@link #mCentroid}.
+     *
+     * @return The number of inliers of the refined plane.
+     */
+    private int refine() {
+        System.arraycopy(mModel, 0, mRefined, 0, 4);
+        for (int iteration = 0; iteration < REFINE_ITERATIONS; iteration++) {
+            float a = mRefined[0];
+            float b = mRefined[1];
+            float c = mRefined[2];
+            float d = mRefined[3];
+            double sumX = 0;
+            double sumY = 0;
+            double sumZ = 0;
+            int count = 0;
+            for (int r = 0; r < mRemainingCount; r++) {
+                int i = mRemaining[r];
+                float distance = a * mX[i] + b * mY[i] + c * mZ[i] + d;
+                if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                    sumX += mX[i];
+                    sumY += mY[i];
+                    sumZ += mZ[i];
+                    count++;
+                }
+            }
+            if (count < 3) {
+                return count;
+            }
+            double meanX = sumX / count;
+            double meanY = sumY / count;
+            double meanZ = sumZ / count;
+            double xx = 0;
+            double xy = 0;
+            double xz = 0;
+            double yy = 0;
+            double yz = 0;
+            double zz = 0;
+            for (int r = 0; r < mRemainingCount; r++) {
+                int i = mRemaining[r];
+                float distance = a * mX[i] + b * mY[i] + c * mZ[i] + d;
+                if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                    double dx = mX[i] - meanX;
+                    double dy = mY[i] - meanY;
+                    double dz = mZ[i] - meanZ;
+                    xx += dx * dx;
+                    xy += dx * dy;
+                    xz += dx * dz;
+                    yy += dy * dy;
+                    yz += dy * dz;
+                    zz += dz * dz;
+                }
+            }
+            mCentroid[0] = (float) meanX;
+            mCentroid[1] = (float) meanY;
+            mCentroid[2] = (float) meanZ;
+            PlaneMath.fitNormal(xx, xy, xz, yy, yz, zz, a, b, c, mRefined);
+            mRefined[3] = -(mRefined[0] * mCentroid[0] + mRefined[1] * mCentroid[1]
+                    + mRefined[2] * mCentroid[2]);
+        }
+        return countInliers(mRefined[0], mRefined[1], mRefined[2], mRefined[3]);
+    }
+
+    /**
+     * Collects the inliers of {@link #mRefined} and moves those of its largest connected part to
+     * the front of {@link #mInliers}, then fits the plane again to them.
+     *
+     * @param inlierCount Number of inliers of {@link #mRefined}.
+     * @return The number of inliers in the largest connected part.
+     */
+    private int keepLargestComponent(int inlierCount) {
+        float a = mRefined[0];
+        float b = mRefined[1];
+        float c = mRefined[2];
+        float d = mRefined[3];
+        int count = 0;
+        for (int r = 0; r < mRemainingCount; r++) {
+            int i = mRemaining[r];
+            float distance = a * mX[i] + b * mY[i] + c * mZ[i] + d;
+            if (distance <= mDistanceThreshold && distance >= -mDistanceThreshold) {
+                mInliers[count++] = i;
+            }
+        }
+        if (mConnectivityDistance <= 0) {
+            return count;
+        }
+
+        float scale = 1.0f / mConnectivityDistance;
+        mCellCount = 0;
+        for (int k = 0; k < count; k++) {
+            int i = mInliers[k];
+            int cell = findOrAddCell(cellKey((int) Math.floor(mX[i] * scale),
+                    (int) Math.floor(mY[i] * scale), (int) Math.floor(mZ[i] * scale)));
+            mInlierCells[k] = cell;
+            mCellSizes[cell]++;
+        }
+
+        // Joins every cell with its neighbours. Looking at half of the 26 neighbours is enough as
+        // the other half look back at this cell.
+        for (int cell = 0; cell < mCellCount; cell++) {
+            long key = mCellKeys[cell];
+            int x = unpackCellCoordinate(key >>> (2 * CELL_COORDINATE_BITS));
+            int y = unpackCellCoordinate(key >>> CELL_COORDINATE_BITS);
+            int z = unpackCellCoordinate(key);
+            for (int dx = 0; dx <= 1; dx++) {
+                for (int dy = dx == 0 ? 0 : -1; dy <= 1; dy++) {
+                    for (int dz = dx == 0 && dy == 0 ? 1 : -1; dz <= 1; dz++) {
+                        int neighbour = findCell(cellKey(x + dx, y + dy, z + dz));
+                        if (neighbour >= 0) {
+                            union(cell, neighbour);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Sizes move from the cells to the roots of their components.
+        int largest = -1;
+        for (int cell = 0; cell < mCellCount; cell++) {
+            int root = findRoot(cell);
+            if (root != cell) {
+                mCellSizes[root] += mCellSizes[cell];
+                mCellSizes[cell] = 0;
+            }
+        }
+        for (int cell = 0; cell < mCellCount; cell++) {
+            if (largest < 0 || mCellSizes[cell] > mCellSizes[largest]) {
+                largest = cell;
+            }
+        }
+
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            if (findRoot(mInlierCells[k]) == largest) {
+                int i = mInliers[k];
+                mInliers[k] = mInliers[kept];
+                mInliers[kept++] = i;
+            }
+        }
+        clearCells();
+        if (kept < count && kept >= 3) {
+            fitInliers(kept);
+        }
+        return kept;
+    }
+
+    /**
+     * Least squares fit of {@link #mRefined} and {@link #mCentroid} to the first inliers.
+     */
+    private void fitInliers(int count) {
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        for (int k = 0; k < count; k++) {
+            int i = mInliers[k];
+            sumX += mX[i];
+            sumY += mY[i];
+            sumZ += mZ[i];
+        }
+        double meanX = sumX / count;
+        double meanY = sumY / count;
+        double meanZ = sumZ / count;
+        double xx = 0;
+        double xy = 0;
+        double xz = 0;
+        double yy = 0;
+        double yz = 0;
+        double zz = 0;
+        for (int k = 0; k < count; k++) {
+            int i = mInliers[k];
+            double dx = mX[i] - meanX;
+            double dy = mY[i] - meanY;
+            double dz = mZ[i] - meanZ;
+            xx += dx * dx;
+            xy += dx * dy;
+            xz += dx * dz;
+            yy += dy * dy;
+            yz += dy * dz;
+            zz += dz * dz;
+        }
+        mCentroid[0] = (float) meanX;
+        mCentroid[1] = (float) meanY;
+        mCentroid[2] = (float) meanZ;
+        PlaneMath.fitNormal(xx, xy, xz, yy, yz, zz, mRefined[0], mRefined[1], mRefined[2],
+                mRefined);
+        mRefined[3] = -(mRefined[0] * mCentroid[0] + mRefined[1] * mCentroid[1]
+                + mRefined[2] * mCentroid[2]);
+    }
+
+    private static long cellKey(int x, int y, int z) {
+        return ((x & CELL_COORDINATE_MASK) << (2 * CELL_COORDINATE_BITS))
+                | ((y & CELL_COORDINATE_MASK) << CELL_COORDINATE_BITS)
+                | (z & CELL_COORDINATE_MASK);
+    }
+
+    private static int unpackCellCoordinate(long bits) {
+        // Sign extends the lowest CELL_COORDINATE_BITS bits.
+        return (int) ((bits & CELL_COORDINATE_MASK) << (64 - CELL_COORDINATE_BITS)
+                >> (64 - CELL_COORDINATE_BITS));
+    }
+
+    private int cellSlot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (mCellTable.length - 1);
+    }
+
+    /**
+     * Index of the cell with the given key, or -1 if no inlier falls in it.
+     */
+    private int findCell(long key) {
+        int mask = mCellTable.length - 1;
+        for (int slot = cellSlot(key); mCellTable[slot] != 0; slot = (slot + 1) & mask) {
+            int cell = mCellTable[slot] - 1;
+            if (mCellKeys[cell] == key) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    private int findOrAddCell(long key) {
+        int mask = mCellTable.length - 1;
+        int slot = cellSlot(key);
+        for (; mCellTable[slot] != 0; slot = (slot + 1) & mask) {
+            int cell = mCellTable[slot] - 1;
+            if (mCellKeys[cell] == key) {
+                return cell;
+            }
+        }
+        int cell = mCellCount++;
+        mCellTable[slot] = cell + 1;
+        mCellKeys[cell] = key;
+        mCellSlots[cell] = slot;
+        mCellParents[cell] = cell;
+        mCellSizes[cell] = 0;
+        return cell;
+    }
+
+    private void clearCells() {
+        for (int cell = 0; cell < mCellCount; cell++) {
+            mCellTable[mCellSlots[cell]] = 0;
+        }
+        mCellCount = 0;
+    }
+
+    private int findRoot(int cell) {
+        while (mCellParents[cell] != cell) {
+            // Path halving.
+            mCellParents[cell] = mCellParents[mCellParents[cell]];
+            cell = mCellParents[cell];
+        }
+        return cell;
+    }
+
+    private void union(int first, int second) {
+        int firstRoot = findRoot(first);
+        int secondRoot = findRoot(second);
+        if (firstRoot != secondRoot) {
+            mCellParents[secondRoot] = firstRoot;
+        }
+    }
+
+    /**
+     * Labels the first inliers and compacts them out of the remaining points.
+     */
+    private void removeInliers(int count, int label) {
+        for (int k = 0; k < count; k++) {
+            mLabels[mInliers[k]] = label;
+        }
+        int kept = 0;
+        for (int r = 0; r < mRemainingCount; r++) {
+            int i = mRemaining[r];
+            if (mLabels[i] < 0) {
+                mRemaining[kept++] = i;
+            }
+        }
+        mRemainingCount = kept;
+    }
+
+    private void shuffleRemaining() {
+        for (int r = mRemainingCount - 1; r > 0; r--) {
+            int s = nextInt(r + 1);
+            int tmp = mRemaining[r];
+            mRemaining[r] = mRemaining[s];
+            mRemaining[s] = tmp;
+        }
+    }
+
+    /**
+     * Uniform integer in [0, bound) from a xorshift64* generator.
+     */
+    private int nextInt(int bound) {
+        long x = mRandomState;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        mRandomState = x;
+        long bits = (x * 0x2545F4914F6CDD1DL) >>> 32;
+        return (int) ((bits * bound) >>> 32);
+    }
+}
@@ -0,0 +1,906 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent planes refined over time from the depth frames, rather than fitted from scratch on
+ * every frame.
+ * <p/>
+ * The planes a {@link PlaneSegmenter} found in every frame are taken to the world frame, and each
+ * is associated with a tracked plane through a spatial index: a hash grid mapping cells to the
+ * plane whose inliers occupy them. The inliers of a frame plane vote for the tracked planes of
+ * their cells, so association costs a lookup per point however many planes are tracked. The
+ * winning plane, if it faces the same way and lies close enough, adds the inliers to its running
+ * moments (point count, sums and sums of products, relative to an origin of its own) and its least
+ * squares normal is refitted from them. Its convex hull is grown with the outermost inliers of
+ * every row of the frame plane. Frame planes matching no tracked plane start new ones; tracked
+ * planes a frame plane matches at once are merged, the absorbed one becoming an alias of the other.
+ * Taking the segmentation from the caller lets other consumers of the frame planes share it.
+ * <p/>
+ * {@link #update} must only be called from a single thread; planes can be read and snapped to
+ * from any thread. The update works on state of its own and only takes the lock at the end, to
+ * publish a copy of the planes, so readers never wait for the per point work.
+ */
+public class PlaneTracker {
+    /** Maximum number of vertices of the hull of a tracked plane. */
+    public static final int MAX_HULL_VERTICES = 32;
+
+    private static final int POINT_TO_XYZ = 3;
+    // Planes of a frame beyond this many are ignored.
+    private static final int MAX_PLANES_PER_FRAME = 8;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    // Tracked planes a frame plane can vote for.
+    private static final int MAX_CANDIDATES = 4;
+    // Frame planes are associated with tracked planes within 15 degrees and 8cm, allowing for
+    // the depth noise of far walls.
+    private static final float MIN_ASSOCIATION_COSINE = 0.966f;
+    private static final float MAX_ASSOCIATION_DISTANCE = 0.08f;
+    // A second matching tracked plane with this fraction of the inliers as votes is merged.
+    private static final float MIN_MERGE_VOTES = 0.2f;
+    // Point count, x, y, z, xx, xy, xz, yy, yz, zz.
+    private static final int MOMENTS = 10;
+    private static final int HULL_ROWS = 32;
+    private static final int MAX_HULL_CANDIDATES = MAX_HULL_VERTICES * 2 + HULL_ROWS * 2;
+    // Snapping only uses planes seen in a few frames, within 20 degrees and 5cm.
+    private static final int MIN_SNAP_FRAMES = 3;
+    private static final float MIN_SNAP_COSINE = 0.94f;
+    private static final float MAX_SNAP_DISTANCE = 0.05f;
+
+    /** A tracked plane, as copied by {@link #getPlane}. */
+    public static class TrackedPlane {
+        public int id;
+        /** Unit normal, facing the side the plane was first seen from. */
+        public final float[] normal = new float[3];
+        /** Offset d of the plane {@code n . p + d = 0}. */
+        public float offset;
+        public final float[] centroid = new float[3];
+        public long pointCount;
+        public int frameCount;
+        /** Vertices x, y, z of the convex hull, counterclockwise seen from the normal side. */
+        public final float[] hull = new float[MAX_HULL_VERTICES * 3];
+        public int hullVertexCount;
+    }
+
+    private final int mMaxPoints;
+    private final int mMaxPlanes;
+    private final float mCellSize;
+    private final float mInverseCellSize;
+    // Labeled points of the current frame in world frame.
+    private final float[] mWorldX;
+    private final float[] mWorldY;
+    private final float[] mWorldZ;
+
+    // Spatial index: cell keys and the plane owning them.
+    private final long[] mCellKeys;
+    private final int[] mCellPlanes;
+    private final boolean[] mCellUsed;
+    private final int mTableMask;
+    private final int mTableShift;
+    private final int mMaxCells;
+    private int mCellCount;
+
+    // Tracked planes, only touched by the update. A plane merged into another one keeps its slot
+    // as an alias.
+    private int mPlaneCount;
+    private int mLivePlaneCount;
+    private final int[] mAlias;
+    private final double[] mMoments;
+    private final float[] mOrigins;
+    private final float[] mNormals;
+    private final float[] mOffsets;
+    private final float[] mCentroids;
+    private final int[] mFrameCounts;
+    private final float[] mHulls;
+    private final int[] mHullCounts;
+
+    // Copy of the tracked planes published by every update for the readers, guarded by the lock.
+    private final Object mLock = new Object();
+    private int mPublishedPlaneCount;
+    private int mPublishedLivePlaneCount;
+    private final int[] mPublishedAlias;
+    private final float[] mPublishedNormals;
+    private final float[] mPublishedOffsets;
+    private final float[] mPublishedCentroids;
+    private final long[] mPublishedPointCounts;
+    private final int[] mPublishedFrameCounts;
+    private final float[] mPublishedHulls;
+    private final int[] mPublishedHullCounts;
+
+    // Planes of the current frame.
+    private final float[] mFrameNormals = new float[MAX_PLANES_PER_FRAME * 3];
+    private final float[] mFrameCenters = new float[MAX_PLANES_PER_FRAME * 3];
+    private final double[] mFrameMoments = new double[MAX_PLANES_PER_FRAME * MOMENTS];
+    private final float[] mFrameBounds = new float[MAX_PLANES_PER_FRAME * 6];
+    private final int[] mCandidates = new int[MAX_PLANES_PER_FRAME * MAX_CANDIDATES];
+    private final int[] mVotes = new int[MAX_PLANES_PER_FRAME * MAX_CANDIDATES];
+    private final int[] mCandidateCounts = new int[MAX_PLANES_PER_FRAME];
+    private final int[] mTargets = new int[MAX_PLANES_PER_FRAME];
+    // Outermost inliers of every row of every frame plane: u and v at the minimum and maximum u.
+    private final float[] mRowMin = new float[MAX_PLANES_PER_FRAME * HULL_ROWS * 2];
+    private final float[] mRowMax = new float[MAX_PLANES_PER_FRAME * HULL_ROWS * 2];
+    private final float[] mRowStart = new float[MAX_PLANES_PER_FRAME];
+    private final float[] mRowScale = new float[MAX_PLANES_PER_FRAME];
+    // Basis u, v of the tracked plane every frame plane was added to.
+    private final float[] mFrameBases = new float[MAX_PLANES_PER_FRAME * 6];
+
+    // Scratch for the hull updates.
+    private final float[] mBasis = new float[6];
+    private final float[] mHullU = new float[MAX_HULL_CANDIDATES];
+    private final float[] mHullV = new float[MAX_HULL_CANDIDATES];
+    private final int[] mHullOrder = new int[MAX_HULL_CANDIDATES];
+    private final int[] mHullChain = new int[MAX_HULL_CANDIDATES + 1];
+    private final float[] mNormal = new float[3];
+
+    /**
+     * @param maxPoints Maximum number of points of a depth frame.
+     * @param maxPlanes Maximum number of planes tracked over the session, merged ones included.
+     *                  Frame planes matching none are dropped once that many were created.
+     * @param maxCells  Maximum number of cells of the spatial index. Inliers in new cells aren't
+     *                  indexed once that many are used.
+     * @param cellSize  Edge length of the cells of the spatial index in meters.
+     */
+    public PlaneTracker(int maxPoints, int maxPlanes, int maxCells, float cellSize) {
+        mMaxPoints = maxPoints;
+        mMaxPlanes = maxPlanes;
+        mCellSize = cellSize;
+        mInverseCellSize = 1 / cellSize;
+        mWorldX = new float[maxPoints];
+        mWorldY = new float[maxPoints];
+        mWorldZ = new float[maxPoints];
+
+        // Keep the load factor at or below one half.
+        int tableSize = Integer.highestOneBit(Math.max(2, maxCells) * 2 - 1) << 1;
+        mTableMask = tableSize - 1;
+        mTableShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        mCellKeys = new long[tableSize];
+        mCellPlanes = new int[tableSize];
+        mCellUsed = new boolean[tableSize];
+        mMaxCells = maxCells;
+
+        mAlias = new int[maxPlanes];
+        mMoments = new double[maxPlanes * MOMENTS];
+        mOrigins = new float[maxPlanes * 3];
+        mNormals = new float[maxPlanes * 3];
+        mOffsets = new float[maxPlanes];
+        mCentroids = new float[maxPlanes * 3];
+        mFrameCounts = new int[maxPlanes];
+        mHulls = new float[maxPlanes * MAX_HULL_VERTICES * 3];
+        mHullCounts = new int[maxPlanes];
+
+        mPublishedAlias = new int[maxPlanes];
+        mPublishedNormals = new float[maxPlanes * 3];
+        mPublishedOffsets = new float[maxPlanes];
+        mPublishedCentroids = new float[maxPlanes * 3];
+        mPublishedPointCounts = new long[maxPlanes];
+        mPublishedFrameCounts = new int[maxPlanes];
+        mPublishedHulls = new float[maxPlanes * MAX_HULL_VERTICES * 3];
+        mPublishedHullCounts = new int[maxPlanes];
+    }
+
+    /**
+     * Updates the tracked planes with a segmented depth frame.
+     *
+     * @param xyz         Packed x, y, z points in depth camera frame. Its position is untouched.
+     * @param segmenter   Segmenter whose last {@link PlaneSegmenter#segment} call was given
+     *                    {@code xyz}. Only its planes and labels are read.
+     * @param translation Position of the depth camera in the world frame.
+     * @param rotation    Orientation {x, y, z, w} of the depth camera in the world frame.
+     */
+    public void update(FloatBuffer xyz, PlaneSegmenter segmenter, double[] translation,
+                       double[] rotation) {
+        int count = Math.min(Math.min(segmenter.getPointCount(), mMaxPoints),
+                xyz.limit() / POINT_TO_XYZ);
+        List<PlaneSegmenter.Plane> planes = segmenter.getPlanes();
+        int planeCount = Math.min(planes.size(), MAX_PLANES_PER_FRAME);
+        if (planeCount == 0) {
+            return;
+        }
+        double qx = rotation[0];
+        double qy = rotation[1];
+        double qz = rotation[2];
+        double qw = rotation[3];
+        float r00 = (float) (1 - 2 * (qy * qy + qz * qz));
+        float r01 = (float) (2 * (qx * qy - qz * qw));
+        float r02 = (float) (2 * (qx * qz + qy * qw));
+        float r10 = (float) (2 * (qx * qy + qz * qw));
+        float r11 = (float) (1 - 2 * (qx * qx + qz * qz));
+        float r12 = (float) (2 * (qy * qz - qx * qw));
+        float r20 = (float) (2 * (qx * qz - qy * qw));
+        float r21 = (float) (2 * (qy * qz + qx * qw));
+        float r22 = (float) (1 - 2 * (qx * qx + qy * qy));
+        float tx = (float) translation[0];
+        float ty = (float) translation[1];
+        float tz = (float) translation[2];
+        for (int p = 0; p < planeCount; p++) {
+            PlaneSegmenter.Plane plane = planes.get(p);
+            // Orient the normal towards the camera, at the origin of the depth frame.
+            float sign = plane.d < 0 ? -1 : 1;
+            mFrameNormals[p * 3] = sign * (r00 * plane.nx + r01 * plane.ny + r02 * plane.nz);
+            mFrameNormals[p * 3 + 1] = sign * (r10 * plane.nx + r11 * plane.ny + r12 * plane.nz);
+            mFrameNormals[p * 3 + 2] = sign * (r20 * plane.nx + r21 * plane.ny + r22 * plane.nz);
+            mFrameCenters[p * 3] = r00 * plane.centroidX + r01 * plane.centroidY
+                    + r02 * plane.centroidZ + tx;
+            mFrameCenters[p * 3 + 1] = r10 * plane.centroidX + r11 * plane.centroidY
+                    + r12 * plane.centroidZ + ty;
+            mFrameCenters[p * 3 + 2] = r20 * plane.centroidX + r21 * plane.centroidY
+                    + r22 * plane.centroidZ + tz;
+            Arrays.fill(mFrameMoments, p * MOMENTS, (p + 1) * MOMENTS, 0);
+            resetBounds(mFrameBounds, p * 6);
+            mCandidateCounts[p] = 0;
+        }
+
+        // Transform the inliers, accumulate their moments and collect the votes.
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            int p = segmenter.getLabel(i);
+            if (p < 0 || p >= planeCount) {
+                continue;
+            }
+            float x = xyz.get(j);
+            float y = xyz.get(j + 1);
+            float z = xyz.get(j + 2);
+            float wx = r00 * x + r01 * y + r02 * z + tx;
+            float wy = r10 * x + r11 * y + r12 * z + ty;
+            float wz = r20 * x + r21 * y + r22 * z + tz;
+            mWorldX[i] = wx;
+            mWorldY[i] = wy;
+            mWorldZ[i] = wz;
+            addMoments(mFrameMoments, p * MOMENTS, wx - mFrameCenters[p * 3],
+                    wy - mFrameCenters[p * 3 + 1], wz - mFrameCenters[p * 3 + 2]);
+            growBounds(mFrameBounds, p * 6, wx, wy, wz);
+            int cell = findCell(wx, wy, wz);
+            if (cell >= 0) {
+                vote(p, resolve(mCellPlanes[cell]));
+            }
+        }
+
+        for (int p = 0; p < planeCount; p++) {
+            mTargets[p] = associate(p, planes.get(p).inlierCount);
+        }
+
+        // Outermost inliers of every row, in the basis of the plane they were added to, and
+        // index the cells of the inliers.
+        for (int p = 0; p < planeCount; p++) {
+            if (mTargets[p] >= 0) {
+                // The plane may have been merged into another by a later frame plane.
+                mTargets[p] = resolve(mTargets[p]);
+                startRows(p, mTargets[p]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int p = segmenter.getLabel(i);
+            if (p < 0 || p >= planeCount || mTargets[p] < 0) {
+                continue;
+            }
+            int target = mTargets[p];
+            float x = mWorldX[i];
+            float y = mWorldY[i];
+            float z = mWorldZ[i];
+            addToRow(p, x, y, z);
+            indexCell(x, y, z, target);
+        }
+        for (int p = 0; p < planeCount; p++) {
+            if (mTargets[p] >= 0) {
+                updateHull(mTargets[p], p);
+            }
+        }
+        publish();
+    }
+
+    /** Number of tracked planes, merged ones excluded. */
+    public int getPlaneCount() {
+        synchronized (mLock) {
+            return mPublishedLivePlaneCount;
+        }
+    }
+
+    /**
+     * Writes the ids of the tracked planes, merged ones excluded, into {@code ids}.
+     *
+     * @return The number of planes, which may exceed the length of {@code ids}.
+     */
+    public int getPlaneIds(int[] ids) {
+        synchronized (mLock) {
+            int count = 0;
+            for (int plane = 0; plane < mPublishedPlaneCount; plane++) {
+                if (mPublishedAlias[plane] == plane) {
+                    if (count < ids.length) {
+                        ids[count] = plane;
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Copies a tracked plane. The id of a plane merged into another one gives that other one.
+     */
+    public void getPlane(int id, TrackedPlane out) {
+        synchronized (mLock) {
+            int plane = id;
+            while (mPublishedAlias[plane] != plane) {
+                plane = mPublishedAlias[plane];
+            }
+            out.id = plane;
+            System.arraycopy(mPublishedNormals, plane * 3, out.normal, 0, 3);
+            out.offset = mPublishedOffsets[plane];
+            System.arraycopy(mPublishedCentroids, plane * 3, out.centroid, 0, 3);
+            out.pointCount = mPublishedPointCounts[plane];
+            out.frameCount = mPublishedFrameCounts[plane];
+            out.hullVertexCount = mPublishedHullCounts[plane];
+            System.arraycopy(mPublishedHulls, plane * MAX_HULL_VERTICES * 3, out.hull, 0,
+                    mPublishedHullCounts[plane] * 3);
+        }
+    }
+
+    /**
+     * Finds the stable tracked plane a single frame plane measurement most likely belongs to: one
+     * seen in a few frames, with a similar normal, close to the point and whose hull contains it
+     * give or take that distance. The measured normal may face either way.
+     *
+     * @param out Receives the point projected on the tracked plane, then its normal flipped to
+     *            face the same way as the measured one: x, y, z, nx, ny, nz.
+     * @return The id of the plane, or -1 if none was found, in which case {@code out} is left
+     *         untouched.
+     */
+    public int snap(float x, float y, float z, float nx, float ny, float nz, float[] out) {
+        synchronized (mLock) {
+            int best = -1;
+            float bestDistance = MAX_SNAP_DISTANCE;
+            float[] normals = mPublishedNormals;
+            for (int plane = 0; plane < mPublishedPlaneCount; plane++) {
+                if (mPublishedAlias[plane] != plane
+                        || mPublishedFrameCounts[plane] < MIN_SNAP_FRAMES) {
+                    continue;
+                }
+                float cosine = nx * normals[plane * 3] + ny * normals[plane * 3 + 1]
+                        + nz * normals[plane * 3 + 2];
+                float distance = Math.abs(publishedDistance(plane, x, y, z));
+                if (Math.abs(cosine) >= MIN_SNAP_COSINE && distance <= bestDistance
+                        && inPublishedHull(plane, x, y, z, MAX_SNAP_DISTANCE)) {
+                    best = plane;
+                    bestDistance = distance;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            float distance = publishedDistance(best, x, y, z);
+            float sign = nx * normals[best * 3] + ny * normals[best * 3 + 1]
+                    + nz * normals[best * 3 + 2] < 0 ? -1 : 1;
+            for (int axis = 0; axis < 3; axis++) {
+                out[axis] = (axis == 0 ? x : (axis == 1 ? y : z))
+                        - distance * normals[best * 3 + axis];
+                out[3 + axis] = sign * normals[best * 3 + axis];
+            }
+            return best;
+        }
+    }
+
+    /** Forgets all the planes. Must be called from the thread calling {@link #update}. */
+    public void reset() {
+        mPlaneCount = 0;
+        mLivePlaneCount = 0;
+        mCellCount = 0;
+        Arrays.fill(mCellUsed, false);
+        publish();
+    }
+
+    /** Copies the tracked planes for the readers. */
+    private void publish() {
+        int planeCount = mPlaneCount;
+        synchronized (mLock) {
+            mPublishedPlaneCount = planeCount;
+            mPublishedLivePlaneCount = mLivePlaneCount;
+            System.arraycopy(mAlias, 0, mPublishedAlias, 0, planeCount);
+            System.arraycopy(mNormals, 0, mPublishedNormals, 0, planeCount * 3);
+            System.arraycopy(mOffsets, 0, mPublishedOffsets, 0, planeCount);
+            System.arraycopy(mCentroids, 0, mPublishedCentroids, 0, planeCount * 3);
+            System.arraycopy(mFrameCounts, 0, mPublishedFrameCounts, 0, planeCount);
+            System.arraycopy(mHullCounts, 0, mPublishedHullCounts, 0, planeCount);
+            System.arraycopy(mHulls, 0, mPublishedHulls, 0,
+                    planeCount * MAX_HULL_VERTICES * 3);
+            for (int plane = 0; plane < planeCount; plane++) {
+                mPublishedPointCounts[plane] = (long) mMoments[plane * MOMENTS];
+            }
+        }
+    }
+
+    private float publishedDistance(int plane, float x, float y, float z) {
+        return mPublishedNormals[plane * 3] * x + mPublishedNormals[plane * 3 + 1] * y
+                + mPublishedNormals[plane * 3 + 2] * z + mPublishedOffsets[plane];
+    }
+
+    /**
+     * Whether a point projects within {@code margin} of the published hull of a plane, which is
+     * counterclockwise seen from the normal side.
+     */
+    private boolean inPublishedHull(int plane, float x, float y, float z, float margin) {
+        int count = mPublishedHullCounts[plane];
+        if (count < 3) {
+            return false;
+        }
+        float nx = mPublishedNormals[plane * 3];
+        float ny = mPublishedNormals[plane * 3 + 1];
+        float nz = mPublishedNormals[plane * 3 + 2];
+        float[] hull = mPublishedHulls;
+        int h = plane * MAX_HULL_VERTICES * 3;
+        for (int i = 0; i < count; i++) {
+            int a = h + i * 3;
+            int b = h + ((i + 1) % count) * 3;
+            float ex = hull[b] - hull[a];
+            float ey = hull[b + 1] - hull[a + 1];
+            float ez = hull[b + 2] - hull[a + 2];
+            float px = x - hull[a];
+            float py = y - hull[a + 1];
+            float pz = z - hull[a + 2];
+            // (edge x (point - vertex)) . normal is the signed distance to the edge line, scaled
+            // by the edge length, positive inside.
+            float side = (ey * pz - ez * py) * nx + (ez * px - ex * pz) * ny
+                    + (ex * py - ey * px) * nz;
+            if (side < -margin * (float) Math.sqrt(ex * ex + ey * ey + ez * ez)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void vote(int p, int plane) {
+        int first = p * MAX_CANDIDATES;
+        int candidates = mCandidateCounts[p];
+        for (int c = first; c < first + candidates; c++) {
+            if (mCandidates[c] == plane) {
+                mVotes[c]++;
+                return;
+            }
+        }
+        if (candidates < MAX_CANDIDATES) {
+            mCandidates[first + candidates] = plane;
+            mVotes[first + candidates] = 1;
+            mCandidateCounts[p]++;
+        }
+    }
+
+    /**
+     * Adds frame plane {@code p} to the matching tracked plane with the most votes, merging the
+     * other well voted matching ones into it, or starts a new tracked plane.
+     *
+     * @return The tracked plane, or -1 if there was no room for a new one.
+     */
+    private int associate(int p, int inlierCount) {
+        float nx = mFrameNormals[p * 3];
+        float ny = mFrameNormals[p * 3 + 1];
+        float nz = mFrameNormals[p * 3 + 2];
+        float cx = mFrameCenters[p * 3];
+        float cy = mFrameCenters[p * 3 + 1];
+        float cz = mFrameCenters[p * 3 + 2];
+        int first = p * MAX_CANDIDATES;
+        int target = -1;
+        int targetVotes = 0;
+        for (int c = first; c < first + mCandidateCounts[p]; c++) {
+            // Planes voted for may have been merged by an earlier frame plane.
+            int plane = resolve(mCandidates[c]);
+            mCandidates[c] = plane;
+            if (matches(plane, nx, ny, nz, cx, cy, cz) && mVotes[c] > targetVotes) {
+                target = plane;
+                targetVotes = mVotes[c];
+            }
+        }
+        // Inliers of earlier frame planes aren't indexed yet; the segmenter may split a plane.
+        for (int q = 0; q < p && target < 0; q++) {
+            if (mTargets[q] >= 0) {
+                int plane = resolve(mTargets[q]);
+                if (matches(plane, nx, ny, nz, cx, cy, cz)) {
+                    target = plane;
+                }
+            }
+        }
+        if (target >= 0) {
+            for (int c = first; c < first + mCandidateCounts[p]; c++) {
+                int plane = resolve(mCandidates[c]);
+                if (plane != target && mVotes[c] >= MIN_MERGE_VOTES * inlierCount
+                        && matches(plane, nx, ny, nz, cx, cy, cz)) {
+                    target = merge(target, plane);
+                }
+            }
+        } else {
+            if (mPlaneCount == mMaxPlanes) {
+                return -1;
+            }
+            target = mPlaneCount++;
+            mLivePlaneCount++;
+            mAlias[target] = target;
+            Arrays.fill(mMoments, target * MOMENTS, (target + 1) * MOMENTS, 0);
+            System.arraycopy(mFrameCenters, p * 3, mOrigins, target * 3, 3);
+            System.arraycopy(mFrameNormals, p * 3, mNormals, target * 3, 3);
+            mFrameCounts[target] = 0;
+            mHullCounts[target] = 0;
+        }
+        addShiftedMoments(mFrameMoments, p * MOMENTS, mFrameCenters, p * 3, target);
+        mFrameCounts[target]++;
+        refit(target);
+        return target;
+    }
+
+    private boolean matches(int plane, float nx, float ny, float nz, float x, float y, float z) {
+        float cosine = nx * mNormals[plane * 3] + ny * mNormals[plane * 3 + 1]
+                + nz * mNormals[plane * 3 + 2];
+        return cosine >= MIN_ASSOCIATION_COSINE
+                && Math.abs(distance(plane, x, y, z)) <= MAX_ASSOCIATION_DISTANCE;
+    }
+
+    private float distance(int plane, float x, float y, float z) {
+        return mNormals[plane * 3] * x + mNormals[plane * 3 + 1] * y + mNormals[plane * 3 + 2] * z
+                + mOffsets[plane];
+    }
+
+    /**
+     * Merges two tracked planes; the one with fewer points becomes an alias of the other.
+     *
+     * @return The plane kept.
+     */
+    private int merge(int a, int b) {
+        int kept = mMoments[a * MOMENTS] >= mMoments[b * MOMENTS] ? a : b;
+        int absorbed = kept == a ? b : a;
+        addShiftedMoments(mMoments, absorbed * MOMENTS, mOrigins, absorbed * 3, kept);
+        mFrameCounts[kept] = Math.max(mFrameCounts[kept], mFrameCounts[absorbed]);
+        refit(kept);
+        // The hull of the union is the hull of both hulls.
+        planeBasis(kept);
+        int candidates = projectHull(kept, 0);
+        candidates = projectHull(absorbed, candidates);
+        buildHull(kept, candidates);
+        mAlias[absorbed] = kept;
+        mLivePlaneCount--;
+        return kept;
+    }
+
+    /**
+     * Follows the aliases of merged planes to the plane they were merged into, shortening the
+     * path for the next lookups.
+     */
+    private int resolve(int plane) {
+        int root = plane;
+        while (mAlias[root] != root) {
+            root = mAlias[root];
+        }
+        while (mAlias[plane] != root) {
+            int next = mAlias[plane];
+            mAlias[plane] = root;
+            plane = next;
+        }
+        return root;
+    }
+
+    /**
+     * Adds moments taken around {@code origins[o]} to a tracked plane, moving them to its own
+     * origin.
+     */
+    private void addShiftedMoments(double[] moments, int m, float[] origins, int o, int plane) {
+        double n = moments[m];
+        double dx = origins[o] - mOrigins[plane * 3];
+        double dy = origins[o + 1] - mOrigins[plane * 3 + 1];
+        double dz = origins[o + 2] - mOrigins[plane * 3 + 2];
+        double sx = moments[m + 1];
+        double sy = moments[m + 2];
+        double sz = moments[m + 3];
+        int t = plane * MOMENTS;
+        // Sum of (p + d)(p + d)^T = sum of p p^T + d sum(p)^T + sum(p) d^T + n d d^T.
+        mMoments[t] += n;
+        mMoments[t + 1] += sx + n * dx;
+        mMoments[t + 2] += sy + n * dy;
+        mMoments[t + 3] += sz + n * dz;
+        mMoments[t + 4] += moments[m + 4] + 2 * dx * sx + n * dx * dx;
+        mMoments[t + 5] += moments[m + 5] + dx * sy + dy * sx + n * dx * dy;
+        mMoments[t + 6] += moments[m + 6] + dx * sz + dz * sx + n * dx * dz;
+        mMoments[t + 7] += moments[m + 7] + 2 * dy * sy + n * dy * dy;
+        mMoments[t + 8] += moments[m + 8] + dy * sz + dz * sy + n * dy * dz;
+        mMoments[t + 9] += moments[m + 9] + 2 * dz * sz + n * dz * dz;
+    }
+
+    /** Refits the centroid, normal and offset of a tracked plane from its moments. */
+    private void refit(int plane) {
+        int m = plane * MOMENTS;
+        double n = mMoments[m];
+        double mx = mMoments[m + 1] / n;
+        double my = mMoments[m + 2] / n;
+        double mz = mMoments[m + 3] / n;
+        PlaneMath.fitNormal(mMoments[m + 4] - n * mx * mx, mMoments[m + 5] - n * mx * my,
+                mMoments[m + 6] - n * mx * mz, mMoments[m + 7] - n * my * my,
+                mMoments[m + 8] - n * my * mz, mMoments[m + 9] - n * mz * mz,
+                mNormals[plane * 3], mNormals[plane * 3 + 1], mNormals[plane * 3 + 2], mNormal);
+        System.arraycopy(mNormal, 0, mNormals, plane * 3, 3);
+        float cx = (float) (mOrigins[plane * 3] + mx);
+        float cy = (float) (mOrigins[plane * 3 + 1] + my);
+        float cz = (float) (mOrigins[plane * 3 + 2] + mz);
+        mCentroids[plane * 3] = cx;
+        mCentroids[plane * 3 + 1] = cy;
+        mCentroids[plane * 3 + 2] = cz;
+        mOffsets[plane] = -(mNormal[0] * cx + mNormal[1] * cy + mNormal[2] * cz);
+    }
+
+    /**
+     * Computes two unit vectors u and v spanning a tracked plane, u x v along its normal, into
+     * {@link #mBasis}.
+     */
+    private void planeBasis(int plane) {
+        float nx = mNormals[plane * 3];
+        float ny = mNormals[plane * 3 + 1];
+        float nz = mNormals[plane * 3 + 2];
+        // u is perpendicular to the normal and to the axis least aligned with it.
+        float ux;
+        float uy;
+        float uz;
+        if (Math.abs(nx) <= Math.abs(ny) && Math.abs(nx) <= Math.abs(nz)) {
+            ux = 0;
+            uy = nz;
+            uz = -ny;
+        } else if (Math.abs(ny) <= Math.abs(nz)) {
+            ux = -nz;
+            uy = 0;
+            uz = nx;
+        } else {
+            ux = ny;
+            uy = -nx;
+            uz = 0;
+        }
+        float length = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+        ux /= length;
+        uy /= length;
+        uz /= length;
+        mBasis[0] = ux;
+        mBasis[1] = uy;
+        mBasis[2] = uz;
+        mBasis[3] = ny * uz - nz * uy;
+        mBasis[4] = nz * ux - nx * uz;
+        mBasis[5] = nx * uy - ny * ux;
+    }
+
+    /**
+     * Prepares the rows of frame plane {@code p}, spanning the extent of its inliers along v of
+     * the tracked plane.
+     */
+    private void startRows(int p, int plane) {
+        planeBasis(plane);
+        System.arraycopy(mBasis, 0, mFrameBases, p * 6, 6);
+        float minV = Float.POSITIVE_INFINITY;
+        float maxV = Float.NEGATIVE_INFINITY;
+        int b = p * 6;
+        // Extent of the corners of the inlier bounds.
+        for (int corner = 0; corner < 8; corner++) {
+            float x = mFrameBounds[b + ((corner & 1) == 0 ? 0 : 3)];
+            float y = mFrameBounds[b + 1 + ((corner & 2) == 0 ? 0 : 3)];
+            float z = mFrameBounds[b + 2 + ((corner & 4) == 0 ? 0 : 3)];
+            float v = mBasis[3] * x + mBasis[4] * y + mBasis[5] * z;
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        mRowStart[p] = minV;
+        mRowScale[p] = maxV > minV ? HULL_ROWS / (maxV - minV) : 0;
+        int r = p * HULL_ROWS * 2;
+        for (int row = 0; row < HULL_ROWS; row++) {
+            mRowMin[r + row * 2] = Float.POSITIVE_INFINITY;
+            mRowMax[r + row * 2] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private void addToRow(int p, float x, float y, float z) {
+        int b = p * 6;
+        float u = mFrameBases[b] * x + mFrameBases[b + 1] * y + mFrameBases[b + 2] * z;
+        float v = mFrameBases[b + 3] * x + mFrameBases[b + 4] * y + mFrameBases[b + 5] * z;
+        int row = Math.min(HULL_ROWS - 1, (int) ((v - mRowStart[p]) * mRowScale[p]));
+        int r = (p * HULL_ROWS + Math.max(0, row)) * 2;
+        if (u < mRowMin[r]) {
+            mRowMin[r] = u;
+            mRowMin[r + 1] = v;
+        }
+        if (u > mRowMax[r]) {
+            mRowMax[r] = u;
+            mRowMax[r + 1] = v;
+        }
+    }
+
+    /** Grows the hull of a tracked plane with the outermost inliers of frame plane {@code p}. */
+    private void updateHull(int plane, int p) {
+        planeBasis(plane);
+        int candidates = projectHull(plane, 0);
+        int r = p * HULL_ROWS * 2;
+        for (int row = 0; row < HULL_ROWS; row++) {
+            if (mRowMin[r + row * 2] <= mRowMax[r + row * 2]) {
+                mHullU[candidates] = mRowMin[r + row * 2];
+                mHullV[candidates++] = mRowMin[r + row * 2 + 1];
+                mHullU[candidates] = mRowMax[r + row * 2];
+                mHullV[candidates++] = mRowMax[r + row * 2 + 1];
+            }
+        }
+        buildHull(plane, candidates);
+    }
+
+    /**
+     * Adds the hull vertices of a plane, in the basis in {@link #mBasis}, to the hull candidates.
+     *
+     * @return The new number of candidates.
+     */
+    private int projectHull(int plane, int candidates) {
+        int h = plane * MAX_HULL_VERTICES * 3;
+        for (int i = 0; i < mHullCounts[plane]; i++, h += 3) {
+            float x = mHulls[h];
+            float y = mHulls[h + 1];
+            float z = mHulls[h + 2];
+            mHullU[candidates] = mBasis[0] * x + mBasis[1] * y + mBasis[2] * z;
+            mHullV[candidates++] = mBasis[3] * x + mBasis[4] * y + mBasis[5] * z;
+        }
+        return candidates;
+    }
+
+    /**
+     * Replaces the hull of a plane with the convex hull of the candidates (Andrew's monotone
+     * chain), simplified to {@link #MAX_HULL_VERTICES} by dropping the vertices that lose the
+     * least area, and lifted onto the plane.
+     */
+    private void buildHull(int plane, int candidates) {
+        int[] order = mHullOrder;
+        float[] u = mHullU;
+        float[] v = mHullV;
+        // Insertion sort by u then v; there are few candidates.
+        for (int i = 0; i < candidates; i++) {
+            int j = i;
+            while (j > 0 && (u[order[j - 1]] > u[i]
+                    || (u[order[j - 1]] == u[i] && v[order[j - 1]] > v[i]))) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        int[] chain = mHullChain;
+        int size = 0;
+        for (int i = 0; i < candidates; i++) {
+            while (size >= 2 && cross(chain[size - 2], chain[size - 1], order[i]) <= 0) {
+                size--;
+            }
+            chain[size++] = order[i];
+        }
+        for (int i = candidates - 2, lower = size + 1; i >= 0; i--) {
+            while (size >= lower && cross(chain[size - 2], chain[size - 1], order[i]) <= 0) {
+                size--;
+            }
+            chain[size++] = order[i];
+        }
+        // The last vertex repeats the first one.
+        size = Math.max(0, Math.min(size - 1, candidates));
+        while (size > MAX_HULL_VERTICES) {
+            int weakest = 0;
+            float weakestArea = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                float area = cross(chain[(i + size - 1) % size], chain[i], chain[(i + 1) % size]);
+                if (area < weakestArea) {
+                    weakest = i;
+                    weakestArea = area;
+                }
+            }
+            System.arraycopy(chain, weakest + 1, chain, weakest, size - weakest - 1);
+            size--;
+        }
+
+        float cx = mCentroids[plane * 3];
+        float cy = mCentroids[plane * 3 + 1];
+        float cz = mCentroids[plane * 3 + 2];
+        // Coordinates of the centroid, so that the hull is lifted onto the plane through it.
+        float centroidU = mBasis[0] * cx + mBasis[1] * cy + mBasis[2] * cz;
+        float centroidV = mBasis[3] * cx + mBasis[4] * cy + mBasis[5] * cz;
+        int h = plane * MAX_HULL_VERTICES * 3;
+        for (int i = 0; i < size; i++, h += 3) {
+            float du = u[chain[i]] - centroidU;
+            float dv = v[chain[i]] - centroidV;
+            mHulls[h] = cx + mBasis[0] * du + mBasis[3] * dv;
+            mHulls[h + 1] = cy + mBasis[1] * du + mBasis[4] * dv;
+            mHulls[h + 2] = cz + mBasis[2] * du + mBasis[5] * dv;
+        }
+        mHullCounts[plane] = size;
+    }
+
+    /** Twice the signed area of the triangle of three hull candidates, positive if ccw. */
+    private float cross(int a, int b, int c) {
+        return (mHullU[b] - mHullU[a]) * (mHullV[c] - mHullV[a])
+                - (mHullV[b] - mHullV[a]) * (mHullU[c] - mHullU[a]);
+    }
+
+    /**
+     * Indexes the cell of a point for a plane, unless it is owned by a plane with more points.
+     */
+    private void indexCell(float x, float y, float z, int plane) {
+        long key = packKey((int) Math.floor(x * mInverseCellSize),
+                (int) Math.floor(y * mInverseCellSize), (int) Math.floor(z * mInverseCellSize));
+        int slot = hash(key);
+        while (mCellUsed[slot] && mCellKeys[slot] != key) {
+            slot = (slot + 1) & mTableMask;
+        }
+        if (!mCellUsed[slot]) {
+            if (mCellCount == mMaxCells) {
+                return;
+            }
+            mCellUsed[slot] = true;
+            mCellKeys[slot] = key;
+            mCellPlanes[slot] = plane;
+            mCellCount++;
+            return;
+        }
+        int owner = resolve(mCellPlanes[slot]);
+        if (owner != plane && mMoments[owner * MOMENTS] < mMoments[plane * MOMENTS]) {
+            mCellPlanes[slot] = plane;
+        }
+    }
+
+    private int findCell(float x, float y, float z) {
+        return findCell(packKey((int) Math.floor(x * mInverseCellSize),
+                (int) Math.floor(y * mInverseCellSize), (int) Math.floor(z * mInverseCellSize)));
+    }
+
+    /** Returns the slot of an indexed cell, or -1. */
+    private int findCell(long key) {
+        int slot = hash(key);
+        while (mCellUsed[slot]) {
+            if (mCellKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        return -1;
+    }
+
+    private static void addMoments(double[] moments, int m, double x, double y, double z) {
+        moments[m]++;
+        moments[m + 1] += x;
+        moments[m + 2] += y;
+        moments[m + 3] += z;
+        moments[m + 4] += x * x;
+        moments[m + 5] += x * y;
+        moments[m + 6] += x * z;
+        moments[m + 7] += y * y;
+        moments[m + 8] += y * z;
+        moments[m + 9] += z * z;
+    }
+
+    private static void resetBounds(float[] bounds, int b) {
+        bounds[b] = bounds[b + 1] = bounds[b + 2] = Float.POSITIVE_INFINITY;
+        bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBounds(float[] bounds, int b, float x, float y, float z) {
+        bounds[b] = Math.min(bounds[b], x);
+        bounds[b + 1] = Math.min(bounds[b + 1], y);
+        bounds[b + 2] = Math.min(bounds[b + 2], z);
+        bounds[b + 3] = Math.max(bounds[b + 3], x);
+        bounds[b + 4] = Math.max(bounds[b + 4], y);
+        bounds[b + 5] = Math.max(bounds[b + 5], z);
+    }
+
+    private static long packKey(int cx, int cy, int cz) {
+        return ((cx & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((cy & COORDINATE_MASK) << COORDINATE_BITS)
+                | (cz & COORDINATE_MASK);
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mTableShift) & mTableMask;
+    }
+}
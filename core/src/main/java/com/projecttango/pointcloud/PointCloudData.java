@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A class to hold Depth data in a {@link FloatBuffer} and number of points associated with it.
+ */
+public class PointCloudData {
+    public FloatBuffer floatBuffer;
+    public int pointCount;
+    /**
+     * Sequence number of the depth frame held in this buffer, increasing by one for every frame
+     * published. Zero means no frame has been written yet.
+     */
+    public long sequence;
+    /** Time the depth frame was acquired, in seconds, or 0 if unknown. */
+    public double timestamp;
+    /**
+     * Depth frame whose points {@link #floatBuffer} shares, or null if the buffer holds its own
+     * copy.
+     */
+    public DepthFrame frame;
+    /** Capture time of the depth frame, see {@link DepthFrame#captureNanos}. */
+    public long captureNanos;
+}
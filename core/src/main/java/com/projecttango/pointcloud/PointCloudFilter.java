@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Filter turning a point cloud into another one, e.g. to downsample it before rendering.
+ */
+public interface PointCloudFilter {
+    /**
+     * Filters the first {@code pointCount} packed x, y, z points of {@code source} into
+     * {@code destination}. The destination is cleared, filled and flipped so it is ready to be
+     * read; the position of the source is left untouched.
+     *
+     * @return The number of points written to {@code destination}.
+     */
+    int filter(FloatBuffer source, int pointCount, FloatBuffer destination);
+}
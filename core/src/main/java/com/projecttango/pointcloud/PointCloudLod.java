@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * View dependent level of detail for point clouds: selects the points worth drawing for a given
+ * camera.
+ * <p/>
+ * The cloud is partitioned into cubic cells. Cells outside the view frustum or beyond the
+ * maximum distance are dropped whole. The points of the visible cells are subsampled so that
+ * their density on screen stays around one point per {@link #setPointSpacing(float) spacing}
+ * pixels: a cell covering few pixels, i.e. a far one, keeps only every n-th of its points.
+ * <p/>
+ * Cells are kept in a primitive open addressing hash table tagged by generation, like in
+ * {@link VoxelGridFilter}, so {@link #select} never allocates. Instances are not thread safe.
+ */
+public class PointCloudLod {
+    private static final int POINT_TO_XYZ = 3;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    // Cells closer than this are treated as being at this distance when estimating their size
+    // on screen.
+    private static final float MIN_DISTANCE = 0.05f;
+
+    private final int mMaxPoints;
+    private final int mTableMask;
+    private final int mTableShift;
+    private final long[] mKeys;
+    private final int[] mGenerations;
+    private final int[] mCellIndex;
+    private final int[] mPointCell;
+    // Per cell data, in insertion order.
+    private final int[] mCellX;
+    private final int[] mCellY;
+    private final int[] mCellZ;
+    private final int[] mCellCounts;
+    private final int[] mCellStrides;
+    private final int[] mCellSeen;
+    private final Frustum mFrustum = new Frustum();
+    private int mGeneration;
+    private float mCellSize;
+    private float mInverseCellSize;
+    private float mPointSpacing = 2;
+    private float mMaxDistance = Float.POSITIVE_INFINITY;
+    private int mCellCount;
+    private int mVisibleCellCount;
+
+    /**
+     * @param maxPoints Maximum number of points in a point cloud.
+     * @param cellSize  Edge length of the cells in meters.
+     */
+    public PointCloudLod(int maxPoints, float cellSize) {
+        mMaxPoints = maxPoints;
+        // Keep the load factor at or below one half.
+        int tableSize = Integer.highestOneBit(Math.max(2, maxPoints) * 2 - 1) << 1;
+        mTableMask = tableSize - 1;
+        mTableShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        mKeys = new long[tableSize];
+        mGenerations = new int[tableSize];
+        mCellIndex = new int[tableSize];
+        mPointCell = new int[maxPoints];
+        mCellX = new int[maxPoints];
+        mCellY = new int[maxPoints];
+        mCellZ = new int[maxPoints];
+        mCellCounts = new int[maxPoints];
+        mCellStrides = new int[maxPoints];
+        mCellSeen = new int[maxPoints];
+        setCellSize(cellSize);
+    }
+
+    /**
+     * Sets the edge length of the cells in meters.
+     */
+    public void setCellSize(float cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        mCellSize = cellSize;
+        mInverseCellSize = 1.0f / cellSize;
+    }
+
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    /**
+     * Sets the target distance in pixels between neighbouring points on screen. Larger values
+     * keep fewer points.
+     */
+    public void setPointSpacing(float pixels) {
+        if (!(pixels > 0)) {
+            throw new IllegalArgumentException("Point spacing must be positive: " + pixels);
+        }
+        mPointSpacing = pixels;
+    }
+
+    /**
+     * Sets the distance from the camera in meters beyond which cells are dropped. Unlimited by
+     * default.
+     */
+    public void setMaxDistance(float maxDistance) {
+        mMaxDistance = maxDistance;
+    }
+
+    /** Number of occupied cells in the last point cloud selected from. */
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    /** Number of those cells that were at least partly visible. */
+    public int getVisibleCellCount() {
+        return mVisibleCellCount;
+    }
+
+    /**
+     * Writes the points of {@code source} worth drawing from the given camera to
+     * {@code destination}, starting at index 0. The destination is flipped so it is ready to be
+     * read; the position of the source is left untouched.
+     *
+     * @param mvpMatrix         Column major model view projection matrix taking the points to
+     *                          clip space, as used by OpenGL.
+     * @param focalLengthPixels Vertical focal length of the camera in pixels, i.e. the
+     *                          projection matrix element [1][1] times half the viewport height.
+     * @return The number of points written to {@code destination}.
+     */
+    public int select(FloatBuffer source, int pointCount, double[] mvpMatrix,
+                      float focalLengthPixels, FloatBuffer destination) {
+        int count = Math.min(Math.min(pointCount, mMaxPoints), source.limit() / POINT_TO_XYZ);
+        count = Math.min(count, destination.capacity() / POINT_TO_XYZ);
+        int cellCount = assignCells(source, count);
+
+        mFrustum.set(mvpMatrix);
+        float cellSize = mCellSize;
+        float halfDiagonal = cellSize * 0.8660254f;
+        // Cell side in multiples of the point spacing, at one meter.
+        float spacingsPerCell = focalLengthPixels * cellSize / mPointSpacing;
+        int visibleCellCount = 0;
+        for (int cell = 0; cell < cellCount; cell++) {
+            mCellSeen[cell] = 0;
+            float minX = mCellX[cell] * cellSize;
+            float minY = mCellY[cell] * cellSize;
+            float minZ = mCellZ[cell] * cellSize;
+            if (mFrustum.classify(minX, minY, minZ, minX + cellSize, minY + cellSize,
+                    minZ + cellSize, Frustum.ALL_PLANES) == Frustum.OUTSIDE) {
+                mCellStrides[cell] = 0;
+                continue;
+            }
+            float half = cellSize * 0.5f;
+            // Clip space w is the distance along the viewing direction.
+            double distance = mvpMatrix[3] * (minX + half) + mvpMatrix[7] * (minY + half)
+                    + mvpMatrix[11] * (minZ + half) + mvpMatrix[15];
+            if (distance - halfDiagonal > mMaxDistance) {
+                mCellStrides[cell] = 0;
+                continue;
+            }
+            // Points the cell can show at the target spacing, given its size on screen.
+            double side = spacingsPerCell / Math.max(distance, MIN_DISTANCE);
+            double budget = Math.max(1, side * side);
+            mCellStrides[cell] = (int) Math.max(1, Math.ceil(mCellCounts[cell] / budget));
+            visibleCellCount++;
+        }
+        mCellCount = cellCount;
+        mVisibleCellCount = visibleCellCount;
+
+        destination.clear();
+        int selected = 0;
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            int cell = mPointCell[i];
+            int stride = mCellStrides[cell];
+            if (stride == 0 || mCellSeen[cell]++ % stride != 0) {
+                continue;
+            }
+            destination.put(source.get(j));
+            destination.put(source.get(j + 1));
+            destination.put(source.get(j + 2));
+            selected++;
+        }
+        destination.flip();
+        return selected;
+    }
+
+    /**
+     * Finds the cell of every point, counting the points per cell.
+     *
+     * @return The number of occupied cells.
+     */
+    private int assignCells(FloatBuffer source, int count) {
+        int generation = nextGeneration();
+        float inverseCellSize = mInverseCellSize;
+        int cellCount = 0;
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            int cx = (int) Math.floor(source.get(j) * inverseCellSize);
+            int cy = (int) Math.floor(source.get(j + 1) * inverseCellSize);
+            int cz = (int) Math.floor(source.get(j + 2) * inverseCellSize);
+            long key = packKey(cx, cy, cz);
+
+            int slot = hash(key);
+            while (mGenerations[slot] == generation && mKeys[slot] != key) {
+                slot = (slot + 1) & mTableMask;
+            }
+            int cell;
+            if (mGenerations[slot] != generation) {
+                mGenerations[slot] = generation;
+                mKeys[slot] = key;
+                cell = cellCount++;
+                mCellIndex[slot] = cell;
+                mCellX[cell] = cx;
+                mCellY[cell] = cy;
+                mCellZ[cell] = cz;
+                mCellCounts[cell] = 0;
+            } else {
+                cell = mCellIndex[slot];
+            }
+            mCellCounts[cell]++;
+            mPointCell[i] = cell;
+        }
+        return cellCount;
+    }
+
+    private int nextGeneration() {
+        mGeneration++;
+        if (mGeneration == 0) {
+            Arrays.fill(mGenerations, 0);
+            mGeneration = 1;
+        }
+        return mGeneration;
+    }
+
+    private static long packKey(int cx, int cy, int cz) {
+        return ((cx & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((cy & COORDINATE_MASK) << COORDINATE_BITS)
+                | (cz & COORDINATE_MASK);
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mTableShift) & mTableMask;
+    }
+}
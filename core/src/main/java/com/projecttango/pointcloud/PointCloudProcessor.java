@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Platform independent processing of the depth frames: keeps the latest frame for plane fitting,
+ * hands downsampled point clouds over to the renderer, and fuses frames into a TSDF volume and
+ * keeps its mesh up to date.
+ * <p/>
+ * The latest frame is published as a {@link DepthSnapshot} that any number of readers can work
+ * on while newer frames are published, without locking. The other methods document which thread
+ * may call them.
+ */
+public class PointCloudProcessor {
+    /** Maximum number of points of a point cloud. */
+    public static final int MAX_DEPTH_POINTS = 60000;
+    private static final float DEFAULT_VOXEL_SIZE = 0.02f;
+    private static final float TSDF_VOXEL_SIZE = 0.04f;
+    private static final float TSDF_TRUNCATION = 0.12f;
+    private static final int TSDF_MAX_BRICKS = 4096;
+    private static final int MAX_MESH_VERTICES = 393216;
+
+    private final PointCloudTripleBuffer mPointCloudBuffer;
+    private final VoxelGridFilter mVoxelGridFilter;
+    private final TsdfVolume mTsdfVolume;
+    private final TsdfMesher mTsdfMesher;
+    private final DepthSnapshotReference mLatestSnapshot = new DepthSnapshotReference();
+    // Written from any thread, applied on the next point cloud handed to the renderer.
+    private volatile float mVoxelSize = DEFAULT_VOXEL_SIZE;
+
+    public PointCloudProcessor() {
+        // Callback, Shared and Render buffers allocated with maximum number of points a point
+        // cloud can have.
+        mPointCloudBuffer = new PointCloudTripleBuffer(MAX_DEPTH_POINTS);
+        mVoxelGridFilter = new VoxelGridFilter(MAX_DEPTH_POINTS, DEFAULT_VOXEL_SIZE);
+        mTsdfVolume = new TsdfVolume(TSDF_VOXEL_SIZE, TSDF_TRUNCATION, TSDF_MAX_BRICKS,
+                MAX_DEPTH_POINTS);
+        mTsdfMesher = new TsdfMesher(mTsdfVolume, MAX_MESH_VERTICES);
+    }
+
+    /**
+     * Sets the edge length in meters of the voxel grid used to downsample point clouds before
+     * they are handed to the renderer. A size of zero disables downsampling.
+     */
+    public void setVoxelSize(float voxelSize) {
+        mVoxelSize = voxelSize;
+    }
+
+    /**
+     * Keeps a depth frame as the latest one, sharing it rather than copying it. The frame is
+     * retained until it is replaced. Never waits for readers of the previous one.
+     *
+     * @return The version of the snapshot of the frame.
+     */
+    public long updateLatestFrame(DepthFrame frame) {
+        return mLatestSnapshot.publish(frame);
+    }
+
+    /**
+     * Returns a snapshot of the latest frame, or null if there is none yet. The snapshot stays
+     * valid until released with {@link DepthSnapshot#release()}, which the caller must do.
+     */
+    public DepthSnapshot acquireLatestSnapshot() {
+        return mLatestSnapshot.acquire();
+    }
+
+    /**
+     * Fuses a depth frame into the TSDF volume and re-meshes the part of the surface it modified.
+     * Must only be called from a single thread.
+     *
+     * @param frame       The point cloud, in depth camera frame.
+     * @param translation Position {x, y, z} of the depth camera in the world frame.
+     * @param rotation    Orientation {x, y, z, w} of the depth camera in the world frame.
+     */
+    public void integrate(DepthFrame frame, double[] translation, double[] rotation) {
+        mTsdfVolume.integrate(frame.xyz, frame.pointCount, translation, rotation);
+        mTsdfMesher.update();
+    }
+
+    /**
+     * Returns the volume all the point clouds passed to {@link #integrate} are fused into.
+     */
+    public TsdfVolume getTsdfVolume() {
+        return mTsdfVolume;
+    }
+
+    /**
+     * Returns the mesher keeping a triangle mesh of the fused volume up to date.
+     */
+    public TsdfMesher getTsdfMesher() {
+        return mTsdfMesher;
+    }
+
+    /**
+     * Publishes the latest point cloud to the renderer. If a voxel size is set, the point cloud is
+     * downsampled into the callback buffer, otherwise the frame is shared with the renderer
+     * without copying it.
+     * Never blocks; if the renderer hasn't consumed the previously published cloud it is replaced.
+     * Must only be called from a single thread.
+     * @param frame
+     * @return The sequence number of the published point cloud.
+     */
+    public long updateCallbackBufferAndSwap(DepthFrame frame){
+        float voxelSize = mVoxelSize;
+        if (voxelSize <= 0) {
+            return mPointCloudBuffer.publish(frame);
+        }
+        if (voxelSize != mVoxelGridFilter.getVoxelSize()) {
+            mVoxelGridFilter.setVoxelSize(voxelSize);
+        }
+        PointCloudData callbackPointCloudData = mPointCloudBuffer.getWriteSlot();
+        int filteredCount = mVoxelGridFilter.filter(frame.xyz, frame.pointCount,
+                callbackPointCloudData.floatBuffer);
+        callbackPointCloudData.captureNanos = frame.captureNanos;
+        callbackPointCloudData.timestamp = frame.timestamp;
+        return mPointCloudBuffer.publish(filteredCount);
+    }
+
+    /**
+     * Returns the latest Point Cloud Render buffer. If a new point cloud was published since the
+     * last call it is swapped in, otherwise the same buffer is returned again; callers can compare
+     * {@link PointCloudData#sequence} to detect that they are re-reading a stale frame.
+     * Never blocks. Must only be called from the OpenGL thread.
+     * @return PointClouData which contains a reference to latest PointCloud Floatbuffer and count.
+     */
+    public PointCloudData updateAndGetLatestPointCloudRenderBuffer(){
+        return mPointCloudBuffer.acquireLatest();
+    }
+}
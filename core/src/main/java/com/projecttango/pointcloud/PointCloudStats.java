@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Statistics of a point cloud: point count, mean and variance of the depth, axis aligned bounding
+ * box and a depth histogram.
+ * <p/>
+ * Everything is computed by {@link #compute(FloatBuffer, int)} in a single pass over the live
+ * points. The points are first copied in bulk into a scratch array that is kept between calls, so
+ * the loop runs over a plain array without per element buffer calls or bounds checks and
+ * computing statistics doesn't allocate once the array has grown to the largest cloud.
+ * <p/>
+ * An instance is not thread safe; use {@link #set(PointCloudStats)} to hand a copy to another
+ * thread.
+ */
+public class PointCloudStats {
+    private static final int POINT_TO_XYZ = 3;
+    public static final int DEFAULT_HISTOGRAM_BINS = 32;
+    public static final float DEFAULT_HISTOGRAM_MAX_DEPTH = 8.0f;
+
+    private final int[] mHistogram;
+    private final float mHistogramMaxDepth;
+    private final float mBinsPerMeter;
+    private float[] mScratch = new float[0];
+
+    private int mPointCount;
+    private float mMeanDepth;
+    private float mDepthVariance;
+    private float mMinX;
+    private float mMinY;
+    private float mMinZ;
+    private float mMaxX;
+    private float mMaxY;
+    private float mMaxZ;
+
+    public PointCloudStats() {
+        this(DEFAULT_HISTOGRAM_BINS, DEFAULT_HISTOGRAM_MAX_DEPTH);
+    }
+
+    /**
+     * @param histogramBins     Number of bins of the depth histogram.
+     * @param histogramMaxDepth Depth in meters covered by the histogram, starting at zero. Points
+     *                          further away are counted in the last bin.
+     */
+    public PointCloudStats(int histogramBins, float histogramMaxDepth) {
+        if (histogramBins <= 0 || !(histogramMaxDepth > 0)) {
+            throw new IllegalArgumentException("Invalid depth histogram: " + histogramBins
+                    + " bins up to " + histogramMaxDepth + "m");
+        }
+        mHistogram = new int[histogramBins];
+        mHistogramMaxDepth = histogramMaxDepth;
+        mBinsPerMeter = histogramBins / histogramMaxDepth;
+        reset();
+    }
+
+    /**
+     * Computes the statistics of the first {@code pointCount} points of {@code xyz}. The position
+     * of the buffer is untouched, so other threads can read it meanwhile.
+     */
+    public void compute(FloatBuffer xyz, int pointCount) {
+        int count = Math.min(pointCount, xyz.limit() / POINT_TO_XYZ);
+        reset();
+        if (count <= 0) {
+            return;
+        }
+        int floatCount = count * POINT_TO_XYZ;
+        if (mScratch.length < floatCount) {
+            mScratch = new float[floatCount];
+        }
+        float[] points = mScratch;
+        FloatBuffer view = xyz.duplicate();
+        view.position(0);
+        view.get(points, 0, floatCount);
+
+        int[] histogram = mHistogram;
+        int lastBin = histogram.length - 1;
+        float binsPerMeter = mBinsPerMeter;
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        // Depth sums are shifted by the first depth to keep the variance accurate.
+        float shift = points[2];
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (int j = 0; j < floatCount; j += POINT_TO_XYZ) {
+            float x = points[j];
+            float y = points[j + 1];
+            float z = points[j + 2];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            float shifted = z - shift;
+            sum += shifted;
+            sumOfSquares += shifted * shifted;
+            int bin = (int) (z * binsPerMeter);
+            histogram[bin < 0 ? 0 : (bin > lastBin ? lastBin : bin)]++;
+        }
+
+        double mean = sum / count;
+        mPointCount = count;
+        mMeanDepth = (float) (shift + mean);
+        mDepthVariance = (float) Math.max(0, sumOfSquares / count - mean * mean);
+        mMinX = minX;
+        mMinY = minY;
+        mMinZ = minZ;
+        mMaxX = maxX;
+        mMaxY = maxY;
+        mMaxZ = maxZ;
+    }
+
+    /**
+     * Copies the statistics of another instance, which must have the same histogram layout.
+     */
+    public void set(PointCloudStats other) {
+        if (other.mHistogram.length != mHistogram.length
+                || other.mHistogramMaxDepth != mHistogramMaxDepth) {
+            throw new IllegalArgumentException("Depth histograms don't match");
+        }
+        System.arraycopy(other.mHistogram, 0, mHistogram, 0, mHistogram.length);
+        mPointCount = other.mPointCount;
+        mMeanDepth = other.mMeanDepth;
+        mDepthVariance = other.mDepthVariance;
+        mMinX = other.mMinX;
+        mMinY = other.mMinY;
+        mMinZ = other.mMinZ;
+        mMaxX = other.mMaxX;
+        mMaxY = other.mMaxY;
+        mMaxZ = other.mMaxZ;
+    }
+
+    /**
+     * Clears the statistics, as computed for an empty point cloud.
+     */
+    public void reset() {
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+        mPointCount = 0;
+        mMeanDepth = 0;
+        mDepthVariance = 0;
+        mMinX = 0;
+        mMinY = 0;
+        mMinZ = 0;
+        mMaxX = 0;
+        mMaxY = 0;
+        mMaxZ = 0;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /** Mean depth (z) of the points in meters, zero for an empty cloud. */
+    public float getMeanDepth() {
+        return mMeanDepth;
+    }
+
+    /** Population variance of the depth of the points in square meters. */
+    public float getDepthVariance() {
+        return mDepthVariance;
+    }
+
+    public float getDepthStandardDeviation() {
+        return (float) Math.sqrt(mDepthVariance);
+    }
+
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMinY() {
+        return mMinY;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMaxY() {
+        return mMaxY;
+    }
+
+    public float getMaxZ() {
+        return mMaxZ;
+    }
+
+    public int getHistogramBinCount() {
+        return mHistogram.length;
+    }
+
+    /** Width of a depth histogram bin in meters. */
+    public float getHistogramBinWidth() {
+        return mHistogramMaxDepth / mHistogram.length;
+    }
+
+    /** Number of points whose depth falls in a histogram bin. */
+    public int getHistogramCount(int bin) {
+        return mHistogram[bin];
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer used to hand point clouds from the depth processing thread (single
+ * writer) to the OpenGL thread (single reader).
+ * <p/>
+ * The three {@link PointCloudData} slots are owned by the writer, shared, and owned by the reader
+ * respectively. Which slot plays which role is kept in a single atomic state word together with a
+ * dirty bit that tells the reader there is an unread frame in the shared slot. Neither side ever
+ * blocks: the writer overwrites the shared slot if the reader hasn't picked it up yet, and the
+ * reader keeps its current slot when there is nothing new.
+ * <p/>
+ * Every published frame gets a sequence number so the reader can tell when it is looking at the
+ * same frame it already consumed.
+ * <p/>
+ * A slot either holds a copy of the points in its own buffer, allocated the first time it is
+ * needed, or shares a {@link DepthFrame} without copying it. A shared frame stays retained until
+ * its slot comes back to the writer.
+ */
+public class PointCloudTripleBuffer {
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+
+    // Layout of the state word: two bits per slot index and one dirty bit.
+    private static final int WRITE_SHIFT = 0;
+    private static final int SHARED_SHIFT = 2;
+    private static final int READ_SHIFT = 4;
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY_BIT = 1 << 6;
+
+    private final PointCloudData[] mSlots = new PointCloudData[3];
+    private final FloatBuffer[] mSlotBuffers = new FloatBuffer[3];
+    private final AtomicInteger mState;
+    private final int mMaxPoints;
+    // Only touched by the writer thread.
+    private long mWriteSequence;
+
+    /**
+     * @param maxPoints Maximum number of points a single point cloud can have.
+     */
+    public PointCloudTripleBuffer(int maxPoints) {
+        mMaxPoints = maxPoints;
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new PointCloudData();
+        }
+        mState = new AtomicInteger(
+                (0 << WRITE_SHIFT) | (1 << SHARED_SHIFT) | (2 << READ_SHIFT));
+    }
+
+    /**
+     * Copies the first {@code pointCount} points of {@code source} into the writer slot and
+     * publishes it. Must only be called from a single writer thread.
+     * The position and limit of {@code source} are left as they were found.
+     *
+     * @return The sequence number assigned to the published frame.
+     */
+    public long write(FloatBuffer source, int pointCount) {
+        PointCloudData slot = getWriteSlot();
+        int count = Math.min(Math.min(pointCount, mMaxPoints), source.capacity() / POINT_TO_XYZ);
+
+        int sourcePosition = source.position();
+        int sourceLimit = source.limit();
+        source.limit(count * POINT_TO_XYZ).position(0);
+        slot.floatBuffer.clear();
+        slot.floatBuffer.put(source);
+        slot.floatBuffer.flip();
+        source.limit(sourceLimit).position(sourcePosition);
+
+        return publish(count);
+    }
+
+    /**
+     * Returns the slot currently owned by the writer, so that it can be filled in place (e.g. by a
+     * filter) before calling {@link #publish(int)}. Must only be called from the writer thread.
+     */
+    public PointCloudData getWriteSlot() {
+        int index = getWriteIndex();
+        PointCloudData slot = reclaim(index);
+        if (mSlotBuffers[index] == null) {
+            mSlotBuffers[index] = ByteBuffer
+                    .allocateDirect(mMaxPoints * BYTES_PER_FLOAT * POINT_TO_XYZ)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        slot.floatBuffer = mSlotBuffers[index];
+        slot.captureNanos = 0;
+        slot.timestamp = 0;
+        return slot;
+    }
+
+    /**
+     * Publishes a depth frame to the reader without copying it. The frame is retained until the
+     * buffer no longer needs it and must not be modified meanwhile. Must only be called from the
+     * writer thread.
+     *
+     * @return The sequence number assigned to the published frame.
+     */
+    public long publish(DepthFrame frame) {
+        PointCloudData slot = reclaim(getWriteIndex());
+        slot.frame = frame.retain();
+        slot.floatBuffer = frame.xyz;
+        slot.captureNanos = frame.captureNanos;
+        slot.timestamp = frame.timestamp;
+        return publish(frame.pointCount);
+    }
+
+    /**
+     * Publishes the writer slot holding {@code pointCount} points to the reader. Must only be
+     * called from the writer thread.
+     *
+     * @return The sequence number assigned to the published frame.
+     */
+    public long publish(int pointCount) {
+        PointCloudData slot = mSlots[getWriteIndex()];
+        long sequence = ++mWriteSequence;
+        slot.pointCount = Math.min(pointCount, mMaxPoints);
+        slot.sequence = sequence;
+
+        // Swap the writer and shared slots and flag the shared one as unread. The CAS is the
+        // release point that makes the slot contents visible to the reader.
+        int state;
+        int next;
+        do {
+            state = mState.get();
+            next = swap(state, WRITE_SHIFT, SHARED_SHIFT) | DIRTY_BIT;
+        } while (!mState.compareAndSet(state, next));
+        return sequence;
+    }
+
+    /**
+     * Returns the most recent frame for the reader, swapping in the shared slot if the writer has
+     * published since the last call. The returned slot stays valid until the next call.
+     * Must only be called from a single reader thread; never blocks.
+     */
+    public PointCloudData acquireLatest() {
+        int state = mState.get();
+        while ((state & DIRTY_BIT) != 0) {
+            int next = swap(state, SHARED_SHIFT, READ_SHIFT) & ~DIRTY_BIT;
+            if (mState.compareAndSet(state, next)) {
+                state = next;
+                break;
+            }
+            state = mState.get();
+        }
+        return mSlots[(state >> READ_SHIFT) & INDEX_MASK];
+    }
+
+    private int getWriteIndex() {
+        return (mState.get() >> WRITE_SHIFT) & INDEX_MASK;
+    }
+
+    /**
+     * Releases the frame shared by a slot, if any. The reader is done with the writer slot, so
+     * this is safe from the writer thread.
+     */
+    private PointCloudData reclaim(int index) {
+        PointCloudData slot = mSlots[index];
+        if (slot.frame != null) {
+            slot.frame.release();
+            slot.frame = null;
+            slot.floatBuffer = null;
+        }
+        return slot;
+    }
+
+    private static int swap(int state, int shiftA, int shiftB) {
+        int a = (state >> shiftA) & INDEX_MASK;
+        int b = (state >> shiftB) & INDEX_MASK;
+        state &= ~((INDEX_MASK << shiftA) | (INDEX_MASK << shiftB));
+        return state | (b << shiftA) | (a << shiftB);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed capacity history of timestamped poses (translation plus rotation quaternion) that answers
+ * "pose at time t" by interpolating between the two samples around t: linear interpolation for
+ * the translation and spherical linear interpolation for the rotation.
+ * <p/>
+ * Samples are kept in a ring of primitive slots. One thread appends samples in increasing
+ * timestamp order without locking; any number of threads can query concurrently. A query that
+ * races with the writer overwriting the samples it read is detected and retried, so readers never
+ * see a torn pose.
+ * <p/>
+ * Rotations use the {x, y, z, w} layout of {@code TangoPoseData}.
+ */
+public class PoseHistory implements PoseProvider {
+    private static final int TIMESTAMP = 0;
+    private static final int TRANSLATION = 1;
+    private static final int ROTATION = 4;
+    private static final int STRIDE = 8;
+    // Samples this close to being overwritten are not used, to leave the writer some slack.
+    private static final int GUARD = 2;
+    private static final int MAX_ATTEMPTS = 3;
+    // Below this angle between the quaternions, fall back to linear interpolation.
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private final int mCapacity;
+    private final int mMask;
+    // Doubles stored as raw long bits so that every slot access has volatile semantics.
+    private final AtomicLongArray mSamples;
+    // Number of samples appended so far; sample i lives in slot i & mMask.
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * @param capacity Number of samples kept; rounded up to a power of two.
+     */
+    public PoseHistory(int capacity) {
+        mCapacity = Integer.highestOneBit(Math.max(GUARD + 2, capacity) - 1) << 1;
+        mMask = mCapacity - 1;
+        mSamples = new AtomicLongArray(mCapacity * STRIDE);
+    }
+
+    /**
+     * Appends a sample. Samples must be appended from a single thread, in increasing timestamp
+     * order; samples not newer than the last one are ignored.
+     *
+     * @param translation {x, y, z}
+     * @param rotation    {x, y, z, w}
+     */
+    public void append(double timestamp, double[] translation, double[] rotation) {
+        long head = mHead.get();
+        if (head > 0 && timestamp <= get(head - 1, TIMESTAMP)) {
+            return;
+        }
+        int base = (int) (head & mMask) * STRIDE;
+        mSamples.set(base + TIMESTAMP, Double.doubleToRawLongBits(timestamp));
+        for (int i = 0; i < 3; i++) {
+            mSamples.set(base + TRANSLATION + i, Double.doubleToRawLongBits(translation[i]));
+        }
+        for (int i = 0; i < 4; i++) {
+            mSamples.set(base + ROTATION + i, Double.doubleToRawLongBits(rotation[i]));
+        }
+        mHead.set(head + 1);
+    }
+
+    /**
+     * Removes all samples.
+     */
+    public void clear() {
+        mHead.set(0);
+    }
+
+    /**
+     * Interpolates the pose at the given time.
+     *
+     * @param translation Output {x, y, z}.
+     * @param rotation    Output unit quaternion {x, y, z, w}.
+     * @return false if {@code timestamp} is outside the time window covered by the history, in
+     *         which case the outputs are left untouched.
+     */
+    @Override
+    public boolean getPoseAtTime(double timestamp, double[] translation, double[] rotation) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long head = mHead.get();
+            long oldest = Math.max(0, head - mCapacity + GUARD);
+            if (head == 0 || timestamp < get(oldest, TIMESTAMP)
+                    || timestamp > get(head - 1, TIMESTAMP)) {
+                if (mHead.get() - oldest < mCapacity) {
+                    return false;
+                }
+                continue;
+            }
+            // Find the last sample at or before the timestamp.
+            long low = oldest;
+            long high = head - 1;
+            while (low < high) {
+                long middle = (low + high + 1) >>> 1;
+                if (get(middle, TIMESTAMP) <= timestamp) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            long before = low;
+            long after = Math.min(before + 1, head - 1);
+            double t0 = get(before, TIMESTAMP);
+            double t1 = get(after, TIMESTAMP);
+            double alpha = t1 > t0 ? (timestamp - t0) / (t1 - t0) : 0;
+            double x0 = get(before, TRANSLATION);
+            double y0 = get(before, TRANSLATION + 1);
+            double z0 = get(before, TRANSLATION + 2);
+            double x1 = get(after, TRANSLATION);
+            double y1 = get(after, TRANSLATION + 1);
+            double z1 = get(after, TRANSLATION + 2);
+            double qx0 = get(before, ROTATION);
+            double qy0 = get(before, ROTATION + 1);
+            double qz0 = get(before, ROTATION + 2);
+            double qw0 = get(before, ROTATION + 3);
+            double qx1 = get(after, ROTATION);
+            double qy1 = get(after, ROTATION + 1);
+            double qz1 = get(after, ROTATION + 2);
+            double qw1 = get(after, ROTATION + 3);
+            // The samples read are only valid if the writer hasn't started overwriting them.
+            if (mHead.get() - oldest >= mCapacity) {
+                continue;
+            }
+            translation[0] = x0 + (x1 - x0) * alpha;
+            translation[1] = y0 + (y1 - y0) * alpha;
+            translation[2] = z0 + (z1 - z0) * alpha;
+            slerp(qx0, qy0, qz0, qw0, qx1, qy1, qz1, qw1, alpha, rotation);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the most recent sample.
+     *
+     * @return The timestamp of the sample, or a negative value if the history is empty.
+     */
+    public double getLatestPose(double[] translation, double[] rotation) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long head = mHead.get();
+            if (head == 0) {
+                return -1;
+            }
+            long latest = head - 1;
+            double timestamp = get(latest, TIMESTAMP);
+            for (int i = 0; i < 3; i++) {
+                translation[i] = get(latest, TRANSLATION + i);
+            }
+            for (int i = 0; i < 4; i++) {
+                rotation[i] = get(latest, ROTATION + i);
+            }
+            if (mHead.get() - latest < mCapacity) {
+                return timestamp;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Spherical linear interpolation between two unit quaternions, taking the shortest path.
+     */
+    static void slerp(double x0, double y0, double z0, double w0,
+                      double x1, double y1, double z1, double w1,
+                      double alpha, double[] out) {
+        double cosTheta = x0 * x1 + y0 * y1 + z0 * z1 + w0 * w1;
+        if (cosTheta < 0) {
+            cosTheta = -cosTheta;
+            x1 = -x1;
+            y1 = -y1;
+            z1 = -z1;
+            w1 = -w1;
+        }
+        double scale0;
+        double scale1;
+        if (cosTheta > SLERP_THRESHOLD) {
+            scale0 = 1 - alpha;
+            scale1 = alpha;
+        } else {
+            double theta = Math.acos(cosTheta);
+            double sinTheta = Math.sin(theta);
+            scale0 = Math.sin((1 - alpha) * theta) / sinTheta;
+            scale1 = Math.sin(alpha * theta) / sinTheta;
+        }
+        double x = scale0 * x0 + scale1 * x1;
+        double y = scale0 * y0 + scale1 * y1;
+        double z = scale0 * z0 + scale1 * z1;
+        double w = scale0 * w0 + scale1 * w1;
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        out[0] = x / norm;
+        out[1] = y / norm;
+        out[2] = z / norm;
+        out[3] = w / norm;
+    }
+
+    private double get(long sample, int field) {
+        return Double.longBitsToDouble(mSamples.get((int) (sample & mMask) * STRIDE + field));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Extrapolates the device pose to a time in the near future (typically the time the frame being
+ * rendered will reach the display) from the recent samples of a {@link PoseHistory}, assuming
+ * constant linear and angular velocity.
+ * <p/>
+ * The velocities are estimated over a short window ending at the newest sample, and the rotation
+ * is extrapolated along the same great circle as the slerp between the two ends of the window.
+ * Every prediction is kept until the history covers its target time, at which point it is
+ * compared to the actual pose to measure the prediction error.
+ * <p/>
+ * {@link #predict} must be called from a single thread; the error statistics can be read from any
+ * thread.
+ */
+public class PosePredictor implements PoseProvider {
+    /** No prediction: the newest pose is used as is. */
+    public static final int MODE_NONE = 0;
+    /** Constant linear and angular velocity extrapolation. */
+    public static final int MODE_CONSTANT_VELOCITY = 1;
+
+    private static final double DEFAULT_VELOCITY_WINDOW = 0.05;
+    // Predictions further ahead than this are clamped: the motion model doesn't hold that long.
+    private static final double MAX_PREDICTION = 0.1;
+    private static final int PENDING_CAPACITY = 64;
+
+    private final PoseHistory mHistory;
+    private volatile int mMode = MODE_CONSTANT_VELOCITY;
+    private volatile double mVelocityWindow = DEFAULT_VELOCITY_WINDOW;
+
+    private final double[] mLatestTranslation = new double[3];
+    private final double[] mLatestRotation = new double[4];
+    private final double[] mPastTranslation = new double[3];
+    private final double[] mPastRotation = new double[4];
+
+    // Predictions waiting for the actual pose at their target time.
+    private final double[] mPendingTime = new double[PENDING_CAPACITY];
+    private final double[] mPendingTranslation = new double[PENDING_CAPACITY * 3];
+    private final double[] mPendingRotation = new double[PENDING_CAPACITY * 4];
+    private int mPendingStart;
+    private int mPendingCount;
+
+    private long mErrorSamples;
+    private double mTranslationErrorSum;
+    private double mRotationErrorSum;
+    private volatile double mMeanTranslationError;
+    private volatile double mMeanRotationError;
+    private volatile double mMaxTranslationError;
+    private volatile double mMaxRotationError;
+
+    public PosePredictor(PoseHistory history) {
+        mHistory = history;
+    }
+
+    /**
+     * Selects the prediction model, one of the {@code MODE_} constants.
+     */
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Sets the length in seconds of the window over which velocities are estimated.
+     */
+    public void setVelocityWindow(double velocityWindow) {
+        mVelocityWindow = velocityWindow;
+    }
+
+    /**
+     * Estimates the pose at {@code timestamp}. Times covered by the history are interpolated;
+     * later times are extrapolated according to the current mode.
+     *
+     * @param translation Output {x, y, z}.
+     * @param rotation    Output unit quaternion {x, y, z, w}.
+     * @return false if the history is empty, in which case the outputs are left untouched.
+     */
+    public boolean predict(double timestamp, double[] translation, double[] rotation) {
+        double latest = mHistory.getLatestPose(mLatestTranslation, mLatestRotation);
+        if (latest < 0) {
+            return false;
+        }
+        measurePendingErrors(latest);
+        if (timestamp <= latest && mHistory.getPoseAtTime(timestamp, translation, rotation)) {
+            return true;
+        }
+        double ahead = Math.min(timestamp - latest, MAX_PREDICTION);
+        double past = latest - mVelocityWindow;
+        if (mMode == MODE_NONE || ahead <= 0
+                || !mHistory.getPoseAtTime(past, mPastTranslation, mPastRotation)) {
+            System.arraycopy(mLatestTranslation, 0, translation, 0, 3);
+            System.arraycopy(mLatestRotation, 0, rotation, 0, 4);
+            return true;
+        }
+
+        double alpha = (latest + ahead - past) / (latest - past);
+        for (int i = 0; i < 3; i++) {
+            translation[i] = mPastTranslation[i]
+                    + (mLatestTranslation[i] - mPastTranslation[i]) * alpha;
+        }
+        PoseHistory.slerp(mPastRotation[0], mPastRotation[1], mPastRotation[2], mPastRotation[3],
+                mLatestRotation[0], mLatestRotation[1], mLatestRotation[2], mLatestRotation[3],
+                alpha, rotation);
+        addPending(latest + ahead, translation, rotation);
+        return true;
+    }
+
+    /**
+     * Same as {@link #predict}.
+     */
+    @Override
+    public boolean getPoseAtTime(double timestamp, double[] translation, double[] rotation) {
+        return predict(timestamp, translation, rotation);
+    }
+
+    /** Mean distance in meters between predicted and actual positions. */
+    public double getMeanTranslationError() {
+        return mMeanTranslationError;
+    }
+
+    /** Mean angle in radians between predicted and actual orientations. */
+    public double getMeanRotationError() {
+        return mMeanRotationError;
+    }
+
+    /** Largest distance in meters between a predicted and the actual position. */
+    public double getMaxTranslationError() {
+        return mMaxTranslationError;
+    }
+
+    /** Largest angle in radians between a predicted and the actual orientation. */
+    public double getMaxRotationError() {
+        return mMaxRotationError;
+    }
+
+    /**
+     * Clears the error statistics. Must be called from the thread calling {@link #predict}.
+     */
+    public void resetErrorStatistics() {
+        mErrorSamples = 0;
+        mTranslationErrorSum = 0;
+        mRotationErrorSum = 0;
+        mMeanTranslationError = 0;
+        mMeanRotationError = 0;
+        mMaxTranslationError = 0;
+        mMaxRotationError = 0;
+    }
+
+    private void addPending(double timestamp, double[] translation, double[] rotation) {
+        if (mPendingCount == PENDING_CAPACITY) {
+            // Drop the oldest prediction: the history fell behind anyway.
+            mPendingStart = (mPendingStart + 1) % PENDING_CAPACITY;
+            mPendingCount--;
+        }
+        int slot = (mPendingStart + mPendingCount) % PENDING_CAPACITY;
+        mPendingTime[slot] = timestamp;
+        System.arraycopy(translation, 0, mPendingTranslation, slot * 3, 3);
+        System.arraycopy(rotation, 0, mPendingRotation, slot * 4, 4);
+        mPendingCount++;
+    }
+
+    /**
+     * Compares the predictions whose target time is now covered by the history with the actual
+     * poses.
+     */
+    private void measurePendingErrors(double latest) {
+        while (mPendingCount > 0 && mPendingTime[mPendingStart] <= latest) {
+            int slot = mPendingStart;
+            mPendingStart = (mPendingStart + 1) % PENDING_CAPACITY;
+            mPendingCount--;
+            if (!mHistory.getPoseAtTime(mPendingTime[slot], mPastTranslation, mPastRotation)) {
+                continue;
+            }
+            double dx = mPendingTranslation[slot * 3] - mPastTranslation[0];
+            double dy = mPendingTranslation[slot * 3 + 1] - mPastTranslation[1];
+            double dz = mPendingTranslation[slot * 3 + 2] - mPastTranslation[2];
+            double translationError = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double dot = Math.abs(mPendingRotation[slot * 4] * mPastRotation[0]
+                    + mPendingRotation[slot * 4 + 1] * mPastRotation[1]
+                    + mPendingRotation[slot * 4 + 2] * mPastRotation[2]
+                    + mPendingRotation[slot * 4 + 3] * mPastRotation[3]);
+            double rotationError = 2 * Math.acos(Math.min(1.0, dot));
+
+            mErrorSamples++;
+            mTranslationErrorSum += translationError;
+            mRotationErrorSum += rotationError;
+            mMeanTranslationError = mTranslationErrorSum / mErrorSamples;
+            mMeanRotationError = mRotationErrorSum / mErrorSamples;
+            if (translationError > mMaxTranslationError) {
+                mMaxTranslationError = translationError;
+            }
+            if (rotationError > mMaxRotationError) {
+                mMaxRotationError = rotationError;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Source of device poses with respect to start of service.
+ */
+public interface PoseProvider {
+    /**
+     * Gets the device pose at the given time.
+     *
+     * @param timestamp   Time in seconds, in the Tango service time base.
+     * @param translation Receives the position {x, y, z}.
+     * @param rotation    Receives the orientation quaternion {x, y, z, w}.
+     * @return false if no pose is available for that time, in which case the arrays are left
+     *         untouched.
+     */
+    boolean getPoseAtTime(double timestamp, double[] translation, double[] rotation);
+}
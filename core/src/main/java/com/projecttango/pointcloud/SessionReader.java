@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the session files written by {@link SessionRecorder}, record by record.
+ * <p/>
+ * Chunks are memory mapped one at a time as the reader gets to them, and the points of a depth
+ * record are returned as a view of the mapping rather than copied. The chunk index at the end of
+ * the file is used to seek by timestamp; if the session was cut short and has no index, it is
+ * rebuilt by scanning the chunks when the file is opened.
+ */
+public class SessionReader {
+    private static final int POINT_TO_XYZ = 3;
+
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final int mChunkSize;
+    private final long mDataEnd;
+    private final long[] mChunkOffsets;
+    private final int[] mChunkRecordCounts;
+    private final double[] mChunkFirstTimestamps;
+    private final double[] mChunkLastTimestamps;
+
+    private ByteBuffer mChunk;
+    private int mChunkIndex = -1;
+    private int mRecordPosition;
+    private int mNextPosition;
+    private int mType;
+    private double mTimestamp;
+
+    public SessionReader(File file) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        try {
+            long length = mChannel.size();
+            ByteBuffer header = read(0, SessionRecorder.FILE_HEADER_SIZE);
+            if (header.getInt(0) != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a session file");
+            }
+            if (header.getInt(4) != SessionRecorder.VERSION) {
+                throw new IOException("Unsupported session file version " + header.getInt(4));
+            }
+            mChunkSize = header.getInt(8);
+
+            ByteBuffer trailer = length >= SessionRecorder.FILE_HEADER_SIZE
+                    + SessionRecorder.TRAILER_SIZE
+                    ? read(length - SessionRecorder.TRAILER_SIZE, SessionRecorder.TRAILER_SIZE)
+                    : null;
+            if (trailer != null && trailer.getInt(12) == SessionRecorder.TRAILER_MAGIC) {
+                mDataEnd = trailer.getLong(0);
+                int chunkCount = trailer.getInt(8);
+                mChunkOffsets = new long[chunkCount];
+                mChunkRecordCounts = new int[chunkCount];
+                mChunkFirstTimestamps = new double[chunkCount];
+                mChunkLastTimestamps = new double[chunkCount];
+                ByteBuffer index = read(mDataEnd, chunkCount * SessionRecorder.INDEX_ENTRY_SIZE);
+                for (int i = 0; i < chunkCount; i++) {
+                    int entry = i * SessionRecorder.INDEX_ENTRY_SIZE;
+                    mChunkOffsets[i] = index.getLong(entry);
+                    mChunkRecordCounts[i] = index.getInt(entry + 8);
+                    mChunkFirstTimestamps[i] = index.getDouble(entry + 12);
+                    mChunkLastTimestamps[i] = index.getDouble(entry + 20);
+                }
+            } else {
+                // No index: the recording was cut short, every chunk is still full size.
+                mDataEnd = length;
+                int chunkCount = (int) ((length + mChunkSize - 1) / mChunkSize);
+                mChunkOffsets = new long[chunkCount];
+                mChunkRecordCounts = new int[chunkCount];
+                mChunkFirstTimestamps = new double[chunkCount];
+                mChunkLastTimestamps = new double[chunkCount];
+                for (int i = 0; i < chunkCount; i++) {
+                    mChunkOffsets[i] = (long) i * mChunkSize;
+                    mapChunk(i);
+                    while (nextInChunk()) {
+                        if (mChunkRecordCounts[i] == 0) {
+                            mChunkFirstTimestamps[i] = mTimestamp;
+                        }
+                        mChunkLastTimestamps[i] = mTimestamp;
+                        mChunkRecordCounts[i]++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        rewind();
+    }
+
+    public void close() throws IOException {
+        mChunk = null;
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * Moves back to before the first record.
+     */
+    public void rewind() {
+        mChunk = null;
+        mChunkIndex = -1;
+        mType = SessionRecorder.RECORD_END;
+    }
+
+    /**
+     * Moves to before the first record with a timestamp at or after {@code timestamp}, so that
+     * {@link #next()} returns it. Records are assumed to be in about timestamp order, as they are
+     * recorded in the order they arrive.
+     */
+    public void seek(double timestamp) throws IOException {
+        // First chunk whose records reach the requested time.
+        int low = 0;
+        int high = mChunkOffsets.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mChunkRecordCounts[middle] > 0 && mChunkLastTimestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == mChunkOffsets.length) {
+            mChunk = null;
+            mChunkIndex = mChunkOffsets.length;
+            return;
+        }
+        mapChunk(low);
+        while (true) {
+            int position = mNextPosition;
+            if (!nextInChunk()) {
+                mNextPosition = position;
+                break;
+            }
+            if (mTimestamp >= timestamp) {
+                mNextPosition = mRecordPosition;
+                break;
+            }
+        }
+        mType = SessionRecorder.RECORD_END;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false when there are no more records.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mChunk != null && nextInChunk()) {
+                return true;
+            }
+            if (mChunkIndex + 1 >= mChunkOffsets.length) {
+                mChunk = null;
+                mChunkIndex = mChunkOffsets.length;
+                mType = SessionRecorder.RECORD_END;
+                return false;
+            }
+            mapChunk(mChunkIndex + 1);
+        }
+    }
+
+    /** Type of the current record: {@link SessionRecorder#RECORD_POSE} or RECORD_DEPTH. */
+    public int getType() {
+        return mType;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** Pose status code of the current pose record. */
+    public int getStatusCode() {
+        checkType(SessionRecorder.RECORD_POSE);
+        return mChunk.getInt(mRecordPosition + SessionRecorder.RECORD_HEADER_SIZE);
+    }
+
+    /** Copies the translation of the current pose record into {@code translation}. */
+    public void getTranslation(double[] translation) {
+        checkType(SessionRecorder.RECORD_POSE);
+        int position = mRecordPosition + SessionRecorder.RECORD_HEADER_SIZE + 4;
+        for (int i = 0; i < 3; i++) {
+            translation[i] = mChunk.getDouble(position + i * 8);
+        }
+    }
+
+    /** Copies the rotation quaternion {x, y, z, w} of the current pose record. */
+    public void getRotation(double[] rotation) {
+        checkType(SessionRecorder.RECORD_POSE);
+        int position = mRecordPosition + SessionRecorder.RECORD_HEADER_SIZE + 4 + 3 * 8;
+        for (int i = 0; i < 4; i++) {
+            rotation[i] = mChunk.getDouble(position + i * 8);
+        }
+    }
+
+    /** Number of points of the current depth record. */
+    public int getPointCount() {
+        checkType(SessionRecorder.RECORD_DEPTH);
+        return mChunk.getInt(mRecordPosition + SessionRecorder.RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Returns the points of the current depth record as a read only view of the file, holding
+     * {@link #getPointCount()} packed x, y, z points.
+     */
+    public FloatBuffer getPoints() {
+        checkType(SessionRecorder.RECORD_DEPTH);
+        ByteBuffer points = mChunk.duplicate();
+        int start = mRecordPosition + SessionRecorder.RECORD_HEADER_SIZE + 4;
+        points.limit(start + getPointCount() * POINT_TO_XYZ * 4).position(start);
+        return points.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    /** Total number of records in the session. */
+    public long getRecordCount() {
+        long count = 0;
+        for (int i = 0; i < mChunkRecordCounts.length; i++) {
+            count += mChunkRecordCounts[i];
+        }
+        return count;
+    }
+
+    /** Timestamp of the first record, or 0 for an empty session. */
+    public double getStartTimestamp() {
+        for (int i = 0; i < mChunkRecordCounts.length; i++) {
+            if (mChunkRecordCounts[i] > 0) {
+                return mChunkFirstTimestamps[i];
+            }
+        }
+        return 0;
+    }
+
+    /** Timestamp of the last record, or 0 for an empty session. */
+    public double getEndTimestamp() {
+        for (int i = mChunkRecordCounts.length - 1; i >= 0; i--) {
+            if (mChunkRecordCounts[i] > 0) {
+                return mChunkLastTimestamps[i];
+            }
+        }
+        return 0;
+    }
+
+    private void checkType(int type) {
+        if (mType != type) {
+            throw new IllegalStateException("Current record is of type " + mType);
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of session file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void mapChunk(int index) throws IOException {
+        long offset = mChunkOffsets[index];
+        long size = Math.min(mChunkSize, mDataEnd - offset);
+        mChunk = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mChunkIndex = index;
+        mNextPosition = offset == 0 ? SessionRecorder.FILE_HEADER_SIZE : 0;
+        mType = SessionRecorder.RECORD_END;
+    }
+
+    /**
+     * Reads the header of the next record of the current chunk.
+     */
+    private boolean nextInChunk() {
+        int position = mNextPosition;
+        int limit = mChunk.limit();
+        if (position + SessionRecorder.RECORD_HEADER_SIZE > limit) {
+            return false;
+        }
+        int type = mChunk.getInt(position);
+        int payloadSize = mChunk.getInt(position + 4);
+        if (type == SessionRecorder.RECORD_END || payloadSize < 0
+                || position + SessionRecorder.RECORD_HEADER_SIZE + payloadSize > limit) {
+            return false;
+        }
+        mType = type;
+        mTimestamp = mChunk.getDouble(position + 8);
+        mRecordPosition = position;
+        mNextPosition = position + SessionRecorder.RECORD_HEADER_SIZE + payloadSize;
+        return true;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the depth frames and device poses received from the Tango service to a binary session
+ * file, so that a session can be replayed later without a device.
+ * <p/>
+ * The file is written through memory mapped chunks of a fixed size. The first chunk starts with a
+ * file header ({@link #MAGIC}, {@link #VERSION}, chunk size) and every chunk is then filled with
+ * records, each made of a type, a payload length in bytes, a timestamp and the payload:
+ * <ul>
+ * <li>{@link #RECORD_POSE}: status code, translation (3 doubles), rotation (4 doubles).</li>
+ * <li>{@link #RECORD_DEPTH}: point count and the x, y, z floats of every point.</li>
+ * </ul>
+ * A record never spans two chunks; a type of {@link #RECORD_END} ends the records of a chunk.
+ * When the recorder is closed the file is cut at the end of the records and followed by an index
+ * with, for every chunk, its offset, record count and first and last timestamps, and by a trailer
+ * holding the index offset, the index entry count and {@link #TRAILER_MAGIC}. All values are
+ * little endian.
+ * <p/>
+ * Recording never blocks the caller. Depth frames are retained rather than copied and pose
+ * samples go into preallocated entries; a background thread writes them out and releases the
+ * frames. If the writer falls behind, new samples are dropped and counted.
+ */
+public class SessionRecorder {
+    public static final int MAGIC = 0x53524454;
+    public static final int VERSION = 1;
+    public static final int TRAILER_MAGIC = 0x58444e49;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int INDEX_ENTRY_SIZE = 28;
+    public static final int TRAILER_SIZE = 16;
+    public static final int RECORD_END = 0;
+    public static final int RECORD_POSE = 1;
+    public static final int RECORD_DEPTH = 2;
+    public static final int POSE_PAYLOAD_SIZE = 4 + 7 * 8;
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int END_MARKER_SIZE = 4;
+
+    private final File mFile;
+    private final int mChunkSize;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final ArrayBlockingQueue<Entry> mQueue;
+    private final ArrayBlockingQueue<Entry> mFreeEntries;
+    private final Thread mWriterThread;
+    private final int mMaxQueuedFrames;
+    private final AtomicInteger mQueuedFrames = new AtomicInteger();
+    private volatile boolean mClosed;
+    private volatile long mDroppedPoses;
+    private volatile long mDroppedFrames;
+
+    // Only touched by the writer thread.
+    private MappedByteBuffer mChunk;
+    private long mChunkOffset;
+    private final List<IndexEntry> mIndex = new ArrayList<IndexEntry>();
+    private volatile long mWrittenPoses;
+    private volatile long mWrittenFrames;
+    private IOException mError;
+
+    private static class Entry {
+        int type;
+        double timestamp;
+        int statusCode;
+        final double[] translation = new double[3];
+        final double[] rotation = new double[4];
+        DepthFrame frame;
+    }
+
+    private static class IndexEntry {
+        long offset;
+        int recordCount;
+        double firstTimestamp;
+        double lastTimestamp;
+    }
+
+    /**
+     * Creates (or truncates) a session file and starts its writer thread.
+     *
+     * @param file          The session file.
+     * @param chunkSize     Size in bytes of the mapped chunks; must hold the largest depth frame.
+     * @param queueCapacity   Number of samples that can wait for the writer thread.
+     * @param maxQueuedFrames Number of depth frames that can wait for the writer thread, which
+     *                        limits how many pooled frames the recorder keeps from the pool.
+     */
+    public SessionRecorder(File file, int chunkSize, int queueCapacity, int maxQueuedFrames)
+            throws IOException {
+        if (chunkSize < FILE_HEADER_SIZE + RECORD_HEADER_SIZE + POSE_PAYLOAD_SIZE
+                + END_MARKER_SIZE) {
+            throw new IllegalArgumentException("Chunk size too small: " + chunkSize);
+        }
+        mFile = file;
+        mChunkSize = chunkSize;
+        mMaxQueuedFrames = maxQueuedFrames;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mQueue = new ArrayBlockingQueue<Entry>(queueCapacity + 1);
+        mFreeEntries = new ArrayBlockingQueue<Entry>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            mFreeEntries.add(new Entry());
+        }
+
+        mapChunk(0);
+        mChunk.putInt(MAGIC).putInt(VERSION).putInt(chunkSize).putInt(0);
+        mChunk.putInt(RECORD_END);
+        mChunk.position(FILE_HEADER_SIZE);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SessionRecorder");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Queues a device pose sample for recording.
+     *
+     * @return false if the sample was dropped because the writer is behind or closed.
+     */
+    public boolean recordPose(double timestamp, int statusCode, double[] translation,
+                              double[] rotation) {
+        Entry entry = mClosed ? null : mFreeEntries.poll();
+        if (entry == null) {
+            mDroppedPoses++;
+            return false;
+        }
+        entry.type = RECORD_POSE;
+        entry.timestamp = timestamp;
+        entry.statusCode = statusCode;
+        System.arraycopy(translation, 0, entry.translation, 0, 3);
+        System.arraycopy(rotation, 0, entry.rotation, 0, 4);
+        mQueue.offer(entry);
+        return true;
+    }
+
+    /**
+     * Queues a depth frame for recording. The frame is retained until it has been written, so it
+     * must not be modified afterwards. Only its points and timestamp are recorded; the pose at the
+     * frame time can be found again from the recorded poses.
+     *
+     * @return false if the frame was dropped because the writer is behind or closed.
+     */
+    public boolean recordDepthFrame(DepthFrame frame) {
+        int recordSize = RECORD_HEADER_SIZE + depthPayloadSize(frame.pointCount);
+        if (recordSize + END_MARKER_SIZE > mChunkSize - FILE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Depth frame of " + frame.pointCount
+                    + " points doesn't fit in a " + mChunkSize + " bytes chunk");
+        }
+        if (mClosed || mQueuedFrames.incrementAndGet() > mMaxQueuedFrames) {
+            mQueuedFrames.decrementAndGet();
+            mDroppedFrames++;
+            return false;
+        }
+        Entry entry = mFreeEntries.poll();
+        if (entry == null) {
+            mQueuedFrames.decrementAndGet();
+            mDroppedFrames++;
+            return false;
+        }
+        entry.type = RECORD_DEPTH;
+        entry.timestamp = frame.timestamp;
+        entry.frame = frame.retain();
+        mQueue.offer(entry);
+        return true;
+    }
+
+    /**
+     * Writes out the queued samples, the index and the trailer, and closes the file.
+     * Samples recorded after this call are dropped.
+     *
+     * @throws IOException if writing failed at any point of the session.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        Entry sentinel = new Entry();
+        sentinel.type = RECORD_END;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(sentinel);
+                mWriterThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Let go of the frames of samples that raced with closing.
+        Entry entry;
+        while ((entry = mQueue.poll()) != null) {
+            releaseFrame(entry);
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public long getWrittenPoseCount() {
+        return mWrittenPoses;
+    }
+
+    public long getWrittenFrameCount() {
+        return mWrittenFrames;
+    }
+
+    public long getDroppedPoseCount() {
+        return mDroppedPoses;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    static int depthPayloadSize(int pointCount) {
+        return 4 + pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (entry.type == RECORD_END) {
+                break;
+            }
+            if (mError == null) {
+                try {
+                    write(entry);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            releaseFrame(entry);
+            mFreeEntries.offer(entry);
+        }
+        try {
+            finish();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    private void releaseFrame(Entry entry) {
+        if (entry.frame != null) {
+            entry.frame.release();
+            entry.frame = null;
+            mQueuedFrames.decrementAndGet();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        int payloadSize = entry.type == RECORD_DEPTH
+                ? depthPayloadSize(entry.frame.pointCount) : POSE_PAYLOAD_SIZE;
+        if (mChunk.remaining() < RECORD_HEADER_SIZE + payloadSize + END_MARKER_SIZE) {
+            mapChunk(mChunkOffset + mChunkSize);
+        }
+        mChunk.putInt(entry.type).putInt(payloadSize).putDouble(entry.timestamp);
+        if (entry.type == RECORD_DEPTH) {
+            DepthFrame frame = entry.frame;
+            int floatCount = frame.pointCount * POINT_TO_XYZ;
+            mChunk.putInt(frame.pointCount);
+            // Work on a duplicate so the position of the shared frame buffer is left alone.
+            FloatBuffer points = frame.xyz.duplicate();
+            points.limit(floatCount).position(0);
+            int position = mChunk.position();
+            mChunk.asFloatBuffer().put(points);
+            mChunk.position(position + floatCount * BYTES_PER_FLOAT);
+            mWrittenFrames++;
+        } else {
+            mChunk.putInt(entry.statusCode);
+            for (int i = 0; i < 3; i++) {
+                mChunk.putDouble(entry.translation[i]);
+            }
+            for (int i = 0; i < 4; i++) {
+                mChunk.putDouble(entry.rotation[i]);
+            }
+            mWrittenPoses++;
+        }
+        // Keep the chunk terminated after every record so a session cut short stays readable.
+        mChunk.putInt(mChunk.position(), RECORD_END);
+
+        IndexEntry index = mIndex.get(mIndex.size() - 1);
+        if (index.recordCount == 0) {
+            index.firstTimestamp = entry.timestamp;
+        }
+        index.lastTimestamp = entry.timestamp;
+        index.recordCount++;
+    }
+
+    private void mapChunk(long offset) throws IOException {
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, offset, mChunkSize);
+        mChunk.order(ByteOrder.LITTLE_ENDIAN);
+        mChunkOffset = offset;
+        // A freshly mapped region of a grown file has unspecified contents.
+        mChunk.putInt(0, RECORD_END);
+        IndexEntry index = new IndexEntry();
+        index.offset = offset;
+        mIndex.add(index);
+    }
+
+    private void finish() throws IOException {
+        try {
+            long dataEnd = mChunkOffset + mChunk.position() + END_MARKER_SIZE;
+            mChunk.force();
+            mChunk = null;
+
+            ByteBuffer index = ByteBuffer.allocate(mIndex.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < mIndex.size(); i++) {
+                IndexEntry entry = mIndex.get(i);
+                index.putLong(entry.offset).putInt(entry.recordCount)
+                        .putDouble(entry.firstTimestamp).putDouble(entry.lastTimestamp);
+            }
+            index.putLong(dataEnd).putInt(mIndex.size()).putInt(TRAILER_MAGIC);
+            index.flip();
+            mChannel.truncate(dataEnd);
+            long position = dataEnd;
+            while (index.hasRemaining()) {
+                position += mChannel.write(index, position);
+            }
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+}
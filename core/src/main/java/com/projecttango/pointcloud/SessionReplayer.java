@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Replays a recorded session, standing in for the Tango service callbacks.
+ * <p/>
+ * Poses and point clouds are handed to a {@link Listener} in the order they were recorded, on
+ * the thread calling {@link #run()}, in one of three modes:
+ * <ul>
+ * <li>{@link #MODE_REAL_TIME}: records are delivered with their recorded spacing, scaled by the
+ * replay speed.</li>
+ * <li>{@link #MODE_AS_FAST_AS_POSSIBLE}: records are delivered back to back, to measure
+ * throughput.</li>
+ * <li>{@link #MODE_FIXED_STEP}: records are delivered in batches covering a fixed step of session
+ * time, each followed by {@link Listener#onStep(double)}, without waiting. The same session always
+ * produces the same sequence of calls, which makes runs repeatable.</li>
+ * </ul>
+ */
+public class SessionReplayer {
+    public static final int MODE_REAL_TIME = 0;
+    public static final int MODE_AS_FAST_AS_POSSIBLE = 1;
+    public static final int MODE_FIXED_STEP = 2;
+
+    private static final double SECS_TO_NANOSECS = 1e9;
+    private static final long NANOSECS_PER_MILLISEC = 1000000;
+
+    /**
+     * Receives the replayed data. All methods are called on the thread running the replay.
+     */
+    public interface Listener {
+        /**
+         * A device pose with respect to start of service. The arrays are reused after returning.
+         */
+        void onPoseAvailable(double timestamp, int statusCode, double[] translation,
+                             double[] rotation);
+
+        /**
+         * A point cloud, as packed x, y, z points in depth camera frame. The buffer is a read
+         * only view of the session file that must not be used after returning.
+         */
+        void onPointCloudAvailable(double timestamp, FloatBuffer xyz, int pointCount);
+
+        /**
+         * End of a step of session time, in {@link #MODE_FIXED_STEP} only.
+         */
+        void onStep(double timestamp);
+    }
+
+    private final SessionReader mReader;
+    private final Listener mListener;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private int mMode = MODE_REAL_TIME;
+    private double mSpeed = 1;
+    private double mStep = 1.0 / 30;
+    private volatile boolean mStopped;
+
+    private volatile long mPoseCount;
+    private volatile long mPointCloudCount;
+    private volatile long mPointCount;
+    private volatile long mElapsedNanos;
+
+    public SessionReplayer(SessionReader reader, Listener listener) {
+        mReader = reader;
+        mListener = listener;
+    }
+
+    public void setMode(int mode) {
+        if (mode != MODE_REAL_TIME && mode != MODE_AS_FAST_AS_POSSIBLE
+                && mode != MODE_FIXED_STEP) {
+            throw new IllegalArgumentException("Unknown replay mode " + mode);
+        }
+        mMode = mode;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Sets the replay speed of {@link #MODE_REAL_TIME}, 1 being the recorded speed.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Replay speed must be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Sets the step in seconds of session time of {@link #MODE_FIXED_STEP}.
+     */
+    public void setStep(double step) {
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("Replay step must be positive: " + step);
+        }
+        mStep = step;
+    }
+
+    /**
+     * Replays the session from the current position of the reader until its end, or until
+     * {@link #stop()} is called or the thread is interrupted.
+     */
+    public void run() throws IOException {
+        mStopped = false;
+        long start = System.nanoTime();
+        double sessionStart = Double.NaN;
+        double stepEnd = Double.NaN;
+        try {
+            while (!mStopped && !Thread.currentThread().isInterrupted() && mReader.next()) {
+                double timestamp = mReader.getTimestamp();
+                if (Double.isNaN(sessionStart)) {
+                    sessionStart = timestamp;
+                    stepEnd = timestamp + mStep;
+                }
+                if (mMode == MODE_REAL_TIME) {
+                    if (!waitUntil(start + (long) ((timestamp - sessionStart) / mSpeed
+                            * SECS_TO_NANOSECS))) {
+                        break;
+                    }
+                } else if (mMode == MODE_FIXED_STEP) {
+                    while (timestamp >= stepEnd && !mStopped) {
+                        mListener.onStep(stepEnd);
+                        stepEnd += mStep;
+                    }
+                }
+                deliver(timestamp);
+            }
+            if (mMode == MODE_FIXED_STEP && !Double.isNaN(stepEnd) && !mStopped) {
+                mListener.onStep(stepEnd);
+            }
+        } finally {
+            mElapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Makes {@link #run()} return before delivering the next record. Can be called from any
+     * thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    public long getPoseCount() {
+        return mPoseCount;
+    }
+
+    public long getPointCloudCount() {
+        return mPointCloudCount;
+    }
+
+    /** Total number of points in the point clouds delivered. */
+    public long getPointCount() {
+        return mPointCount;
+    }
+
+    /** Wall clock time the last call to {@link #run()} took, in nanoseconds. */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    private void deliver(double timestamp) {
+        if (mReader.getType() == SessionRecorder.RECORD_POSE) {
+            mReader.getTranslation(mTranslation);
+            mReader.getRotation(mRotation);
+            mListener.onPoseAvailable(timestamp, mReader.getStatusCode(), mTranslation,
+                    mRotation);
+            mPoseCount++;
+        } else if (mReader.getType() == SessionRecorder.RECORD_DEPTH) {
+            int pointCount = mReader.getPointCount();
+            mListener.onPointCloudAvailable(timestamp, mReader.getPoints(), pointCount);
+            mPointCloudCount++;
+            mPointCount += pointCount;
+        }
+    }
+
+    /**
+     * Sleeps until the given System.nanoTime(). Returns false if interrupted or stopped.
+     */
+    private boolean waitUntil(long nanoTime) {
+        long remaining;
+        while (!mStopped && (remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / NANOSECS_PER_MILLISEC,
+                        (int) (remaining % NANOSECS_PER_MILLISEC));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !mStopped;
+    }
+}
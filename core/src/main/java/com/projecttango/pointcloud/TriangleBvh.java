@@ -0,0 +1,947 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Bounding volume hierarchy over the triangles of a {@link TriangleMesh}, for closest point, ray
+ * and frustum queries.
+ * <p/>
+ * The tree is built top down with the surface area heuristic, evaluated over a fixed number of
+ * bins per axis so that every level costs a single pass over its triangles. Given an executor,
+ * the top levels are built on the calling thread and the subtrees below them concurrently, each
+ * task writing to its own range of nodes.
+ * <p/>
+ * The tree is stored flat: nodes are rows of two arrays of primitives, bounds and start/count
+ * pairs, the two children of an inner node are stored next to each other, and the triangles are
+ * copied in leaf order into a single array of nine floats each so that a leaf reads one
+ * contiguous range. The tree is immutable once built, so any number of threads can query it at
+ * the same time, each with its own query objects. Queries don't allocate, except for growing the
+ * traversal stack of a query object the first time it is used on a deeper tree.
+ */
+public class TriangleBvh {
+    private static final int FLOATS_PER_TRIANGLE = 9;
+    private static final int FLOATS_PER_NODE = 6;
+    private static final int INTS_PER_NODE = 2;
+    // Leaves are never larger than this, even when the heuristic would rather not split.
+    private static final int MAX_LEAF_TRIANGLES = 8;
+    private static final int BIN_COUNT = 16;
+    // Relative costs of visiting a node, i.e. testing the bounds of its two children, and of
+    // testing a triangle, for the surface area heuristic. Favours leaves of a few triangles,
+    // which roughly halves the node count at the same query speed.
+    private static final float TRAVERSAL_COST = 2;
+    private static final float INTERSECTION_COST = 1;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MIN_TRIANGLES_PER_TASK = 4096;
+    private static final int INITIAL_STACK_SIZE = 64;
+
+    private final float[] mNodeBounds;
+    // Per node: the first child and 0 for inner nodes, the first triangle and the triangle count
+    // for leaves.
+    private final int[] mNodes;
+    private final float[] mTriangles;
+    private final int[] mTriangleIds;
+    private int mNodeCount;
+    private int mMaxDepth;
+
+    /**
+     * A triangle found by a query, and the traversal stack the query needs. Each querying thread
+     * needs its own instance.
+     */
+    public static class TriangleHit {
+        /** Point found on the mesh. */
+        public float x;
+        public float y;
+        public float z;
+        /** Index of the triangle in the mesh, or -1 if nothing was found. */
+        public int triangle;
+        /** Unit normal of that triangle, following its winding. */
+        public float normalX;
+        public float normalY;
+        public float normalZ;
+        int[] mStack = new int[INITIAL_STACK_SIZE];
+    }
+
+    /** Result of {@link #closestPoint}. */
+    public static class ClosestPointQuery extends TriangleHit {
+        /** Squared distance from the query point to the closest point. */
+        public float distanceSquared;
+        // Closest point on the triangle being tested.
+        private float mCandidateX;
+        private float mCandidateY;
+        private float mCandidateZ;
+    }
+
+    /** Result of {@link #raycast} and {@link #occluded}. */
+    public static class RayQuery extends TriangleHit {
+        /** Distance along the ray to the hit, in multiples of the length of the direction. */
+        public float distance;
+        /** Barycentric coordinates of the hit: weights of the second and third corner. */
+        public float u;
+        public float v;
+        // Entry distance of the nodes on the stack.
+        private float[] mStackDistances = new float[INITIAL_STACK_SIZE];
+    }
+
+    /** Result of {@link #frustumTriangles}. Each querying thread needs its own instance. */
+    public static class FrustumQuery {
+        /** Indices in the mesh of the triangles found, valid up to {@link #count}. */
+        public final int[] triangles;
+        /** Number of triangles stored in {@link #triangles}. */
+        public int count;
+        private final Frustum mFrustum = new Frustum();
+        private int[] mStack = new int[INITIAL_STACK_SIZE];
+        // Planes straddled by the nodes on the stack.
+        private int[] mStackMasks = new int[INITIAL_STACK_SIZE];
+
+        /**
+         * @param capacity Maximum number of triangles stored by a query.
+         */
+        public FrustumQuery(int capacity) {
+            triangles = new int[capacity];
+        }
+    }
+
+    /**
+     * Builds the hierarchy over all the triangles of a mesh on the calling thread. The mesh is
+     * not referenced afterwards.
+     */
+    public TriangleBvh(TriangleMesh mesh) {
+        this(mesh, null);
+    }
+
+    /**
+     * Builds the hierarchy over all the triangles of a mesh, building subtrees on
+     * {@code executor} while the calling thread waits. The mesh is not referenced afterwards.
+     *
+     * @param executor Executor to build subtrees on, or null to build on the calling thread.
+     */
+    public TriangleBvh(TriangleMesh mesh, ExecutorService executor) {
+        int triangleCount = mesh.getTriangleCount();
+        float[] vertices = mesh.vertices;
+        int[] indices = mesh.indices;
+        int[] order = new int[triangleCount];
+        // Bounds of the triangles, moved along with them so that building reads them in order.
+        float[] triangleBounds = new float[triangleCount * 6];
+        for (int t = 0; t < triangleCount; t++) {
+            order[t] = t;
+            int b = t * 6;
+            for (int axis = 0; axis < 3; axis++) {
+                float v0 = vertices[indices[t * 3] * 3 + axis];
+                float v1 = vertices[indices[t * 3 + 1] * 3 + axis];
+                float v2 = vertices[indices[t * 3 + 2] * 3 + axis];
+                triangleBounds[b + axis] = Math.min(v0, Math.min(v1, v2));
+                triangleBounds[b + 3 + axis] = Math.max(v0, Math.max(v1, v2));
+            }
+        }
+        // A binary tree with at least one triangle per leaf has fewer than 2n nodes.
+        int maxNodes = Math.max(1, 2 * triangleCount - 1);
+        mNodeBounds = new float[maxNodes * FLOATS_PER_NODE];
+        mNodes = new int[maxNodes * INTS_PER_NODE];
+        mTriangles = new float[triangleCount * FLOATS_PER_TRIANGLE];
+        mTriangleIds = order;
+
+        SubtreeBuilder root = new SubtreeBuilder(vertices, indices, triangleBounds);
+        root.setRoot(0, 0, triangleCount, 0, 1);
+        List<SubtreeBuilder> subtrees = new ArrayList<SubtreeBuilder>();
+        int threadCount = executor == null ? 1 : Runtime.getRuntime().availableProcessors();
+        int subtreeSize = Math.max(MIN_TRIANGLES_PER_TASK,
+                triangleCount / (threadCount * TASKS_PER_THREAD));
+        if (threadCount > 1 && triangleCount > subtreeSize) {
+            root.mSubtrees = subtrees;
+            root.mSubtreeSize = subtreeSize;
+        }
+        root.call();
+        if (!subtrees.isEmpty()) {
+            try {
+                List<Future<Void>> results = executor.invokeAll(subtrees);
+                for (int t = 0; t < results.size(); t++) {
+                    results.get(t).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("BVH construction interrupted");
+            } catch (ExecutionException e) {
+                throw new RuntimeException("BVH construction failed", e.getCause());
+            }
+        }
+        mNodeCount = 1 + root.mUsedNodes;
+        mMaxDepth = root.mMaxDepth;
+        for (int t = 0; t < subtrees.size(); t++) {
+            mNodeCount += subtrees.get(t).mUsedNodes;
+            mMaxDepth = Math.max(mMaxDepth, subtrees.get(t).mMaxDepth);
+        }
+    }
+
+    public int getTriangleCount() {
+        return mTriangleIds.length;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /** Depth of the deepest leaf, the root being at depth 0. */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Finds the point of the mesh closest to {@code (px, py, pz)} within {@code maxDistance}.
+     *
+     * @return Whether a point was found; the result is in {@code query}.
+     */
+    public boolean closestPoint(float px, float py, float pz, float maxDistance,
+                                ClosestPointQuery query) {
+        query.triangle = -1;
+        float best = maxDistance * maxDistance;
+        int bestTriangle = -1;
+        float[] bounds = mNodeBounds;
+        if (getTriangleCount() == 0 || boxDistanceSquared(bounds, 0, px, py, pz) > best) {
+            return false;
+        }
+        if (query.mStack.length < mMaxDepth + 2) {
+            query.mStack = new int[mMaxDepth + 2];
+        }
+        int[] stack = query.mStack;
+        int stackSize = 0;
+        int[] nodes = mNodes;
+        float[] triangles = mTriangles;
+        int node = 0;
+        while (true) {
+            int count = nodes[node * INTS_PER_NODE + 1];
+            if (count > 0) {
+                int first = nodes[node * INTS_PER_NODE];
+                for (int i = first; i < first + count; i++) {
+                    float d = closestPointOnTriangle(triangles, i * FLOATS_PER_TRIANGLE,
+                            px, py, pz, query);
+                    if (d < best) {
+                        best = d;
+                        bestTriangle = i;
+                        query.x = query.mCandidateX;
+                        query.y = query.mCandidateY;
+                        query.z = query.mCandidateZ;
+                    }
+                }
+            } else {
+                // Visit the nearer child first; keep the other one if it can still be closer.
+                int left = nodes[node * INTS_PER_NODE];
+                float leftDistance = boxDistanceSquared(bounds, left, px, py, pz);
+                float rightDistance = boxDistanceSquared(bounds, left + 1, px, py, pz);
+                int near = leftDistance <= rightDistance ? left : left + 1;
+                int far = near == left ? left + 1 : left;
+                float nearDistance = Math.min(leftDistance, rightDistance);
+                float farDistance = Math.max(leftDistance, rightDistance);
+                if (nearDistance <= best) {
+                    if (farDistance <= best) {
+                        stack[stackSize++] = far;
+                    }
+                    node = near;
+                    continue;
+                }
+            }
+            // Pop the next node that can still hold a closer point.
+            node = -1;
+            while (stackSize > 0) {
+                int candidate = stack[--stackSize];
+                if (boxDistanceSquared(bounds, candidate, px, py, pz) <= best) {
+                    node = candidate;
+                    break;
+                }
+            }
+            if (node < 0) {
+                break;
+            }
+        }
+        if (bestTriangle < 0) {
+            return false;
+        }
+        query.triangle = mTriangleIds[bestTriangle];
+        query.distanceSquared = best;
+        triangleNormal(triangles, bestTriangle * FLOATS_PER_TRIANGLE, query);
+        return true;
+    }
+
+    /**
+     * Finds the first triangle hit by the ray from {@code (ox, oy, oz)} along
+     * {@code (dx, dy, dz)}, within {@code maxDistance} multiples of the direction. Both sides of
+     * the triangles are hit.
+     *
+     * @return Whether a triangle was hit; the hit is in {@code query}.
+     */
+    public boolean raycast(float ox, float oy, float oz, float dx, float dy, float dz,
+                           float maxDistance, RayQuery query) {
+        return traceRay(ox, oy, oz, dx, dy, dz, maxDistance, false, query);
+    }
+
+    /**
+     * Tells whether the ray from {@code (ox, oy, oz)} along {@code (dx, dy, dz)} hits any
+     * triangle within {@code maxDistance} multiples of the direction, e.g. whether a point is
+     * hidden by the model. Cheaper than {@link #raycast} as it stops at the first hit found,
+     * which is in {@code query} but not necessarily the closest one.
+     */
+    public boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz,
+                            float maxDistance, RayQuery query) {
+        return traceRay(ox, oy, oz, dx, dy, dz, maxDistance, true, query);
+    }
+
+    private boolean traceRay(float ox, float oy, float oz, float dx, float dy, float dz,
+                             float maxDistance, boolean anyHit, RayQuery query) {
+        query.triangle = -1;
+        if (getTriangleCount() == 0) {
+            return false;
+        }
+        float inverseX = 1 / dx;
+        float inverseY = 1 / dy;
+        float inverseZ = 1 / dz;
+        float[] bounds = mNodeBounds;
+        float best = maxDistance;
+        if (!(rayBoxDistance(bounds, 0, ox, oy, oz, inverseX, inverseY, inverseZ, best)
+                <= best)) {
+            return false;
+        }
+        if (query.mStack.length < mMaxDepth + 2) {
+            query.mStack = new int[mMaxDepth + 2];
+            query.mStackDistances = new float[mMaxDepth + 2];
+        }
+        int[] stack = query.mStack;
+        float[] stackDistances = query.mStackDistances;
+        int stackSize = 0;
+        int[] nodes = mNodes;
+        float[] triangles = mTriangles;
+        int bestTriangle = -1;
+        float bestU = 0;
+        float bestV = 0;
+        int node = 0;
+        traversal:
+        while (true) {
+            int count = nodes[node * INTS_PER_NODE + 1];
+            if (count > 0) {
+                int first = nodes[node * INTS_PER_NODE];
+                for (int i = first; i < first + count; i++) {
+                    int o = i * FLOATS_PER_TRIANGLE;
+                    // Moller-Trumbore.
+                    float e1x = triangles[o + 3] - triangles[o];
+                    float e1y = triangles[o + 4] - triangles[o + 1];
+                    float e1z = triangles[o + 5] - triangles[o + 2];
+                    float e2x = triangles[o + 6] - triangles[o];
+                    float e2y = triangles[o + 7] - triangles[o + 1];
+                    float e2z = triangles[o + 8] - triangles[o + 2];
+                    float px = dy * e2z - dz * e2y;
+                    float py = dz * e2x - dx * e2z;
+                    float pz = dx * e2y - dy * e2x;
+                    float determinant = e1x * px + e1y * py + e1z * pz;
+                    if (determinant == 0) {
+                        continue;
+                    }
+                    float inverseDeterminant = 1 / determinant;
+                    float sx = ox - triangles[o];
+                    float sy = oy - triangles[o + 1];
+                    float sz = oz - triangles[o + 2];
+                    float u = (sx * px + sy * py + sz * pz) * inverseDeterminant;
+                    if (u < 0 || u > 1) {
+                        continue;
+                    }
+                    float qx = sy * e1z - sz * e1y;
+                    float qy = sz * e1x - sx * e1z;
+                    float qz = sx * e1y - sy * e1x;
+                    float v = (dx * qx + dy * qy + dz * qz) * inverseDeterminant;
+                    if (v < 0 || u + v > 1) {
+                        continue;
+                    }
+                    float t = (e2x * qx + e2y * qy + e2z * qz) * inverseDeterminant;
+                    if (t >= 0 && t <= best) {
+                        best = t;
+                        bestTriangle = i;
+                        bestU = u;
+                        bestV = v;
+                        if (anyHit) {
+                            break traversal;
+                        }
+                    }
+                }
+            } else {
+                int left = nodes[node * INTS_PER_NODE];
+                float leftDistance = rayBoxDistance(bounds, left, ox, oy, oz,
+                        inverseX, inverseY, inverseZ, best);
+                float rightDistance = rayBoxDistance(bounds, left + 1, ox, oy, oz,
+                        inverseX, inverseY, inverseZ, best);
+                boolean leftHit = leftDistance <= best;
+                boolean rightHit = rightDistance <= best;
+                if (leftHit && rightHit) {
+                    boolean leftFirst = leftDistance <= rightDistance;
+                    stack[stackSize] = leftFirst ? left + 1 : left;
+                    stackDistances[stackSize++] = leftFirst ? rightDistance : leftDistance;
+                    node = leftFirst ? left : left + 1;
+                    continue;
+                } else if (leftHit || rightHit) {
+                    node = leftHit ? left : left + 1;
+                    continue;
+                }
+            }
+            // Pop the next node the ray enters before the closest hit so far.
+            node = -1;
+            while (stackSize > 0) {
+                stackSize--;
+                if (stackDistances[stackSize] <= best) {
+                    node = stack[stackSize];
+                    break;
+                }
+            }
+            if (node < 0) {
+                break;
+            }
+        }
+        if (bestTriangle < 0) {
+            return false;
+        }
+        query.triangle = mTriangleIds[bestTriangle];
+        query.distance = best;
+        query.u = bestU;
+        query.v = bestV;
+        query.x = ox + dx * best;
+        query.y = oy + dy * best;
+        query.z = oz + dz * best;
+        triangleNormal(triangles, bestTriangle * FLOATS_PER_TRIANGLE, query);
+        return true;
+    }
+
+    /**
+     * Finds the triangles in the view frustum of a camera. Triangles are tested by their bounds,
+     * so a few triangles just outside the frustum may be reported too.
+     *
+     * @param mvpMatrix Column major model view projection matrix taking the mesh to clip space,
+     *                  as used by OpenGL.
+     * @return The number of triangles found, which can exceed the capacity of the query; only the
+     *         first ones are stored.
+     */
+    public int frustumTriangles(double[] mvpMatrix, FrustumQuery query) {
+        query.count = 0;
+        if (getTriangleCount() == 0) {
+            return 0;
+        }
+        if (query.mStack.length < mMaxDepth + 2) {
+            query.mStack = new int[mMaxDepth + 2];
+            query.mStackMasks = new int[mMaxDepth + 2];
+        }
+        Frustum frustum = query.mFrustum;
+        frustum.set(mvpMatrix);
+        int[] stack = query.mStack;
+        int[] stackMasks = query.mStackMasks;
+        int[] stored = query.triangles;
+        int[] nodes = mNodes;
+        float[] bounds = mNodeBounds;
+        float[] triangles = mTriangles;
+        int found = 0;
+        int stackSize = 1;
+        stack[0] = 0;
+        stackMasks[0] = Frustum.ALL_PLANES;
+        while (stackSize > 0) {
+            stackSize--;
+            int node = stack[stackSize];
+            int mask = stackMasks[stackSize];
+            if (mask != 0) {
+                int b = node * FLOATS_PER_NODE;
+                mask = frustum.classify(bounds[b], bounds[b + 1], bounds[b + 2],
+                        bounds[b + 3], bounds[b + 4], bounds[b + 5], mask);
+                if (mask == Frustum.OUTSIDE) {
+                    continue;
+                }
+            }
+            int count = nodes[node * INTS_PER_NODE + 1];
+            int first = nodes[node * INTS_PER_NODE];
+            if (count == 0) {
+                // Nodes entirely inside pass their children a mask of 0, skipping the tests.
+                stack[stackSize] = first + 1;
+                stackMasks[stackSize++] = mask;
+                stack[stackSize] = first;
+                stackMasks[stackSize++] = mask;
+                continue;
+            }
+            for (int i = first; i < first + count; i++) {
+                if (mask != 0) {
+                    int o = i * FLOATS_PER_TRIANGLE;
+                    float minX = Math.min(triangles[o], Math.min(triangles[o + 3],
+                            triangles[o + 6]));
+                    float minY = Math.min(triangles[o + 1], Math.min(triangles[o + 4],
+                            triangles[o + 7]));
+                    float minZ = Math.min(triangles[o + 2], Math.min(triangles[o + 5],
+                            triangles[o + 8]));
+                    float maxX = Math.max(triangles[o], Math.max(triangles[o + 3],
+                            triangles[o + 6]));
+                    float maxY = Math.max(triangles[o + 1], Math.max(triangles[o + 4],
+                            triangles[o + 7]));
+                    float maxZ = Math.max(triangles[o + 2], Math.max(triangles[o + 5],
+                            triangles[o + 8]));
+                    if (frustum.classify(minX, minY, minZ, maxX, maxY, maxZ, mask)
+                            == Frustum.OUTSIDE) {
+                        continue;
+                    }
+                }
+                if (found < stored.length) {
+                    stored[found] = mTriangleIds[i];
+                }
+                found++;
+            }
+        }
+        query.count = Math.min(found, stored.length);
+        return found;
+    }
+
+    private static float boxDistanceSquared(float[] bounds, int node, float px, float py,
+                                            float pz) {
+        int b = node * FLOATS_PER_NODE;
+        float dx = Math.max(0, Math.max(bounds[b] - px, px - bounds[b + 3]));
+        float dy = Math.max(0, Math.max(bounds[b + 1] - py, py - bounds[b + 4]));
+        float dz = Math.max(0, Math.max(bounds[b + 2] - pz, pz - bounds[b + 5]));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Distance along a ray to where it enters the bounds of a node (slab test), 0 if it starts
+     * inside.
+     *
+     * @return The distance, or infinity if the ray misses the bounds within {@code maxDistance}.
+     */
+    private static float rayBoxDistance(float[] bounds, int node, float ox, float oy, float oz,
+                                        float inverseX, float inverseY, float inverseZ,
+                                        float maxDistance) {
+        int b = node * FLOATS_PER_NODE;
+        float near = 0;
+        float far = maxDistance;
+        // Comparisons rather than min/max so that the NaNs of a ray lying in a slab plane are
+        // ignored.
+        float t1 = (bounds[b] - ox) * inverseX;
+        float t2 = (bounds[b + 3] - ox) * inverseX;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        t1 = (bounds[b + 1] - oy) * inverseY;
+        t2 = (bounds[b + 4] - oy) * inverseY;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        t1 = (bounds[b + 2] - oz) * inverseZ;
+        t2 = (bounds[b + 5] - oz) * inverseZ;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        return near <= far ? near : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Closest point to p on a triangle, by the Voronoi region of p (Ericson, Real-Time Collision
+     * Detection, 5.1.5). The point is written to the candidate fields of the query.
+     *
+     * @return The squared distance from p to the triangle.
+     */
+    private static float closestPointOnTriangle(float[] t, int o, float px, float py, float pz,
+                                                ClosestPointQuery out) {
+        float ax = t[o];
+        float ay = t[o + 1];
+        float az = t[o + 2];
+        float abx = t[o + 3] - ax;
+        float aby = t[o + 4] - ay;
+        float abz = t[o + 5] - az;
+        float acx = t[o + 6] - ax;
+        float acy = t[o + 7] - ay;
+        float acz = t[o + 8] - az;
+        float apx = px - ax;
+        float apy = py - ay;
+        float apz = pz - az;
+        float d1 = abx * apx + aby * apy + abz * apz;
+        float d2 = acx * apx + acy * apy + acz * apz;
+        float u;
+        float v;
+        if (d1 <= 0 && d2 <= 0) {
+            u = 0;
+            v = 0;
+        } else {
+            float bpx = px - t[o + 3];
+            float bpy = py - t[o + 4];
+            float bpz = pz - t[o + 5];
+            float d3 = abx * bpx + aby * bpy + abz * bpz;
+            float d4 = acx * bpx + acy * bpy + acz * bpz;
+            float cpx = px - t[o + 6];
+            float cpy = py - t[o + 7];
+            float cpz = pz - t[o + 8];
+            float d5 = abx * cpx + aby * cpy + abz * cpz;
+            float d6 = acx * cpx + acy * cpy + acz * cpz;
+            float vc = d1 * d4 - d3 * d2;
+            float vb = d5 * d2 - d1 * d6;
+            float va = d3 * d6 - d5 * d4;
+            if (d3 >= 0 && d4 <= d3) {
+                u = 1;
+                v = 0;
+            } else if (d6 >= 0 && d5 <= d6) {
+                u = 0;
+                v = 1;
+            } else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+                u = d1 / (d1 - d3);
+                v = 0;
+            } else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+                u = 0;
+                v = d2 / (d2 - d6);
+            } else if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+                v = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+                u = 1 - v;
+            } else {
+                float denominator = 1 / (va + vb + vc);
+                u = vb * denominator;
+                v = vc * denominator;
+            }
+        }
+        float qx = ax + abx * u + acx * v;
+        float qy = ay + aby * u + acy * v;
+        float qz = az + abz * u + acz * v;
+        out.mCandidateX = qx;
+        out.mCandidateY = qy;
+        out.mCandidateZ = qz;
+        float dx = px - qx;
+        float dy = py - qy;
+        float dz = pz - qz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static void triangleNormal(float[] t, int o, TriangleHit out) {
+        float abx = t[o + 3] - t[o];
+        float aby = t[o + 4] - t[o + 1];
+        float abz = t[o + 5] - t[o + 2];
+        float acx = t[o + 6] - t[o];
+        float acy = t[o + 7] - t[o + 1];
+        float acz = t[o + 8] - t[o + 2];
+        float nx = aby * acz - abz * acy;
+        float ny = abz * acx - abx * acz;
+        float nz = abx * acy - aby * acx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        float inverse = length > 0 ? 1 / length : 0;
+        out.normalX = nx * inverse;
+        out.normalY = ny * inverse;
+        out.normalZ = nz * inverse;
+    }
+
+    /** Half the surface area of a box, all the surface area heuristic needs. */
+    private static float halfArea(float[] bounds, int b) {
+        float x = bounds[b + 3] - bounds[b];
+        float y = bounds[b + 4] - bounds[b + 1];
+        float z = bounds[b + 5] - bounds[b + 2];
+        return x * y + y * z + z * x;
+    }
+
+    /**
+     * Builds the subtree of a node, depth first with an explicit stack as the surface area
+     * heuristic can make deep trees. Below the subtree size, if set, subtrees are handed over to
+     * new builders instead, each reserving the nodes it may need.
+     */
+    private class SubtreeBuilder implements Callable<Void> {
+        private final float[] mVertices;
+        private final int[] mIndices;
+        private final float[] mTriangleBounds;
+        // Bins of the three axes: triangle counts and bounds.
+        private final int[] mBinCounts = new int[3 * BIN_COUNT];
+        private final float[] mBinBounds = new float[3 * BIN_COUNT * 6];
+        private final float[] mRightAreas = new float[BIN_COUNT];
+        private final float[] mSweepBounds = new float[6];
+        private final float[] mCentroidBounds = new float[6];
+        private final float[] mBinScales = new float[3];
+        // Nodes left to build: node, first and end triangle, depth.
+        private int[] mWork = new int[4 * INITIAL_STACK_SIZE];
+        private int mWorkSize;
+        private int mNextNode;
+        int mUsedNodes;
+        int mMaxDepth;
+        List<SubtreeBuilder> mSubtrees;
+        int mSubtreeSize;
+
+        SubtreeBuilder(float[] vertices, int[] indices, float[] triangleBounds) {
+            mVertices = vertices;
+            mIndices = indices;
+            mTriangleBounds = triangleBounds;
+        }
+
+        /**
+         * Sets the node this builder starts from, and the first of the free nodes it can use.
+         */
+        void setRoot(int node, int start, int end, int depth, int nextNode) {
+            mWorkSize = 0;
+            push(node, start, end, depth);
+            mNextNode = nextNode;
+        }
+
+        @Override
+        public Void call() {
+            while (mWorkSize > 0) {
+                mWorkSize--;
+                int w = mWorkSize * 4;
+                buildNode(mWork[w], mWork[w + 1], mWork[w + 2], mWork[w + 3]);
+            }
+            return null;
+        }
+
+        private void push(int node, int start, int end, int depth) {
+            if (mWork.length < (mWorkSize + 1) * 4) {
+                mWork = Arrays.copyOf(mWork, mWork.length * 2);
+            }
+            int w = mWorkSize * 4;
+            mWork[w] = node;
+            mWork[w + 1] = start;
+            mWork[w + 2] = end;
+            mWork[w + 3] = depth;
+            mWorkSize++;
+        }
+
+        private void buildNode(int node, int start, int end, int depth) {
+            int count = end - start;
+            if (mSubtrees != null && count <= mSubtreeSize) {
+                SubtreeBuilder subtree = new SubtreeBuilder(mVertices, mIndices, mTriangleBounds);
+                subtree.setRoot(node, start, end, depth, mNextNode);
+                // A subtree over n triangles has at most 2n - 2 nodes below its root.
+                mNextNode += 2 * count - 2;
+                mSubtrees.add(subtree);
+                return;
+            }
+            mMaxDepth = Math.max(mMaxDepth, depth);
+            computeBounds(node, start, end);
+            int middle = count > 1 ? split(node, start, end) : -1;
+            if (middle < 0) {
+                makeLeaf(node, start, end);
+                return;
+            }
+            int left = mNextNode;
+            mNextNode += 2;
+            mUsedNodes += 2;
+            mNodes[node * INTS_PER_NODE] = left;
+            mNodes[node * INTS_PER_NODE + 1] = 0;
+            push(left + 1, middle, end, depth + 1);
+            push(left, start, middle, depth + 1);
+        }
+
+        /**
+         * Computes the bounds of the node and of the centroids of its triangles, the centroids
+         * being those of the triangle bounds.
+         */
+        private void computeBounds(int node, int start, int end) {
+            float[] bounds = mNodeBounds;
+            int b = node * FLOATS_PER_NODE;
+            float[] centroidBounds = mCentroidBounds;
+            resetBounds(bounds, b);
+            resetBounds(centroidBounds, 0);
+            float[] triangleBounds = mTriangleBounds;
+            for (int i = start; i < end; i++) {
+                int t = i * 6;
+                for (int axis = 0; axis < 3; axis++) {
+                    float min = triangleBounds[t + axis];
+                    float max = triangleBounds[t + 3 + axis];
+                    float centroid = centroid(triangleBounds, i, axis);
+                    bounds[b + axis] = Math.min(bounds[b + axis], min);
+                    bounds[b + 3 + axis] = Math.max(bounds[b + 3 + axis], max);
+                    centroidBounds[axis] = Math.min(centroidBounds[axis], centroid);
+                    centroidBounds[3 + axis] = Math.max(centroidBounds[3 + axis], centroid);
+                }
+            }
+        }
+
+        /**
+         * Picks the cheapest of the bin boundaries of the three axes by the surface area
+         * heuristic and partitions the triangles of the node around it.
+         *
+         * @return The index of the first triangle of the second child, or -1 if the node should
+         *         be a leaf.
+         */
+        private int split(int node, int start, int end) {
+            int count = end - start;
+            float[] centroidBounds = mCentroidBounds;
+            float[] scales = mBinScales;
+            boolean splittable = false;
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = centroidBounds[3 + axis] - centroidBounds[axis];
+                scales[axis] = extent > 0 ? BIN_COUNT / extent : 0;
+                splittable |= extent > 0;
+            }
+            if (!splittable) {
+                // All the centroids coincide: no boundary separates them, split the range in
+                // halves.
+                return count <= MAX_LEAF_TRIANGLES ? -1 : (start + end) >>> 1;
+            }
+
+            int[] binCounts = mBinCounts;
+            float[] binBounds = mBinBounds;
+            Arrays.fill(binCounts, 0);
+            for (int bin = 0; bin < 3 * BIN_COUNT; bin++) {
+                resetBounds(binBounds, bin * 6);
+            }
+            float[] triangleBounds = mTriangleBounds;
+            for (int i = start; i < end; i++) {
+                int t = i * 6;
+                for (int axis = 0; axis < 3; axis++) {
+                    if (scales[axis] == 0) {
+                        continue;
+                    }
+                    int bin = axis * BIN_COUNT + bin(centroid(triangleBounds, i, axis),
+                            centroidBounds[axis], scales[axis]);
+                    binCounts[bin]++;
+                    growBounds(binBounds, bin * 6, triangleBounds, t);
+                }
+            }
+
+            float bestCost = Float.POSITIVE_INFINITY;
+            int bestAxis = -1;
+            int bestBin = 0;
+            float[] sweep = mSweepBounds;
+            for (int axis = 0; axis < 3; axis++) {
+                if (scales[axis] == 0) {
+                    continue;
+                }
+                int first = axis * BIN_COUNT;
+                // Areas of the bins at or after each boundary, then sweep from the left.
+                resetBounds(sweep, 0);
+                for (int bin = BIN_COUNT - 1; bin > 0; bin--) {
+                    growBounds(sweep, 0, binBounds, (first + bin) * 6);
+                    mRightAreas[bin] = halfArea(sweep, 0);
+                }
+                resetBounds(sweep, 0);
+                int leftCount = 0;
+                for (int bin = 1; bin < BIN_COUNT; bin++) {
+                    growBounds(sweep, 0, binBounds, (first + bin - 1) * 6);
+                    leftCount += binCounts[first + bin - 1];
+                    int rightCount = count - leftCount;
+                    if (leftCount == 0 || rightCount == 0) {
+                        continue;
+                    }
+                    float cost = halfArea(sweep, 0) * leftCount + mRightAreas[bin] * rightCount;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = bin;
+                    }
+                }
+            }
+
+            float nodeArea = halfArea(mNodeBounds, node * FLOATS_PER_NODE);
+            float splitCost = nodeArea > 0
+                    ? TRAVERSAL_COST + INTERSECTION_COST * bestCost / nodeArea
+                    : Float.POSITIVE_INFINITY;
+            if (count <= MAX_LEAF_TRIANGLES && INTERSECTION_COST * count <= splitCost) {
+                return -1;
+            }
+            if (bestAxis < 0) {
+                return (start + end) >>> 1;
+            }
+            return partition(start, end, bestAxis, bestBin);
+        }
+
+        /**
+         * Moves the triangles whose centroid falls in a bin below {@code split} along
+         * {@code axis} to the front of the range.
+         *
+         * @return The index of the first triangle of the upper part.
+         */
+        private int partition(int start, int end, int axis, int split) {
+            int[] order = mTriangleIds;
+            float[] triangleBounds = mTriangleBounds;
+            float min = mCentroidBounds[axis];
+            float scale = mBinScales[axis];
+            int i = start;
+            int j = end - 1;
+            while (true) {
+                while (i <= j && bin(centroid(triangleBounds, i, axis), min, scale) < split) {
+                    i++;
+                }
+                while (i < j && bin(centroid(triangleBounds, j, axis), min, scale) >= split) {
+                    j--;
+                }
+                if (i >= j) {
+                    return i;
+                }
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+                for (int k = 0; k < 6; k++) {
+                    float swapBound = triangleBounds[i * 6 + k];
+                    triangleBounds[i * 6 + k] = triangleBounds[j * 6 + k];
+                    triangleBounds[j * 6 + k] = swapBound;
+                }
+                i++;
+                j--;
+            }
+        }
+
+        /** Makes a leaf of a node, copying its triangles in place. */
+        private void makeLeaf(int node, int start, int end) {
+            mNodes[node * INTS_PER_NODE] = start;
+            mNodes[node * INTS_PER_NODE + 1] = end - start;
+            int[] order = mTriangleIds;
+            for (int i = start; i < end; i++) {
+                for (int corner = 0; corner < 3; corner++) {
+                    System.arraycopy(mVertices, mIndices[order[i] * 3 + corner] * 3, mTriangles,
+                            i * FLOATS_PER_TRIANGLE + corner * 3, 3);
+                }
+            }
+        }
+    }
+
+    private static float centroid(float[] triangleBounds, int triangle, int axis) {
+        return (triangleBounds[triangle * 6 + axis] + triangleBounds[triangle * 6 + 3 + axis])
+                * 0.5f;
+    }
+
+    private static int bin(float centroid, float min, float scale) {
+        return Math.min(BIN_COUNT - 1, (int) ((centroid - min) * scale));
+    }
+
+    private static void resetBounds(float[] bounds, int b) {
+        bounds[b] = bounds[b + 1] = bounds[b + 2] = Float.POSITIVE_INFINITY;
+        bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBounds(float[] bounds, int b, float[] other, int o) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[b + axis] = Math.min(bounds[b + axis], other[o + axis]);
+            bounds[b + 3 + axis] = Math.max(bounds[b + 3 + axis], other[o + 3 + axis]);
+        }
+    }
+}
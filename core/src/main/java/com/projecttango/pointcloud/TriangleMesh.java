@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+/**
+ * Indexed triangle mesh, e.g. a design model loaded by {@link ObjLoader}.
+ */
+public class TriangleMesh {
+    /** Packed x, y, z vertex positions. */
+    public final float[] vertices;
+    /** Three vertex indices per triangle. */
+    public final int[] indices;
+
+    public TriangleMesh(float[] vertices, int[] indices) {
+        if (vertices.length % 3 != 0 || indices.length % 3 != 0) {
+            throw new IllegalArgumentException("Vertex and index counts must be multiples of 3");
+        }
+        int vertexCount = vertices.length / 3;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Vertex index out of range: " + index);
+            }
+        }
+        this.vertices = vertices;
+        this.indices = indices;
+    }
+
+    public int getVertexCount() {
+        return vertices.length / 3;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incremental marching cubes mesher for a {@link TsdfVolume}.
+ * <p/>
+ * Only the bricks modified since the previous {@link #update()} (and the neighbours whose cubes
+ * read voxels from them) are re-meshed. The triangles of each brick are stored in fixed size pages
+ * of a pair of direct vertex and normal buffers shared by all bricks, so re-meshing a brick only
+ * rewrites the pages it owns. Unused vertices are zeroed, which turns them into degenerate
+ * triangles, so the whole buffer can be drawn as a plain triangle list with an identity index
+ * buffer. Pages written since the last upload are tracked so that only those need to be sent to
+ * the GPU.
+ * <p/>
+ * {@link #update()} must be called from the thread integrating the volume.
+ * {@link #uploadDirtyPages(UploadTarget)} can be called from any other thread (typically the
+ * OpenGL thread) and never waits for the mesher.
+ */
+public class TsdfMesher {
+    public static final int FLOATS_PER_VERTEX = 3;
+    /** Number of vertices in a page; a multiple of three so pages hold whole triangles. */
+    public static final int PAGE_VERTICES = 96;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BRICK_SIZE = TsdfVolume.BRICK_SIZE;
+    private static final int NO_PAGE = -1;
+
+    // Cube corners are numbered x + 2 * y + 4 * z. EDGE_INDEX[a][b] is the edge between them.
+    private static final int[][] EDGE_INDEX = new int[8][8];
+    private static final int[] EDGE_CORNER_A = new int[12];
+    private static final int[] EDGE_CORNER_B = new int[12];
+    // Triangles of every cube configuration, as triples of edge indices. Bit c of the
+    // configuration is set when corner c is inside the surface (negative distance).
+    private static final int[][] TRIANGLES = new int[256][];
+    private static final int MAX_TRIANGLES_PER_CUBE;
+
+    static {
+        int edge = 0;
+        for (int corner = 0; corner < 8; corner++) {
+            for (int axis = 0; axis < 3; axis++) {
+                int bit = 1 << axis;
+                if ((corner & bit) == 0) {
+                    EDGE_INDEX[corner][corner | bit] = edge;
+                    EDGE_INDEX[corner | bit][corner] = edge;
+                    EDGE_CORNER_A[edge] = corner;
+                    EDGE_CORNER_B[edge] = corner | bit;
+                    edge++;
+                }
+            }
+        }
+        int maxTriangles = 0;
+        for (int configuration = 0; configuration < 256; configuration++) {
+            TRIANGLES[configuration] = triangulate(configuration);
+            maxTriangles = Math.max(maxTriangles, TRIANGLES[configuration].length / 3);
+        }
+        MAX_TRIANGLES_PER_CUBE = maxTriangles;
+    }
+
+    /**
+     * Receives the vertex data of the pages modified since the previous upload.
+     */
+    public interface UploadTarget {
+        /**
+         * Called once per contiguous run of modified vertices. The positions of the buffers are
+         * set to the first vertex of the run; the callee must not keep references to them.
+         */
+        void uploadVertices(FloatBuffer positions, FloatBuffer normals, int firstVertex,
+                            int vertexCount);
+    }
+
+    private final TsdfVolume mVolume;
+    private final int mMaxVertices;
+    private final int mPageCount;
+    private final FloatBuffer mPositions;
+    private final FloatBuffer mNormals;
+
+    // Page allocation, guarded by mLock.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final int[] mPageNext;
+    private final int[] mFreePages;
+    private int mFreeCount;
+    private final boolean[] mPageDirty;
+    private int mDirtyPageCount;
+    private int mHighWaterPage;
+    private final int[] mBrickFirstPage;
+    private int mDroppedTriangles;
+
+    // Mesher thread scratch data.
+    private final int[] mDirtyBricks;
+    private final int[] mRemeshBricks;
+    private final int[] mRemeshStamp;
+    private int mPass;
+    private final int[] mNeighbours = new int[8];
+    private final float[] mCornerTsdf = new float[8];
+    private final float[] mEdgeX = new float[12];
+    private final float[] mEdgeY = new float[12];
+    private final float[] mEdgeZ = new float[12];
+    private final float[] mBrickPositions;
+    private final float[] mBrickNormals;
+
+    /**
+     * @param volume      The volume to mesh.
+     * @param maxVertices Capacity of the vertex buffers; rounded down to a whole number of pages.
+     */
+    public TsdfMesher(TsdfVolume volume, int maxVertices) {
+        mVolume = volume;
+        mPageCount = maxVertices / PAGE_VERTICES;
+        mMaxVertices = mPageCount * PAGE_VERTICES;
+        mPositions = ByteBuffer
+                .allocateDirect(mMaxVertices * FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mNormals = ByteBuffer
+                .allocateDirect(mMaxVertices * FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        mPageNext = new int[mPageCount];
+        mFreePages = new int[mPageCount];
+        // Hand out low pages first to keep the drawn range short.
+        for (int page = 0; page < mPageCount; page++) {
+            mFreePages[page] = mPageCount - 1 - page;
+        }
+        mFreeCount = mPageCount;
+        mPageDirty = new boolean[mPageCount];
+
+        int maxBricks = volume.getMaxBricks();
+        mBrickFirstPage = new int[maxBricks];
+        Arrays.fill(mBrickFirstPage, NO_PAGE);
+        mDirtyBricks = new int[maxBricks];
+        mRemeshBricks = new int[maxBricks];
+        mRemeshStamp = new int[maxBricks];
+
+        int maxBrickFloats = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE * MAX_TRIANGLES_PER_CUBE * 3
+                * FLOATS_PER_VERTEX;
+        mBrickPositions = new float[maxBrickFloats];
+        mBrickNormals = new float[maxBrickFloats];
+    }
+
+    /** Maximum number of vertices the mesh can hold. */
+    public int getMaxVertices() {
+        return mMaxVertices;
+    }
+
+    /** Number of triangles dropped because the vertex buffers were full. */
+    public int getDroppedTriangleCount() {
+        return mDroppedTriangles;
+    }
+
+    /**
+     * Re-meshes the bricks modified since the previous call.
+     *
+     * @return The number of bricks re-meshed.
+     */
+    public int update() {
+        int dirtyCount = mVolume.drainDirtyBricks(mDirtyBricks);
+        if (dirtyCount == 0) {
+            return 0;
+        }
+        mPass++;
+        int remeshCount = 0;
+        for (int d = 0; d < dirtyCount; d++) {
+            int brick = mDirtyBricks[d];
+            int bx = mVolume.getBrickX(brick);
+            int by = mVolume.getBrickY(brick);
+            int bz = mVolume.getBrickZ(brick);
+            // The cubes of the bricks below on any axis read the first voxel layer of this one.
+            for (int offset = 0; offset < 8; offset++) {
+                int neighbour = offset == 0 ? brick : mVolume.findBrick(
+                        bx - (offset & 1), by - ((offset >> 1) & 1), bz - ((offset >> 2) & 1));
+                if (neighbour >= 0 && mRemeshStamp[neighbour] != mPass) {
+                    mRemeshStamp[neighbour] = mPass;
+                    mRemeshBricks[remeshCount++] = neighbour;
+                }
+            }
+        }
+        for (int r = 0; r < remeshCount; r++) {
+            int brick = mRemeshBricks[r];
+            int floatCount = meshBrick(brick);
+            commitBrick(brick, floatCount / FLOATS_PER_VERTEX);
+        }
+        return remeshCount;
+    }
+
+    /**
+     * Hands the pages modified since the previous upload to {@code target} and returns the number
+     * of vertices to draw. Returns -1 without calling the target if the mesher is committing a
+     * brick at that moment; the pages are then uploaded on a later call.
+     */
+    public int uploadDirtyPages(UploadTarget target) {
+        if (!mLock.tryLock()) {
+            return -1;
+        }
+        try {
+            if (mDirtyPageCount > 0) {
+                int page = 0;
+                while (page < mHighWaterPage) {
+                    if (!mPageDirty[page]) {
+                        page++;
+                        continue;
+                    }
+                    int first = page;
+                    while (page < mHighWaterPage && mPageDirty[page]) {
+                        mPageDirty[page] = false;
+                        mDirtyPageCount--;
+                        page++;
+                    }
+                    int firstVertex = first * PAGE_VERTICES;
+                    mPositions.position(firstVertex * FLOATS_PER_VERTEX);
+                    mNormals.position(firstVertex * FLOATS_PER_VERTEX);
+                    target.uploadVertices(mPositions, mNormals, firstVertex,
+                            (page - first) * PAGE_VERTICES);
+                }
+                // Pages freed above the high water mark aren't drawn, but stay dirty: the GPU still
+                // holds their old triangles, which must be replaced once the mark rises again.
+                mPositions.position(0);
+                mNormals.position(0);
+            }
+            return mHighWaterPage * PAGE_VERTICES;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Runs marching cubes over all the cubes whose lowest corner is in the given brick and writes
+     * the triangles to the brick scratch arrays.
+     *
+     * @return The number of floats written.
+     */
+    private int meshBrick(int brick) {
+        int bx = mVolume.getBrickX(brick);
+        int by = mVolume.getBrickY(brick);
+        int bz = mVolume.getBrickZ(brick);
+        for (int offset = 0; offset < 8; offset++) {
+            mNeighbours[offset] = offset == 0 ? brick : mVolume.findBrick(
+                    bx + (offset & 1), by + ((offset >> 1) & 1), bz + ((offset >> 2) & 1));
+        }
+        float voxelSize = mVolume.getVoxelSize();
+        int floatCount = 0;
+        for (int z = 0; z < BRICK_SIZE; z++) {
+            for (int y = 0; y < BRICK_SIZE; y++) {
+                for (int x = 0; x < BRICK_SIZE; x++) {
+                    int configuration = 0;
+                    boolean observed = true;
+                    for (int corner = 0; corner < 8 && observed; corner++) {
+                        int cx = x + (corner & 1);
+                        int cy = y + ((corner >> 1) & 1);
+                        int cz = z + ((corner >> 2) & 1);
+                        int cornerBrick = mNeighbours[(cx / BRICK_SIZE)
+                                | ((cy / BRICK_SIZE) << 1) | ((cz / BRICK_SIZE) << 2)];
+                        if (cornerBrick < 0) {
+                            observed = false;
+                            break;
+                        }
+                        int voxel = (cx % BRICK_SIZE) + (cy % BRICK_SIZE) * BRICK_SIZE
+                                + (cz % BRICK_SIZE) * BRICK_SIZE * BRICK_SIZE;
+                        if (mVolume.getWeight(cornerBrick, voxel) <= 0) {
+                            observed = false;
+                            break;
+                        }
+                        float tsdf = mVolume.getTsdf(cornerBrick, voxel);
+                        mCornerTsdf[corner] = tsdf;
+                        if (tsdf < 0) {
+                            configuration |= 1 << corner;
+                        }
+                    }
+                    if (!observed) {
+                        continue;
+                    }
+                    int[] triangles = TRIANGLES[configuration];
+                    if (triangles.length == 0) {
+                        continue;
+                    }
+                    // Voxel values are sampled at voxel centers.
+                    float originX = ((bx * BRICK_SIZE) + x + 0.5f) * voxelSize;
+                    float originY = ((by * BRICK_SIZE) + y + 0.5f) * voxelSize;
+                    float originZ = ((bz * BRICK_SIZE) + z + 0.5f) * voxelSize;
+                    for (int e = 0; e < 12; e++) {
+                        int a = EDGE_CORNER_A[e];
+                        int b = EDGE_CORNER_B[e];
+                        float ta = mCornerTsdf[a];
+                        float tb = mCornerTsdf[b];
+                        if ((ta < 0) == (tb < 0)) {
+                            continue;
+                        }
+                        float t = ta / (ta - tb);
+                        mEdgeX[e] = originX + ((a & 1) + t * ((b & 1) - (a & 1))) * voxelSize;
+                        mEdgeY[e] = originY + (((a >> 1) & 1)
+                                + t * (((b >> 1) & 1) - ((a >> 1) & 1))) * voxelSize;
+                        mEdgeZ[e] = originZ + (((a >> 2) & 1)
+                                + t * (((b >> 2) & 1) - ((a >> 2) & 1))) * voxelSize;
+                    }
+                    for (int i = 0; i < triangles.length; i += 3) {
+                        floatCount = emitTriangle(floatCount, triangles[i], triangles[i + 1],
+                                triangles[i + 2]);
+                    }
+                }
+            }
+        }
+        return floatCount;
+    }
+
+    private int emitTriangle(int floatCount, int e0, int e1, int e2) {
+        float ux = mEdgeX[e1] - mEdgeX[e0];
+        float uy = mEdgeY[e1] - mEdgeY[e0];
+        float uz = mEdgeZ[e1] - mEdgeZ[e0];
+        float vx = mEdgeX[e2] - mEdgeX[e0];
+        float vy = mEdgeY[e2] - mEdgeY[e0];
+        float vz = mEdgeZ[e2] - mEdgeZ[e0];
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        floatCount = emitVertex(floatCount, e0, nx, ny, nz);
+        floatCount = emitVertex(floatCount, e1, nx, ny, nz);
+        return emitVertex(floatCount, e2, nx, ny, nz);
+    }
+
+    private int emitVertex(int floatCount, int e, float nx, float ny, float nz) {
+        mBrickPositions[floatCount] = mEdgeX[e];
+        mBrickPositions[floatCount + 1] = mEdgeY[e];
+        mBrickPositions[floatCount + 2] = mEdgeZ[e];
+        mBrickNormals[floatCount] = nx;
+        mBrickNormals[floatCount + 1] = ny;
+        mBrickNormals[floatCount + 2] = nz;
+        return floatCount + FLOATS_PER_VERTEX;
+    }
+
+    /**
+     * Replaces the pages of a brick with the triangles in the brick scratch arrays.
+     */
+    private void commitBrick(int brick, int vertexCount) {
+        mLock.lock();
+        try {
+            // Release the old pages, zeroing them so they draw as degenerate triangles.
+            int page = mBrickFirstPage[brick];
+            while (page != NO_PAGE) {
+                int next = mPageNext[page];
+                fillPage(page, null, 0, PAGE_VERTICES);
+                mFreePages[mFreeCount++] = page;
+                page = next;
+            }
+            mBrickFirstPage[brick] = NO_PAGE;
+
+            int previous = NO_PAGE;
+            for (int first = 0; first < vertexCount; first += PAGE_VERTICES) {
+                if (mFreeCount == 0) {
+                    mDroppedTriangles += (vertexCount - first) / 3;
+                    break;
+                }
+                page = mFreePages[--mFreeCount];
+                mPageNext[page] = NO_PAGE;
+                if (previous == NO_PAGE) {
+                    mBrickFirstPage[brick] = page;
+                } else {
+                    mPageNext[previous] = page;
+                }
+                previous = page;
+                fillPage(page, mBrickPositions, first,
+                        Math.min(PAGE_VERTICES, vertexCount - first));
+                mHighWaterPage = Math.max(mHighWaterPage, page + 1);
+            }
+            while (mHighWaterPage > 0 && isFree(mHighWaterPage - 1)) {
+                mHighWaterPage--;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Writes {@code count} vertices starting at vertex {@code first} of the scratch arrays to a
+     * page and zeroes the rest of it. A null source zeroes the whole page.
+     */
+    private void fillPage(int page, float[] positions, int first, int count) {
+        int base = page * PAGE_VERTICES * FLOATS_PER_VERTEX;
+        int written = 0;
+        if (positions != null) {
+            written = count * FLOATS_PER_VERTEX;
+            mPositions.position(base);
+            mPositions.put(positions, first * FLOATS_PER_VERTEX, written);
+            mNormals.position(base);
+            mNormals.put(mBrickNormals, first * FLOATS_PER_VERTEX, written);
+        }
+        for (int f = written; f < PAGE_VERTICES * FLOATS_PER_VERTEX; f++) {
+            mPositions.put(base + f, 0);
+            mNormals.put(base + f, 0);
+        }
+        mPositions.position(0);
+        mNormals.position(0);
+        if (!mPageDirty[page]) {
+            mPageDirty[page] = true;
+            mDirtyPageCount++;
+        }
+    }
+
+    private boolean isFree(int page) {
+        // Only used to shrink the high water mark, so a linear scan of the free list is fine
+        // compared to the cost of the meshing that precedes it.
+        for (int f = 0; f < mFreeCount; f++) {
+            if (mFreePages[f] == page) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the triangles of a cube configuration. On every face the edge crossings are joined
+     * into segments that cut off the inside corners (which resolves ambiguous faces the same way
+     * for both cubes sharing them, so the mesh has no cracks); the segments are then chained into
+     * closed polygons around the cube and fanned into triangles facing the outside.
+     */
+    private static int[] triangulate(int configuration) {
+        // next[e] is the edge crossing following crossing e on its polygon, or -1.
+        int[] next = new int[12];
+        Arrays.fill(next, -1);
+        int[] crossings = new int[4];
+        boolean[] entering = new boolean[4];
+        for (int axis = 0; axis < 3; axis++) {
+            int u = 1 << ((axis + 1) % 3);
+            int v = 1 << ((axis + 2) % 3);
+            for (int side = 0; side < 2; side++) {
+                int base = side == 0 ? 0 : 1 << axis;
+                // Counter-clockwise seen from outside the cube.
+                int[] corners = side == 1
+                        ? new int[] {base, base | u, base | u | v, base | v}
+                        : new int[] {base, base | v, base | u | v, base | u};
+                int crossingCount = 0;
+                for (int k = 0; k < 4; k++) {
+                    int a = corners[k];
+                    int b = corners[(k + 1) % 4];
+                    boolean insideA = (configuration & (1 << a)) != 0;
+                    boolean insideB = (configuration & (1 << b)) != 0;
+                    if (insideA != insideB) {
+                        crossings[crossingCount] = EDGE_INDEX[a][b];
+                        entering[crossingCount] = insideB;
+                        crossingCount++;
+                    }
+                }
+                // Join every crossing entering the inside with the next one leaving it.
+                for (int k = 0; k < crossingCount; k++) {
+                    if (entering[k]) {
+                        next[crossings[k]] = crossings[(k + 1) % crossingCount];
+                    }
+                }
+            }
+        }
+
+        int[] triangles = new int[12 * 3];
+        int count = 0;
+        boolean[] visited = new boolean[12];
+        int[] polygon = new int[12];
+        for (int start = 0; start < 12; start++) {
+            if (next[start] < 0 || visited[start]) {
+                continue;
+            }
+            int size = 0;
+            for (int e = start; !visited[e]; e = next[e]) {
+                visited[e] = true;
+                polygon[size++] = e;
+            }
+            for (int k = 1; k + 1 < size; k++) {
+                triangles[count++] = polygon[0];
+                triangles[count++] = polygon[k];
+                triangles[count++] = polygon[k + 1];
+            }
+        }
+        return Arrays.copyOf(triangles, count);
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Truncated signed distance field fused from depth frames, in world coordinates.
+ * <p/>
+ * The volume is sparse: voxels are grouped in bricks of {@link #BRICK_SIZE}^3 which are only
+ * allocated when a depth frame observes a surface near them. Bricks are found through a primitive
+ * open addressing hash table keyed on the packed brick coordinates, and the voxel data of all
+ * bricks (signed distance and weight) lives in a single direct buffer outside the Java heap.
+ * <p/>
+ * Each point of a frame updates the voxels along its viewing ray within the truncation distance
+ * of the measured surface. Integration first buckets the points by the bricks their truncation
+ * band crosses and then updates the bricks in parallel, each brick being written by a single
+ * worker so no locking is needed on the voxel data.
+ * <p/>
+ * {@link #integrate} must be called from one thread at a time, and no other access to the volume
+ * may happen concurrently with it.
+ */
+public class TsdfVolume {
+    /** Number of voxels along each edge of a brick. */
+    public static final int BRICK_SIZE = 8;
+    public static final int VOXELS_PER_BRICK = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int FLOATS_PER_VOXEL = 2;
+    private static final int FLOATS_PER_BRICK = VOXELS_PER_BRICK * FLOATS_PER_VOXEL;
+    // A truncation band shorter than a brick crosses at most one brick boundary per axis.
+    private static final int MAX_BRICKS_PER_POINT = 4;
+    // Split the touched bricks in more tasks than threads to balance uneven buckets.
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MIN_BRICKS_PER_TASK = 4;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int EMPTY = -1;
+
+    private final float mVoxelSize;
+    private final float mInverseVoxelSize;
+    private final float mTruncation;
+    private final float mMaxWeight;
+    private final int mMaxBricks;
+    private final int mMaxPoints;
+
+    // Brick hash table.
+    private final int mTableMask;
+    private final int mTableShift;
+    private final long[] mTableKeys;
+    private final int[] mTableBricks;
+
+    // Per brick data.
+    private final int[] mBrickX;
+    private final int[] mBrickY;
+    private final int[] mBrickZ;
+    private final int[] mBrickFrame;
+    private final int[] mBrickTouchedIndex;
+    // Bricks modified since the last drainDirtyBricks call.
+    private final boolean[] mBrickDirty;
+    private final int[] mDirtyBricks;
+    private int mDirtyCount;
+    private final FloatBuffer mVoxels;
+    private int mBrickCount;
+    private int mDroppedBricks;
+
+    // Per frame scratch data.
+    private final float[] mPointX;
+    private final float[] mPointY;
+    private final float[] mPointZ;
+    private final int[] mTouched;
+    private final int[] mPairTouched;
+    private final int[] mPairPoint;
+    private final int[] mBucketStart;
+    private final int[] mBucketPoints;
+    private int mTouchedCount;
+    private int mFrame;
+    private float mOriginX;
+    private float mOriginY;
+    private float mOriginZ;
+
+    private final int mThreadCount;
+    private final ExecutorService mExecutor;
+    private final List<BrickIntegrator> mTasks;
+
+    /**
+     * @param voxelSize  Edge length of a voxel in meters.
+     * @param truncation Truncation distance of the signed distance field in meters. Must be
+     *                   smaller than half a brick.
+     * @param maxBricks  Maximum number of bricks that can be allocated. Each brick takes
+     *                   {@code VOXELS_PER_BRICK * 8} bytes of native memory.
+     * @param maxPoints  Maximum number of points per integrated frame.
+     */
+    public TsdfVolume(float voxelSize, float truncation, int maxBricks, int maxPoints) {
+        if (truncation * 2 >= voxelSize * BRICK_SIZE) {
+            throw new IllegalArgumentException("Truncation distance " + truncation
+                    + " must be smaller than half a brick");
+        }
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1.0f / voxelSize;
+        mTruncation = truncation;
+        mMaxWeight = 64;
+        mMaxBricks = maxBricks;
+        mMaxPoints = maxPoints;
+
+        int tableSize = Integer.highestOneBit(Math.max(2, maxBricks) * 2 - 1) << 1;
+        mTableMask = tableSize - 1;
+        mTableShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        mTableKeys = new long[tableSize];
+        mTableBricks = new int[tableSize];
+        Arrays.fill(mTableBricks, EMPTY);
+
+        mBrickX = new int[maxBricks];
+        mBrickY = new int[maxBricks];
+        mBrickZ = new int[maxBricks];
+        mBrickFrame = new int[maxBricks];
+        mBrickTouchedIndex = new int[maxBricks];
+        mBrickDirty = new boolean[maxBricks];
+        mDirtyBricks = new int[maxBricks];
+        mVoxels = ByteBuffer.allocateDirect(maxBricks * FLOATS_PER_BRICK * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        mPointX = new float[maxPoints];
+        mPointY = new float[maxPoints];
+        mPointZ = new float[maxPoints];
+        mTouched = new int[maxBricks];
+        mPairTouched = new int[maxPoints * MAX_BRICKS_PER_POINT];
+        mPairPoint = new int[maxPoints * MAX_BRICKS_PER_POINT];
+        mBucketStart = new int[maxBricks + 1];
+        mBucketPoints = new int[maxPoints * MAX_BRICKS_PER_POINT];
+
+        mThreadCount = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TsdfIntegration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTasks = new ArrayList<BrickIntegrator>(mThreadCount * TASKS_PER_THREAD);
+    }
+
+    /**
+     * Fuses a depth frame into the volume.
+     *
+     * @param xyz         Packed x, y, z points in depth camera frame. Its position is untouched.
+     * @param pointCount  Number of points in {@code xyz}.
+     * @param translation Position of the depth camera in world frame.
+     * @param rotation    Orientation of the depth camera in world frame as a quaternion in
+     *                    {x, y, z, w} order, the same layout used by {@code TangoPoseData}.
+     *                    Frames are ignored once the volume is released.
+     */
+    public void integrate(FloatBuffer xyz, int pointCount, double[] translation,
+                          double[] rotation) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        int count = Math.min(Math.min(pointCount, mMaxPoints), xyz.limit() / POINT_TO_XYZ);
+        mFrame++;
+        transformPoints(xyz, count, translation, rotation);
+        bucketPointsByBrick(count);
+        if (mTouchedCount == 0) {
+            return;
+        }
+        for (int t = 0; t < mTouchedCount; t++) {
+            int brick = mTouched[t];
+            if (!mBrickDirty[brick]) {
+                mBrickDirty[brick] = true;
+                mDirtyBricks[mDirtyCount++] = brick;
+            }
+        }
+
+        int taskCount = Math.min(mThreadCount * TASKS_PER_THREAD,
+                (mTouchedCount + MIN_BRICKS_PER_TASK - 1) / MIN_BRICKS_PER_TASK);
+        if (mThreadCount == 1 || taskCount <= 1) {
+            integrateBricks(0, mTouchedCount);
+            return;
+        }
+        while (mTasks.size() < taskCount) {
+            mTasks.add(new BrickIntegrator());
+        }
+        int perTask = (mTouchedCount + taskCount - 1) / taskCount;
+        for (int t = 0; t < taskCount; t++) {
+            BrickIntegrator task = mTasks.get(t);
+            task.mStart = Math.min(t * perTask, mTouchedCount);
+            task.mEnd = Math.min(task.mStart + perTask, mTouchedCount);
+        }
+        try {
+            List<Future<Void>> results =
+                    mExecutor.invokeAll(mTasks.subList(0, taskCount));
+            for (int t = 0; t < results.size(); t++) {
+                results.get(t).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            // Released while integrating; the frame is dropped.
+        } catch (ExecutionException e) {
+            throw new RuntimeException("TSDF integration failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the integration worker threads. The volume ignores the frames given to
+     * {@link #integrate} afterwards, including one being integrated on another thread.
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    public float getTruncation() {
+        return mTruncation;
+    }
+
+    /** Number of bricks allocated so far. */
+    public int getBrickCount() {
+        return mBrickCount;
+    }
+
+    /** Number of times a brick couldn't be allocated because the volume was full. */
+    public int getDroppedBrickCount() {
+        return mDroppedBricks;
+    }
+
+    /** Maximum number of bricks the volume can hold. */
+    public int getMaxBricks() {
+        return mMaxBricks;
+    }
+
+    /**
+     * Copies the indices of the bricks modified since the previous call into {@code bricks} and
+     * resets the modified set. Must not be called concurrently with {@link #integrate}.
+     *
+     * @param bricks Destination array, at least {@link #getMaxBricks()} long.
+     * @return Number of brick indices written.
+     */
+    public int drainDirtyBricks(int[] bricks) {
+        int count = mDirtyCount;
+        for (int d = 0; d < count; d++) {
+            int brick = mDirtyBricks[d];
+            bricks[d] = brick;
+            mBrickDirty[brick] = false;
+        }
+        mDirtyCount = 0;
+        return count;
+    }
+
+    /**
+     * Returns the index of the brick at the given brick coordinates, or -1 if it isn't allocated.
+     */
+    public int findBrick(int brickX, int brickY, int brickZ) {
+        long key = packKey(brickX, brickY, brickZ);
+        int slot = hash(key);
+        while (mTableBricks[slot] != EMPTY) {
+            if (mTableKeys[slot] == key) {
+                return mTableBricks[slot];
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        return EMPTY;
+    }
+
+    public int getBrickX(int brick) {
+        return mBrickX[brick];
+    }
+
+    public int getBrickY(int brick) {
+        return mBrickY[brick];
+    }
+
+    public int getBrickZ(int brick) {
+        return mBrickZ[brick];
+    }
+
+    /**
+     * Normalized signed distance, in [-1, 1], of a voxel of a brick. Voxels are indexed as
+     * {@code x + y * BRICK_SIZE + z * BRICK_SIZE^2}.
+     */
+    public float getTsdf(int brick, int voxel) {
+        return mVoxels.get(brick * FLOATS_PER_BRICK + voxel * FLOATS_PER_VOXEL);
+    }
+
+    /**
+     * Integration weight of a voxel of a brick; zero if the voxel was never observed.
+     */
+    public float getWeight(int brick, int voxel) {
+        return mVoxels.get(brick * FLOATS_PER_BRICK + voxel * FLOATS_PER_VOXEL + 1);
+    }
+
+    private void transformPoints(FloatBuffer xyz, int count, double[] translation,
+                                 double[] rotation) {
+        double qx = rotation[0];
+        double qy = rotation[1];
+        double qz = rotation[2];
+        double qw = rotation[3];
+        float r00 = (float) (1 - 2 * (qy * qy + qz * qz));
+        float r01 = (float) (2 * (qx * qy - qz * qw));
+        float r02 = (float) (2 * (qx * qz + qy * qw));
+        float r10 = (float) (2 * (qx * qy + qz * qw));
+        float r11 = (float) (1 - 2 * (qx * qx + qz * qz));
+        float r12 = (float) (2 * (qy * qz - qx * qw));
+        float r20 = (float) (2 * (qx * qz - qy * qw));
+        float r21 = (float) (2 * (qy * qz + qx * qw));
+        float r22 = (float) (1 - 2 * (qx * qx + qy * qy));
+        mOriginX = (float) translation[0];
+        mOriginY = (float) translation[1];
+        mOriginZ = (float) translation[2];
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            float x = xyz.get(j);
+            float y = xyz.get(j + 1);
+            float z = xyz.get(j + 2);
+            mPointX[i] = r00 * x + r01 * y + r02 * z + mOriginX;
+            mPointY[i] = r10 * x + r11 * y + r12 * z + mOriginY;
+            mPointZ[i] = r20 * x + r21 * y + r22 * z + mOriginZ;
+        }
+    }
+
+    /**
+     * Allocates the bricks crossed by the truncation band of every point and groups the point
+     * indices per touched brick (counting sort), so that bricks can be integrated independently.
+     */
+    private void bucketPointsByBrick(int count) {
+        mTouchedCount = 0;
+        int pairCount = 0;
+        int frame = mFrame;
+        float brickScale = mInverseVoxelSize / BRICK_SIZE;
+        for (int i = 0; i < count; i++) {
+            float dx = mPointX[i] - mOriginX;
+            float dy = mPointY[i] - mOriginY;
+            float dz = mPointZ[i] - mOriginZ;
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (distance <= mTruncation) {
+                continue;
+            }
+            float inverseDistance = 1.0f / distance;
+            dx *= inverseDistance;
+            dy *= inverseDistance;
+            dz *= inverseDistance;
+            int lastBrick = EMPTY;
+            // Sampling the band once per voxel can't skip a whole brick.
+            for (float s = -mTruncation; s <= mTruncation; s += mVoxelSize) {
+                int brick = findOrAllocateBrick(
+                        (int) Math.floor((mPointX[i] + dx * s) * brickScale),
+                        (int) Math.floor((mPointY[i] + dy * s) * brickScale),
+                        (int) Math.floor((mPointZ[i] + dz * s) * brickScale));
+                if (brick == EMPTY || brick == lastBrick) {
+                    continue;
+                }
+                lastBrick = brick;
+                if (mBrickFrame[brick] != frame) {
+                    mBrickFrame[brick] = frame;
+                    mBrickTouchedIndex[brick] = mTouchedCount;
+                    mTouched[mTouchedCount++] = brick;
+                }
+                if (pairCount < mPairPoint.length) {
+                    mPairTouched[pairCount] = mBrickTouchedIndex[brick];
+                    mPairPoint[pairCount] = i;
+                    pairCount++;
+                }
+            }
+        }
+
+        Arrays.fill(mBucketStart, 0, mTouchedCount + 1, 0);
+        for (int p = 0; p < pairCount; p++) {
+            mBucketStart[mPairTouched[p] + 1]++;
+        }
+        for (int t = 0; t < mTouchedCount; t++) {
+            mBucketStart[t + 1] += mBucketStart[t];
+        }
+        // Use the start of every bucket as its fill cursor, then shift the starts back.
+        for (int p = 0; p < pairCount; p++) {
+            int t = mPairTouched[p];
+            mBucketPoints[mBucketStart[t]++] = mPairPoint[p];
+        }
+        for (int t = mTouchedCount; t > 0; t--) {
+            mBucketStart[t] = mBucketStart[t - 1];
+        }
+        mBucketStart[0] = 0;
+    }
+
+    /**
+     * Updates the voxels of the touched bricks in [start, end) with the points bucketed on them.
+     * Only writes to the voxels of those bricks, so disjoint ranges can run concurrently.
+     */
+    private void integrateBricks(int start, int end) {
+        float step = mVoxelSize * 0.5f;
+        float inverseTruncation = 1.0f / mTruncation;
+        for (int t = start; t < end; t++) {
+            int brick = mTouched[t];
+            int minX = mBrickX[brick] * BRICK_SIZE;
+            int minY = mBrickY[brick] * BRICK_SIZE;
+            int minZ = mBrickZ[brick] * BRICK_SIZE;
+            int brickBase = brick * FLOATS_PER_BRICK;
+            for (int b = mBucketStart[t]; b < mBucketStart[t + 1]; b++) {
+                int i = mBucketPoints[b];
+                float dx = mPointX[i] - mOriginX;
+                float dy = mPointY[i] - mOriginY;
+                float dz = mPointZ[i] - mOriginZ;
+                float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                float inverseDistance = 1.0f / distance;
+                dx *= inverseDistance;
+                dy *= inverseDistance;
+                dz *= inverseDistance;
+                int lastVoxel = EMPTY;
+                for (float s = -mTruncation; s <= mTruncation; s += step) {
+                    int vx = (int) Math.floor((mPointX[i] + dx * s) * mInverseVoxelSize) - minX;
+                    int vy = (int) Math.floor((mPointY[i] + dy * s) * mInverseVoxelSize) - minY;
+                    int vz = (int) Math.floor((mPointZ[i] + dz * s) * mInverseVoxelSize) - minZ;
+                    if (vx < 0 || vy < 0 || vz < 0
+                            || vx >= BRICK_SIZE || vy >= BRICK_SIZE || vz >= BRICK_SIZE) {
+                        continue;
+                    }
+                    int voxel = vx + vy * BRICK_SIZE + vz * BRICK_SIZE * BRICK_SIZE;
+                    if (voxel == lastVoxel) {
+                        continue;
+                    }
+                    lastVoxel = voxel;
+                    // Positive in front of the surface, negative behind it.
+                    float tsdf = -s * inverseTruncation;
+                    int index = brickBase + voxel * FLOATS_PER_VOXEL;
+                    float weight = mVoxels.get(index + 1);
+                    float fused = (mVoxels.get(index) * weight + tsdf) / (weight + 1);
+                    mVoxels.put(index, fused);
+                    mVoxels.put(index + 1, Math.min(weight + 1, mMaxWeight));
+                }
+            }
+        }
+    }
+
+    private int findOrAllocateBrick(int brickX, int brickY, int brickZ) {
+        long key = packKey(brickX, brickY, brickZ);
+        int slot = hash(key);
+        while (mTableBricks[slot] != EMPTY) {
+            if (mTableKeys[slot] == key) {
+                return mTableBricks[slot];
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        if (mBrickCount == mMaxBricks) {
+            mDroppedBricks++;
+            return EMPTY;
+        }
+        int brick = mBrickCount++;
+        mTableKeys[slot] = key;
+        mTableBricks[slot] = brick;
+        mBrickX[brick] = brickX;
+        mBrickY[brick] = brickY;
+        mBrickZ[brick] = brickZ;
+        // Fresh bricks are unobserved: zero weight everywhere.
+        int base = brick * FLOATS_PER_BRICK;
+        for (int v = 0; v < FLOATS_PER_BRICK; v += FLOATS_PER_VOXEL) {
+            mVoxels.put(base + v, 1.0f);
+            mVoxels.put(base + v + 1, 0.0f);
+        }
+        return brick;
+    }
+
+    private static long packKey(int x, int y, int z) {
+        return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((y & COORDINATE_MASK) << COORDINATE_BITS)
+                | (z & COORDINATE_MASK);
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mTableShift) & mTableMask;
+    }
+
+    private class BrickIntegrator implements Callable<Void> {
+        int mStart;
+        int mEnd;
+
+        @Override
+        public Void call() {
+            integrateBricks(mStart, mEnd);
+            return null;
+        }
+    }
+}
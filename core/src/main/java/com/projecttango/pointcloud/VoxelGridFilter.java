@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Voxel grid downsampling filter: replaces all the points falling in the same cubic voxel by their
+ * centroid.
+ * <p/>
+ * Voxels are accumulated in a primitive open addressing hash table keyed on the voxel coordinates
+ * packed in a long. Slots are tagged with a generation number instead of being cleared, so
+ * starting a new frame is O(1) and {@link #filter} never allocates.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public class VoxelGridFilter implements PointCloudFilter {
+    private static final int POINT_TO_XYZ = 3;
+    // Voxel coordinates are packed in 21 bits each, so the grid wraps around every 2^21 voxels.
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private final int mMaxPoints;
+    private final int mTableMask;
+    private final int mTableShift;
+    private final long[] mKeys;
+    private final int[] mGenerations;
+    private final int[] mVoxelIndex;
+    // Per voxel accumulators, in insertion order.
+    private final float[] mSumX;
+    private final float[] mSumY;
+    private final float[] mSumZ;
+    private final int[] mCounts;
+    private int mGeneration;
+    private float mVoxelSize;
+    private float mInverseVoxelSize;
+
+    /**
+     * @param maxPoints Maximum number of points in a filtered point cloud.
+     * @param voxelSize Edge length of the voxels in meters.
+     */
+    public VoxelGridFilter(int maxPoints, float voxelSize) {
+        mMaxPoints = maxPoints;
+        // Keep the load factor at or below one half.
+        int tableSize = Integer.highestOneBit(Math.max(2, maxPoints) * 2 - 1) << 1;
+        mTableMask = tableSize - 1;
+        mTableShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+        mKeys = new long[tableSize];
+        mGenerations = new int[tableSize];
+        mVoxelIndex = new int[tableSize];
+        mSumX = new float[maxPoints];
+        mSumY = new float[maxPoints];
+        mSumZ = new float[maxPoints];
+        mCounts = new int[maxPoints];
+        setVoxelSize(voxelSize);
+    }
+
+    /**
+     * Sets the edge length of the voxels in meters. Takes effect on the next {@link #filter} call.
+     */
+    public void setVoxelSize(float voxelSize) {
+        if (!(voxelSize > 0)) {
+            throw new IllegalArgumentException("Voxel size must be positive: " + voxelSize);
+        }
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1.0f / voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    /**
+     * Downsamples {@code pointCount} packed x, y, z points from {@code source} and writes one
+     * centroid per occupied voxel to {@code destination}, starting at index 0. The destination is
+     * flipped so it is ready to be read; the position of the source is left untouched.
+     *
+     * @return The number of points written to {@code destination}.
+     */
+    @Override
+    public int filter(FloatBuffer source, int pointCount, FloatBuffer destination) {
+        int count = Math.min(Math.min(pointCount, mMaxPoints), source.limit() / POINT_TO_XYZ);
+        count = Math.min(count, destination.capacity() / POINT_TO_XYZ);
+        int generation = nextGeneration();
+        float inverseVoxelSize = mInverseVoxelSize;
+        int voxelCount = 0;
+
+        for (int i = 0, j = 0; i < count; i++, j += POINT_TO_XYZ) {
+            float x = source.get(j);
+            float y = source.get(j + 1);
+            float z = source.get(j + 2);
+            long key = packKey((int) Math.floor(x * inverseVoxelSize),
+                    (int) Math.floor(y * inverseVoxelSize),
+                    (int) Math.floor(z * inverseVoxelSize));
+
+            int slot = hash(key);
+            while (mGenerations[slot] == generation && mKeys[slot] != key) {
+                slot = (slot + 1) & mTableMask;
+            }
+            int voxel;
+            if (mGenerations[slot] != generation) {
+                mGenerations[slot] = generation;
+                mKeys[slot] = key;
+                voxel = voxelCount++;
+                mVoxelIndex[slot] = voxel;
+                mSumX[voxel] = 0;
+                mSumY[voxel] = 0;
+                mSumZ[voxel] = 0;
+                mCounts[voxel] = 0;
+            } else {
+                voxel = mVoxelIndex[slot];
+            }
+            mSumX[voxel] += x;
+            mSumY[voxel] += y;
+            mSumZ[voxel] += z;
+            mCounts[voxel]++;
+        }
+
+        destination.clear();
+        for (int voxel = 0; voxel < voxelCount; voxel++) {
+            float inverseCount = 1.0f / mCounts[voxel];
+            destination.put(mSumX[voxel] * inverseCount);
+            destination.put(mSumY[voxel] * inverseCount);
+            destination.put(mSumZ[voxel] * inverseCount);
+        }
+        destination.flip();
+        return voxelCount;
+    }
+
+    private int nextGeneration() {
+        mGeneration++;
+        if (mGeneration == 0) {
+            // Wrapped around: stale tags could now collide with new generations.
+            Arrays.fill(mGenerations, 0);
+            mGeneration = 1;
+        }
+        return mGeneration;
+    }
+
+    private static long packKey(int vx, int vy, int vz) {
+        return ((vx & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((vy & COORDINATE_MASK) << COORDINATE_BITS)
+                | (vz & COORDINATE_MASK);
+    }
+
+    private int hash(long key) {
+        // Fibonacci hashing: the top bits of the product are well mixed.
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mTableShift) & mTableMask;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DepthFramePipelineTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private DepthFramePipeline mPipeline;
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void framesGoThroughEveryStageInOrderAndReturnToThePool() throws Exception {
+        DepthFramePool pool = new DepthFramePool(10, 8);
+        mPipeline = new DepthFramePipeline(pool, 4);
+        final List<String> visits = Collections.synchronizedList(new ArrayList<String>());
+        mPipeline.addStage("first", new RecordingStage("first", visits));
+        mPipeline.addStage("second", new RecordingStage("second", visits));
+
+        for (int i = 0; i < 3; i++) {
+            submit(i);
+        }
+        awaitFreeCount(pool, 8);
+        assertEquals(Arrays.asList("first 0", "first 1", "first 2"), filter(visits, "first"));
+        assertEquals(Arrays.asList("second 0", "second 1", "second 2"),
+                filter(visits, "second"));
+        assertEquals(3, mPipeline.getProcessedCount(0));
+        assertEquals(3, mPipeline.getProcessedCount(1));
+        assertEquals(0, mPipeline.getDroppedCount(0));
+        assertEquals("second", mPipeline.getStageName(1));
+    }
+
+    @Test
+    public void slowStageDropsTheOldestQueuedFrame() throws Exception {
+        DepthFramePool pool = new DepthFramePool(10, 5);
+        mPipeline = new DepthFramePipeline(pool, 2);
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final List<String> visits = Collections.synchronizedList(new ArrayList<String>());
+        mPipeline.addStage("slow", new DepthFramePipeline.Stage() {
+            @Override
+            public void process(DepthFrame frame) {
+                visits.add("slow " + frame.captureNanos);
+                busy.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        submit(0);
+        assertTrue(busy.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        submit(1);
+        submit(2);
+        assertEquals(2, mPipeline.getQueueDepth(0));
+        assertEquals(3, pool.getFrameCount() - pool.getFreeCount());
+
+        // The queue is full: frame 1 makes room for frame 3 and goes straight back to the pool.
+        submit(3);
+        assertEquals(1, mPipeline.getDroppedCount(0));
+        assertEquals(2, mPipeline.getQueueDepth(0));
+        assertEquals(2, mPipeline.getMaxQueueDepth(0));
+        assertEquals(3, pool.getFrameCount() - pool.getFreeCount());
+
+        proceed.countDown();
+        awaitFreeCount(pool, 5);
+        assertEquals(Arrays.asList("slow 0", "slow 2", "slow 3"), visits);
+        assertEquals(3, mPipeline.getProcessedCount(0));
+    }
+
+    @Test
+    public void frameRetainedByAStageStaysOutOfThePool() throws Exception {
+        DepthFramePool pool = new DepthFramePool(10, 2);
+        mPipeline = new DepthFramePipeline(pool, 1);
+        final DepthFrame[] kept = new DepthFrame[1];
+        mPipeline.addStage("keep", new DepthFramePipeline.Stage() {
+            @Override
+            public void process(DepthFrame frame) {
+                kept[0] = frame.retain();
+            }
+        });
+
+        submit(0);
+        awaitProcessedCount(0, 1);
+        awaitFreeCount(pool, 1);
+        assertEquals(1, kept[0].getReferenceCount());
+        kept[0].release();
+        assertEquals(2, pool.getFreeCount());
+    }
+
+    @Test
+    public void captureDropsPointCloudsWhenThePoolIsExhausted() {
+        mPipeline = new DepthFramePipeline(new DepthFramePool(10, 1), 1);
+        mPipeline.addStage("idle", new RecordingStage("idle", new ArrayList<String>()));
+        assertNotNull(mPipeline.acquireFrame());
+        assertNull(mPipeline.acquireFrame());
+        assertEquals(1, mPipeline.getCaptureDroppedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stagesCannotBeAddedOnceStarted() {
+        mPipeline = new DepthFramePipeline(new DepthFramePool(10, 1), 1);
+        mPipeline.acquireFrame();
+        mPipeline.addStage("late", new RecordingStage("late", new ArrayList<String>()));
+    }
+
+    private void submit(long id) {
+        DepthFrame frame = mPipeline.acquireFrame();
+        assertNotNull(frame);
+        frame.captureNanos = id;
+        mPipeline.submit(frame);
+    }
+
+    private void awaitProcessedCount(int stage, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mPipeline.getProcessedCount(stage) < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mPipeline.getProcessedCount(stage));
+    }
+
+    private static void awaitFreeCount(DepthFramePool pool, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (pool.getFreeCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, pool.getFreeCount());
+    }
+
+    private static List<String> filter(List<String> visits, String stage) {
+        List<String> result = new ArrayList<String>();
+        synchronized (visits) {
+            for (String visit : visits) {
+                if (visit.startsWith(stage + " ")) {
+                    result.add(visit);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class RecordingStage implements DepthFramePipeline.Stage {
+        private final String mName;
+        private final List<String> mVisits;
+
+        RecordingStage(String name, List<String> visits) {
+            mName = name;
+            mVisits = visits;
+        }
+
+        @Override
+        public void process(DepthFrame frame) {
+            mVisits.add(mName + " " + frame.captureNanos);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DepthFramePoolTest {
+    @Test
+    public void acquireHandsOutFramesUntilExhausted() {
+        DepthFramePool pool = new DepthFramePool(10, 2);
+        DepthFrame first = pool.acquire();
+        DepthFrame second = pool.acquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1, first.getReferenceCount());
+        assertEquals(0, pool.getFreeCount());
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getExhaustedCount());
+    }
+
+    @Test
+    public void frameReturnsToPoolOnLastRelease() {
+        DepthFramePool pool = new DepthFramePool(10, 1);
+        DepthFrame frame = pool.acquire();
+        frame.retain();
+        frame.retain();
+        assertEquals(3, frame.getReferenceCount());
+        frame.release();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        assertSame(frame, pool.acquire());
+    }
+
+    @Test
+    public void reacquiredFrameIsReset() {
+        DepthFramePool pool = new DepthFramePool(10, 1);
+        DepthFrame frame = pool.acquire();
+        frame.copyFrom(FloatBuffer.wrap(new float[]{1, 2, 3}), 1, 4.0);
+        frame.setPose(new double[3], new double[]{0, 0, 0, 1}, true);
+        frame.captureNanos = 5;
+        frame.release();
+        frame = pool.acquire();
+        assertEquals(1, frame.getReferenceCount());
+        assertEquals(0, frame.pointCount);
+        assertFalse(frame.poseValid);
+        assertEquals(0, frame.captureNanos);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingTooOftenThrows() {
+        DepthFrame frame = new DepthFramePool(10, 1).acquire();
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void tryRetainFailsOnReleasedFrame() {
+        DepthFramePool pool = new DepthFramePool(10, 1);
+        DepthFrame frame = pool.acquire();
+        assertTrue(frame.tryRetain());
+        frame.release();
+        frame.release();
+        assertFalse(frame.tryRetain());
+        assertEquals(0, frame.getReferenceCount());
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void retainingReleasedFrameThrowsAndLeavesItReleased() {
+        DepthFramePool pool = new DepthFramePool(10, 1);
+        DepthFrame frame = pool.acquire();
+        frame.release();
+        try {
+            frame.retain();
+            fail("Retained a released frame");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        assertEquals(0, frame.getReferenceCount());
+        // The failed retain must not resurrect the frame for a second trip to the pool.
+        assertSame(frame, pool.acquire());
+        assertNull(pool.acquire());
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void copyFromTruncatesToCapacity() {
+        DepthFrame frame = new DepthFramePool(2, 1).acquire();
+        FloatBuffer source = FloatBuffer.wrap(new float[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        source.position(3);
+        frame.copyFrom(source, 3, 1.0);
+        assertEquals(2, frame.pointCount);
+        assertEquals(6, frame.xyz.limit());
+        assertEquals(6f, frame.xyz.get(5), 0f);
+        assertEquals(3, source.position());
+    }
+
+    @Test
+    public void concurrentRetainAndReleaseRecycleOnce() throws Exception {
+        final int threadCount = 4;
+        final int rounds = 1000;
+        final DepthFramePool pool = new DepthFramePool(1, 1);
+        for (int round = 0; round < rounds; round++) {
+            final DepthFrame frame = pool.acquire();
+            assertNotNull(frame);
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                frame.retain();
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        frame.release();
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            frame.release();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, frame.getReferenceCount());
+            assertEquals(1, pool.getFreeCount());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DepthImageTest {
+    // An 80x60 camera downsampled to a 40x30 image with a focal length of 20 pixels.
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final float FOCAL_LENGTH = 20;
+
+    @Test
+    public void keepsTheNearestPointOfEveryPixel() {
+        DepthImage image = newImage();
+        FloatBuffer cloud = FloatBuffer.wrap(new float[]{0.2f, 0.1f, 2, 0.1f, 0.05f, 1});
+        image.project(cloud, 2);
+        int pixel = image.pixelAt(0.1f, 0.05f, 1);
+        assertEquals(pixel, image.pixelAt(0.2f, 0.1f, 2));
+        assertEquals(1, image.getPixelCount());
+        assertEquals(1, image.getPointIndex(pixel));
+        assertEquals(1, image.getDepth(pixel), 0f);
+        float[] point = new float[3];
+        assertTrue(image.getPoint(pixel, point));
+        assertEquals(0.1f, point[0], 0f);
+        assertEquals(0, cloud.position());
+    }
+
+    @Test
+    public void leavesOutPointsBehindTheCameraOrOutsideTheImage() {
+        DepthImage image = newImage();
+        assertEquals(-1, image.pixelAt(0, 0, -1));
+        assertEquals(-1, image.pixelAt(0, 0, 0));
+        assertEquals(-1, image.pixelAt(5, 0, 1));
+        image.project(FloatBuffer.wrap(new float[]{0, 0, -1, 5, 0, 1, 0, 0, 1}), 3);
+        assertEquals(1, image.getPixelCount());
+        assertEquals(2, image.getPointIndex(image.pixelAt(0, 0, 1)));
+    }
+
+    @Test
+    public void projectingReplacesThePreviousCloud() {
+        DepthImage image = newImage();
+        image.project(FloatBuffer.wrap(new float[]{0, 0, 1}), 1);
+        int pixel = image.pixelAt(0, 0, 1);
+        assertTrue(image.hasPoint(pixel));
+        image.project(FloatBuffer.wrap(new float[]{0.5f, 0.5f, 1}), 1);
+        assertFalse(image.hasPoint(pixel));
+        assertEquals(-1, image.getPointIndex(pixel));
+        assertEquals(0, image.getDepth(pixel), 0f);
+        assertEquals(1, image.getPixelCount());
+    }
+
+    @Test
+    public void mapsNormalizedCoordinatesToPixels() {
+        DepthImage image = newImage();
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        assertEquals(0, image.pixelAt(0f, 0f));
+        assertEquals(WIDTH * HEIGHT - 1, image.pixelAt(0.999f, 0.999f));
+        assertEquals(HEIGHT / 2 * WIDTH + WIDTH / 2, image.pixelAt(0.5f, 0.5f));
+        assertEquals(-1, image.pixelAt(1f, 0.5f));
+    }
+
+    @Test
+    public void findsPointsAroundAPixel() {
+        DepthImage image = newImage();
+        image.project(FloatBuffer.wrap(new float[]{0, 0, 1, 0.1f, 0, 1}), 2);
+        int pixel = image.pixelAt(0, 0, 1);
+        int right = image.pixelAt(0.1f, 0, 1);
+        assertEquals(pixel + 2, right);
+        assertEquals(pixel, image.findNearestPixel(pixel - 2 * WIDTH, 2));
+        assertEquals(-1, image.findNearestPixel(pixel - 2 * WIDTH, 1));
+        assertEquals(right, image.findNearestPixel(right + 1, 2));
+        int[] pixels = new int[8];
+        assertEquals(2, image.gatherWindow(pixel + 1, 1, pixels));
+        assertEquals(1, image.gatherWindow(pixel + 1, 1, new int[1]));
+    }
+
+    @Test
+    public void growsRegionsUpToDepthDiscontinuities() {
+        DepthImage image = newImage();
+        int boxPixels = projectWallWithBox(image);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        float[] wall = {0, 0, 1, -2};
+        assertEquals(WIDTH * HEIGHT - boxPixels, image.growRegion(0, wall, 0.01f, pixels));
+        assertEquals(0, pixels[0]);
+        int center = image.pixelAt(0.5f, 0.5f);
+        assertEquals(0, image.growRegion(center, wall, 0.01f, pixels));
+        float[] box = {0, 0, 1, -1};
+        assertEquals(boxPixels, image.growRegion(center, box, 0.01f, pixels));
+        // Growing stops when the output is full.
+        assertEquals(10, image.growRegion(0, wall, 0.01f, new int[10]));
+    }
+
+    @Test
+    public void fitsPlanesFacingTheCamera() {
+        DepthImage image = newImage();
+        projectWallWithBox(image);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        int count = image.growRegion(0, new float[]{0, 0, 1, -2}, 0.01f, pixels);
+        float[] plane = new float[4];
+        assertTrue(image.fitPlane(pixels, count, plane));
+        assertEquals(0, plane[0], 1e-4f);
+        assertEquals(0, plane[1], 1e-4f);
+        assertEquals(-1, plane[2], 1e-4f);
+        assertEquals(2, plane[3], 1e-4f);
+        assertFalse(image.fitPlane(pixels, 2, plane));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyImages() {
+        new DepthImage(0, 60, 40, 40, 40, 30, 2);
+    }
+
+    private static DepthImage newImage() {
+        return new DepthImage(WIDTH * 2, HEIGHT * 2, FOCAL_LENGTH * 2, FOCAL_LENGTH * 2, WIDTH,
+                HEIGHT, 2);
+    }
+
+    /**
+     * Projects a point per pixel of a wall 2m away with a box 1m away in the middle.
+     *
+     * @return The number of pixels of the box.
+     */
+    private static int projectWallWithBox(DepthImage image) {
+        FloatBuffer cloud = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        int boxPixels = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                float x = (column + 0.5f - WIDTH / 2) / FOCAL_LENGTH;
+                float y = (row + 0.5f - HEIGHT / 2) / FOCAL_LENGTH;
+                float depth = 2;
+                if (Math.abs(x) < 0.2f && Math.abs(y) < 0.2f) {
+                    depth = 1;
+                    boxPixels++;
+                }
+                cloud.put(x * depth).put(y * depth).put(depth);
+            }
+        }
+        cloud.flip();
+        image.project(cloud, WIDTH * HEIGHT);
+        assertEquals(WIDTH * HEIGHT, image.getPixelCount());
+        return boxPixels;
+    }
+}
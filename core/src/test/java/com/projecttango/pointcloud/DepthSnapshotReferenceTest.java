@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DepthSnapshotReferenceTest {
+    @Test
+    public void nothingToAcquireBeforePublishing() {
+        DepthSnapshotReference reference = new DepthSnapshotReference();
+        assertNull(reference.acquire());
+        assertEquals(0, reference.getVersion());
+    }
+
+    @Test
+    public void acquiredSnapshotHoldsItsFrame() {
+        DepthFramePool pool = new DepthFramePool(10, 2);
+        DepthSnapshotReference reference = new DepthSnapshotReference();
+        DepthFrame frame = pool.acquire();
+        assertEquals(1, reference.publish(frame));
+        frame.release();
+        assertEquals(1, frame.getReferenceCount());
+
+        DepthSnapshot snapshot = reference.acquire();
+        assertSame(frame, snapshot.frame);
+        assertEquals(1, snapshot.version);
+        assertEquals(2, frame.getReferenceCount());
+        snapshot.release();
+        assertEquals(1, frame.getReferenceCount());
+    }
+
+    @Test
+    public void replacedFrameReturnsToThePoolOnceReadersAreDone() {
+        DepthFramePool pool = new DepthFramePool(10, 2);
+        DepthSnapshotReference reference = new DepthSnapshotReference();
+        DepthFrame first = pool.acquire();
+        reference.publish(first);
+        first.release();
+        DepthSnapshot reader = reference.acquire();
+
+        DepthFrame second = pool.acquire();
+        assertEquals(2, reference.publish(second));
+        second.release();
+        assertEquals(2, reference.getVersion());
+        assertEquals(0, pool.getFreeCount());
+        reader.release();
+        assertEquals(1, pool.getFreeCount());
+
+        reference.clear();
+        assertNull(reference.acquire());
+        assertEquals(2, pool.getFreeCount());
+    }
+
+    @Test
+    public void readersNeverSeeARecycledFrame() throws Exception {
+        final int readerCount = 3;
+        final int publishCount = 20000;
+        final DepthFramePool pool = new DepthFramePool(1, readerCount + 2);
+        final DepthSnapshotReference reference = new DepthSnapshotReference();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread[] readers = new Thread[readerCount];
+        for (int r = 0; r < readerCount; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        DepthSnapshot snapshot = reference.acquire();
+                        if (snapshot == null) {
+                            continue;
+                        }
+                        // The writer stamps every frame with its version before publishing it,
+                        // so a frame recycled while held would show a newer stamp.
+                        for (int i = 0; i < 10; i++) {
+                            if (snapshot.frame.timestamp != snapshot.version) {
+                                failure.compareAndSet(null, "Frame of version "
+                                        + snapshot.version + " reused for "
+                                        + snapshot.frame.timestamp);
+                            }
+                        }
+                        snapshot.release();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int version = 1; version <= publishCount; version++) {
+            DepthFrame frame;
+            while ((frame = pool.acquire()) == null) {
+                Thread.yield();
+            }
+            frame.timestamp = version;
+            reference.publish(frame);
+            frame.release();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        reference.clear();
+        assertEquals(pool.getFrameCount(), pool.getFreeCount());
+    }
+}
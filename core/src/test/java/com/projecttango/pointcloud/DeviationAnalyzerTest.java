@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviationAnalyzerTest {
+    private static final float MAX_DISTANCE = 0.1f;
+    private static final float TOLERANCE = 0.015f;
+    private static final double[] ORIGIN = {0, 0, 0};
+    private static final double[] IDENTITY = {0, 0, 0, 1};
+    private static final float EPSILON = 1e-5f;
+
+    private DeviationAnalyzer mAnalyzer;
+
+    @Before
+    public void setUp() {
+        mAnalyzer = new DeviationAnalyzer(new TriangleBvh(floor()), 50000, MAX_DISTANCE,
+                TOLERANCE);
+    }
+
+    @After
+    public void tearDown() {
+        mAnalyzer.release();
+    }
+
+    @Test
+    public void measuresSignedDeviationsAndLeavesClutterOut() {
+        FloatBuffer points = FloatBuffer.wrap(new float[]{
+                0, 0.01f, 0,
+                0.5f, -0.02f, 0.5f,
+                0, 0.5f, 0,
+        });
+        points.position(3);
+        assertEquals(3, mAnalyzer.analyze(points, 3, ORIGIN, IDENTITY));
+        assertEquals(3, points.position());
+        assertEquals(3, mAnalyzer.getPointCount());
+        float[] deviations = mAnalyzer.getDeviations();
+        assertEquals(0.01f, deviations[0], EPSILON);
+        assertEquals(-0.02f, deviations[1], EPSILON);
+        assertTrue(Float.isNaN(deviations[2]));
+
+        DeviationStats stats = new DeviationStats();
+        mAnalyzer.getFrameStats(stats);
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getUnmatchedCount());
+        assertEquals(1, stats.getWithinToleranceCount());
+        assertEquals(0.5f, stats.getWithinToleranceFraction(), 0);
+        assertEquals(-0.005f, stats.getMean(), EPSILON);
+        assertEquals(-0.02f, stats.getMin(), EPSILON);
+        assertEquals(0.01f, stats.getMax(), EPSILON);
+    }
+
+    @Test
+    public void movesPointsToTheModelFrameWithThePose() {
+        // Depth camera one meter above the floor, turned to look down.
+        double angle = Math.PI / 2;
+        double[] rotation = {Math.sin(angle / 2), 0, 0, Math.cos(angle / 2)};
+        FloatBuffer points = FloatBuffer.wrap(new float[]{0.2f, 0, 0.99f, 0, 0.3f, 1.03f});
+        mAnalyzer.analyze(points, 2, new double[]{0, 1, 0}, rotation);
+        assertEquals(0.01f, mAnalyzer.getDeviations()[0], EPSILON);
+        assertEquals(-0.03f, mAnalyzer.getDeviations()[1], EPSILON);
+    }
+
+    @Test
+    public void accumulatesTotalsAcrossFrames() {
+        FloatBuffer first = FloatBuffer.wrap(new float[]{0, 0.01f, 0});
+        FloatBuffer second = FloatBuffer.wrap(new float[]{0, 0.03f, 0, 0, 0.5f, 0});
+        mAnalyzer.analyze(first, 1, ORIGIN, IDENTITY);
+        mAnalyzer.analyze(second, 2, ORIGIN, IDENTITY);
+
+        DeviationStats stats = new DeviationStats();
+        mAnalyzer.getFrameStats(stats);
+        assertEquals(1, stats.getCount());
+        assertEquals(0.03f, stats.getMean(), EPSILON);
+        mAnalyzer.getTotalStats(stats);
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getUnmatchedCount());
+        assertEquals(0.02f, stats.getMean(), EPSILON);
+        assertEquals((float) Math.sqrt(0.0005), stats.getRms(), EPSILON);
+
+        mAnalyzer.resetTotalStats();
+        mAnalyzer.getTotalStats(stats);
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getUnmatchedCount());
+    }
+
+    @Test
+    public void largeFramesSplitAcrossThreadsMatchPointByPoint() {
+        int pointCount = 40000;
+        float[] xyz = new float[pointCount * 3];
+        Random random = new Random(5);
+        int matched = 0;
+        for (int i = 0; i < pointCount; i++) {
+            xyz[i * 3] = random.nextFloat() * 1.8f - 0.9f;
+            xyz[i * 3 + 1] = random.nextFloat() * 0.3f - 0.15f;
+            xyz[i * 3 + 2] = random.nextFloat() * 1.8f - 0.9f;
+            if (Math.abs(xyz[i * 3 + 1]) <= MAX_DISTANCE) {
+                matched++;
+            }
+        }
+        assertEquals(pointCount, mAnalyzer.analyze(FloatBuffer.wrap(xyz), pointCount, ORIGIN,
+                IDENTITY));
+        float[] deviations = mAnalyzer.getDeviations();
+        for (int i = 0; i < pointCount; i++) {
+            float y = xyz[i * 3 + 1];
+            if (Math.abs(y) <= MAX_DISTANCE) {
+                assertEquals(y, deviations[i], EPSILON);
+            } else {
+                assertTrue(Float.isNaN(deviations[i]));
+            }
+        }
+        DeviationStats stats = new DeviationStats();
+        mAnalyzer.getFrameStats(stats);
+        assertEquals(matched, stats.getCount());
+        assertEquals(pointCount - matched, stats.getUnmatchedCount());
+    }
+
+    /**
+     * Two meter square floor at y = 0, facing up.
+     */
+    private static TriangleMesh floor() {
+        return new TriangleMesh(new float[]{
+                -1, 0, -1,
+                -1, 0, 1,
+                1, 0, 1,
+                1, 0, -1,
+        }, new int[]{0, 1, 2, 0, 2, 3});
+    }
+}
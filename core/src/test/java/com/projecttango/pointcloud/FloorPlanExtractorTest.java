@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FloorPlanExtractorTest {
+    private static final int MAX_POINTS = 60000;
+    private static final double[] ORIGIN = new double[3];
+    private static final double[] IDENTITY = {0, 0, 0, 1};
+
+    private PlaneSegmenter mSegmenter;
+    private FloatBuffer mPoints;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mSegmenter = new PlaneSegmenter(MAX_POINTS, 8, 1);
+        mSegmenter.setMinInliers(300);
+        mPoints = FloatBuffer.allocate(MAX_POINTS * 3);
+        mRandom = new Random(3);
+    }
+
+    @Test
+    public void outlinesARoom() {
+        FloorPlanExtractor extractor = new FloorPlanExtractor(MAX_POINTS, 16);
+        mPoints.clear();
+        addWallAlongX(-2, 2, -2);
+        addWallAlongX(-2, 2, 2);
+        addWallAlongZ(-2, 2, -2);
+        addWallAlongZ(-2, 2, 2);
+        addFloor(-1.6f);
+        assertTrue(update(extractor));
+        assertEquals(4, extractor.getWallCount());
+        assertEquals(16, extractor.getOutlineArea(), 0.1f);
+        assertEquals(-1.6f, extractor.getFloorHeight(), 0.01f);
+        float[] outline = new float[extractor.getMaxOutlineVertices() * 2];
+        assertEquals(4, extractor.getOutline(outline));
+        for (int v = 0; v < 4; v++) {
+            assertEquals(2, Math.abs(outline[v * 2]), 0.03f);
+            assertEquals(2, Math.abs(outline[v * 2 + 1]), 0.03f);
+        }
+
+        extractor.reset();
+        assertEquals(0, extractor.getWallCount());
+        assertTrue(Float.isNaN(extractor.getFloorHeight()));
+    }
+
+    @Test
+    public void strongerSegmentReplacesWeakestWallOnceFull() {
+        FloorPlanExtractor extractor = new FloorPlanExtractor(MAX_POINTS, 2);
+        seeWallsAAndB(extractor, -0.3f, 0.3f);
+
+        // Weaker than both walls: dropped.
+        mPoints.clear();
+        addWallAlongZ(-0.15f, 0.15f, -2);
+        update(extractor);
+        float[] outline = outline(extractor);
+        assertFalse(hasVertexAtX(outline, -2));
+        assertTrue(hasVertexAtZ(outline, -2));
+
+        // Stronger than the short wall A: replaces it.
+        mPoints.clear();
+        addWallAlongZ(-0.5f, 0.5f, -2);
+        assertTrue(update(extractor));
+        outline = outline(extractor);
+        assertEquals(2, extractor.getWallCount());
+        assertTrue(hasVertexAtX(outline, -2));
+        assertTrue(hasVertexAtX(outline, 2));
+        assertFalse(hasVertexAtZ(outline, -2));
+    }
+
+    @Test
+    public void wallsNotSeenForLongAgeOut() {
+        FloorPlanExtractor extractor = new FloorPlanExtractor(MAX_POINTS, 2);
+        seeWallsAAndB(extractor, -1, 1);
+        int frame = 0;
+        while (!hasVertexAtX(outline(extractor), -2)) {
+            mPoints.clear();
+            addWallAlongZ(-0.7f, 0.7f, -2);
+            update(extractor);
+            frame++;
+            assertTrue("frame " + frame, frame < 400);
+        }
+        // The walls count half after 300 frames, less than the new 1.4m wall.
+        assertEquals(300, frame);
+        assertEquals(2, extractor.getWallCount());
+    }
+
+    /** Shows wall A at z = -2, between the given x, and wall B, 2m long at x = 2. */
+    private void seeWallsAAndB(FloorPlanExtractor extractor, float minX, float maxX) {
+        mPoints.clear();
+        addWallAlongX(minX, maxX, -2);
+        addWallAlongZ(-1, 1, 2);
+        update(extractor);
+        assertEquals(2, extractor.getWallCount());
+    }
+
+    private boolean update(FloorPlanExtractor extractor) {
+        FloatBuffer points = mPoints.duplicate();
+        points.flip();
+        mSegmenter.segment(points, points.limit() / 3);
+        return extractor.update(points, mSegmenter, ORIGIN, IDENTITY);
+    }
+
+    private static float[] outline(FloorPlanExtractor extractor) {
+        float[] outline = new float[extractor.getMaxOutlineVertices() * 2];
+        int count = extractor.getOutline(outline);
+        float[] vertices = new float[count * 2];
+        System.arraycopy(outline, 0, vertices, 0, vertices.length);
+        return vertices;
+    }
+
+    private static boolean hasVertexAtX(float[] outline, float x) {
+        for (int v = 0; v < outline.length; v += 2) {
+            if (Math.abs(outline[v] - x) < 0.05f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasVertexAtZ(float[] outline, float z) {
+        for (int v = 1; v < outline.length; v += 2) {
+            if (Math.abs(outline[v] - z) < 0.05f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Adds points 2cm apart of a 1m high wall on the plane z = {@code z}. */
+    private void addWallAlongX(float minX, float maxX, float z) {
+        for (float y = -1; y <= 0; y += 0.02f) {
+            for (float x = minX; x <= maxX; x += 0.02f) {
+                addPoint(x, y, z);
+            }
+        }
+    }
+
+    /** Adds points 2cm apart of a 1m high wall on the plane x = {@code x}. */
+    private void addWallAlongZ(float minZ, float maxZ, float x) {
+        for (float y = -1; y <= 0; y += 0.02f) {
+            for (float z = minZ; z <= maxZ; z += 0.02f) {
+                addPoint(x, y, z);
+            }
+        }
+    }
+
+    /** Adds points 5cm apart of the floor at {@code height}, below the camera. */
+    private void addFloor(float height) {
+        for (float z = -1.9f; z <= 1.9f; z += 0.05f) {
+            for (float x = -1.9f; x <= 1.9f; x += 0.05f) {
+                addPoint(x, height, z);
+            }
+        }
+    }
+
+    private void addPoint(float x, float y, float z) {
+        mPoints.put(x + 0.002f * (float) mRandom.nextGaussian())
+                .put(y).put(z + 0.002f * (float) mRandom.nextGaussian());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 60; value++) {
+            histogram.record(value);
+        }
+        assertEquals(60, histogram.getCount());
+        assertEquals(30.5, histogram.getMean(), 1e-9);
+        assertEquals(60, histogram.getMax());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(30, histogram.getValueAtPercentile(50));
+        assertEquals(54, histogram.getValueAtPercentile(90));
+        assertEquals(60, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndIncreasing() {
+        int previous = LatencyHistogram.bucketIndex(0);
+        for (long value = 1; value < 1 << 16; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void bucketMiddlesAreWithinTheRelativePrecision() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long value = (long) Math.pow(2, random.nextDouble() * 40);
+            long middle = LatencyHistogram.bucketMiddle(LatencyHistogram.bucketIndex(value));
+            assertTrue(value + " -> " + middle,
+                    Math.abs(middle - value) <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+        }
+    }
+
+    @Test
+    public void percentilesOfLargeValuesAreWithinTheRelativePrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+        assertEquals(500e6, histogram.getValueAtPercentile(50), 500e6 / 32);
+        assertEquals(990e6, histogram.getValueAtPercentile(99), 990e6 / 32);
+        long highest = histogram.getValueAtPercentile(100);
+        assertEquals(1e9, highest, 1e9 / 32);
+        // Never reports more than was recorded.
+        assertTrue(highest <= histogram.getMax());
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE / 2, histogram.getMean(), 1);
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void countsEveryValueRecordedConcurrently() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long value = (t + 1) * 1000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(value);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(2500, histogram.getMean(), 1e-9);
+        assertEquals(4000, histogram.getMax());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjLoaderTest {
+    @Test
+    public void loadsVerticesAndSplitsPolygonsIntoFans() throws IOException {
+        TriangleMesh mesh = load(
+                "# Exported wall\n"
+                + "o wall\n"
+                + "v 0 0 0\n"
+                + "v 1 0 0\n"
+                + "v 1 1 0\n"
+                + "v 0 1 0.5\n"
+                + "vt 0 0\n"
+                + "vn 0 0 1\n"
+                + "\n"
+                + "usemtl concrete\n"
+                + "f 1 2 3 4\n"
+                + "  f 1/1 3/1/1 4//1  \n");
+        assertEquals(4, mesh.getVertexCount());
+        assertEquals(3, mesh.getTriangleCount());
+        assertEquals(0.5f, mesh.vertices[11], 0);
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 0, 2, 3}, mesh.indices);
+    }
+
+    @Test
+    public void resolvesNegativeIndicesFromTheLastVertex() throws IOException {
+        TriangleMesh mesh = load("v 0 0 0\nv 1 0 0\nv 0 1 0\nf -3 -2 -1\n"
+                + "v 0 0 1\nf -4 -1 -2\n");
+        assertArrayEquals(new int[]{0, 1, 2, 0, 3, 2}, mesh.indices);
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() throws IOException {
+        StringBuilder obj = new StringBuilder();
+        int quadCount = 2000;
+        for (int i = 0; i < quadCount; i++) {
+            obj.append("v ").append(i).append(" 0 0\n");
+            obj.append("v ").append(i).append(" 1 0\n");
+        }
+        for (int i = 0; i < quadCount - 1; i++) {
+            int corner = 2 * i + 1;
+            obj.append("f ").append(corner).append(' ').append(corner + 2).append(' ')
+                    .append(corner + 3).append(' ').append(corner + 1).append('\n');
+        }
+        TriangleMesh mesh = load(obj.toString());
+        assertEquals(2 * quadCount, mesh.getVertexCount());
+        assertEquals(2 * (quadCount - 1), mesh.getTriangleCount());
+        assertEquals(quadCount - 1, mesh.vertices[mesh.vertices.length - 3], 0);
+    }
+
+    @Test
+    public void loadsFiles() throws IOException {
+        File file = File.createTempFile("model", ".obj");
+        try {
+            FileWriter writer = new FileWriter(file);
+            try {
+                writer.write("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n");
+            } finally {
+                writer.close();
+            }
+            assertEquals(1, ObjLoader.load(file).getTriangleCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsMalformedModels() {
+        assertMalformed("v 0 0\n", 1);
+        assertMalformed("v 0 0 0\nv 0 zero 0\n", 2);
+        assertMalformed("v 0 0 0\nv 1 0 0\nf 1 2\n", 3);
+        assertMalformed("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 4\n", 4);
+        assertMalformed("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 0 1 2\n", 4);
+        assertMalformed("v 0 0 0\nv 1 0 0\nv 0 1 0\nf -4 1 2\n", 4);
+    }
+
+    private static TriangleMesh load(String obj) throws IOException {
+        return ObjLoader.load(new StringReader(obj));
+    }
+
+    private static void assertMalformed(String obj, int line) {
+        try {
+            load(obj);
+            fail("Loaded malformed model " + obj);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line " + line));
+        }
+    }
+}
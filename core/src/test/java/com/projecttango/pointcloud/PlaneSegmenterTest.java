@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaneSegmenterTest {
+    private static final int MAX_POINTS = 30000;
+    private static final float NOISE = 0.002f;
+
+    private PlaneSegmenter mSegmenter;
+    private FloatBuffer mPoints;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mSegmenter = new PlaneSegmenter(MAX_POINTS, 8, 1);
+        mSegmenter.setMinInliers(300);
+        mPoints = FloatBuffer.allocate(MAX_POINTS * 3);
+        mRandom = new Random(7);
+    }
+
+    @Test
+    public void findsASinglePlane() {
+        int count = addWall(-1, 1, -1, 1, 2);
+        List<PlaneSegmenter.Plane> planes = segment();
+        assertEquals(1, planes.size());
+        PlaneSegmenter.Plane plane = planes.get(0);
+        assertEquals(count, plane.inlierCount);
+        assertEquals(1, Math.abs(plane.nz), 1e-3f);
+        assertEquals(0, plane.distance(0, 0, 2), 2e-3f);
+        assertEquals(2, plane.centroidZ, 2e-3f);
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, mSegmenter.getLabel(i));
+        }
+        assertEquals(count, mSegmenter.getPointCount());
+    }
+
+    @Test
+    public void findsTwoParallelPlanes() {
+        int floor = addFloor(-2, 2, 1, 3, 1.2f);
+        int table = addFloor(-0.4f, 0.4f, 1.5f, 2.5f, 0.4f);
+        List<PlaneSegmenter.Plane> planes = segment();
+        assertEquals(2, planes.size());
+        // Largest first; the floor keeps the points under the table as this is a point set.
+        assertEquals(floor, planes.get(0).inlierCount);
+        assertEquals(table, planes.get(1).inlierCount);
+        assertEquals(1.2f, planes.get(0).centroidY, 2e-3f);
+        assertEquals(0.4f, planes.get(1).centroidY, 2e-3f);
+        for (int p = 0; p < 2; p++) {
+            assertEquals(1, Math.abs(planes.get(p).ny), 1e-3f);
+        }
+    }
+
+    @Test
+    public void splitsDisjointCoplanarPatches() {
+        int left = addWall(-1.2f, -0.4f, -0.5f, 0.5f, 2);
+        int right = addWall(0.4f, 1, -0.5f, 0.5f, 2);
+        List<PlaneSegmenter.Plane> planes = segment();
+        assertEquals(2, planes.size());
+        assertEquals(left, planes.get(0).inlierCount);
+        assertEquals(right, planes.get(1).inlierCount);
+        assertTrue(planes.get(0).centroidX < -0.4f);
+        assertTrue(planes.get(1).centroidX > 0.4f);
+        for (int i = 0; i < left + right; i++) {
+            assertEquals(i < left ? 0 : 1, mSegmenter.getLabel(i));
+        }
+
+        mSegmenter.setConnectivityDistance(0);
+        planes = segment();
+        assertEquals(1, planes.size());
+        assertEquals(left + right, planes.get(0).inlierCount);
+    }
+
+    @Test
+    public void keepsNarrowGapsInOnePlane() {
+        int left = addWall(-1, -0.02f, -0.5f, 0.5f, 2);
+        int right = addWall(0.04f, 1, -0.5f, 0.5f, 2);
+        List<PlaneSegmenter.Plane> planes = segment();
+        assertEquals(1, planes.size());
+        assertEquals(left + right, planes.get(0).inlierCount);
+    }
+
+    @Test
+    public void findsNoPlaneInNoise() {
+        for (int i = 0; i < 5000; i++) {
+            mPoints.put(2 * mRandom.nextFloat() - 1).put(2 * mRandom.nextFloat() - 1)
+                    .put(1 + 2 * mRandom.nextFloat());
+        }
+        List<PlaneSegmenter.Plane> planes = segment();
+        assertEquals(0, planes.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(-1, mSegmenter.getLabel(i));
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSamePlanes() {
+        addWall(-1, 1, -1, 1, 2);
+        addFloor(-1, 1, 1, 2, 1);
+        List<PlaneSegmenter.Plane> planes = segment();
+        float[] first = {planes.get(0).nx, planes.get(0).d, planes.get(1).ny, planes.get(1).d};
+        planes = segment();
+        float[] second = {planes.get(0).nx, planes.get(0).d, planes.get(1).ny, planes.get(1).d};
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], second[i], 0f);
+        }
+    }
+
+    private List<PlaneSegmenter.Plane> segment() {
+        FloatBuffer points = mPoints.duplicate();
+        points.flip();
+        List<PlaneSegmenter.Plane> planes = mSegmenter.segment(points, points.limit() / 3);
+        assertEquals(0, points.position());
+        return planes;
+    }
+
+    /** Adds a grid of points 2cm apart on the plane z = {@code depth}. */
+    private int addWall(float minX, float maxX, float minY, float maxY, float depth) {
+        int count = 0;
+        for (float y = minY; y <= maxY; y += 0.02f) {
+            for (float x = minX; x <= maxX; x += 0.02f) {
+                addPoint(x, y, depth);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Adds a grid of points 2cm apart on the plane y = {@code height}. */
+    private int addFloor(float minX, float maxX, float minZ, float maxZ, float height) {
+        int count = 0;
+        for (float z = minZ; z <= maxZ; z += 0.02f) {
+            for (float x = minX; x <= maxX; x += 0.02f) {
+                addPoint(x, height, z);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addPoint(float x, float y, float z) {
+        mPoints.put(x).put(y).put(z + NOISE * (float) mRandom.nextGaussian());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaneTrackerTest {
+    private static final int MAX_POINTS = 30000;
+    private static final double[] IDENTITY = {0, 0, 0, 1};
+
+    private PlaneSegmenter mSegmenter;
+    private PlaneTracker mTracker;
+    private FloatBuffer mPoints;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mSegmenter = new PlaneSegmenter(MAX_POINTS, 8, 1);
+        mSegmenter.setMinInliers(300);
+        mTracker = new PlaneTracker(MAX_POINTS, 64, 1 << 14, 0.1f);
+        mPoints = FloatBuffer.allocate(MAX_POINTS * 3);
+        mRandom = new Random(5);
+    }
+
+    @Test
+    public void wallSeenFromMovingCameraIsOnePlane() {
+        long inliers = 0;
+        for (int frame = 0; frame < 5; frame++) {
+            double[] translation = {0.05 * frame, 0.02 * frame, 0};
+            mPoints.clear();
+            addWall(translation, 2);
+            inliers += update(translation);
+        }
+        assertEquals(1, mTracker.getPlaneCount());
+        int[] ids = new int[4];
+        assertEquals(1, mTracker.getPlaneIds(ids));
+        PlaneTracker.TrackedPlane plane = new PlaneTracker.TrackedPlane();
+        mTracker.getPlane(ids[0], plane);
+        assertEquals(5, plane.frameCount);
+        assertEquals(inliers, plane.pointCount);
+        // The normal faces the camera, in front of the wall.
+        assertEquals(-1, plane.normal[2], 1e-3f);
+        assertEquals(2, plane.offset, 5e-3f);
+        assertEquals(2, plane.centroid[2], 5e-3f);
+        assertTrue(plane.hullVertexCount >= 4);
+        for (int v = 0; v < plane.hullVertexCount; v++) {
+            assertEquals(2, plane.hull[v * 3 + 2], 0.02f);
+            assertTrue(plane.hull[v * 3] >= -1.02f && plane.hull[v * 3] <= 1.22f);
+        }
+    }
+
+    @Test
+    public void perpendicularPlanesAreTrackedApart() {
+        for (int frame = 0; frame < 3; frame++) {
+            mPoints.clear();
+            addWall(new double[3], 2);
+            addFloor(1);
+            update(new double[3]);
+        }
+        assertEquals(2, mTracker.getPlaneCount());
+    }
+
+    @Test
+    public void snapsOnlyOntoStablePlanesAroundThePoint() {
+        float[] out = new float[6];
+        for (int frame = 0; frame < 3; frame++) {
+            assertEquals(-1, mTracker.snap(0.1f, 0.2f, 2.03f, 0, 0, 1, out));
+            mPoints.clear();
+            addWall(new double[3], 2);
+            update(new double[3]);
+        }
+        int id = mTracker.snap(0.1f, 0.2f, 2.03f, 0, 0, 1, out);
+        assertTrue(id >= 0);
+        assertEquals(0.1f, out[0], 1e-3f);
+        assertEquals(0.2f, out[1], 1e-3f);
+        assertEquals(2, out[2], 5e-3f);
+        // Flipped to face the way of the measured normal.
+        assertEquals(1, out[5], 1e-3f);
+        assertEquals(id, mTracker.snap(0.1f, 0.2f, 1.97f, 0.1f, 0, -1, out));
+        assertEquals(-1, out[5], 1e-2f);
+
+        // Too far from the plane, outside its hull, or at a different angle.
+        assertEquals(-1, mTracker.snap(0.1f, 0.2f, 2.2f, 0, 0, 1, out));
+        assertEquals(-1, mTracker.snap(3, 0.2f, 2, 0, 0, 1, out));
+        assertEquals(-1, mTracker.snap(0.1f, 0.2f, 2, 0, 0.7f, 0.7f, out));
+    }
+
+    @Test
+    public void resetForgetsPlanes() {
+        mPoints.clear();
+        addWall(new double[3], 2);
+        update(new double[3]);
+        assertEquals(1, mTracker.getPlaneCount());
+        mTracker.reset();
+        assertEquals(0, mTracker.getPlaneCount());
+    }
+
+    @Test
+    public void readersSeeConsistentPlanesWhileUpdating() throws Exception {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final boolean[] done = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PlaneTracker.TrackedPlane plane = new PlaneTracker.TrackedPlane();
+                int[] ids = new int[64];
+                float[] out = new float[6];
+                while (!isDone(done) && failure.get() == null) {
+                    int count = Math.min(mTracker.getPlaneIds(ids), ids.length);
+                    for (int i = 0; i < count; i++) {
+                        mTracker.getPlane(ids[i], plane);
+                        float length = plane.normal[0] * plane.normal[0]
+                                + plane.normal[1] * plane.normal[1]
+                                + plane.normal[2] * plane.normal[2];
+                        if (Math.abs(length - 1) > 1e-3f) {
+                            failure.set("Plane " + ids[i] + " has a normal of length " + length);
+                        }
+                    }
+                    mTracker.snap(0, 0.9f, 1, 0, 1, 0, out);
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int frame = 0; frame < 20; frame++) {
+                double[] translation = {0.03 * frame, 0, 0.02 * frame};
+                mPoints.clear();
+                addWall(translation, 2);
+                addFloor(1);
+                update(translation);
+            }
+        } finally {
+            synchronized (done) {
+                done[0] = true;
+            }
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(2, mTracker.getPlaneCount());
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+
+    /**
+     * Segments the points added since the last clear, seen from the given camera position
+     * without rotation, and updates the tracker with them.
+     *
+     * @return The number of points labelled as inliers of a plane.
+     */
+    private int update(double[] translation) {
+        mPoints.flip();
+        int count = mPoints.limit() / 3;
+        mSegmenter.segment(mPoints, count);
+        mTracker.update(mPoints, mSegmenter, translation, IDENTITY);
+        int inliers = 0;
+        for (int i = 0; i < count; i++) {
+            if (mSegmenter.getLabel(i) >= 0) {
+                inliers++;
+            }
+        }
+        return inliers;
+    }
+
+    /** Adds points of the 2m wide wall at world z = {@code depth}, in the camera frame. */
+    private void addWall(double[] translation, float depth) {
+        for (float y = -1; y <= 1; y += 0.02f) {
+            for (float x = -1; x <= 1; x += 0.02f) {
+                addPoint(x - translation[0], y - translation[1], depth - translation[2]);
+            }
+        }
+    }
+
+    /** Adds points of the floor at y = {@code height} in front of the camera, in its frame. */
+    private void addFloor(float height) {
+        for (float z = 0.5f; z <= 1.9f; z += 0.02f) {
+            for (float x = -1; x <= 1; x += 0.02f) {
+                addPoint(x, height, z);
+            }
+        }
+    }
+
+    private void addPoint(double x, double y, double z) {
+        mPoints.put((float) (x + mRandom.nextGaussian() * 0.002))
+                .put((float) (y + mRandom.nextGaussian() * 0.002))
+                .put((float) (z + mRandom.nextGaussian() * 0.002));
+    }
+}
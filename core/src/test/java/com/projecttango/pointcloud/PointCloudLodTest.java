@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class PointCloudLodTest {
+    private static final float NEAR = 0.1f;
+    private static final float FAR = 100;
+    private static final float FOCAL_LENGTH_PIXELS = 100;
+    private static final int GRID_SIDE = 10;
+    // Camera at the origin looking down -z with a 90 degree field of view.
+    private static final double[] MVP = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, (FAR + NEAR) / (NEAR - FAR), -1,
+            0, 0, 2 * FAR * NEAR / (NEAR - FAR), 0,
+    };
+
+    @Test
+    public void keepsEveryPointOfANearCell() {
+        PointCloudLod lod = new PointCloudLod(200, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(200 * 3);
+        assertEquals(GRID_SIDE * GRID_SIDE, lod.select(grid(0, 0, -1.5f), GRID_SIDE * GRID_SIDE,
+                MVP, FOCAL_LENGTH_PIXELS, destination));
+        assertEquals(1, lod.getCellCount());
+        assertEquals(1, lod.getVisibleCellCount());
+        assertEquals(GRID_SIDE * GRID_SIDE * 3, destination.limit());
+    }
+
+    @Test
+    public void subsamplesAFarCell() {
+        PointCloudLod lod = new PointCloudLod(200, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(200 * 3);
+        // 19.5 m away the cell is about 5 pixels wide, room for about 6.6 points 2 pixels apart:
+        // every 16th point is kept.
+        int selected = lod.select(grid(0, 0, -19.5f), GRID_SIDE * GRID_SIDE, MVP,
+                FOCAL_LENGTH_PIXELS, destination);
+        assertEquals(7, selected);
+        assertEquals(grid(0, 0, -19.5f).get(16 * 3), destination.get(3), 0);
+    }
+
+    @Test
+    public void largerSpacingKeepsFewerPoints() {
+        PointCloudLod lod = new PointCloudLod(200, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(200 * 3);
+        // 2.5 m away the cell is 40 pixels wide, room for 2 by 2 points 20 pixels apart.
+        lod.setPointSpacing(20);
+        assertEquals(4, lod.select(grid(0, 0, -2.5f), GRID_SIDE * GRID_SIDE, MVP,
+                FOCAL_LENGTH_PIXELS, destination));
+    }
+
+    @Test
+    public void dropsCellsOutsideTheFrustum() {
+        PointCloudLod lod = new PointCloudLod(400, 1.0f);
+        FloatBuffer source = FloatBuffer.allocate(400 * 3);
+        // Behind the camera, left and right of it, and in view.
+        source.put(grid(0, 0, 2.5f)).put(grid(-10, 0, -1.5f)).put(grid(10, 0, -1.5f))
+                .put(grid(0, 0, -1.5f));
+        source.flip();
+        FloatBuffer destination = FloatBuffer.allocate(400 * 3);
+        assertEquals(GRID_SIDE * GRID_SIDE, lod.select(source, 400, MVP, FOCAL_LENGTH_PIXELS,
+                destination));
+        assertEquals(4, lod.getCellCount());
+        assertEquals(1, lod.getVisibleCellCount());
+        assertEquals(-1.5f, destination.get(2), 0);
+    }
+
+    @Test
+    public void dropsCellsBeyondTheMaxDistance() {
+        PointCloudLod lod = new PointCloudLod(200, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(200 * 3);
+        lod.setMaxDistance(10);
+        assertEquals(0, lod.select(grid(0, 0, -19.5f), GRID_SIDE * GRID_SIDE, MVP,
+                FOCAL_LENGTH_PIXELS, destination));
+        assertEquals(1, lod.getCellCount());
+        assertEquals(0, lod.getVisibleCellCount());
+        assertEquals(0, destination.limit());
+    }
+
+    @Test
+    public void leavesTheSourcePositionUntouched() {
+        PointCloudLod lod = new PointCloudLod(200, 1.0f);
+        FloatBuffer source = grid(0, 0, -1.5f);
+        source.position(6);
+        lod.select(source, GRID_SIDE * GRID_SIDE, MVP, FOCAL_LENGTH_PIXELS,
+                FloatBuffer.allocate(200 * 3));
+        assertEquals(6, source.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveCellSize() {
+        new PointCloudLod(10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositivePointSpacing() {
+        new PointCloudLod(10, 1.0f).setPointSpacing(0);
+    }
+
+    /**
+     * Returns a 10 by 10 grid of points spread over the unit cell at ({@code cellX},
+     * {@code cellY}), at depth {@code z}.
+     */
+    private static FloatBuffer grid(int cellX, int cellY, float z) {
+        FloatBuffer points = FloatBuffer.allocate(GRID_SIDE * GRID_SIDE * 3);
+        for (int i = 0; i < GRID_SIDE * GRID_SIDE; i++) {
+            points.put(cellX + 0.05f + 0.1f * (i % GRID_SIDE));
+            points.put(cellY + 0.05f + 0.1f * (i / GRID_SIDE));
+            points.put(z);
+        }
+        points.flip();
+        return points;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PointCloudStatsTest {
+    @Test
+    public void emptyCloudHasNoStatistics() {
+        PointCloudStats statistics = new PointCloudStats();
+        statistics.compute(FloatBuffer.allocate(0), 10);
+        assertEquals(0, statistics.getPointCount());
+        assertEquals(0, statistics.getMeanDepth(), 0f);
+        assertEquals(0, statistics.getDepthVariance(), 0f);
+        assertEquals(0, statistics.getMaxZ(), 0f);
+    }
+
+    @Test
+    public void computesMeanVarianceAndBounds() {
+        PointCloudStats statistics = new PointCloudStats();
+        FloatBuffer xyz = FloatBuffer.wrap(new float[]{
+                -1, 2, 1,
+                3, -4, 2,
+                0, 0, 3,
+                // Past the point count.
+                100, 100, 100});
+        statistics.compute(xyz, 3);
+        assertEquals(3, statistics.getPointCount());
+        assertEquals(2, statistics.getMeanDepth(), 1e-6f);
+        assertEquals(2f / 3, statistics.getDepthVariance(), 1e-6f);
+        assertEquals((float) Math.sqrt(2.0 / 3), statistics.getDepthStandardDeviation(), 1e-6f);
+        assertEquals(-1, statistics.getMinX(), 0f);
+        assertEquals(3, statistics.getMaxX(), 0f);
+        assertEquals(-4, statistics.getMinY(), 0f);
+        assertEquals(2, statistics.getMaxY(), 0f);
+        assertEquals(1, statistics.getMinZ(), 0f);
+        assertEquals(3, statistics.getMaxZ(), 0f);
+    }
+
+    @Test
+    public void varianceStaysAccurateFarAway() {
+        PointCloudStats statistics = new PointCloudStats();
+        Random random = new Random(1);
+        int count = 50000;
+        FloatBuffer xyz = FloatBuffer.allocate(count * 3);
+        double sum = 0;
+        double[] depths = new double[count];
+        for (int i = 0; i < count; i++) {
+            float depth = 1000 + 0.01f * (float) random.nextGaussian();
+            depths[i] = depth;
+            sum += depth;
+            xyz.put(0).put(0).put(depth);
+        }
+        xyz.flip();
+        double mean = sum / count;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            variance += (depths[i] - mean) * (depths[i] - mean);
+        }
+        variance /= count;
+        statistics.compute(xyz, count);
+        assertEquals(mean, statistics.getMeanDepth(), 1e-3);
+        assertEquals(variance, statistics.getDepthVariance(), variance * 0.01);
+    }
+
+    @Test
+    public void histogramClampsToItsRange() {
+        PointCloudStats statistics = new PointCloudStats(4, 2);
+        assertEquals(0.5f, statistics.getHistogramBinWidth(), 0f);
+        statistics.compute(FloatBuffer.wrap(new float[]{
+                0, 0, -1,
+                0, 0, 0.1f,
+                0, 0, 0.6f,
+                0, 0, 0.7f,
+                0, 0, 1.9f,
+                0, 0, 5}), 6);
+        assertEquals(4, statistics.getHistogramBinCount());
+        assertEquals(2, statistics.getHistogramCount(0));
+        assertEquals(2, statistics.getHistogramCount(1));
+        assertEquals(0, statistics.getHistogramCount(2));
+        assertEquals(2, statistics.getHistogramCount(3));
+
+        // Recomputing starts from an empty histogram.
+        statistics.compute(FloatBuffer.wrap(new float[]{0, 0, 1.2f}), 1);
+        assertEquals(0, statistics.getHistogramCount(0));
+        assertEquals(1, statistics.getHistogramCount(2));
+    }
+
+    @Test
+    public void leavesTheBufferPositionUntouched() {
+        PointCloudStats statistics = new PointCloudStats();
+        FloatBuffer xyz = FloatBuffer.wrap(new float[]{0, 0, 1, 0, 0, 3});
+        xyz.position(4);
+        statistics.compute(xyz, 2);
+        assertEquals(4, xyz.position());
+        assertEquals(2, statistics.getMeanDepth(), 0f);
+    }
+
+    @Test
+    public void copiesBetweenInstances() {
+        PointCloudStats statistics = new PointCloudStats(4, 2);
+        statistics.compute(FloatBuffer.wrap(new float[]{1, 2, 0.6f, 3, 4, 1.6f}), 2);
+        PointCloudStats copy = new PointCloudStats(4, 2);
+        copy.set(statistics);
+        assertEquals(2, copy.getPointCount());
+        assertEquals(statistics.getMeanDepth(), copy.getMeanDepth(), 0f);
+        assertEquals(statistics.getDepthVariance(), copy.getDepthVariance(), 0f);
+        assertEquals(4, copy.getMaxY(), 0f);
+        assertEquals(1, copy.getHistogramCount(1));
+        assertEquals(1, copy.getHistogramCount(3));
+        copy.reset();
+        assertEquals(0, copy.getPointCount());
+        assertEquals(0, copy.getHistogramCount(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyingAnotherHistogramLayoutThrows() {
+        new PointCloudStats(4, 2).set(new PointCloudStats());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyHistograms() {
+        new PointCloudStats(0, 2);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PointCloudTripleBufferTest {
+    private static final int MAX_POINTS = 100;
+
+    @Test
+    public void readerSeesNothingBeforeFirstWrite() {
+        PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        assertEquals(0, buffer.acquireLatest().sequence);
+    }
+
+    @Test
+    public void readerGetsLatestFrameOnly() {
+        PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        for (int frame = 1; frame <= 5; frame++) {
+            assertEquals(frame, buffer.write(cloud(frame, frame), frame));
+        }
+        PointCloudData latest = buffer.acquireLatest();
+        assertEquals(5, latest.sequence);
+        assertEquals(5, latest.pointCount);
+        assertEquals(5 * 3, latest.floatBuffer.limit());
+        for (int i = 0; i < latest.floatBuffer.limit(); i++) {
+            assertEquals(5f, latest.floatBuffer.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void readerKeepsItsSlotUntilNextWrite() {
+        PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        buffer.write(cloud(1, 10), 10);
+        PointCloudData first = buffer.acquireLatest();
+        assertSame(first, buffer.acquireLatest());
+        buffer.write(cloud(2, 10), 10);
+        PointCloudData second = buffer.acquireLatest();
+        assertNotSame(first, second);
+        assertEquals(2, second.sequence);
+    }
+
+    @Test
+    public void writeTruncatesAndLeavesSourceUntouched() {
+        PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        FloatBuffer source = cloud(1, MAX_POINTS * 2);
+        source.position(7);
+        buffer.write(source, MAX_POINTS * 2);
+        assertEquals(7, source.position());
+        assertEquals(MAX_POINTS * 2 * 3, source.limit());
+        assertEquals(MAX_POINTS, buffer.acquireLatest().pointCount);
+    }
+
+    @Test
+    public void publishedFrameIsRetainedUntilItsSlotIsReused() {
+        DepthFramePool pool = new DepthFramePool(MAX_POINTS, 1);
+        PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        DepthFrame frame = pool.acquire();
+        frame.copyFrom(cloud(1, 10), 10, 1.0);
+        buffer.publish(frame);
+        frame.release();
+        assertEquals(1, frame.getReferenceCount());
+        PointCloudData read = buffer.acquireLatest();
+        assertSame(frame, read.frame);
+        assertSame(frame.xyz, read.floatBuffer);
+
+        // Once the reader moves on, the slot holding the frame becomes the shared one, then the
+        // writer's, which releases the frame when it is written to.
+        buffer.write(cloud(2, 10), 10);
+        buffer.acquireLatest();
+        buffer.write(cloud(3, 10), 10);
+        assertEquals(1, frame.getReferenceCount());
+        buffer.write(cloud(4, 10), 10);
+        assertEquals(0, frame.getReferenceCount());
+        assertEquals(1, pool.getFreeCount());
+        assertNull(read.frame);
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesTornOrOlderFrames() throws Exception {
+        final PointCloudTripleBuffer buffer = new PointCloudTripleBuffer(MAX_POINTS);
+        final int frameCount = 20000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int frame = 1; frame <= frameCount; frame++) {
+                    PointCloudData slot = buffer.getWriteSlot();
+                    int count = 1 + frame % MAX_POINTS;
+                    slot.floatBuffer.clear();
+                    for (int i = 0; i < count * 3; i++) {
+                        slot.floatBuffer.put(frame);
+                    }
+                    slot.floatBuffer.flip();
+                    buffer.publish(count);
+                }
+            }
+        });
+        writer.start();
+        long lastSequence = 0;
+        while (writer.isAlive() || lastSequence < frameCount) {
+            PointCloudData data = buffer.acquireLatest();
+            if (data.sequence < lastSequence) {
+                failure.set("Sequence went back from " + lastSequence + " to " + data.sequence);
+                break;
+            }
+            lastSequence = data.sequence;
+            if (data.sequence == 0) {
+                continue;
+            }
+            if (data.pointCount != 1 + data.sequence % MAX_POINTS) {
+                failure.set("Frame " + data.sequence + " has " + data.pointCount + " points");
+                break;
+            }
+            for (int i = 0; i < data.pointCount * 3; i++) {
+                if (data.floatBuffer.get(i) != data.sequence) {
+                    failure.set("Frame " + data.sequence + " holds " + data.floatBuffer.get(i));
+                    break;
+                }
+            }
+            if (failure.get() != null) {
+                break;
+            }
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(frameCount, buffer.acquireLatest().sequence);
+    }
+
+    private static FloatBuffer cloud(float value, int pointCount) {
+        FloatBuffer cloud = FloatBuffer.allocate(pointCount * 3);
+        for (int i = 0; i < pointCount * 3; i++) {
+            cloud.put(i, value);
+        }
+        return cloud;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PoseHistoryTest {
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void emptyHistoryHasNoPose() {
+        PoseHistory history = new PoseHistory(8);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertFalse(history.getPoseAtTime(1.0, translation, rotation));
+        assertTrue(history.getLatestPose(translation, rotation) < 0);
+    }
+
+    @Test
+    public void interpolatesTranslationAndRotation() {
+        PoseHistory history = new PoseHistory(8);
+        history.append(1.0, new double[]{0, 0, 0}, yaw(0));
+        history.append(2.0, new double[]{2, 4, 6}, yaw(Math.PI / 2));
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertTrue(history.getPoseAtTime(1.25, translation, rotation));
+        assertEquals(0.5, translation[0], EPSILON);
+        assertEquals(1.0, translation[1], EPSILON);
+        assertEquals(1.5, translation[2], EPSILON);
+        double[] expected = yaw(Math.PI / 8);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected[i], rotation[i], 1e-6);
+        }
+    }
+
+    @Test
+    public void interpolatesAlongShortestPath() {
+        PoseHistory history = new PoseHistory(8);
+        double[] start = yaw(0.2);
+        double[] end = yaw(0.4);
+        // The same rotation as end, with the opposite sign.
+        history.append(0.0, new double[3], start);
+        history.append(1.0, new double[3], new double[]{-end[0], -end[1], -end[2], -end[3]});
+        double[] rotation = new double[4];
+        assertTrue(history.getPoseAtTime(0.5, new double[3], rotation));
+        double[] expected = yaw(0.3);
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += expected[i] * rotation[i];
+        }
+        assertEquals(1.0, Math.abs(dot), 1e-6);
+    }
+
+    @Test
+    public void rejectsTimesOutsideTheWindow() {
+        PoseHistory history = new PoseHistory(4);
+        for (int i = 0; i < 20; i++) {
+            history.append(i, new double[]{i, 0, 0}, yaw(0));
+        }
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertFalse(history.getPoseAtTime(20.5, translation, rotation));
+        // The oldest samples have been overwritten.
+        assertFalse(history.getPoseAtTime(2.0, translation, rotation));
+        assertTrue(history.getPoseAtTime(18.5, translation, rotation));
+        assertEquals(18.5, translation[0], EPSILON);
+        assertEquals(19.0, history.getLatestPose(translation, rotation), EPSILON);
+        assertEquals(19.0, translation[0], EPSILON);
+    }
+
+    @Test
+    public void clearForgetsSamples() {
+        PoseHistory history = new PoseHistory(4);
+        history.append(1.0, new double[3], yaw(0));
+        history.clear();
+        assertTrue(history.getLatestPose(new double[3], new double[4]) < 0);
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornPoses() throws Exception {
+        // A small ring the writer keeps lapping, so that readers race with overwrites.
+        final PoseHistory history = new PoseHistory(16);
+        final int sampleCount = 200000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] readers = new Thread[3];
+        history.append(0, new double[]{0, 0, 0}, yaw(0));
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    double[] translation = new double[3];
+                    double[] rotation = new double[4];
+                    double[] latest = new double[3];
+                    while (failure.get() == null) {
+                        double newest = history.getLatestPose(latest, rotation);
+                        if (newest >= sampleCount - 1) {
+                            return;
+                        }
+                        // Every sample is {t, 2t, 3t}, so must any interpolation of them be.
+                        if (latest[0] != newest || latest[1] != 2 * newest) {
+                            failure.set("Torn latest pose at " + newest);
+                        }
+                        double time = Math.max(0, newest - 5.5);
+                        if (history.getPoseAtTime(time, translation, rotation)
+                                && (Math.abs(translation[0] - time) > 1e-6
+                                || Math.abs(translation[1] - 2 * time) > 1e-6
+                                || Math.abs(translation[2] - 3 * time) > 1e-6)) {
+                            failure.set("Torn pose at " + time + ": " + translation[0] + ", "
+                                    + translation[1] + ", " + translation[2]);
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 1; i < sampleCount; i++) {
+            history.append(i, new double[]{i, 2 * i, 3 * i}, yaw(0));
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static double[] yaw(double angle) {
+        return new double[]{0, Math.sin(angle / 2), 0, Math.cos(angle / 2)};
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PosePredictorTest {
+    private static final double EPSILON = 1e-6;
+    // Close orientations are blended linearly, which is slightly off when extrapolating.
+    private static final double ROTATION_EPSILON = 1e-3;
+
+    @Test
+    public void emptyHistoryHasNoPrediction() {
+        PosePredictor predictor = new PosePredictor(new PoseHistory(8));
+        assertFalse(predictor.predict(1.0, new double[3], new double[4]));
+    }
+
+    @Test
+    public void interpolatesWithinTheHistory() {
+        PosePredictor predictor = new PosePredictor(movingHistory());
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertTrue(predictor.predict(1.5, translation, rotation));
+        assertPose(0.5, 0.5, translation, rotation);
+    }
+
+    @Test
+    public void extrapolatesWithConstantVelocity() {
+        PosePredictor predictor = new PosePredictor(movingHistory());
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertTrue(predictor.predict(2.05, translation, rotation));
+        assertPose(1.05, 1.05, translation, rotation);
+    }
+
+    @Test
+    public void limitsHowFarAheadItPredicts() {
+        PosePredictor predictor = new PosePredictor(movingHistory());
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertTrue(predictor.predict(3.0, translation, rotation));
+        assertPose(1.1, 1.1, translation, rotation);
+    }
+
+    @Test
+    public void noneModeReturnsTheLatestPose() {
+        PosePredictor predictor = new PosePredictor(movingHistory());
+        predictor.setMode(PosePredictor.MODE_NONE);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        assertTrue(predictor.predict(2.05, translation, rotation));
+        assertPose(1.0, 1.0, translation, rotation);
+    }
+
+    @Test
+    public void measuresErrorOnceTheActualPoseArrives() {
+        PoseHistory history = movingHistory();
+        PosePredictor predictor = new PosePredictor(history);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        predictor.predict(2.05, translation, rotation);
+        assertEquals(0, predictor.getMeanTranslationError(), 0);
+
+        // The device stops instead of moving on.
+        history.append(2.1, new double[]{1, 0, 0}, yaw(1));
+        predictor.predict(2.1, translation, rotation);
+        assertEquals(0.05, predictor.getMeanTranslationError(), EPSILON);
+        assertEquals(0.05, predictor.getMaxTranslationError(), EPSILON);
+        assertEquals(0.05, predictor.getMeanRotationError(), ROTATION_EPSILON);
+        assertEquals(0.05, predictor.getMaxRotationError(), ROTATION_EPSILON);
+
+        predictor.resetErrorStatistics();
+        assertEquals(0, predictor.getMeanTranslationError(), 0);
+        assertEquals(0, predictor.getMaxTranslationError(), 0);
+        assertEquals(0, predictor.getMeanRotationError(), 0);
+        assertEquals(0, predictor.getMaxRotationError(), 0);
+    }
+
+    /**
+     * Moves along x at 1 m/s and turns around y at 1 rad/s for a second.
+     */
+    private static PoseHistory movingHistory() {
+        PoseHistory history = new PoseHistory(8);
+        history.append(1.0, new double[]{0, 0, 0}, yaw(0));
+        history.append(2.0, new double[]{1, 0, 0}, yaw(1));
+        return history;
+    }
+
+    private static void assertPose(double x, double angle, double[] translation,
+                                   double[] rotation) {
+        assertEquals(x, translation[0], EPSILON);
+        assertEquals(0, translation[1], EPSILON);
+        assertEquals(0, translation[2], EPSILON);
+        double[] expected = yaw(angle);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected[i], rotation[i], ROTATION_EPSILON);
+        }
+    }
+
+    private static double[] yaw(double angle) {
+        return new double[]{0, Math.sin(angle / 2), 0, Math.cos(angle / 2)};
+    }
+}
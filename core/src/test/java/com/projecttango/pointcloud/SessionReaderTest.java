@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionReaderTest {
+    private static final int CHUNK_SIZE = 256;
+    private static final int POSE_COUNT = 12;
+    // A depth frame follows every third pose.
+    private static final int FRAME_INTERVAL = 3;
+    private static final int RECORD_COUNT = POSE_COUNT + POSE_COUNT / FRAME_INTERVAL;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private File mFile;
+    private DepthFramePool mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("session", ".bin");
+        mPool = new DepthFramePool(2, POSE_COUNT / FRAME_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readsBackEveryRecordAcrossChunks() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 32, 8);
+        record(recorder);
+        recorder.close();
+
+        SessionReader reader = new SessionReader(mFile);
+        try {
+            assertTrue(reader.getChunkCount() > 1);
+            assertSession(reader);
+            assertEquals(mPool.getFrameCount(), mPool.getFreeCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rebuildsTheIndexOfASessionCutShort() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 32, 8);
+        try {
+            record(recorder);
+            // Read the file while the recorder is still open, as if the app had been killed.
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (recorder.getWrittenPoseCount() + recorder.getWrittenFrameCount()
+                    < RECORD_COUNT && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, mFile.length() % CHUNK_SIZE);
+            SessionReader reader = new SessionReader(mFile);
+            try {
+                assertSession(reader);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void seeksToTheFirstRecordAtOrAfterATime() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 32, 8);
+        record(recorder);
+        recorder.close();
+
+        SessionReader reader = new SessionReader(mFile);
+        try {
+            reader.seek(poseTime(7) - 0.01);
+            assertTrue(reader.next());
+            assertEquals(SessionRecorder.RECORD_POSE, reader.getType());
+            assertEquals(poseTime(7), reader.getTimestamp(), 0);
+
+            // A depth frame shares the timestamp of the pose before it, which comes first.
+            reader.seek(poseTime(8));
+            assertTrue(reader.next());
+            assertEquals(SessionRecorder.RECORD_POSE, reader.getType());
+            assertTrue(reader.next());
+            assertEquals(SessionRecorder.RECORD_DEPTH, reader.getType());
+            assertEquals(poseTime(8), reader.getTimestamp(), 0);
+
+            reader.seek(poseTime(POSE_COUNT));
+            assertFalse(reader.next());
+
+            reader.rewind();
+            assertTrue(reader.next());
+            assertEquals(poseTime(0), reader.getTimestamp(), 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void poseAccessorsRejectDepthRecords() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 32, 8);
+        record(recorder);
+        recorder.close();
+
+        SessionReader reader = new SessionReader(mFile);
+        try {
+            reader.seek(poseTime(2));
+            reader.next();
+            reader.next();
+            reader.getTranslation(new double[3]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFilesThatAreNotSessions() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[SessionRecorder.FILE_HEADER_SIZE]);
+        } finally {
+            out.close();
+        }
+        new SessionReader(mFile);
+    }
+
+    /**
+     * Records poses moving along x, each third one followed by a depth frame at the same time.
+     */
+    private void record(SessionRecorder recorder) {
+        for (int i = 0; i < POSE_COUNT; i++) {
+            assertTrue(recorder.recordPose(poseTime(i), i, new double[]{i, 0, 0},
+                    new double[]{0, 0, 0, 1}));
+            if (i % FRAME_INTERVAL == FRAME_INTERVAL - 1) {
+                DepthFrame frame = mPool.acquire();
+                frame.copyFrom(FloatBuffer.wrap(new float[]{i, 1, 2, i, 3, 4}), 2, poseTime(i));
+                assertTrue(recorder.recordDepthFrame(frame));
+                frame.release();
+            }
+        }
+    }
+
+    private static void assertSession(SessionReader reader) throws IOException {
+        assertEquals(RECORD_COUNT, reader.getRecordCount());
+        assertEquals(poseTime(0), reader.getStartTimestamp(), 0);
+        assertEquals(poseTime(POSE_COUNT - 1), reader.getEndTimestamp(), 0);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        for (int i = 0; i < POSE_COUNT; i++) {
+            assertTrue(reader.next());
+            assertEquals(SessionRecorder.RECORD_POSE, reader.getType());
+            assertEquals(poseTime(i), reader.getTimestamp(), 0);
+            assertEquals(i, reader.getStatusCode());
+            reader.getTranslation(translation);
+            reader.getRotation(rotation);
+            assertEquals(i, translation[0], 0);
+            assertEquals(1, rotation[3], 0);
+            if (i % FRAME_INTERVAL == FRAME_INTERVAL - 1) {
+                assertTrue(reader.next());
+                assertEquals(SessionRecorder.RECORD_DEPTH, reader.getType());
+                assertEquals(poseTime(i), reader.getTimestamp(), 0);
+                assertEquals(2, reader.getPointCount());
+                FloatBuffer points = reader.getPoints();
+                assertEquals(6, points.remaining());
+                assertEquals(i, points.get(3), 0);
+                assertEquals(4, points.get(5), 0);
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    private static double poseTime(int pose) {
+        return 1.0 + pose * 0.1;
+    }
+}
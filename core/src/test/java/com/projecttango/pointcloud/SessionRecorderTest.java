@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRecorderTest {
+    private static final int CHUNK_SIZE = 256;
+    private static final double[] TRANSLATION = {1, 2, 3};
+    private static final double[] ROTATION = {0, 0, 0, 1};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("session", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void writesHeaderIndexAndTrailer() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 8, 2);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recorder.recordPose(10 + i, 1, TRANSLATION, ROTATION));
+        }
+        recorder.close();
+        assertEquals(3, recorder.getWrittenPoseCount());
+
+        ByteBuffer file = readFile();
+        assertEquals(SessionRecorder.MAGIC, file.getInt(0));
+        assertEquals(SessionRecorder.VERSION, file.getInt(4));
+        assertEquals(CHUNK_SIZE, file.getInt(8));
+
+        long dataEnd = SessionRecorder.FILE_HEADER_SIZE
+                + 3 * (SessionRecorder.RECORD_HEADER_SIZE + SessionRecorder.POSE_PAYLOAD_SIZE)
+                + 4;
+        assertEquals(dataEnd + SessionRecorder.INDEX_ENTRY_SIZE + SessionRecorder.TRAILER_SIZE,
+                file.limit());
+        assertEquals(SessionRecorder.RECORD_END, file.getInt((int) dataEnd - 4));
+        int index = (int) dataEnd;
+        assertEquals(0, file.getLong(index));
+        assertEquals(3, file.getInt(index + 8));
+        assertEquals(10.0, file.getDouble(index + 12), 0);
+        assertEquals(12.0, file.getDouble(index + 20), 0);
+        int trailer = index + SessionRecorder.INDEX_ENTRY_SIZE;
+        assertEquals(dataEnd, file.getLong(trailer));
+        assertEquals(1, file.getInt(trailer + 8));
+        assertEquals(SessionRecorder.TRAILER_MAGIC, file.getInt(trailer + 12));
+    }
+
+    @Test
+    public void releasesRecordedFramesOnceWritten() throws IOException {
+        DepthFramePool pool = new DepthFramePool(4, 1);
+        DepthFrame frame = pool.acquire();
+        frame.copyFrom(FloatBuffer.wrap(new float[]{1, 2, 3, 4, 5, 6}), 2, 5.0);
+        frame.xyz.position(3);
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 8, 2);
+        assertTrue(recorder.recordDepthFrame(frame));
+        frame.release();
+        recorder.close();
+        assertEquals(1, recorder.getWrittenFrameCount());
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(3, frame.xyz.position());
+    }
+
+    @Test
+    public void dropsFramesBeyondTheQueuedFrameLimit() throws IOException {
+        DepthFramePool pool = new DepthFramePool(4, 4);
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 8, 0);
+        DepthFrame frame = pool.acquire();
+        assertFalse(recorder.recordDepthFrame(frame));
+        assertEquals(1, frame.getReferenceCount());
+        assertEquals(1, recorder.getDroppedFrameCount());
+        recorder.close();
+    }
+
+    @Test
+    public void dropsSamplesRecordedAfterClosing() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 8, 2);
+        recorder.close();
+        assertFalse(recorder.recordPose(1, 1, TRANSLATION, ROTATION));
+        assertEquals(1, recorder.getDroppedPoseCount());
+        assertEquals(0, recorder.getWrittenPoseCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFramesLargerThanAChunk() throws IOException {
+        DepthFrame frame = new DepthFramePool(64, 1).acquire();
+        frame.copyFrom(FloatBuffer.allocate(64 * 3), 64, 1.0);
+        SessionRecorder recorder = new SessionRecorder(mFile, CHUNK_SIZE, 8, 2);
+        try {
+            recorder.recordDepthFrame(frame);
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChunksTooSmallForAPose() throws IOException {
+        new SessionRecorder(mFile, 64, 8, 2);
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()
+                    && file.getChannel().read(buffer, buffer.position()) >= 0) {
+                // Keep reading until the whole file is in.
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+}
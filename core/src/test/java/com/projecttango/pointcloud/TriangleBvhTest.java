@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TriangleBvhTest {
+    @Test
+    public void closestPointOnAGridIsTheProjection() {
+        TriangleBvh bvh = new TriangleBvh(grid(20, 1));
+        TriangleBvh.ClosestPointQuery query = new TriangleBvh.ClosestPointQuery();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            float x = random.nextFloat() * 1.8f - 0.9f;
+            float y = random.nextFloat() * 0.4f - 0.2f;
+            float z = random.nextFloat() * 1.8f - 0.9f;
+            assertTrue(bvh.closestPoint(x, y, z, 0.5f, query));
+            assertEquals(x, query.x, 1e-4f);
+            assertEquals(0, query.y, 1e-4f);
+            assertEquals(z, query.z, 1e-4f);
+            assertEquals(y * y, query.distanceSquared, 1e-4f);
+            assertEquals(1, Math.abs(query.normalY), 1e-5f);
+        }
+        assertFalse(bvh.closestPoint(0, 1, 0, 0.5f, query));
+        assertEquals(-1, query.triangle);
+    }
+
+    @Test
+    public void raycastMatchesBruteForce() {
+        TriangleMesh mesh = soup(500, 2);
+        TriangleBvh bvh = new TriangleBvh(mesh);
+        TriangleBvh.RayQuery query = new TriangleBvh.RayQuery();
+        Random random = new Random(3);
+        int hits = 0;
+        for (int i = 0; i < 2000; i++) {
+            float ox = random.nextFloat() * 4 - 2;
+            float oy = random.nextFloat() * 4 - 2;
+            float oz = random.nextFloat() * 4 - 2;
+            float dx = (float) random.nextGaussian();
+            float dy = (float) random.nextGaussian();
+            float dz = (float) random.nextGaussian();
+            float expected = Float.POSITIVE_INFINITY;
+            for (int t = 0; t < mesh.getTriangleCount(); t++) {
+                expected = Math.min(expected, intersect(mesh, t, ox, oy, oz, dx, dy, dz));
+            }
+            boolean hit = expected <= 10;
+            assertEquals(hit, bvh.raycast(ox, oy, oz, dx, dy, dz, 10, query));
+            assertEquals(hit, bvh.occluded(ox, oy, oz, dx, dy, dz, 10, query));
+            if (hit) {
+                bvh.raycast(ox, oy, oz, dx, dy, dz, 10, query);
+                assertEquals(expected, query.distance, 1e-4f);
+                assertEquals(ox + dx * query.distance, query.x, 1e-4f);
+                hits++;
+            }
+        }
+        assertTrue(hits > 100);
+    }
+
+    @Test
+    public void frustumFindsTrianglesInClipSpace() {
+        // With an identity matrix the frustum is the cube [-1, 1]^3.
+        double[] identity = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        TriangleMesh mesh = grid(40, 2);
+        TriangleBvh bvh = new TriangleBvh(mesh);
+        TriangleBvh.FrustumQuery query = new TriangleBvh.FrustumQuery(mesh.getTriangleCount());
+        int count = bvh.frustumTriangles(identity, query);
+        assertEquals(count, query.count);
+        boolean[] found = new boolean[mesh.getTriangleCount()];
+        for (int i = 0; i < count; i++) {
+            found[query.triangles[i]] = true;
+        }
+        float cell = 4f / 40;
+        for (int t = 0; t < mesh.getTriangleCount(); t++) {
+            float minX = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            float minZ = Float.POSITIVE_INFINITY;
+            float maxZ = Float.NEGATIVE_INFINITY;
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = mesh.indices[t * 3 + corner] * 3;
+                minX = Math.min(minX, mesh.vertices[vertex]);
+                maxX = Math.max(maxX, mesh.vertices[vertex]);
+                minZ = Math.min(minZ, mesh.vertices[vertex + 2]);
+                maxZ = Math.max(maxZ, mesh.vertices[vertex + 2]);
+            }
+            if (minX >= -1 && maxX <= 1 && minZ >= -1 && maxZ <= 1) {
+                assertTrue("Triangle " + t + " is in the frustum", found[t]);
+            } else if (minX > 1 + cell || maxX < -1 - cell || minZ > 1 + cell
+                    || maxZ < -1 - cell) {
+                assertFalse("Triangle " + t + " is out of the frustum", found[t]);
+            }
+        }
+    }
+
+    @Test
+    public void parallelBuildAnswersLikeSerialBuild() throws Exception {
+        TriangleMesh mesh = soup(20000, 5);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TriangleBvh serial = new TriangleBvh(mesh);
+            TriangleBvh parallel = new TriangleBvh(mesh, executor);
+            assertEquals(serial.getTriangleCount(), parallel.getTriangleCount());
+            TriangleBvh.ClosestPointQuery serialQuery = new TriangleBvh.ClosestPointQuery();
+            TriangleBvh.ClosestPointQuery parallelQuery = new TriangleBvh.ClosestPointQuery();
+            Random random = new Random(7);
+            for (int i = 0; i < 1000; i++) {
+                float x = random.nextFloat() * 4 - 2;
+                float y = random.nextFloat() * 4 - 2;
+                float z = random.nextFloat() * 4 - 2;
+                assertEquals(serial.closestPoint(x, y, z, 1, serialQuery),
+                        parallel.closestPoint(x, y, z, 1, parallelQuery));
+                assertEquals(serialQuery.triangle, parallelQuery.triangle);
+                assertEquals(serialQuery.distanceSquared, parallelQuery.distanceSquared, 0f);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyMeshFindsNothing() {
+        TriangleBvh bvh = new TriangleBvh(new TriangleMesh(new float[0], new int[0]));
+        assertFalse(bvh.closestPoint(0, 0, 0, 1, new TriangleBvh.ClosestPointQuery()));
+        assertFalse(bvh.raycast(0, 0, 0, 1, 0, 0, 1, new TriangleBvh.RayQuery()));
+    }
+
+    /**
+     * Horizontal grid at y = 0 of {@code cells} by {@code cells} squares of two triangles,
+     * spanning {@code -halfSize} to {@code halfSize} along x and z.
+     */
+    private static TriangleMesh grid(int cells, float halfSize) {
+        int side = cells + 1;
+        float[] vertices = new float[side * side * 3];
+        for (int row = 0; row < side; row++) {
+            for (int column = 0; column < side; column++) {
+                int vertex = (row * side + column) * 3;
+                vertices[vertex] = -halfSize + 2 * halfSize * column / cells;
+                vertices[vertex + 2] = -halfSize + 2 * halfSize * row / cells;
+            }
+        }
+        int[] indices = new int[cells * cells * 6];
+        int index = 0;
+        for (int row = 0; row < cells; row++) {
+            for (int column = 0; column < cells; column++) {
+                int corner = row * side + column;
+                indices[index++] = corner;
+                indices[index++] = corner + side;
+                indices[index++] = corner + 1;
+                indices[index++] = corner + 1;
+                indices[index++] = corner + side;
+                indices[index++] = corner + side + 1;
+            }
+        }
+        return new TriangleMesh(vertices, indices);
+    }
+
+    /** Random small triangles in the cube [-2, 2]^3. */
+    private static TriangleMesh soup(int triangleCount, long seed) {
+        Random random = new Random(seed);
+        float[] vertices = new float[triangleCount * 9];
+        int[] indices = new int[triangleCount * 3];
+        for (int t = 0; t < triangleCount; t++) {
+            float x = random.nextFloat() * 4 - 2;
+            float y = random.nextFloat() * 4 - 2;
+            float z = random.nextFloat() * 4 - 2;
+            for (int corner = 0; corner < 3; corner++) {
+                vertices[t * 9 + corner * 3] = x + random.nextFloat() * 0.4f - 0.2f;
+                vertices[t * 9 + corner * 3 + 1] = y + random.nextFloat() * 0.4f - 0.2f;
+                vertices[t * 9 + corner * 3 + 2] = z + random.nextFloat() * 0.4f - 0.2f;
+                indices[t * 3 + corner] = t * 3 + corner;
+            }
+        }
+        return new TriangleMesh(vertices, indices);
+    }
+
+    /**
+     * Distance along the ray to a triangle, hit from either side, or infinity, with the
+     * Moller-Trumbore algorithm.
+     */
+    private static float intersect(TriangleMesh mesh, int triangle, float ox, float oy, float oz,
+                                   float dx, float dy, float dz) {
+        float[] v = mesh.vertices;
+        int a = mesh.indices[triangle * 3] * 3;
+        int b = mesh.indices[triangle * 3 + 1] * 3;
+        int c = mesh.indices[triangle * 3 + 2] * 3;
+        double e1x = v[b] - v[a];
+        double e1y = v[b + 1] - v[a + 1];
+        double e1z = v[b + 2] - v[a + 2];
+        double e2x = v[c] - v[a];
+        double e2y = v[c + 1] - v[a + 1];
+        double e2z = v[c + 2] - v[a + 2];
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+        double determinant = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(determinant) < 1e-12) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double tx = ox - v[a];
+        double ty = oy - v[a + 1];
+        double tz = oz - v[a + 2];
+        double u = (tx * px + ty * py + tz * pz) / determinant;
+        if (u < 0 || u > 1) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double qx = ty * e1z - tz * e1y;
+        double qy = tz * e1x - tx * e1z;
+        double qz = tx * e1y - ty * e1x;
+        double w = (dx * qx + dy * qy + dz * qz) / determinant;
+        if (w < 0 || u + w > 1) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double distance = (e2x * qx + e2y * qy + e2z * qz) / determinant;
+        return distance >= 0 ? (float) distance : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TsdfMesherTest {
+    private static final int MAX_VERTICES = TsdfMesher.PAGE_VERTICES * 2000;
+
+    private TsdfVolume mVolume;
+    private TsdfMesher mMesher;
+    private CollectingTarget mTarget;
+
+    @Before
+    public void setUp() {
+        mVolume = new TsdfVolume(TsdfVolumeTest.VOXEL_SIZE, TsdfVolumeTest.TRUNCATION, 1024,
+                10000);
+        mMesher = new TsdfMesher(mVolume, MAX_VERTICES);
+        mTarget = new CollectingTarget(mMesher.getMaxVertices());
+    }
+
+    @After
+    public void tearDown() {
+        mVolume.release();
+    }
+
+    @Test
+    public void meshOfAWallLiesOnTheWall() {
+        integrateWall(1.0f, 0.3f);
+        assertTrue(mMesher.update() > 0);
+        int vertexCount = mMesher.uploadDirtyPages(mTarget);
+        assertTrue(vertexCount > 0);
+
+        int triangleCount = 0;
+        for (int v = 0; v < vertexCount; v += 3) {
+            if (mTarget.isDegenerate(v)) {
+                continue;
+            }
+            triangleCount++;
+            for (int corner = v; corner < v + 3; corner++) {
+                assertEquals(1.0f, mTarget.positions[corner * 3 + 2], TsdfVolumeTest.VOXEL_SIZE);
+                assertTrue(Math.abs(mTarget.positions[corner * 3]) <= 0.3f + 0.05f);
+            }
+            // The normals point back towards the camera, except for triangles of no area, which
+            // have none.
+            float normalZ = mTarget.normals[v * 3 + 2];
+            assertTrue(normalZ < -0.9f || (normalZ == 0 && mTarget.normals[v * 3] == 0
+                    && mTarget.normals[v * 3 + 1] == 0));
+        }
+        // About two triangles per voxel of the 60cm square.
+        assertTrue(triangleCount > 2 * 25 * 25);
+        assertEquals(0, mMesher.getDroppedTriangleCount());
+    }
+
+    @Test
+    public void unchangedVolumeIsNotRemeshedOrUploaded() {
+        integrateWall(1.0f, 0.3f);
+        mMesher.update();
+        int vertexCount = mMesher.uploadDirtyPages(mTarget);
+        mTarget.uploadCount = 0;
+        assertEquals(0, mMesher.update());
+        assertEquals(vertexCount, mMesher.uploadDirtyPages(mTarget));
+        assertEquals(0, mTarget.uploadCount);
+    }
+
+    @Test
+    public void onlyModifiedBricksAreRemeshed() {
+        integrateWall(1.0f, 0.3f);
+        int meshed = mMesher.update();
+        mMesher.uploadDirtyPages(mTarget);
+        // A small patch in the corner touches a few bricks and the neighbours below them.
+        FloatBuffer patch = FloatBuffer.allocate(3 * 9);
+        for (int i = 0; i < 9; i++) {
+            patch.put(0.25f + (i % 3) * 0.01f).put(0.25f + (i / 3) * 0.01f).put(1.0f);
+        }
+        patch.flip();
+        mVolume.integrate(patch, 9, TsdfVolumeTest.ORIGIN, TsdfVolumeTest.IDENTITY);
+        int remeshed = mMesher.update();
+        assertTrue(remeshed > 0);
+        assertTrue(remeshed < meshed);
+        mTarget.uploadCount = 0;
+        mMesher.uploadDirtyPages(mTarget);
+        assertTrue(mTarget.uploadCount > 0);
+    }
+
+    @Test
+    public void fullBuffersDropTriangles() {
+        mMesher = new TsdfMesher(mVolume, TsdfMesher.PAGE_VERTICES * 4);
+        integrateWall(1.0f, 0.3f);
+        mMesher.update();
+        assertTrue(mMesher.getDroppedTriangleCount() > 0);
+    }
+
+    @Test
+    public void pagesFreedAboveTheDrawnRangeAreUploadedWhenItGrowsBack() {
+        ScriptedVolume volume = new ScriptedVolume();
+        try {
+            TsdfMesher mesher = new TsdfMesher(volume, MAX_VERTICES);
+            // Two bricks with a plane each; the second one's pages end the drawn range.
+            volume.setSurface(0, ScriptedVolume.PLANE);
+            volume.setSurface(1, ScriptedVolume.PLANE);
+            mesher.update();
+            int planeVertexCount = mesher.uploadDirtyPages(mTarget);
+            assertTrue(planeVertexCount > TsdfMesher.PAGE_VERTICES * 2);
+            // The second brick empties: its pages are freed and the drawn range shrinks.
+            volume.setSurface(1, ScriptedVolume.EMPTY);
+            mesher.update();
+            assertTrue(mesher.uploadDirtyPages(mTarget) <= planeVertexCount / 2);
+            // A third brick takes the last page freed, beyond the other freed pages, and the
+            // drawn range grows back over them.
+            volume.setSurface(2, ScriptedVolume.CORNER);
+            mesher.update();
+            int vertexCount = mesher.uploadDirtyPages(mTarget);
+            assertEquals(planeVertexCount, vertexCount);
+
+            // None of the triangles drawn is left from the emptied brick.
+            float emptiedMinX = ScriptedVolume.brickX(1) * TsdfVolume.BRICK_SIZE
+                    * TsdfVolumeTest.VOXEL_SIZE;
+            float emptiedMaxX = emptiedMinX + TsdfVolume.BRICK_SIZE * TsdfVolumeTest.VOXEL_SIZE;
+            int triangleCount = 0;
+            for (int v = 0; v < vertexCount; v += 3) {
+                if (mTarget.isDegenerate(v)) {
+                    continue;
+                }
+                triangleCount++;
+                float x = mTarget.positions[v * 3];
+                assertTrue(x < emptiedMinX || x > emptiedMaxX);
+            }
+            assertTrue(triangleCount > 0);
+        } finally {
+            volume.release();
+        }
+    }
+
+    private void integrateWall(float depth, float halfSize) {
+        FloatBuffer wall = TsdfVolumeTest.wall(depth, halfSize);
+        for (int i = 0; i < 3; i++) {
+            mVolume.integrate(wall, wall.limit() / 3, TsdfVolumeTest.ORIGIN,
+                    TsdfVolumeTest.IDENTITY);
+        }
+    }
+
+    /**
+     * Volume whose bricks, spaced so that none are neighbours, hold a chosen surface instead of
+     * integrated frames.
+     */
+    private static class ScriptedVolume extends TsdfVolume {
+        static final int EMPTY = 0;
+        // A horizontal plane across the brick.
+        static final int PLANE = 1;
+        // A small blob in a corner of the brick.
+        static final int CORNER = 2;
+        private static final int BRICK_COUNT = 3;
+
+        private final int[] mSurfaces = new int[BRICK_COUNT];
+        private final int[] mDirty = new int[BRICK_COUNT];
+        private int mDirtyCount;
+
+        ScriptedVolume() {
+            super(TsdfVolumeTest.VOXEL_SIZE, TsdfVolumeTest.TRUNCATION, BRICK_COUNT, 1);
+        }
+
+        static int brickX(int brick) {
+            return brick * 2;
+        }
+
+        void setSurface(int brick, int surface) {
+            mSurfaces[brick] = surface;
+            mDirty[mDirtyCount++] = brick;
+        }
+
+        @Override
+        public int drainDirtyBricks(int[] bricks) {
+            System.arraycopy(mDirty, 0, bricks, 0, mDirtyCount);
+            int count = mDirtyCount;
+            mDirtyCount = 0;
+            return count;
+        }
+
+        @Override
+        public int findBrick(int brickX, int brickY, int brickZ) {
+            if (brickY != 0 || brickZ != 0 || brickX < 0 || brickX % 2 != 0
+                    || brickX / 2 >= BRICK_COUNT) {
+                return -1;
+            }
+            return brickX / 2;
+        }
+
+        @Override
+        public int getBrickX(int brick) {
+            return brickX(brick);
+        }
+
+        @Override
+        public int getBrickY(int brick) {
+            return 0;
+        }
+
+        @Override
+        public int getBrickZ(int brick) {
+            return 0;
+        }
+
+        @Override
+        public float getTsdf(int brick, int voxel) {
+            int x = voxel % BRICK_SIZE;
+            int y = voxel / BRICK_SIZE % BRICK_SIZE;
+            int z = voxel / (BRICK_SIZE * BRICK_SIZE);
+            switch (mSurfaces[brick]) {
+                case PLANE:
+                    return z < 4 ? 0.5f : -0.5f;
+                case CORNER:
+                    return x == 0 && y == 0 && z == 0 ? -0.5f : 0.5f;
+                default:
+                    return 0.5f;
+            }
+        }
+
+        @Override
+        public float getWeight(int brick, int voxel) {
+            return 1;
+        }
+    }
+
+    /** Keeps a copy of all the vertices uploaded. */
+    private static class CollectingTarget implements TsdfMesher.UploadTarget {
+        final float[] positions;
+        final float[] normals;
+        int uploadCount;
+
+        CollectingTarget(int maxVertices) {
+            positions = new float[maxVertices * 3];
+            normals = new float[maxVertices * 3];
+        }
+
+        @Override
+        public void uploadVertices(FloatBuffer positions, FloatBuffer normals, int firstVertex,
+                                   int vertexCount) {
+            positions.get(this.positions, firstVertex * 3, vertexCount * 3);
+            normals.get(this.normals, firstVertex * 3, vertexCount * 3);
+            uploadCount++;
+        }
+
+        boolean isDegenerate(int firstVertex) {
+            for (int i = firstVertex * 3; i < (firstVertex + 3) * 3; i++) {
+                if (positions[i] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TsdfVolumeTest {
+    static final float VOXEL_SIZE = 0.02f;
+    static final float TRUNCATION = 0.06f;
+    static final double[] ORIGIN = {0, 0, 0};
+    static final double[] IDENTITY = {0, 0, 0, 1};
+
+    private TsdfVolume mVolume;
+
+    @After
+    public void tearDown() {
+        if (mVolume != null) {
+            mVolume.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncationOfHalfABrick() {
+        new TsdfVolume(VOXEL_SIZE, VOXEL_SIZE * TsdfVolume.BRICK_SIZE / 2, 16, 16);
+    }
+
+    @Test
+    public void distanceChangesSignAcrossTheSurface() {
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        FloatBuffer wall = wall(1.0f, 0.3f);
+        mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+
+        // Voxels 5, 5 along x, y; along z, voxel 47 is 5cm in front of the wall at 1m, voxels 49
+        // and 50 are on either side of it and voxel 52 is 5cm behind it.
+        assertTrue(getTsdf(5, 5, 47) > 0.5f);
+        assertTrue(getTsdf(5, 5, 49) > 0);
+        assertTrue(getTsdf(5, 5, 50) < 0);
+        assertTrue(getTsdf(5, 5, 52) < -0.5f);
+        assertTrue(getWeight(5, 5, 47) > 0);
+        // Beyond the truncation band nothing is observed.
+        assertEquals(0f, getWeight(5, 5, 40), 0f);
+    }
+
+    @Test
+    public void repeatedFramesKeepTheAverageAndAddWeight() {
+        TsdfVolume once = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        FloatBuffer wall = wall(1.0f, 0.1f);
+        once.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        for (int i = 0; i < 10; i++) {
+            mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        }
+        for (int z = 47; z <= 52; z++) {
+            assertEquals(getTsdf(once, 0, 0, z), getTsdf(mVolume, 0, 0, z), 1e-5f);
+            // Weights saturate at 64.
+            assertEquals(Math.min(10 * getWeight(once, 0, 0, z), 64), getWeight(mVolume, 0, 0, z),
+                    0f);
+        }
+        once.release();
+    }
+
+    @Test
+    public void integrationFollowsTheCameraPose() {
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        FloatBuffer wall = wall(1.0f, 0.1f);
+        // Half a turn around y: the camera looks down -z from 1m along z, so the wall is at the
+        // world origin.
+        mVolume.integrate(wall, wall.limit() / 3, new double[]{0, 0, 1}, new double[]{0, 1, 0, 0});
+        assertTrue(getTsdf(0, 0, 2) > 0.5f);
+        assertTrue(getTsdf(0, 0, -3) < -0.5f);
+    }
+
+    @Test
+    public void modifiedBricksAreDrainedOnce() {
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        FloatBuffer wall = wall(1.0f, 0.3f);
+        mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        int[] bricks = new int[mVolume.getMaxBricks()];
+        assertEquals(mVolume.getBrickCount(), mVolume.drainDirtyBricks(bricks));
+        assertEquals(0, mVolume.drainDirtyBricks(bricks));
+        mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        assertEquals(mVolume.getBrickCount(), mVolume.drainDirtyBricks(bricks));
+    }
+
+    @Test
+    public void bricksBeyondTheCapacityAreDropped() {
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 4, 10000);
+        FloatBuffer wall = wall(1.0f, 0.3f);
+        mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        assertEquals(4, mVolume.getBrickCount());
+        assertTrue(mVolume.getDroppedBrickCount() > 0);
+    }
+
+    @Test
+    public void releasedVolumeIgnoresFrames() {
+        mVolume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1024, 10000);
+        mVolume.release();
+        FloatBuffer wall = wall(1.0f, 0.3f);
+        mVolume.integrate(wall, wall.limit() / 3, ORIGIN, IDENTITY);
+        assertEquals(0, mVolume.getBrickCount());
+    }
+
+    /**
+     * Points of a square wall facing the depth camera at the given depth, every centimeter.
+     */
+    static FloatBuffer wall(float depth, float halfSize) {
+        int side = Math.round(halfSize * 2 / 0.01f) + 1;
+        FloatBuffer points = FloatBuffer.allocate(side * side * 3);
+        for (int row = 0; row < side; row++) {
+            for (int column = 0; column < side; column++) {
+                points.put(-halfSize + column * 0.01f).put(-halfSize + row * 0.01f).put(depth);
+            }
+        }
+        points.flip();
+        return points;
+    }
+
+    private float getTsdf(int x, int y, int z) {
+        return getTsdf(mVolume, x, y, z);
+    }
+
+    private float getWeight(int x, int y, int z) {
+        return getWeight(mVolume, x, y, z);
+    }
+
+    private static float getTsdf(TsdfVolume volume, int x, int y, int z) {
+        int brick = findBrick(volume, x, y, z);
+        assertTrue("Voxel " + x + ", " + y + ", " + z + " isn't allocated", brick >= 0);
+        return volume.getTsdf(brick, voxelIndex(x, y, z));
+    }
+
+    private static float getWeight(TsdfVolume volume, int x, int y, int z) {
+        int brick = findBrick(volume, x, y, z);
+        return brick < 0 ? 0 : volume.getWeight(brick, voxelIndex(x, y, z));
+    }
+
+    private static int findBrick(TsdfVolume volume, int x, int y, int z) {
+        int size = TsdfVolume.BRICK_SIZE;
+        return volume.findBrick(floorDiv(x, size), floorDiv(y, size), floorDiv(z, size));
+    }
+
+    private static int voxelIndex(int x, int y, int z) {
+        int size = TsdfVolume.BRICK_SIZE;
+        return floorMod(x, size) + floorMod(y, size) * size + floorMod(z, size) * size * size;
+    }
+
+    private static int floorDiv(int value, int divisor) {
+        return (int) Math.floor((double) value / divisor);
+    }
+
+    private static int floorMod(int value, int divisor) {
+        return value - floorDiv(value, divisor) * divisor;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.pointcloud;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class VoxelGridFilterTest {
+    private static final float EPSILON = 1e-6f;
+
+    @Test
+    public void replacesPointsInAVoxelByTheirCentroid() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(16 * 3);
+        int count = filter.filter(FloatBuffer.wrap(new float[]{
+                0.1f, 0.2f, 0.3f,
+                0.5f, 0.6f, 0.7f,
+                2.5f, 0.5f, 0.5f,
+        }), 3, destination);
+        assertEquals(2, count);
+        assertEquals(6, destination.limit());
+        assertPoint(0.3f, 0.4f, 0.5f, destination, 0);
+        assertPoint(2.5f, 0.5f, 0.5f, destination, 1);
+    }
+
+    @Test
+    public void separatesVoxelsOnEitherSideOfZero() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(16 * 3);
+        int count = filter.filter(FloatBuffer.wrap(new float[]{
+                -0.25f, 0.5f, 0.5f,
+                0.25f, 0.5f, 0.5f,
+                -0.75f, 0.5f, 0.5f,
+        }), 3, destination);
+        assertEquals(2, count);
+        assertPoint(-0.5f, 0.5f, 0.5f, destination, 0);
+        assertPoint(0.25f, 0.5f, 0.5f, destination, 1);
+    }
+
+    @Test
+    public void startsEveryFrameFromAnEmptyGrid() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(16 * 3);
+        filter.filter(FloatBuffer.wrap(new float[]{0.1f, 0.1f, 0.1f}), 1, destination);
+        int count = filter.filter(FloatBuffer.wrap(new float[]{0.9f, 0.9f, 0.9f}), 1,
+                destination);
+        assertEquals(1, count);
+        assertPoint(0.9f, 0.9f, 0.9f, destination, 0);
+    }
+
+    @Test
+    public void keepsEveryPointOfASparseCloud() {
+        int pointCount = 1000;
+        float[] points = new float[pointCount * 3];
+        for (int i = 0; i < pointCount; i++) {
+            points[i * 3] = i % 10 + 0.5f;
+            points[i * 3 + 1] = i / 10 % 10 + 0.5f;
+            points[i * 3 + 2] = -(i / 100) - 0.5f;
+        }
+        VoxelGridFilter filter = new VoxelGridFilter(pointCount, 1.0f);
+        FloatBuffer destination = FloatBuffer.allocate(pointCount * 3);
+        assertEquals(pointCount, filter.filter(FloatBuffer.wrap(points), pointCount, destination));
+        for (int i = 0; i < pointCount * 3; i++) {
+            assertEquals(points[i], destination.get(i), EPSILON);
+        }
+    }
+
+    @Test
+    public void readsAtMostMaxPointsAndWritesAtMostTheDestinationCapacity() {
+        float[] points = {0.5f, 0.5f, 0.5f, 1.5f, 0.5f, 0.5f, 2.5f, 0.5f, 0.5f};
+        FloatBuffer destination = FloatBuffer.allocate(3 * 3);
+        assertEquals(2, new VoxelGridFilter(2, 1.0f).filter(FloatBuffer.wrap(points), 3,
+                destination));
+        destination = FloatBuffer.allocate(2 * 3);
+        assertEquals(2, new VoxelGridFilter(3, 1.0f).filter(FloatBuffer.wrap(points), 3,
+                destination));
+    }
+
+    @Test
+    public void leavesTheSourcePositionUntouched() {
+        FloatBuffer source = FloatBuffer.wrap(new float[]{0.5f, 0.5f, 0.5f, 1.5f, 0.5f, 0.5f});
+        source.position(3);
+        new VoxelGridFilter(2, 1.0f).filter(source, 2, FloatBuffer.allocate(2 * 3));
+        assertEquals(3, source.position());
+    }
+
+    @Test
+    public void appliesANewVoxelSizeOnTheNextFrame() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 1.0f);
+        FloatBuffer source = FloatBuffer.wrap(new float[]{0.1f, 0.1f, 0.1f, 0.7f, 0.1f, 0.1f});
+        FloatBuffer destination = FloatBuffer.allocate(16 * 3);
+        assertEquals(1, filter.filter(source, 2, destination));
+        filter.setVoxelSize(0.5f);
+        assertEquals(0.5f, filter.getVoxelSize(), 0f);
+        assertEquals(2, filter.filter(source, 2, destination));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveVoxelSize() {
+        new VoxelGridFilter(16, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNanVoxelSize() {
+        new VoxelGridFilter(16, 1.0f).setVoxelSize(Float.NaN);
+    }
+
+    private static void assertPoint(float x, float y, float z, FloatBuffer points, int index) {
+        assertEquals(x, points.get(index * 3), EPSILON);
+        assertEquals(y, points.get(index * 3 + 1), EPSILON);
+        assertEquals(z, points.get(index * 3 + 2), EPSILON);
+    }
+}